@@ -15,3 +15,18 @@
 #-keepclassmembers class fqcn.of.javascript.interface.for.webview {
 #   public *;
 #}
+
+# The listener services are called by their base classes in Play Services.
+-keep class * extends com.google.android.gms.gcm.GcmListenerService {
+    public void onMessageReceived(java.lang.String, android.os.Bundle);
+    public void onMessageSent(java.lang.String);
+    public void onSendError(java.lang.String, java.lang.String);
+    public void onDeletedMessages();
+}
+-keep class * extends com.google.android.gms.iid.InstanceIDListenerService {
+    public void onTokenRefresh();
+}
+
+# The obfuscated internals of Play Services reference classes of the modules the GCM client
+# does not depend on.
+-dontwarn com.google.android.gms.internal.**
@@ -0,0 +1,810 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground;
+
+import android.app.Application;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.samples.apps.gcmplayground.codec.CompactCodec;
+import com.google.samples.apps.gcmplayground.codec.PayloadCodec;
+import com.google.samples.apps.gcmplayground.codec.PayloadCodecs;
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+import com.google.samples.apps.gcmplayground.constants.Status;
+import com.google.samples.apps.gcmplayground.crypto.EncryptingUpstreamSender;
+import com.google.samples.apps.gcmplayground.crypto.GcmKeystore;
+import com.google.samples.apps.gcmplayground.crypto.PayloadCipher;
+import com.google.samples.apps.gcmplayground.crypto.SessionKey;
+import com.google.samples.apps.gcmplayground.crypto.SessionKeyCache;
+import com.google.samples.apps.gcmplayground.downstream.DownstreamMessage;
+import com.google.samples.apps.gcmplayground.downstream.DownstreamPipeline;
+import com.google.samples.apps.gcmplayground.downstream.DownstreamQueue;
+import com.google.samples.apps.gcmplayground.downstream.DownstreamRouter;
+import com.google.samples.apps.gcmplayground.downstream.DuplicateFilter;
+import com.google.samples.apps.gcmplayground.downstream.MessageHistory;
+import com.google.samples.apps.gcmplayground.metrics.MeteredUpstreamSender;
+import com.google.samples.apps.gcmplayground.metrics.MetricsRegistry;
+import com.google.samples.apps.gcmplayground.registration.RefreshCoordinator;
+import com.google.samples.apps.gcmplayground.registration.RegistrationStore;
+import com.google.samples.apps.gcmplayground.senders.RoutingPolicies;
+import com.google.samples.apps.gcmplayground.senders.Sender;
+import com.google.samples.apps.gcmplayground.senders.SenderRegistry;
+import com.google.samples.apps.gcmplayground.store.MessageRecord;
+import com.google.samples.apps.gcmplayground.store.MessageStore;
+import com.google.samples.apps.gcmplayground.store.WriteBehindLog;
+import com.google.samples.apps.gcmplayground.tasks.TaskScheduler;
+import com.google.samples.apps.gcmplayground.topics.GcmTopicClient;
+import com.google.samples.apps.gcmplayground.topics.TopicSubscriptionManager;
+import com.google.samples.apps.gcmplayground.trace.TraceEvent;
+import com.google.samples.apps.gcmplayground.trace.TraceRecorder;
+import com.google.samples.apps.gcmplayground.upstream.GcmUpstreamSender;
+import com.google.samples.apps.gcmplayground.upstream.HeldMessageJournal;
+import com.google.samples.apps.gcmplayground.upstream.InFlightWindow;
+import com.google.samples.apps.gcmplayground.upstream.Outbox;
+import com.google.samples.apps.gcmplayground.upstream.SendScheduler;
+import com.google.samples.apps.gcmplayground.upstream.UpstreamDispatcher;
+import com.google.samples.apps.gcmplayground.upstream.UpstreamSender;
+import com.google.samples.apps.gcmplayground.util.GcmPlaygroundUtil;
+import com.google.samples.apps.gcmplayground.util.GcmPreferencesStore;
+import com.google.samples.apps.gcmplayground.util.KeyValueStore;
+import com.google.samples.apps.gcmplayground.util.MessageIdGenerator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Creates and owns the app-wide components.
+ *
+ * The ones that are cheap to create are ready when {@link #onCreate()} returns. The ones that
+ * read or write files, the preferences or talk to system services are created on the
+ * {@value #INIT_THREAD_NAME} thread, which also resends messages a killed process held and
+ * resumes a dropped token refresh. Their getters block until that is done, so call them off
+ * the main thread, e.g. from a task of {@link #getTaskScheduler()}.
+ */
+public class GcmPlaygroundApplication extends Application {
+
+    private static final String PREF_INSTALL_ID = "install_id";
+    private static final String PREF_ID_GENERATION = "id_generation";
+    private static final String PREF_CODEC_VERSION = "codec_version";
+    private static final String OUTBOX_FILE_NAME = "outbox.log";
+    private static final String METRICS_FILE_NAME = "metrics.txt";
+    private static final String MESSAGE_STORE_DIR_NAME = "messages";
+    private static final String TRACE_DIR_NAME = "traces";
+    private static final String SESSION_WRAPPING_KEY = "session_wrapping_key";
+    private static final String TRACE_TAG = "GcmTrace";
+    private static final String INIT_THREAD_NAME = "AppInit";
+    private static final String TAG = "GcmPlaygroundApp";
+
+    // Ready after onCreate.
+    private MetricsRegistry metrics;
+    private TaskScheduler taskScheduler;
+    private RegistrationStore registrationStore;
+    private DownstreamRouter downstreamRouter;
+    private MessageHistory messageHistory;
+    private WriteBehindLog messageLog;
+    private TraceRecorder traceRecorder;
+
+    // Ready once the init thread counted down; only read them after awaitInitialized().
+    private final CountDownLatch initialized = new CountDownLatch(1);
+    private RuntimeException initFailure;
+    private MessageIdGenerator messageIdGenerator;
+    private SessionKeyCache sessionKeyCache;
+    private GcmUpstreamSender gcmUpstreamSender;
+    private InFlightWindow inFlightWindow;
+    private SenderRegistry senderRegistry;
+    private Outbox outbox;
+    private IOException outboxFailure;
+    private SendScheduler sendScheduler;
+    private TopicSubscriptionManager topicSubscriptionManager;
+    private RefreshCoordinator refreshCoordinator;
+    private DownstreamPipeline downstreamPipeline;
+
+    /**
+     * @param context Any context of this app
+     * @return The application object of the app
+     */
+    public static GcmPlaygroundApplication get(Context context) {
+        return (GcmPlaygroundApplication) context.getApplicationContext();
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        metrics = new MetricsRegistry();
+        taskScheduler = createTaskScheduler();
+        registrationStore = createRegistrationStore();
+        downstreamRouter = new DownstreamRouter();
+        messageHistory = new MessageHistory();
+        messageLog = createMessageLog();
+        traceRecorder = new TraceRecorder();
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // The getters stay blocked until recovery ran, so nothing sends a held
+                // message again before it was recovered.
+                try {
+                    initialize();
+                    start();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Initialization failed", e);
+                    initFailure = e;
+                } finally {
+                    initialized.countDown();
+                }
+            }
+        }, INIT_THREAD_NAME);
+        thread.start();
+    }
+
+    /**
+     * Creates the components that do I/O. They may only call each other through locals here,
+     * as their getters wait for this method to return.
+     */
+    private void initialize() {
+        long start = System.nanoTime();
+        if (Log.isLoggable(TRACE_TAG, Log.DEBUG)) {
+            startTrace();
+        }
+        messageIdGenerator = createMessageIdGenerator();
+        sessionKeyCache = createSessionKeyCache();
+        gcmUpstreamSender = new GcmUpstreamSender(this);
+        gcmUpstreamSender.setCodec(PayloadCodecs.negotiate(
+                GcmPlaygroundUtil.getPreferences(this).getString(PREF_CODEC_VERSION, null)));
+        inFlightWindow = new InFlightWindow(createUpstreamSender(gcmUpstreamSender,
+                sessionKeyCache));
+        metrics.register("upstream.ack", inFlightWindow.getAckLatencyHistogram());
+        senderRegistry = createSenderRegistry(inFlightWindow, messageIdGenerator);
+        try {
+            outbox = createOutbox(inFlightWindow, messageIdGenerator);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open outbox", e);
+            outboxFailure = e;
+        }
+        sendScheduler = createSendScheduler(senderRegistry);
+        topicSubscriptionManager = createTopicSubscriptionManager();
+        refreshCoordinator = createRefreshCoordinator();
+        downstreamPipeline = createDownstreamPipeline(senderRegistry, sessionKeyCache);
+        metrics.histogram("startup.app_init").recordSince(start);
+    }
+
+    /**
+     * Startup work run on the init thread before the getters are released. Like
+     * {@link #initialize()}, it must not call the blocking getters.
+     */
+    private void start() {
+        // Messages a killed process held are sent now, or kept in the outbox if that fails.
+        sendScheduler.recover(new Sender.DestinationCallback() {
+            @Override
+            public void onSent(Map<String, String> data) {
+            }
+
+            @Override
+            public void onUnconfirmed(Map<String, String> data) {
+            }
+
+            @Override
+            public void onFailed(Map<String, String> data, Throwable error) {
+                onFailed(null, null, data, error);
+            }
+
+            @Override
+            public void onFailed(String to, String messageId, Map<String, String> data,
+                    Throwable error) {
+                if (outbox == null) {
+                    Log.e(TAG, "No outbox to save recovered message to", outboxFailure);
+                    return;
+                }
+                try {
+                    outbox.add(to, messageId, data);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not save recovered message to outbox", e);
+                }
+            }
+        });
+        // Reschedules a pending token refresh whose job was dropped by a force stop.
+        refreshCoordinator.resume();
+    }
+
+    private void awaitInitialized() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                initialized.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (initFailure != null) {
+            throw new IllegalStateException("App initialization failed", initFailure);
+        }
+    }
+
+    /**
+     * Returns the message id generator. Its prefix combines a random per-install id with a
+     * generation number bumped once per process, so ids never repeat across restarts. Blocks
+     * until the app is initialized.
+     * @return The generator for all upstream message ids
+     */
+    public MessageIdGenerator getMessageIdGenerator() {
+        awaitInitialized();
+        return messageIdGenerator;
+    }
+
+    private MessageIdGenerator createMessageIdGenerator() {
+        SharedPreferences prefs = GcmPlaygroundUtil.getPreferences(this);
+        String installId = prefs.getString(PREF_INSTALL_ID, null);
+        if (installId == null) {
+            installId = Long.toString(new SecureRandom().nextLong() & Long.MAX_VALUE, 36);
+        }
+        long generation = prefs.getLong(PREF_ID_GENERATION, 0) + 1;
+
+        // Must be on disk before the first id of this generation is handed out.
+        prefs.edit()
+                .putString(PREF_INSTALL_ID, installId)
+                .putLong(PREF_ID_GENERATION, generation)
+                .commit();
+        return new MessageIdGenerator(installId + "-" + Long.toString(generation, 36) + "-");
+    }
+
+    /**
+     * Returns the registration store, backed by the app's shared preferences. Its reads
+     * wait for the preferences to be loaded, so use it off the main thread.
+     * @return The store of registrations the app server already has
+     */
+    public RegistrationStore getRegistrationStore() {
+        return registrationStore;
+    }
+
+    private RegistrationStore createRegistrationStore() {
+        return new RegistrationStore(createPreferencesStore(false));
+    }
+
+    /**
+     * @param synchronous Whether writes are committed before they return
+     * @return A key/value store over the app's shared preferences
+     */
+    private KeyValueStore createPreferencesStore(boolean synchronous) {
+        return new GcmPreferencesStore(GcmPlaygroundUtil.getPreferences(this), synchronous);
+    }
+
+    /**
+     * Returns the token refresh coordinator. Registrations are woken up by
+     * {@link RefreshJobService}, which survives the process. Blocks until the app is
+     * initialized.
+     * @return The coordinator of token refresh registrations
+     */
+    public RefreshCoordinator getRefreshCoordinator() {
+        awaitInitialized();
+        return refreshCoordinator;
+    }
+
+    private RefreshCoordinator createRefreshCoordinator() {
+        final JobScheduler jobScheduler =
+                (JobScheduler) getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        return new RefreshCoordinator(registrationStore,
+                new RefreshCoordinator.Clock() {
+                    @Override
+                    public long currentTimeMillis() {
+                        return System.currentTimeMillis();
+                    }
+                },
+                new RefreshCoordinator.Scheduler() {
+                    @Override
+                    public void schedule(long delayMillis) {
+                        // Registering needs the network; the job waits for it.
+                        JobInfo job = new JobInfo.Builder(RefreshJobService.JOB_ID,
+                                new ComponentName(GcmPlaygroundApplication.this,
+                                        RefreshJobService.class))
+                                .setMinimumLatency(delayMillis)
+                                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                                .setPersisted(true)
+                                .build();
+                        if (jobScheduler.schedule(job) != JobScheduler.RESULT_SUCCESS) {
+                            Log.e(TAG, "Could not schedule token refresh registration");
+                        }
+                    }
+                },
+                new RefreshCoordinator.Registrar() {
+                    @Override
+                    public void register(String stringIdentifier,
+                            RefreshCoordinator.Callback callback) {
+                        RegistrationTask.schedule(GcmPlaygroundApplication.this,
+                                stringIdentifier, callback);
+                    }
+                },
+                RefreshCoordinator.DEFAULT_SETTLE_MILLIS,
+                RefreshCoordinator.DEFAULT_WINDOW_MILLIS, new Random());
+    }
+
+    /**
+     * Returns the topic subscription manager, backed by the app's shared preferences. Blocks
+     * until the app is initialized.
+     * @return The manager of the wanted and subscribed topics
+     */
+    public TopicSubscriptionManager getTopicSubscriptionManager() {
+        awaitInitialized();
+        return topicSubscriptionManager;
+    }
+
+    private TopicSubscriptionManager createTopicSubscriptionManager() {
+        return new TopicSubscriptionManager(new GcmTopicClient(this),
+                createPreferencesStore(false));
+    }
+
+    /**
+     * Returns the sender registry: the default sender followed by the extra sender IDs
+     * configured in senders.xml, each with its own upstream dispatcher. All dispatchers share
+     * the device's in-flight window. Blocks until the app is initialized.
+     * @return The registry routing upstream messages across senders
+     */
+    public SenderRegistry getSenderRegistry() {
+        awaitInitialized();
+        return senderRegistry;
+    }
+
+    private SenderRegistry createSenderRegistry(InFlightWindow window,
+            MessageIdGenerator idGenerator) {
+        List<String> senderIds = new ArrayList<String>();
+        senderIds.add(getString(R.string.gcm_defaultSenderId));
+        for (String senderId : getResources().getStringArray(R.array.extra_sender_ids)) {
+            if (!senderIds.contains(senderId)) {
+                senderIds.add(senderId);
+            }
+        }
+
+        List<Sender> senders = new ArrayList<Sender>(senderIds.size());
+        for (String senderId : senderIds) {
+            String address = GcmPlaygroundUtil.getServerUrl(senderId);
+            UpstreamDispatcher dispatcher = new UpstreamDispatcher(window, address, idGenerator);
+            metrics.register("upstream." + senderId + ".queue", dispatcher.getLatencyHistogram());
+            senders.add(new Sender(senderId, address, dispatcher));
+        }
+        SenderRegistry registry = new SenderRegistry(senders,
+                RoutingPolicies.forName(getString(R.string.sender_routing)));
+
+        // Route by the identifier this client registered with, as in the last run.
+        for (Sender sender : senders) {
+            String token = registrationStore.getToken(sender.getSenderId());
+            sender.setToken(token);
+            sender.setRegistered(token != null);
+        }
+        registry.setRoutingKey(registrationStore.getStringIdentifier(senderIds.get(0)));
+        return registry;
+    }
+
+    /**
+     * Returns the send scheduler, which holds non-urgent upstream messages until the radio is
+     * active anyway. Deadlines run on the main thread. Held messages are kept in the
+     * preferences. Blocks until the app is initialized.
+     * @return The scheduler in front of the upstream dispatcher
+     */
+    public SendScheduler getSendScheduler() {
+        awaitInitialized();
+        return sendScheduler;
+    }
+
+    private SendScheduler createSendScheduler(SenderRegistry registry) {
+        final ConnectivityManager cm =
+                (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        final SendScheduler scheduler = new SendScheduler(registry,
+                new SendScheduler.Clock() {
+                    @Override
+                    public long nowMillis() {
+                        return SystemClock.elapsedRealtime();
+                    }
+
+                    @Override
+                    public void schedule(Runnable task, long delayMillis) {
+                        mainHandler.postDelayed(task, delayMillis);
+                    }
+                },
+                new SendScheduler.Connectivity() {
+                    @Override
+                    public boolean isConnected() {
+                        NetworkInfo network = cm.getActiveNetworkInfo();
+                        return network != null && network.isConnected();
+                    }
+
+                    @Override
+                    public boolean isMetered() {
+                        return cm.isActiveNetworkMetered();
+                    }
+
+                    @Override
+                    public boolean isRadioActive() {
+                        return cm.isDefaultNetworkActive();
+                    }
+                },
+                SendScheduler.DEFAULT_MAX_DELAY_MILLIS,
+                SendScheduler.DEFAULT_MAX_DELAY_METERED_MILLIS,
+                SendScheduler.DEFAULT_MAX_HELD,
+                new HeldMessageJournal(createPreferencesStore(false)));
+        cm.addDefaultNetworkActiveListener(new ConnectivityManager.OnNetworkActiveListener() {
+            @Override
+            public void onNetworkActive() {
+                scheduler.onNetworkActive();
+            }
+        });
+        metrics.register("upstream.hold", scheduler.getHoldDelayHistogram());
+        return scheduler;
+    }
+
+    /**
+     * Returns the outbox. Pending entries are replayed through the in-flight window whenever
+     * the device gets connected again. Blocks until the app is initialized.
+     * @return The outbox holding upstream messages that failed to send
+     * @throws IOException if the outbox file could not be opened
+     */
+    public Outbox getOutbox() throws IOException {
+        awaitInitialized();
+        if (outbox == null) {
+            throw new IOException("Outbox is not available", outboxFailure);
+        }
+        return outbox;
+    }
+
+    private Outbox createOutbox(InFlightWindow window, MessageIdGenerator idGenerator)
+            throws IOException {
+        final Outbox opened = new Outbox(new File(getFilesDir(), OUTBOX_FILE_NAME), window,
+                GcmPlaygroundUtil.getServerUrl(getString(R.string.gcm_defaultSenderId)),
+                idGenerator);
+        registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                ConnectivityManager cm = (ConnectivityManager)
+                        context.getSystemService(Context.CONNECTIVITY_SERVICE);
+                NetworkInfo network = cm.getActiveNetworkInfo();
+                if (network != null && network.isConnected()) {
+                    opened.onConnectivityRestored();
+                }
+            }
+        }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        return opened;
+    }
+
+    /**
+     * Records are buffered and written to the message store on the log's own thread, which
+     * also opens the store.
+     */
+    private WriteBehindLog createMessageLog() {
+        final File directory = new File(getFilesDir(), MESSAGE_STORE_DIR_NAME);
+        WriteBehindLog log = new WriteBehindLog(new WriteBehindLog.Opener() {
+            @Override
+            public MessageStore open() throws IOException {
+                return new MessageStore(directory);
+            }
+        });
+        log.registerMetrics(metrics, "store");
+        return log;
+    }
+
+    /**
+     * Adds a message to the message log and, while one is recorded, to the trace. Can be
+     * called from any thread.
+     * @param direction Whether the message was sent or received
+     * @param peer SenderID the message came from or went to, or null if not known yet
+     * @param data Payload of the message; must not change afterwards
+     */
+    public void logMessage(MessageRecord.Direction direction, String peer,
+            Map<String, String> data) {
+        messageLog.record(new MessageRecord(System.currentTimeMillis(), direction, peer,
+                data.get(RegistrationConstants.ACTION), data));
+        traceRecorder.record(direction == MessageRecord.Direction.RECEIVED
+                ? TraceEvent.Kind.DOWNSTREAM : TraceEvent.Kind.UPSTREAM, peer, data);
+    }
+
+    /**
+     * Records a trace of every message sent and received to {@code files/traces/}, enabled
+     * with {@code adb shell setprop log.tag.GcmTrace DEBUG} before the app starts; replay it
+     * with the benchmark's TraceReplay.
+     */
+    private void startTrace() {
+        File directory = new File(getFilesDir(), TRACE_DIR_NAME);
+        File file = new File(directory, "trace-" + System.currentTimeMillis() + ".bin");
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+            traceRecorder.start(new FileOutputStream(file));
+            Log.d(TRACE_TAG, "Recording to " + file);
+        } catch (IOException e) {
+            Log.e(TRACE_TAG, "Could not start recording", e);
+        }
+    }
+
+    /**
+     * Returns the router that hands rendered downstream messages to the handler registered
+     * for their action.
+     * @return The router fed by the downstream pipeline
+     */
+    public DownstreamRouter getDownstreamRouter() {
+        return downstreamRouter;
+    }
+
+    /**
+     * Returns the history of downstream messages. Only use it on the main thread.
+     * @return The history fed by the downstream pipeline
+     */
+    public MessageHistory getMessageHistory() {
+        return messageHistory;
+    }
+
+    /**
+     * Returns the downstream pipeline, which parses messages on a worker thread and renders
+     * them on the main thread once per frame, into the message history and through the
+     * downstream router. Blocks until the app is initialized.
+     * @return The pipeline between MyGcmListenerService and the UI
+     */
+    public DownstreamPipeline getDownstreamPipeline() {
+        awaitInitialized();
+        return downstreamPipeline;
+    }
+
+    private DownstreamPipeline createDownstreamPipeline(final SenderRegistry registry,
+            final SessionKeyCache sessions) {
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        DownstreamPipeline pipeline = new DownstreamPipeline(
+                Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "DownstreamPipeline");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }),
+                new DuplicateFilter(),
+                new DownstreamPipeline.FrameScheduler() {
+                    @Override
+                    public void schedule(Runnable task, long delayMillis) {
+                        mainHandler.postDelayed(task, delayMillis);
+                    }
+                },
+                DownstreamPipeline.DEFAULT_FRAME_INTERVAL_MILLIS);
+        metrics.register("downstream.render", pipeline.getLatencyHistogram());
+        metrics.register("downstream.render.high", pipeline.getHighPriorityLatencyHistogram());
+        // Status replies the UI waits on overtake a backlog of other messages.
+        DownstreamQueue backlog = pipeline.getBacklog();
+        backlog.setPriority(RegistrationConstants.REGISTER_NEW_CLIENT,
+                DownstreamQueue.Priority.HIGH);
+        backlog.setPriority(RegistrationConstants.UNREGISTER_CLIENT,
+                DownstreamQueue.Priority.HIGH);
+        backlog.registerMetrics(metrics, "downstream.backlog");
+        pipeline.setListener(new DownstreamPipeline.Listener() {
+            @Override
+            public void onMessages(List<DownstreamMessage> messages) {
+                for (int i = 0; i < messages.size(); i++) {
+                    final DownstreamMessage message = messages.get(i);
+                    if (message.getStatus() != Status.UNKNOWN
+                            && message.getActionName() != null) {
+                        metrics.onReply(message.getActionName(), message.getFrom());
+                    }
+                    if (message.getStatus() == Status.REGISTERED
+                            || message.getStatus() == Status.UNREGISTERED) {
+                        // Writes the preferences, so it leaves the main thread. Handlers
+                        // queued behind it in the serial lane see the new state.
+                        taskScheduler.execute(TaskScheduler.Lane.REGISTRATION, new Runnable() {
+                            @Override
+                            public void run() {
+                                onRegistrationStatus(registry, sessions, message);
+                            }
+                        });
+                    }
+                }
+                messageHistory.onMessages(messages);
+                downstreamRouter.onMessages(messages);
+            }
+        });
+        return pipeline;
+    }
+
+    /**
+     * Applies an app server's reply to a registration or unregistration.
+     */
+    private void onRegistrationStatus(SenderRegistry registry, SessionKeyCache sessions,
+            DownstreamMessage message) {
+        Sender sender = registry.getSender(message.getFrom());
+        if (message.getStatus() == Status.REGISTERED) {
+            // A registration only counts once its app server confirmed it; from then on the
+            // server also has the session key it announced.
+            String token = message.getData().get(RegistrationConstants.REGISTRATION_TOKEN);
+            if (registrationStore.confirm(message.getFrom(), token) && sender != null) {
+                sender.setRegistered(true);
+                if (sessions != null) {
+                    sessions.promote(sender.getAddress(), token);
+                }
+                // A refresh keeps its due time until the new token reached the app server.
+                if (sender == registry.getDefaultSender()) {
+                    refreshCoordinator.onConfirmed();
+                }
+            }
+        } else {
+            registrationStore.clear(message.getFrom());
+            if (sender != null) {
+                sender.setToken(null);
+                sender.setRegistered(false);
+                // The server dropped its copy of the session key with the registration.
+                if (sessions != null) {
+                    sessions.invalidate(sender.getAddress());
+                }
+            }
+        }
+    }
+
+    /**
+     * Wraps the GCM sender in encryption, if configured, and times the sends.
+     * @return The sender behind all upstream paths; only the in-flight window calls it
+     */
+    private UpstreamSender createUpstreamSender(UpstreamSender sender,
+            SessionKeyCache sessions) {
+        if (sessions != null) {
+            EncryptingUpstreamSender encrypting = new EncryptingUpstreamSender(sender,
+                    sessions, new PayloadCipher(new SecureRandom()));
+            encrypting.registerMetrics(metrics, "crypto");
+            sender = encrypting;
+        }
+        return new MeteredUpstreamSender(sender, metrics);
+    }
+
+    /**
+     * Returns the cache of session keys negotiated with the app servers, or null if no app
+     * server public key is configured and payloads are sent in the clear. Blocks until the
+     * app is initialized.
+     * @return The session keys used to encrypt upstream payloads, or null
+     */
+    public SessionKeyCache getSessionKeyCache() {
+        awaitInitialized();
+        return sessionKeyCache;
+    }
+
+    private SessionKeyCache createSessionKeyCache() {
+        String serverKey = getString(R.string.app_server_public_key);
+        if (serverKey.length() == 0) {
+            return null;
+        }
+        SecretKey wrappingKey;
+        try {
+            // Null before Android 6.0, where the session keys are stored unwrapped.
+            wrappingKey = GcmKeystore.getOrCreateAesKey(SESSION_WRAPPING_KEY);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Keystore unavailable for session keys", e);
+        }
+        SessionKeyCache sessions;
+        try {
+            sessions = new SessionKeyCache(
+                    SessionKey.parsePublicKey(CompactCodec.fromBase64(serverKey)),
+                    // Committed right away, so an invalidated key never outlives a crash.
+                    createPreferencesStore(true), new SecureRandom(), wrappingKey);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Invalid app_server_public_key", e);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("Invalid app_server_public_key", e);
+        }
+        sessions.registerMetrics(metrics, "crypto.sessions");
+        return sessions;
+    }
+
+    /**
+     * Returns the window of upstream messages not yet acknowledged by CCS, which the
+     * listener service feeds with acknowledgements. Blocks until the app is initialized.
+     * @return The window in front of the upstream sender
+     */
+    public InFlightWindow getInFlightWindow() {
+        awaitInitialized();
+        return inFlightWindow;
+    }
+
+    /**
+     * Returns the scheduler for background work. Task callbacks run on the main thread.
+     * @return The scheduler shared by registration, upstream and topic work
+     */
+    public TaskScheduler getTaskScheduler() {
+        return taskScheduler;
+    }
+
+    private TaskScheduler createTaskScheduler() {
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        int threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        TaskScheduler scheduler = new TaskScheduler(threads, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mainHandler.post(command);
+            }
+        });
+        for (TaskScheduler.Lane lane : TaskScheduler.Lane.values()) {
+            metrics.register("tasks." + lane.name().toLowerCase(Locale.US) + ".queue",
+                    scheduler.getQueueDelayHistogram(lane));
+        }
+        return scheduler;
+    }
+
+    /**
+     * Returns the metrics registry.
+     * @return The registry holding all counters and latency histograms
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Writes a snapshot of the metrics to files/metrics.txt, replacing the previous one. Does
+     * file I/O, so call this off the main thread. Read the snapshot with
+     * {@code adb shell run-as com.google.samples.apps.gcmplayground cat files/metrics.txt}.
+     * @throws IOException if the snapshot cannot be written
+     */
+    public void exportMetrics() throws IOException {
+        File file = new File(getFilesDir(), METRICS_FILE_NAME);
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+            metrics.writeTo(writer);
+        } finally {
+            writer.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /**
+     * Switches upstream payloads to the newest codec the app server supports. Blocks until
+     * the app is initialized.
+     * @param serverVersion Codec version advertised by the app server
+     */
+    public void setUpstreamCodec(String serverVersion) {
+        awaitInitialized();
+        PayloadCodec codec = PayloadCodecs.negotiate(serverVersion);
+        if (gcmUpstreamSender.getCodec() != codec) {
+            gcmUpstreamSender.setCodec(codec);
+            GcmPlaygroundUtil.getPreferences(this).edit()
+                    .putString(PREF_CODEC_VERSION, String.valueOf(codec.getVersion()))
+                    .apply();
+        }
+    }
+
+}
@@ -20,83 +20,149 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Trace;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
+import android.view.LayoutInflater;
 import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
+import android.widget.AdapterView;
+import android.widget.BaseAdapter;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.ListView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GooglePlayServicesUtil;
-import com.google.android.gms.gcm.GcmPubSub;
-import com.google.android.gms.gcm.GoogleCloudMessaging;
+import com.google.samples.apps.gcmplayground.constants.Action;
 import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
-import com.google.samples.apps.gcmplayground.util.GcmPlaygroundUtil;
+import com.google.samples.apps.gcmplayground.constants.Status;
+import com.google.samples.apps.gcmplayground.downstream.DownstreamHandler;
+import com.google.samples.apps.gcmplayground.downstream.DownstreamMessage;
+import com.google.samples.apps.gcmplayground.downstream.DownstreamRouter;
+import com.google.samples.apps.gcmplayground.downstream.MessageHistory;
+import com.google.samples.apps.gcmplayground.registration.RegistrationStore;
+import com.google.samples.apps.gcmplayground.senders.Sender;
+import com.google.samples.apps.gcmplayground.store.MessageRecord;
+import com.google.samples.apps.gcmplayground.tasks.TaskScheduler;
+import com.google.samples.apps.gcmplayground.topics.TopicSubscriptionManager;
+import com.google.samples.apps.gcmplayground.util.StartupTrace;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 public class MyActivity extends Activity implements View.OnClickListener {
 
     private static final int PLAY_SERVICES_RESOLUTION_REQUEST = 9000;
     private static final String TAG = "MyActivity";
     private static final String TOPIC_PREFIX = "/topics/";
-    private GoogleCloudMessaging gcm;
-    private GcmPubSub pubSub;
+    private static final String STARTUP_TAG = "StartupTrace";
+    private static final String FIRST_FRAME = "first_frame";
+    private static final String REGISTRATION_STATE = "registration_state";
+    private GcmPlaygroundApplication app;
+    private TaskScheduler.Scope tasks;
+    private StartupTrace startupTrace;
 
     private BroadcastReceiver mRegistrationBroadcastReceiver;
-    private BroadcastReceiver mDownstreamBroadcastReceiver;
+    private BroadcastReceiver mUpstreamResultReceiver;
+    private DownstreamHandler mRegisterHandler;
+    private DownstreamHandler mUnregisterHandler;
+    private MessageHistory messageHistory;
+    private HistoryAdapter historyAdapter;
     private ProgressBar progressBar;
     private Button registerButton;
     private Button unregisterButton;
     private Button sendButton;
     private Button subscribeTopicButton;
+    private Button unsubscribeTopicButton;
     private EditText stringIdentifierField;
     private EditText upstreamMessageField;
     private EditText topicField;
     private TextView registrationTokenFieldView;
     private TextView statusView;
-    private TextView downstreamBundleView;
+    private TextView historyLabelView;
     private String token;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        startupTrace = new StartupTrace(System.nanoTime());
         super.onCreate(savedInstanceState);
+        app = GcmPlaygroundApplication.get(this);
         setContentView(R.layout.activity_my);
+        runAfterFirstFrame(new Runnable() {
+            @Override
+            public void run() {
+                markStartup(FIRST_FRAME);
+                onFirstFrame();
+            }
+        });
 
         registerButton = (Button) findViewById(R.id.register_button);
         unregisterButton = (Button) findViewById(R.id.unregister_button);
         stringIdentifierField = (EditText) findViewById(R.id.string_identifier);
         registrationTokenFieldView = (TextView) findViewById(R.id.registeration_token);
         statusView = (TextView) findViewById(R.id.status);
-        downstreamBundleView = (TextView) findViewById(R.id.downstream_bundle);
+        historyLabelView = (TextView) findViewById(R.id.history_label);
+        ListView historyView = (ListView) findViewById(R.id.downstream_history);
         upstreamMessageField = (EditText) findViewById(R.id.upstream_message);
         sendButton = (Button) findViewById(R.id.button_send);
         subscribeTopicButton = (Button) findViewById(R.id.topic_subscribe);
+        unsubscribeTopicButton = (Button) findViewById(R.id.topic_unsubscribe);
         topicField = (EditText) findViewById(R.id.topic_name);
         progressBar = (ProgressBar) findViewById(R.id.progress_bar);
 
-        gcm = GoogleCloudMessaging.getInstance(this);
-        pubSub = GcmPubSub.getInstance(this);
-
-        // If Play Services is not up to date, quit the app.
-        checkPlayServices();
+        // Background work of this activity, cancelled when it is destroyed. Messages left
+        // from a previous run are replayed by the app's initialization.
+        tasks = app.getTaskScheduler().newScope();
 
         registerButton.setOnClickListener(this);
         unregisterButton.setOnClickListener(this);
         subscribeTopicButton.setOnClickListener(this);
+        unsubscribeTopicButton.setOnClickListener(this);
         sendButton.setOnClickListener(this);
 
-        // Restore from saved instance state
+        // Downstream messages are listed newest first. Tap a message to only show its action,
+        // long-press to only show its sender, tap the label to show all again.
+        messageHistory = app.getMessageHistory();
+        historyAdapter = new HistoryAdapter();
+        historyView.setAdapter(historyAdapter);
+        historyView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                DownstreamMessage message = messageHistory.get(position);
+                setHistoryFilter(messageHistory.getFilterFrom(),
+                        message.getActionName() == null ? "" : message.getActionName());
+            }
+        });
+        historyView.setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
+            @Override
+            public boolean onItemLongClick(AdapterView<?> parent, View view, int position,
+                    long id) {
+                DownstreamMessage message = messageHistory.get(position);
+                setHistoryFilter(message.getFrom() == null ? "" : message.getFrom(),
+                        messageHistory.getFilterAction());
+                return true;
+            }
+        });
+        historyLabelView.setOnClickListener(this);
+        messageHistory.setObserver(historyAdapter);
+        updateHistoryLabel();
+
+        // Restore from saved instance state, or else from the registration cached on disk.
         if (savedInstanceState != null) {
             token = savedInstanceState.getString(RegistrationConstants.EXTRA_KEY_TOKEN, "");
             if (!("".equals(token))) {
                 updateUI("Registration SUCCEEDED", true);
             }
+            markStartup(REGISTRATION_STATE);
+        } else {
+            tasks.submit(TaskScheduler.Lane.REGISTRATION, new RestoreRegistrationTask());
         }
 
         mRegistrationBroadcastReceiver = new BroadcastReceiver() {
@@ -108,46 +174,136 @@ public class MyActivity extends Activity implements View.OnClickListener {
                 token = intent.getStringExtra(RegistrationConstants.EXTRA_KEY_TOKEN);
                 if (!sentToken) {
                     updateUI("Registration FAILED", false);
+                } else if (intent.getBooleanExtra(RegistrationConstants.ALREADY_REGISTERED, false)) {
+                    // The app server already has this token, no status message will follow.
+                    progressBar.setVisibility(View.INVISIBLE);
+                    updateUI("Registration SUCCEEDED", true);
                 }
             }
         };
 
-        mDownstreamBroadcastReceiver = new BroadcastReceiver() {
+        mUpstreamResultReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                String from = intent.getStringExtra(RegistrationConstants.SENDER_ID);
-                Bundle data = intent.getBundleExtra(RegistrationConstants.EXTRA_KEY_BUNDLE);
-                String message = data.getString(RegistrationConstants.EXTRA_KEY_MESSAGE);
-
-                Log.d(TAG, "Received from >" + from + "< with >" + data.toString() + "<");
-                Log.d(TAG, "Message: " + message);
-
-                String action = data.getString(RegistrationConstants.ACTION);
-                String status = data.getString(RegistrationConstants.STATUS);
+                String status = intent.getStringExtra(RegistrationConstants.EXTRA_KEY_STATUS);
+                if (status != null) {
+                    updateUI(status, true);
+                }
+                String toast = intent.getStringExtra(RegistrationConstants.EXTRA_KEY_TOAST);
+                if (toast != null) {
+                    showToast(toast);
+                }
+            }
+        };
 
-                if (RegistrationConstants.REGISTER_NEW_CLIENT.equals(action) &&
-                        RegistrationConstants.STATUS_REGISTERED.equals(status)) {
+        mRegisterHandler = new DownstreamHandler() {
+            @Override
+            public void onMessage(DownstreamMessage message) {
+                if (message.getStatus() == Status.REGISTERED) {
                     progressBar.setVisibility(View.INVISIBLE);
                     updateUI("Registration SUCCEEDED", true);
-                } else if (RegistrationConstants.UNREGISTER_CLIENT.equals(action) &&
-                        RegistrationConstants.STATUS_UNREGISTERED.equals(status)) {
-                    token = "";
-                    updateUI("Unregistration SUCCEEDED", false);
-                    showToast("Unregistered!");
-                } else {
-                    downstreamBundleView.setText(data.toString());
                 }
             }
         };
 
-        LocalBroadcastManager.getInstance(this).registerReceiver(mRegistrationBroadcastReceiver,
-                new IntentFilter(RegistrationConstants.REGISTRATION_COMPLETE));
-        LocalBroadcastManager.getInstance(this).registerReceiver(mDownstreamBroadcastReceiver,
-                new IntentFilter(RegistrationConstants.NEW_DOWNSTREAM_MESSAGE));
+        mUnregisterHandler = new DownstreamHandler() {
+            @Override
+            public void onMessage(DownstreamMessage message) {
+                if (message.getStatus() == Status.UNREGISTERED) {
+                    // Queued behind the app's own bookkeeping of the reply.
+                    tasks.submit(TaskScheduler.Lane.REGISTRATION, new UnregisteredTask());
+                }
+            }
+        };
+
+        DownstreamRouter router = app.getDownstreamRouter();
+        router.register(Action.REGISTER_NEW_CLIENT, mRegisterHandler);
+        router.register(Action.UNREGISTER_CLIENT, mUnregisterHandler);
 
         stringIdentifierField.setText("<a_name_to_recognize_the_device>");
     }
 
+    /**
+     * Runs a task on the main thread once the first frame of this activity was drawn.
+     */
+    private void runAfterFirstFrame(final Runnable task) {
+        final View decorView = getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener() {
+                    @Override
+                    public boolean onPreDraw() {
+                        decorView.getViewTreeObserver().removeOnPreDrawListener(this);
+                        // Posted now, runs right after this frame's traversal.
+                        decorView.post(task);
+                        return true;
+                    }
+                });
+    }
+
+    /**
+     * Startup work that does not have to delay the first frame.
+     */
+    private void onFirstFrame() {
+        Trace.beginSection("MyActivity.onFirstFrame");
+        try {
+            // If Play Services is not up to date, quit the app.
+            checkPlayServices();
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Records the end of a startup phase, once per activity. Both phases are logged together
+     * under {@value #STARTUP_TAG} for the startup trace script.
+     * @param phase {@link #FIRST_FRAME} or {@link #REGISTRATION_STATE}
+     */
+    private void markStartup(String phase) {
+        long elapsedNanos = startupTrace.mark(phase, System.nanoTime());
+        if (elapsedNanos < 0) {
+            return;
+        }
+        app.getMetrics().histogram("startup." + phase).record(elapsedNanos);
+        if (startupTrace.isMarked(FIRST_FRAME) && startupTrace.isMarked(REGISTRATION_STATE)) {
+            Log.i(STARTUP_TAG, startupTrace.toString());
+        }
+    }
+
+    /**
+     * Reads the registration of the default sender cached by earlier runs, so the UI shows
+     * it without waiting for GCM.
+     */
+    private class RestoreRegistrationTask extends TaskScheduler.Task<String> {
+
+        private String stringIdentifier;
+
+        @Override
+        protected String run() {
+            RegistrationStore store = app.getRegistrationStore();
+            stringIdentifier = store.getLastIdentifier();
+            return app.getSenderRegistry().getDefaultSender().getToken();
+        }
+
+        @Override
+        protected void onDone(String cachedToken) {
+            // A registration that completed meanwhile is newer than the cache.
+            if (cachedToken != null && (token == null || "".equals(token))) {
+                token = cachedToken;
+                if (stringIdentifier != null) {
+                    stringIdentifierField.setText(stringIdentifier);
+                }
+                updateUI("Registration SUCCEEDED", true);
+            }
+            markStartup(REGISTRATION_STATE);
+        }
+
+        @Override
+        protected void onError(Exception error) {
+            Log.e(TAG, "Could not restore registration", error);
+            markStartup(REGISTRATION_STATE);
+        }
+    }
+
     /**
      * Attach click listeners to buttons.
      */
@@ -166,6 +322,12 @@ public class MyActivity extends Activity implements View.OnClickListener {
             case R.id.topic_subscribe:
                 subscribeToTopic();
                 break;
+            case R.id.topic_unsubscribe:
+                unsubscribeFromTopic();
+                break;
+            case R.id.history_label:
+                setHistoryFilter(null, null);
+                break;
             default:
                 Log.e(TAG, "WAT. How did you click that?");
         }
@@ -193,27 +355,133 @@ public class MyActivity extends Activity implements View.OnClickListener {
         // Topic subscription enabled
         topicField.setEnabled(registered);
         subscribeTopicButton.setEnabled(registered);
+        unsubscribeTopicButton.setEnabled(registered);
     }
 
+    /**
+     * The registration receiver is registered exactly once per start/stop cycle.
+     */
     @Override
-    protected void onResume() {
-        super.onResume();
+    protected void onStart() {
+        super.onStart();
         LocalBroadcastManager.getInstance(this).registerReceiver(mRegistrationBroadcastReceiver,
                 new IntentFilter(RegistrationConstants.REGISTRATION_COMPLETE));
+        LocalBroadcastManager.getInstance(this).registerReceiver(mUpstreamResultReceiver,
+                new IntentFilter(RegistrationConstants.UPSTREAM_RESULT));
     }
 
     @Override
     protected void onPause() {
-        LocalBroadcastManager.getInstance(this).unregisterReceiver(mRegistrationBroadcastReceiver);
+        // Leave a metrics snapshot behind whenever the app goes to the background.
+        app.getTaskScheduler().execute(TaskScheduler.Lane.MAINTENANCE, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    app.exportMetrics();
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not export metrics", e);
+                }
+            }
+        });
         super.onPause();
     }
 
     @Override
     protected void onStop() {
         LocalBroadcastManager.getInstance(this).unregisterReceiver(mRegistrationBroadcastReceiver);
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(mUpstreamResultReceiver);
         super.onStop();
     }
 
+    @Override
+    protected void onDestroy() {
+        DownstreamRouter router = app.getDownstreamRouter();
+        router.unregister(mRegisterHandler);
+        router.unregister(mUnregisterHandler);
+        messageHistory.setObserver(null);
+        tasks.cancel();
+        super.onDestroy();
+    }
+
+    private void setHistoryFilter(String from, String action) {
+        messageHistory.setFilter(from, action);
+        historyAdapter.notifyDataSetChanged();
+        updateHistoryLabel();
+    }
+
+    private void updateHistoryLabel() {
+        String from = messageHistory.getFilterFrom();
+        String action = messageHistory.getFilterAction();
+        if (from == null && action == null) {
+            historyLabelView.setText(getString(R.string.history_count, messageHistory.size(),
+                    messageHistory.getTotalCount()));
+        } else {
+            String filter = (from == null ? "" : "from " + from + " ")
+                    + (action == null ? "" : "action \"" + action + "\"");
+            historyLabelView.setText(getString(R.string.history_filtered, messageHistory.size(),
+                    filter.trim()));
+        }
+    }
+
+    /**
+     * Shows the downstream message history. Only the rows on screen are bound; ListView
+     * recycles their views as the list scrolls.
+     */
+    private class HistoryAdapter extends BaseAdapter implements MessageHistory.Observer {
+
+        @Override
+        public void onHistoryChanged() {
+            notifyDataSetChanged();
+            updateHistoryLabel();
+        }
+
+        @Override
+        public int getCount() {
+            return messageHistory.size();
+        }
+
+        @Override
+        public DownstreamMessage getItem(int position) {
+            return messageHistory.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return messageHistory.getSequence(position);
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            RowViews row;
+            if (convertView == null) {
+                convertView = LayoutInflater.from(MyActivity.this)
+                        .inflate(R.layout.item_downstream_message, parent, false);
+                row = new RowViews();
+                row.header = (TextView) convertView.findViewById(R.id.message_header);
+                row.text = (TextView) convertView.findViewById(R.id.message_text);
+                convertView.setTag(row);
+            } else {
+                row = (RowViews) convertView.getTag();
+            }
+
+            DownstreamMessage message = getItem(position);
+            row.header.setText(message.getFrom() + " \u00b7 "
+                    + (message.getActionName() == null ? "-" : message.getActionName()));
+            row.text.setText(message.getText());
+            return convertView;
+        }
+    }
+
+    private static class RowViews {
+        TextView header;
+        TextView text;
+    }
+
     /**
      * Calls the GCM API to register this client if not already registered.
      * @throws IOException
@@ -226,31 +494,68 @@ public class MyActivity extends Activity implements View.OnClickListener {
 
             progressBar.setVisibility(View.VISIBLE);
 
-            // Register with GCM
-            Intent intent = new Intent(this, RegistrationIntentService.class);
-            intent.putExtra(RegistrationConstants.SENDER_ID, senderId);
-            intent.putExtra(RegistrationConstants.STRING_IDENTIFIER, stringId);
-            startService(intent);
+            // Register with GCM. Not tied to this activity, the result is broadcast. Sent
+            // even if the app server confirmed it before, it may have lost the client since.
+            RegistrationTask.schedule(this, stringId, true);
         }
     }
 
     /**
-     * Calls the GCM API to unregister this client
+     * Calls the GCM API to unregister this client from every sender it has a token for
      */
     public void unregisterClient() {
-        String senderId = getString(R.string.gcm_defaultSenderId);
-        if (!("".equals(senderId))) {
-            // Create the bundle for registration with the server.
-            Bundle registration = new Bundle();
-            registration.putString(RegistrationConstants.ACTION, RegistrationConstants.UNREGISTER_CLIENT);
-            registration.putString(RegistrationConstants.REGISTRATION_TOKEN, token);
+        // The registry is ready once the app finished initializing, so it is read off the
+        // main thread.
+        app.getTaskScheduler().execute(TaskScheduler.Lane.REGISTRATION, new Runnable() {
+            @Override
+            public void run() {
+                for (Sender sender : app.getSenderRegistry().getSenders()) {
+                    unregisterFrom(app, sender);
+                }
+            }
+        });
+    }
 
-            try {
-                gcm.send(GcmPlaygroundUtil.getServerUrl(senderId),
-                        String.valueOf(System.currentTimeMillis()), registration);
-            } catch (IOException e) {
-                Log.e(TAG, "Message failed", e);
-                updateUI("Unregistration FAILED", true);
+    /**
+     * Unregisters this client from one sender, if it has a token for it.
+     */
+    private static void unregisterFrom(GcmPlaygroundApplication app, Sender sender) {
+        String senderToken = sender.getToken();
+        if (senderToken == null || "".equals(senderToken)) {
+            return;
+        }
+        // Create the payload for unregistration with the server.
+        Map<String, String> registration = new HashMap<String, String>();
+        registration.put(RegistrationConstants.ACTION, RegistrationConstants.UNREGISTER_CLIENT);
+        registration.put(RegistrationConstants.REGISTRATION_TOKEN, senderToken);
+
+        // Sent right away to this sender's app server: it should stop sending to the
+        // token now, and the routing policy must not pick another sender for it.
+        app.logMessage(MessageRecord.Direction.SENT, sender.getSenderId(), registration);
+        sender.send(registration, new UnregisterCallback(app, sender));
+    }
+
+    /**
+     * Reports the unregistration once no sender holds a registration token anymore.
+     */
+    private class UnregisteredTask extends TaskScheduler.Task<Boolean> {
+
+        @Override
+        protected Boolean run() {
+            for (Sender sender : app.getSenderRegistry().getSenders()) {
+                if (sender.getToken() != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        protected void onDone(Boolean registered) {
+            if (!registered) {
+                token = "";
+                updateUI("Unregistration SUCCEEDED", false);
+                showToast("Unregistered!");
             }
         }
     }
@@ -267,67 +572,214 @@ public class MyActivity extends Activity implements View.OnClickListener {
                 return;
             }
 
-            // Create the bundle for sending the message.
-            Bundle message = new Bundle();
-            message.putString(RegistrationConstants.ACTION, RegistrationConstants.UPSTREAM_MESSAGE);
-            message.putString(RegistrationConstants.EXTRA_KEY_MESSAGE, text);
+            // Create the payload for sending the message.
+            final Map<String, String> message = new HashMap<String, String>();
+            message.put(RegistrationConstants.ACTION, RegistrationConstants.UPSTREAM_MESSAGE);
+            message.put(RegistrationConstants.EXTRA_KEY_MESSAGE, text);
+
+            // The sender is picked by the routing policy when the message leaves.
+            app.logMessage(MessageRecord.Direction.SENT, null, message);
+
+            // Held until the radio is active or the deadline expires, then sent from the
+            // dispatcher thread, possibly batched with other messages. The callback may run
+            // long after this activity is gone, so it only holds on to the application.
+            // The scheduler is ready once the app finished initializing.
+            app.getTaskScheduler().execute(TaskScheduler.Lane.UPSTREAM, new Runnable() {
+                @Override
+                public void run() {
+                    app.getSendScheduler().send(message, false, new UpstreamCallback(app));
+                }
+            });
+        }
+    }
+
+    /**
+     * Reports the outcome of an upstream message to whichever activity is showing.
+     */
+    private static class UpstreamCallback implements Sender.DestinationCallback {
+        private final GcmPlaygroundApplication app;
+
+        UpstreamCallback(GcmPlaygroundApplication app) {
+            this.app = app;
+        }
+
+        @Override
+        public void onSent(Map<String, String> data) {
+            // Only called once CCS acknowledged the message.
+            broadcastResult(app, "Message delivered to GCM", null);
+        }
+
+        @Override
+        public void onUnconfirmed(Map<String, String> data) {
+            // Handed to GCM, but CCS never acknowledged it.
+            broadcastResult(app, "Upstream UNCONFIRMED, GCM may still deliver it", null);
+        }
+
+        @Override
+        public void onFailed(Map<String, String> data, Throwable error) {
+            onFailed(null, null, data, error);
+        }
 
+        @Override
+        public void onFailed(String to, String messageId, Map<String, String> data,
+                Throwable error) {
+            Log.e(TAG, "Message failed", error);
+            // Retried with the app server the routing policy picked, under the same
+            // message id.
+            if (saveToOutbox(app, to, messageId, data)) {
+                broadcastResult(app, "Upstream FAILED, will retry when back online", null);
+            } else {
+                broadcastResult(app, "Upstream FAILED", null);
+            }
+        }
+    }
+
+    /**
+     * Drops outdated registrations once an unregistration went out, or keeps a failed one
+     * for a retry.
+     */
+    private static class UnregisterCallback implements Sender.DestinationCallback {
+        private final GcmPlaygroundApplication app;
+        private final Sender sender;
+
+        UnregisterCallback(GcmPlaygroundApplication app, Sender sender) {
+            this.app = app;
+            this.sender = sender;
+        }
+
+        @Override
+        public void onSent(Map<String, String> data) {
+            // A registration still waiting in the outbox would undo this.
             try {
-                gcm.send(GcmPlaygroundUtil.getServerUrl(senderId),
-                        String.valueOf(System.currentTimeMillis()), message);
-                showToast("Message sent successfully");
+                app.getOutbox().supersedeRegistrations(sender.getAddress());
             } catch (IOException e) {
-                Log.e(TAG, "Message failed", e);
-                showToast("Upstream FAILED");
+                Log.e(TAG, "Failed to drop outdated registrations", e);
             }
         }
+
+        @Override
+        public void onUnconfirmed(Map<String, String> data) {
+            // GCM still holds it and will most likely deliver it.
+            Log.w(TAG, "Unregistration from " + sender.getSenderId() + " unconfirmed");
+            onSent(data);
+        }
+
+        @Override
+        public void onFailed(Map<String, String> data, Throwable error) {
+            onFailed(sender.getAddress(), null, data, error);
+        }
+
+        @Override
+        public void onFailed(String to, String messageId, Map<String, String> data,
+                Throwable error) {
+            Log.e(TAG, "Unregistration from " + sender.getSenderId() + " failed", error);
+            saveToOutbox(app, to, messageId, data);
+            broadcastResult(app, null, "Unregistration FAILED");
+        }
+    }
+
+    /**
+     * Hands the outcome of a send to the activity, if one is started; from any thread.
+     * @param toast Text to show in a toast, or null
+     * @param status Status to show while staying registered, or null
+     */
+    private static void broadcastResult(Context context, String toast, String status) {
+        Intent intent = new Intent(RegistrationConstants.UPSTREAM_RESULT);
+        intent.putExtra(RegistrationConstants.EXTRA_KEY_TOAST, toast);
+        intent.putExtra(RegistrationConstants.EXTRA_KEY_STATUS, status);
+        LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
+    }
+
+    /**
+     * Keeps a message that failed to send in the outbox so it is retried later.
+     * @param to Address of the app server it was for, or null for the default one
+     * @param messageId Message id it was sent under, or null
+     * @param data Payload of the failed message
+     * @return true if the message was saved
+     */
+    private static boolean saveToOutbox(GcmPlaygroundApplication app, String to,
+            String messageId, Map<String, String> data) {
+        try {
+            app.getOutbox().add(to, messageId, data);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save message to outbox", e);
+            return false;
+        }
     }
 
     /**
      * Subscribes client to the entered topic.
      */
     public void subscribeToTopic() {
+        String topic = getTopic();
+        if (topic != null) {
+            tasks.submit(TaskScheduler.Lane.TOPIC_SYNC, new SyncTopicsTask(token, topic, true));
+        }
+    }
+
+    /**
+     * Unsubscribes client from the entered topic.
+     */
+    public void unsubscribeFromTopic() {
+        String topic = getTopic();
+        if (topic != null) {
+            tasks.submit(TaskScheduler.Lane.TOPIC_SYNC, new SyncTopicsTask(token, topic, false));
+        }
+    }
+
+    /**
+     * @return The entered topic, or null if it is not valid
+     */
+    private String getTopic() {
         String senderId = getString(R.string.gcm_defaultSenderId);
         if (!("".equals(senderId))) {
             String topic = topicField.getText().toString().trim();
             if (topic == "" || !topic.startsWith(TOPIC_PREFIX) ||
                     topic.length() <= TOPIC_PREFIX.length()) {
                 showToast("Make sure topic is in format \"/topics/topicName\"");
-                return;
+                return null;
             }
-
-
-            new SubscribeToTopicTask().execute(topic);
+            return topic;
         }
+        return null;
     }
 
     /**
-     * Subscribe the client to the passed topic.
+     * Adds a topic to or removes it from the wanted topics, then subscribes or unsubscribes
+     * the passed token so it matches them.
      */
-    private class SubscribeToTopicTask extends AsyncTask<String, Void, Boolean> {
+    private class SyncTopicsTask extends TaskScheduler.Task<TopicSubscriptionManager.SyncResult> {
+
+        private final String token;
+        private final String topic;
+        private final boolean wanted;
 
-        private String topic;
+        SyncTopicsTask(String token, String topic, boolean wanted) {
+            this.token = token;
+            this.topic = topic;
+            this.wanted = wanted;
+        }
 
         @Override
-        protected Boolean doInBackground(String... params) {
-            if (params.length > 0) {
-                topic = params[0];
-                try {
-                    pubSub.subscribe(token, topic, null);
-                    return true;
-                } catch (IOException e) {
-                    Log.e(TAG, "Subscribe to topic failed", e);
-                }
+        protected TopicSubscriptionManager.SyncResult run() {
+            TopicSubscriptionManager topics = app.getTopicSubscriptionManager();
+            if (wanted) {
+                topics.addTopic(topic);
+            } else {
+                topics.removeTopic(topic);
             }
-            return false;
+            TopicSubscriptionManager.SyncResult result = topics.sync(token);
+            Log.d(TAG, "Topic sync: " + result);
+            return result;
         }
 
         @Override
-        protected void onPostExecute(Boolean succeed) {
-            if (succeed) {
-                updateUI("Subscribed to topic: " + topic, true);
+        protected void onDone(TopicSubscriptionManager.SyncResult result) {
+            if (result.isSuccess()) {
+                updateUI("Topics synced: " + result, true);
             } else {
-                updateUI("Subscription to topic failed: " + topic, false);
+                updateUI("Subscription to topics failed: " + result.failed, false);
             }
         }
     }
@@ -16,18 +16,25 @@
 
 package com.google.samples.apps.gcmplayground;
 
-import android.content.Intent;
 import android.os.Bundle;
-import android.support.v4.content.LocalBroadcastManager;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.google.android.gms.gcm.GcmListenerService;
 import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+import com.google.samples.apps.gcmplayground.store.MessageRecord;
+import com.google.samples.apps.gcmplayground.util.GcmPlaygroundUtil;
+import com.google.samples.apps.gcmplayground.util.LogSampler;
+
+import java.util.Map;
 
 public class MyGcmListenerService extends GcmListenerService {
 
     private static final String TAG = "MyGcmListenerService";
 
+    // Logging every payload would format each one in full; log a few when debugging.
+    private static final LogSampler LOG_SAMPLER = new LogSampler(100, 1);
+
     /**
      * Called when message is received.
      *
@@ -39,12 +46,45 @@ public class MyGcmListenerService extends GcmListenerService {
     public void onMessageReceived(String from, Bundle data) {
         super.onMessageReceived(from, data);
 
-        Log.d(TAG, data.toString());
+        if (Log.isLoggable(TAG, Log.DEBUG) && LOG_SAMPLER.shouldLog(SystemClock.uptimeMillis())) {
+            Log.d(TAG, "From " + from + ": " + data + " (" + LOG_SAMPLER.getSuppressedCount()
+                    + " messages not logged)");
+        }
+
+        // The app server advertises the payload codecs it understands.
+        String codecVersion = data.getString(RegistrationConstants.CODEC_VERSION);
+        if (codecVersion != null) {
+            GcmPlaygroundApplication.get(this).setUpstreamCodec(codecVersion);
+        }
+
+        // Copied here, as other threads must not read the Bundle. Parsed on the pipeline's
+        // worker thread and rendered in per-frame batches.
+        Map<String, String> payload = GcmPlaygroundUtil.asMap(data);
+        GcmPlaygroundApplication app = GcmPlaygroundApplication.get(this);
+        app.getDownstreamPipeline().submit(from, payload);
+        app.logMessage(MessageRecord.Direction.RECEIVED, from, payload);
+    }
 
-        Intent downstreamMessageIntent = new Intent(RegistrationConstants.NEW_DOWNSTREAM_MESSAGE);
-        downstreamMessageIntent.putExtra(RegistrationConstants.SENDER_ID, from);
-        downstreamMessageIntent.putExtra(RegistrationConstants.EXTRA_KEY_BUNDLE, data);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(downstreamMessageIntent);
+    /**
+     * Called when CCS accepted an upstream message.
+     *
+     * @param msgId Message id passed to the send.
+     */
+    @Override
+    public void onMessageSent(String msgId) {
+        GcmPlaygroundApplication.get(this).getInFlightWindow().onAck(msgId);
+    }
+
+    /**
+     * Called when an upstream message could not be sent; it is retried or given up.
+     *
+     * @param msgId Message id passed to the send.
+     * @param error Description of the error.
+     */
+    @Override
+    public void onSendError(String msgId, String error) {
+        Log.w(TAG, "Upstream message " + msgId + " failed: " + error);
+        GcmPlaygroundApplication.get(this).getInFlightWindow().onNack(msgId, error);
     }
 
 
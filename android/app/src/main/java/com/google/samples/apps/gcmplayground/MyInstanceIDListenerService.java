@@ -14,9 +14,8 @@
 
 package com.google.samples.apps.gcmplayground;
 
-import android.content.Intent;
-
 import com.google.android.gms.iid.InstanceIDListenerService;
+import com.google.samples.apps.gcmplayground.tasks.TaskScheduler;
 
 public class MyInstanceIDListenerService extends InstanceIDListenerService {
 
@@ -27,8 +26,18 @@ public class MyInstanceIDListenerService extends InstanceIDListenerService {
      */
     @Override
     public void onTokenRefresh() {
-        // Fetch updated Instance ID token and notify our app's server of any changes (if applicable).
-        Intent intent = new Intent(this, RegistrationIntentService.class);
-        startService(intent);
+        // Session keys were negotiated for the old token; the new registration negotiates
+        // fresh ones, and messages keep using the old keys until the app server confirmed it.
+
+        // Fetch updated Instance ID token and notify our app's server of any changes (if
+        // applicable). Delayed by a random time, so a fleet-wide refresh is spread out.
+        // Recording the refresh writes the preferences, so it runs off the main thread.
+        final GcmPlaygroundApplication app = GcmPlaygroundApplication.get(this);
+        app.getTaskScheduler().execute(TaskScheduler.Lane.REGISTRATION, new Runnable() {
+            @Override
+            public void run() {
+                app.getRefreshCoordinator().onTokenRefresh();
+            }
+        });
     }
 }
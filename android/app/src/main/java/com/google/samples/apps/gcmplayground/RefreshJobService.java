@@ -0,0 +1,55 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+
+import com.google.samples.apps.gcmplayground.registration.RefreshCoordinator;
+import com.google.samples.apps.gcmplayground.tasks.TaskScheduler;
+
+/**
+ * Runs the registration of a refreshed token once it is due. The job is persisted, so it
+ * also runs if the process was killed or the device rebooted since the refresh.
+ */
+public class RefreshJobService extends JobService {
+
+    public static final int JOB_ID = 1;
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        // Called on the main thread; the coordinator reads the preferences, so it runs on the
+        // app's task scheduler, which also runs the registration it starts. The job ends
+        // once that registration was sent, and is retried with backoff if it failed.
+        final GcmPlaygroundApplication app = GcmPlaygroundApplication.get(this);
+        app.getTaskScheduler().execute(TaskScheduler.Lane.REGISTRATION, new Runnable() {
+            @Override
+            public void run() {
+                app.getRefreshCoordinator().onDue(new RefreshCoordinator.Callback() {
+                    @Override
+                    public void onFinished(boolean retry) {
+                        jobFinished(params, retry);
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        return false;
+    }
+}
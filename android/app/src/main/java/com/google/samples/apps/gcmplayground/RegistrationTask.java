@@ -0,0 +1,289 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground;
+
+import android.content.Context;
+import android.content.Intent;
+import android.support.v4.content.LocalBroadcastManager;
+import android.util.Log;
+
+import com.google.android.gms.gcm.GoogleCloudMessaging;
+import com.google.android.gms.iid.InstanceID;
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+import com.google.samples.apps.gcmplayground.crypto.SessionKeyCache;
+import com.google.samples.apps.gcmplayground.registration.RefreshCoordinator;
+import com.google.samples.apps.gcmplayground.registration.RegistrationStore;
+import com.google.samples.apps.gcmplayground.senders.Sender;
+import com.google.samples.apps.gcmplayground.senders.SenderRegistry;
+import com.google.samples.apps.gcmplayground.tasks.TaskScheduler;
+import com.google.samples.apps.gcmplayground.topics.TopicSubscriptionManager;
+import com.google.samples.apps.gcmplayground.upstream.InFlightWindow;
+import com.google.samples.apps.gcmplayground.upstream.Outbox;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Gets a registration token for every configured sender and registers it with the app
+ * server behind that sender, then broadcasts
+ * {@link RegistrationConstants#REGISTRATION_COMPLETE}. Runs in the registration lane of the
+ * app-wide {@link TaskScheduler}, ahead of any queued upstream or topic work.
+ */
+public class RegistrationTask extends TaskScheduler.Task<Boolean> {
+
+    private static final String TAG = "RegistrationTask";
+
+    private final GcmPlaygroundApplication app;
+    private final String stringIdentifier;
+    private final long request;
+    private final boolean force;
+    private final RefreshCoordinator.Callback callback;
+
+    /**
+     * Queues a registration that skips the app servers which confirmed it before. Of several
+     * queued registrations only the latest does the work.
+     * @param context Any context, only its application context is retained
+     * @param stringIdentifier A human-friendly name for the client, remembered for later
+     *                         token refreshes
+     */
+    public static void schedule(Context context, String stringIdentifier) {
+        schedule(context, stringIdentifier, false);
+    }
+
+    /**
+     * Queues a registration. Of several queued registrations only the latest does the work.
+     * @param context Any context, only its application context is retained
+     * @param stringIdentifier A human-friendly name for the client, remembered for later
+     *                         token refreshes
+     * @param force true to register with every app server even if it confirmed the
+     *              registration before, e.g. when the user asked for it
+     */
+    public static void schedule(Context context, String stringIdentifier, boolean force) {
+        schedule(context, stringIdentifier, force, null);
+    }
+
+    /**
+     * Queues a registration of a refreshed token, see {@link #schedule(Context, String)}.
+     * @param context Any context, only its application context is retained
+     * @param stringIdentifier The string identifier the user last registered with
+     * @param callback Called on the main thread once the registration was sent or failed
+     */
+    public static void schedule(Context context, String stringIdentifier,
+            RefreshCoordinator.Callback callback) {
+        schedule(context, stringIdentifier, false, callback);
+    }
+
+    private static void schedule(Context context, String stringIdentifier, boolean force,
+            RefreshCoordinator.Callback callback) {
+        GcmPlaygroundApplication app = GcmPlaygroundApplication.get(context);
+        long request = app.getRegistrationStore().newRequest();
+        app.getTaskScheduler().submit(TaskScheduler.Lane.REGISTRATION,
+                new RegistrationTask(app, stringIdentifier, request, force, callback));
+    }
+
+    private RegistrationTask(GcmPlaygroundApplication app, String stringIdentifier,
+            long request, boolean force, RefreshCoordinator.Callback callback) {
+        this.app = app;
+        this.stringIdentifier = stringIdentifier;
+        this.request = request;
+        this.force = force;
+        this.callback = callback;
+    }
+
+    @Override
+    protected Boolean run() {
+        // A newer request is queued behind this one and will register the current token.
+        RegistrationStore store = app.getRegistrationStore();
+        if (store.isSuperseded(request)) {
+            Log.d(TAG, "Skipping superseded registration request " + request);
+            return true;
+        }
+        store.setLastIdentifier(stringIdentifier);
+
+        SenderRegistry registry = app.getSenderRegistry();
+        if (stringIdentifier != null) {
+            registry.setRoutingKey(stringIdentifier);
+        }
+
+        boolean sentToken = true;
+        boolean alreadyRegistered = true;
+        for (Sender sender : registry.getSenders()) {
+            try {
+                alreadyRegistered &= register(sender, sender == registry.getDefaultSender());
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to complete token refresh for " + sender.getSenderId(), e);
+                // If an exception happens while fetching the new token or updating our
+                // registration data on a third-party server, this ensures that we'll attempt
+                // the update at a later time.
+                sentToken = false;
+            }
+        }
+        Log.d(TAG, "Registrations performed: " + store.getPerformedCount()
+                + ", skipped: " + store.getSkippedCount()
+                + ", superseded: " + store.getSupersededCount());
+
+        Log.d(TAG, "Sending the broadcast");
+        String token = registry.getDefaultSender().getToken();
+        Intent regCompleteIntent = new Intent(RegistrationConstants.REGISTRATION_COMPLETE);
+        regCompleteIntent.putExtra(RegistrationConstants.SENT_TOKEN_TO_SERVER, sentToken);
+        regCompleteIntent.putExtra(RegistrationConstants.ALREADY_REGISTERED,
+                sentToken && alreadyRegistered);
+        regCompleteIntent.putExtra(RegistrationConstants.EXTRA_KEY_TOKEN,
+                token == null ? "" : token);
+        LocalBroadcastManager.getInstance(app).sendBroadcast(regCompleteIntent);
+        return sentToken;
+    }
+
+    @Override
+    protected void onDone(Boolean sentToken) {
+        if (callback != null) {
+            callback.onFinished(!sentToken);
+        }
+    }
+
+    @Override
+    protected void onError(Exception error) {
+        Log.e(TAG, "Registration failed", error);
+        if (callback != null) {
+            callback.onFinished(true);
+        }
+    }
+
+    /**
+     * Gets the token for one sender and registers it with that sender's app server, unless
+     * the server confirmed it before. The registration counts once the server's reply
+     * arrived, see GcmPlaygroundApplication.getDownstreamPipeline.
+     * @param sender Sender to register with
+     * @param isDefault true for the default sender, whose token is subscribed to topics
+     * @return true if the app server already had the registration
+     * @throws IOException if the token could not be retrieved or the registration not sent
+     */
+    private boolean register(Sender sender, boolean isDefault) throws IOException {
+        RegistrationStore store = app.getRegistrationStore();
+        String senderId = sender.getSenderId();
+
+        // Initially this call goes out to the network to retrieve the token, subsequent
+        // calls are local.
+        long start = System.nanoTime();
+        String token = InstanceID.getInstance(app)
+                .getToken(senderId, GoogleCloudMessaging.INSTANCE_ID_SCOPE, null);
+        app.getMetrics().histogram("registration.get_token").recordSince(start);
+        Log.d(TAG, "GCM Registration Token for " + senderId + ": " + token);
+        sender.setToken(token);
+
+        // Only register the token with the app server if it does not have it yet. With
+        // encryption on, a registration also negotiates the session key, so a token that has
+        // no confirmed key yet, e.g. after a refresh, is registered again.
+        SessionKeyCache sessions = app.getSessionKeyCache();
+        if (!force && store.isRegistered(senderId, token, stringIdentifier)
+                && (sessions == null || sessions.has(sender.getAddress(), token))) {
+            store.onSkipped();
+            sender.setRegistered(true);
+            if (isDefault) {
+                // Confirmed before, so no reply will end a pending token refresh.
+                app.getRefreshCoordinator().onConfirmed();
+            }
+            return true;
+        }
+        if (sessions != null) {
+            try {
+                sessions.create(sender.getAddress(), token);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Failed to negotiate a session key", e);
+            }
+        }
+        // Recorded first, so a reply arriving right away finds it.
+        store.setSent(senderId, token, stringIdentifier);
+        sendRegistrationToServer(sender, token, stringIdentifier);
+
+        // Subscriptions are per token; only the topics this token lacks are subscribed.
+        TopicSubscriptionManager topics = app.getTopicSubscriptionManager();
+        if (isDefault && !topics.getTopics().isEmpty()) {
+            Log.d(TAG, "Topic sync: " + topics.sync(token));
+        }
+        return false;
+    }
+
+    /**
+     * Register a GCM registration token with the app server. Hands the registration to the
+     * in-flight window without waiting for its acknowledgement, so the registration lane is
+     * free again right away; if it fails later, it is kept in the outbox all the same.
+     * @param sender Sender whose app server receives the registration
+     * @param token Registration token to be registered
+     * @param string_identifier A human-friendly name for the client
+     * @throws IOException if the registration could not be sent; it is kept in the outbox
+     *                     under its message id
+     */
+    private void sendRegistrationToServer(final Sender sender, String token,
+            String string_identifier) throws IOException {
+        final Map<String, String> registration =
+                createRegistrationPayload(token, string_identifier);
+
+        // An older registration or unregistration still waiting in the outbox would undo
+        // this one.
+        final Outbox outbox = app.getOutbox();
+        outbox.supersedeRegistrations(sender.getAddress());
+        String messageId = app.getMessageIdGenerator().next();
+        try {
+            app.getInFlightWindow().send(sender.getAddress(), messageId, registration,
+                    new InFlightWindow.Listener() {
+                        @Override
+                        public void onAcked(String messageId) {
+                        }
+
+                        @Override
+                        public void onUnconfirmed(String messageId) {
+                            Log.w(TAG, "Registration with " + sender.getSenderId()
+                                    + " unconfirmed");
+                        }
+
+                        @Override
+                        public void onFailed(String messageId, Throwable error) {
+                            Log.e(TAG, "Registration with " + sender.getSenderId()
+                                    + " failed", error);
+                            try {
+                                outbox.add(sender.getAddress(), messageId, registration);
+                            } catch (IOException e) {
+                                Log.e(TAG, "Could not save registration to outbox", e);
+                            }
+                        }
+                    });
+        } catch (IOException e) {
+            outbox.add(sender.getAddress(), messageId, registration);
+            throw e;
+        }
+    }
+
+    /**
+     * Creates the registration payload and fills it with user information. The sender
+     * encrypts it with the session key when one is configured, and encodes it with the
+     * negotiated codec when building the Bundle.
+     * @param token Registration token to be registered
+     * @param string_identifier A human-friendly name for the client
+     * @return A payload with registration data.
+     */
+    private Map<String, String> createRegistrationPayload(String token, String string_identifier) {
+        Map<String, String> registration = new HashMap<String, String>();
+
+        // Create the payload for registration with the server.
+        registration.put(RegistrationConstants.ACTION, RegistrationConstants.REGISTER_NEW_CLIENT);
+        registration.put(RegistrationConstants.REGISTRATION_TOKEN, token);
+        registration.put(RegistrationConstants.STRING_IDENTIFIER, string_identifier);
+        return registration;
+    }
+
+}
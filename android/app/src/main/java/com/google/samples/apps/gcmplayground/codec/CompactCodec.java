@@ -0,0 +1,319 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.samples.apps.gcmplayground.codec;
+
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Packs a whole payload into one base64 field.
+ *
+ * The body is a flags byte followed by a varint pair count and the pairs. Each key and value
+ * is a varint tag: 0 for null, an odd tag for an entry of the alias table, or an even tag
+ * carrying the length of the UTF-8 bytes that follow. Bodies over the deflate threshold are
+ * deflated when that makes them smaller.
+ *
+ * The alias tables are part of the wire format: only ever append to them, and bump the
+ * version for any other change.
+ */
+public class CompactCodec implements PayloadCodec {
+
+    public static final int DEFAULT_DEFLATE_THRESHOLD = 256;
+
+    /**
+     * Largest inflated body accepted, a small multiple of the 4 KB CCS payload limit, so a
+     * crafted deflate stream cannot expand into an unbounded allocation.
+     */
+    public static final int MAX_INFLATED_SIZE = 16 * 4096;
+
+    /** Wire key holding the encoded body. */
+    public static final String BODY_KEY = "p";
+
+    private static final int FLAG_DEFLATED = 1;
+
+    private static final String[] ALIASES = {
+            RegistrationConstants.ACTION,
+            RegistrationConstants.REGISTRATION_TOKEN,
+            RegistrationConstants.STRING_IDENTIFIER,
+            RegistrationConstants.EXTRA_KEY_MESSAGE,
+            RegistrationConstants.STATUS,
+            RegistrationConstants.BATCH_SIZE,
+            RegistrationConstants.REGISTER_NEW_CLIENT,
+            RegistrationConstants.UNREGISTER_CLIENT,
+            RegistrationConstants.UPSTREAM_MESSAGE,
+            RegistrationConstants.UPSTREAM_BATCH,
+            RegistrationConstants.STATUS_REGISTERED,
+            RegistrationConstants.STATUS_UNREGISTERED,
+    };
+
+    private static final Map<String, Integer> ALIAS_INDEX = new HashMap<String, Integer>();
+
+    static {
+        for (int i = 0; i < ALIASES.length; i++) {
+            ALIAS_INDEX.put(ALIASES[i], i);
+        }
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+    private static final int[] BASE64_INDEX = new int[128];
+
+    static {
+        Arrays.fill(BASE64_INDEX, -1);
+        for (int i = 0; i < BASE64.length; i++) {
+            BASE64_INDEX[BASE64[i]] = i;
+        }
+    }
+
+    private final int deflateThreshold;
+
+    public CompactCodec() {
+        this(DEFAULT_DEFLATE_THRESHOLD);
+    }
+
+    /**
+     * @param deflateThreshold Body size in bytes above which deflate is tried
+     */
+    public CompactCodec(int deflateThreshold) {
+        this.deflateThreshold = deflateThreshold;
+    }
+
+    @Override
+    public int getVersion() {
+        return PayloadCodecs.COMPACT_VERSION;
+    }
+
+    @Override
+    public Map<String, String> encode(Map<String, String> payload) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        out.write(0);
+        writeVarint(out, payload.size());
+        for (Map.Entry<String, String> entry : payload.entrySet()) {
+            writeToken(out, entry.getKey());
+            writeToken(out, entry.getValue());
+        }
+
+        byte[] body = out.toByteArray();
+        if (body.length > deflateThreshold) {
+            byte[] deflated = deflate(body);
+            if (deflated.length < body.length) {
+                body = deflated;
+            }
+        }
+
+        Map<String, String> wire = new HashMap<String, String>(4);
+        wire.put(PayloadCodecs.VERSION_KEY, String.valueOf(getVersion()));
+        wire.put(BODY_KEY, toBase64(body));
+        return wire;
+    }
+
+    @Override
+    public Map<String, String> decode(Map<String, String> wire) {
+        String encoded = wire.get(BODY_KEY);
+        if (encoded == null) {
+            throw new IllegalArgumentException("Missing body");
+        }
+        byte[] body = fromBase64(encoded);
+        if (body.length == 0) {
+            throw new IllegalArgumentException("Empty body");
+        }
+        if ((body[0] & FLAG_DEFLATED) != 0) {
+            body = inflate(body);
+        }
+
+        try {
+            int[] position = { 1 };
+            long count = readVarint(body, position);
+            // Every pair takes at least one byte for its key and one for its value.
+            if (count < 0 || count > (body.length - position[0]) / 2) {
+                throw new IllegalArgumentException("Invalid pair count " + count);
+            }
+            Map<String, String> payload = new LinkedHashMap<String, String>((int) count * 2);
+            for (int i = 0; i < count; i++) {
+                String key = readToken(body, position);
+                payload.put(key, readToken(body, position));
+            }
+            return payload;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated body", e);
+        }
+    }
+
+    private static void writeToken(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        Integer alias = ALIAS_INDEX.get(value);
+        if (alias != null) {
+            writeVarint(out, ((long) alias << 1) | 1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        writeVarint(out, (long) (bytes.length + 1) << 1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readToken(byte[] body, int[] position) {
+        long tag = readVarint(body, position);
+        if (tag == 0) {
+            return null;
+        }
+        if ((tag & 1) != 0) {
+            long alias = tag >>> 1;
+            if (alias >= ALIASES.length) {
+                throw new IllegalArgumentException("Unknown alias " + alias);
+            }
+            return ALIASES[(int) alias];
+        }
+        int length = (int) (tag >>> 1) - 1;
+        if (length < 0 || position[0] + length > body.length) {
+            throw new IllegalArgumentException("Truncated body");
+        }
+        String value = new String(body, position[0], length, UTF_8);
+        position[0] += length;
+        return value;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(byte[] body, int[] position) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = body[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * Deflates everything after the flags byte.
+     */
+    private static byte[] deflate(byte[] body) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(body, 1, body.length - 1);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length);
+            out.write(body[0] | FLAG_DEFLATED);
+            byte[] buffer = new byte[512];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] body) {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(body, 1, body.length - 1);
+            ByteArrayOutputStream out =
+                    new ByteArrayOutputStream(Math.min(body.length * 4, MAX_INFLATED_SIZE));
+            out.write(body[0] & ~FLAG_DEFLATED);
+            byte[] buffer = new byte[512];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated deflate stream");
+                }
+                if (out.size() + length > MAX_INFLATED_SIZE) {
+                    throw new IllegalArgumentException("Inflated body over "
+                            + MAX_INFLATED_SIZE + " bytes");
+                }
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Malformed deflate stream", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * URL-safe base64 without padding.
+     */
+    public static String toBase64(byte[] data) {
+        char[] out = new char[(data.length * 4 + 2) / 3];
+        int o = 0;
+        int i = 0;
+        for (; i + 2 < data.length; i += 3) {
+            int bits = (data[i] & 0xFF) << 16 | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF);
+            out[o++] = BASE64[bits >>> 18];
+            out[o++] = BASE64[(bits >>> 12) & 0x3F];
+            out[o++] = BASE64[(bits >>> 6) & 0x3F];
+            out[o++] = BASE64[bits & 0x3F];
+        }
+        int remaining = data.length - i;
+        if (remaining > 0) {
+            int bits = (data[i] & 0xFF) << 16 | (remaining == 2 ? (data[i + 1] & 0xFF) << 8 : 0);
+            out[o++] = BASE64[bits >>> 18];
+            out[o++] = BASE64[(bits >>> 12) & 0x3F];
+            if (remaining == 2) {
+                out[o++] = BASE64[(bits >>> 6) & 0x3F];
+            }
+        }
+        return new String(out, 0, o);
+    }
+
+    public static byte[] fromBase64(String text) {
+        int length = text.length();
+        if (length % 4 == 1) {
+            throw new IllegalArgumentException("Malformed base64");
+        }
+        byte[] out = new byte[length * 3 / 4];
+        int o = 0;
+        int bits = 0;
+        int bitCount = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            int value = c < 128 ? BASE64_INDEX[c] : -1;
+            if (value < 0) {
+                throw new IllegalArgumentException("Malformed base64");
+            }
+            bits = bits << 6 | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                out[o++] = (byte) (bits >>> bitCount);
+            }
+        }
+        return out;
+    }
+
+}
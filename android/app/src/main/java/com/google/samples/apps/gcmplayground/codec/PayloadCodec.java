@@ -0,0 +1,40 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.samples.apps.gcmplayground.codec;
+
+import java.util.Map;
+
+/**
+ * Turns message payloads into the key/value pairs that go on the wire and back.
+ *
+ * Every encoded payload except the plain one carries its codec version under
+ * {@link PayloadCodecs#VERSION_KEY}, so the receiver can pick the matching codec.
+ */
+public interface PayloadCodec {
+
+    /**
+     * @return Version written into encoded payloads, 0 for the plain format
+     */
+    int getVersion();
+
+    Map<String, String> encode(Map<String, String> payload);
+
+    /**
+     * @throws IllegalArgumentException if the wire payload is malformed
+     */
+    Map<String, String> decode(Map<String, String> wire);
+
+}
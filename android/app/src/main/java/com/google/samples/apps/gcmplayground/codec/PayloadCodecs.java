@@ -0,0 +1,72 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.samples.apps.gcmplayground.codec;
+
+import java.util.Map;
+
+/**
+ * Known payload codecs and the version negotiation between them.
+ *
+ * The client starts with the plain format. The app server can advertise the newest
+ * version it understands in the {@code codec_version} field of its registered status
+ * message; the client then switches to the newest codec both sides support.
+ */
+public class PayloadCodecs {
+
+    /** Wire key holding the codec version of an encoded payload. */
+    public static final String VERSION_KEY = "v";
+
+    public static final int PLAIN_VERSION = 0;
+    public static final int COMPACT_VERSION = 1;
+
+    public static final PayloadCodec PLAIN = new PlainCodec();
+    public static final PayloadCodec COMPACT = new CompactCodec();
+
+    private static final PayloadCodec[] BY_VERSION = { PLAIN, COMPACT };
+
+    /**
+     * @param serverVersion Newest version the other side supports, or null if unknown
+     * @return The newest codec supported by both sides
+     */
+    public static PayloadCodec negotiate(String serverVersion) {
+        int version;
+        try {
+            version = serverVersion == null ? PLAIN_VERSION : Integer.parseInt(serverVersion);
+        } catch (NumberFormatException e) {
+            version = PLAIN_VERSION;
+        }
+        return BY_VERSION[Math.max(PLAIN_VERSION, Math.min(version, BY_VERSION.length - 1))];
+    }
+
+    /**
+     * Decodes a wire payload with the codec named by its version field.
+     * @throws IllegalArgumentException if the version is unknown or the payload malformed
+     */
+    public static Map<String, String> decode(Map<String, String> wire) {
+        String version = wire.get(VERSION_KEY);
+        if (version == null) {
+            return PLAIN.decode(wire);
+        }
+        try {
+            return BY_VERSION[Integer.parseInt(version)].decode(wire);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Unknown codec version " + version, e);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Unknown codec version " + version, e);
+        }
+    }
+
+}
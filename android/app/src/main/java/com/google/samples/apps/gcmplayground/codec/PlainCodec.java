@@ -0,0 +1,40 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.samples.apps.gcmplayground.codec;
+
+import java.util.Map;
+
+/**
+ * The original format: payload keys and values are sent as they are.
+ */
+public class PlainCodec implements PayloadCodec {
+
+    @Override
+    public int getVersion() {
+        return PayloadCodecs.PLAIN_VERSION;
+    }
+
+    @Override
+    public Map<String, String> encode(Map<String, String> payload) {
+        return payload;
+    }
+
+    @Override
+    public Map<String, String> decode(Map<String, String> wire) {
+        return wire;
+    }
+
+}
@@ -0,0 +1,63 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.constants;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Values of the {@link RegistrationConstants#ACTION} field known to the app.
+ */
+public enum Action {
+
+    REGISTER_NEW_CLIENT(RegistrationConstants.REGISTER_NEW_CLIENT),
+    UNREGISTER_CLIENT(RegistrationConstants.UNREGISTER_CLIENT),
+    UPSTREAM_MESSAGE(RegistrationConstants.UPSTREAM_MESSAGE),
+    UPSTREAM_BATCH(RegistrationConstants.UPSTREAM_BATCH),
+    UNKNOWN(null);
+
+    private static final Map<String, Action> BY_WIRE_NAME = new HashMap<String, Action>();
+
+    static {
+        for (Action action : values()) {
+            if (action.wireName != null) {
+                BY_WIRE_NAME.put(action.wireName, action);
+            }
+        }
+    }
+
+    private final String wireName;
+
+    Action(String wireName) {
+        this.wireName = wireName;
+    }
+
+    /**
+     * @return The value of the action field in message payloads
+     */
+    public String wireName() {
+        return wireName;
+    }
+
+    /**
+     * @param wireName Value of the action field, may be null
+     * @return The matching action, or {@link #UNKNOWN}
+     */
+    public static Action fromWireName(String wireName) {
+        Action action = wireName == null ? null : BY_WIRE_NAME.get(wireName);
+        return action == null ? UNKNOWN : action;
+    }
+
+}
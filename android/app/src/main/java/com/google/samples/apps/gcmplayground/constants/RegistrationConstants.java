@@ -17,7 +17,9 @@ package com.google.samples.apps.gcmplayground.constants;
 public class RegistrationConstants {
 
     public static final String SENT_TOKEN_TO_SERVER = "sentTokenToServer";
+    public static final String ALREADY_REGISTERED = "alreadyRegistered";
     public static final String REGISTRATION_COMPLETE = "registrationComplete";
+    public static final String UPSTREAM_RESULT = "upstreamResult";
     public static final String SENDER_ID = "senderId";
     public static final String STRING_IDENTIFIER = "stringIdentifier";
     public static final String NEW_DOWNSTREAM_MESSAGE = "newDownstreamMessage";
@@ -25,14 +27,19 @@ public class RegistrationConstants {
 
     public static final String EXTRA_KEY_TOKEN = "TOKEN";
     public static final String EXTRA_KEY_BUNDLE = "BUNDLE";
+    public static final String EXTRA_KEY_TOAST = "TOAST";
+    public static final String EXTRA_KEY_STATUS = "STATUS";
 
     public static final String REGISTER_NEW_CLIENT = "register_new_client";
     public static final String UNREGISTER_CLIENT = "unregister_client";
     public static final String REGISTRATION_TOKEN = "registration_token";
     public static final String UPSTREAM_MESSAGE = "upstream_message";
+    public static final String UPSTREAM_BATCH = "upstream_batch";
+    public static final String BATCH_SIZE = "batch_size";
     public static final String ACTION = "action";
     public static final String STATUS = "status";
     public static final String STATUS_REGISTERED = "registered";
     public static final String STATUS_UNREGISTERED = "unregistered";
+    public static final String CODEC_VERSION = "codec_version";
 
 }
\ No newline at end of file
@@ -0,0 +1,61 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.constants;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Values of the {@link RegistrationConstants#STATUS} field sent by the app server.
+ */
+public enum Status {
+
+    REGISTERED(RegistrationConstants.STATUS_REGISTERED),
+    UNREGISTERED(RegistrationConstants.STATUS_UNREGISTERED),
+    UNKNOWN(null);
+
+    private static final Map<String, Status> BY_WIRE_NAME = new HashMap<String, Status>();
+
+    static {
+        for (Status status : values()) {
+            if (status.wireName != null) {
+                BY_WIRE_NAME.put(status.wireName, status);
+            }
+        }
+    }
+
+    private final String wireName;
+
+    Status(String wireName) {
+        this.wireName = wireName;
+    }
+
+    /**
+     * @return The value of the status field in message payloads
+     */
+    public String wireName() {
+        return wireName;
+    }
+
+    /**
+     * @param wireName Value of the status field, may be null
+     * @return The matching status, or {@link #UNKNOWN}
+     */
+    public static Status fromWireName(String wireName) {
+        Status status = wireName == null ? null : BY_WIRE_NAME.get(wireName);
+        return status == null ? UNKNOWN : status;
+    }
+
+}
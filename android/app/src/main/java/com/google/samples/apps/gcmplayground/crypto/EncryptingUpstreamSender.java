@@ -0,0 +1,94 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.crypto;
+
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+import com.google.samples.apps.gcmplayground.metrics.LatencyHistogram;
+import com.google.samples.apps.gcmplayground.metrics.MetricsRegistry;
+import com.google.samples.apps.gcmplayground.upstream.UpstreamSender;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link UpstreamSender} that encrypts every payload with the session key of its app server
+ * before handing it on. A registration is encrypted under the key it negotiated and announces
+ * the client public key; other messages keep using the current key while a registration that
+ * replaces it is under way, e.g. after a token refresh.
+ *
+ * Without a session key, i.e. before the first registration or after unregistering, the send
+ * fails and the message ends up in the outbox; it is never sent in the clear.
+ */
+public class EncryptingUpstreamSender implements UpstreamSender {
+
+    private final UpstreamSender sender;
+    private final SessionKeyCache sessions;
+    private final PayloadCipher cipher;
+    private final AtomicLong encryptedCount = new AtomicLong();
+    private final AtomicLong noSessionCount = new AtomicLong();
+    private final LatencyHistogram encryptLatency = new LatencyHistogram();
+
+    public EncryptingUpstreamSender(UpstreamSender sender, SessionKeyCache sessions,
+            PayloadCipher cipher) {
+        this.sender = sender;
+        this.sessions = sessions;
+        this.cipher = cipher;
+    }
+
+    @Override
+    public void send(String to, String messageId, Map<String, String> data) throws IOException {
+        boolean announce = RegistrationConstants.REGISTER_NEW_CLIENT.equals(
+                data.get(RegistrationConstants.ACTION));
+        SessionKey session = announce ? sessions.getNewest(to) : sessions.get(to);
+        if (session == null) {
+            noSessionCount.incrementAndGet();
+            throw new IOException("No session key for " + to);
+        }
+        Map<String, String> wire;
+        long start = System.nanoTime();
+        try {
+            wire = cipher.encrypt(session, data, announce);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to encrypt payload", e);
+        }
+        encryptLatency.recordSince(start);
+        sender.send(to, messageId, wire);
+        encryptedCount.incrementAndGet();
+    }
+
+    /**
+     * Publishes the counters as {@code <prefix>.encrypted} and {@code <prefix>.no_session},
+     * and the encryption time as {@code <prefix>.encrypt}.
+     */
+    public void registerMetrics(MetricsRegistry metrics, String prefix) {
+        metrics.register(prefix + ".encrypted", encryptedCount);
+        metrics.register(prefix + ".no_session", noSessionCount);
+        metrics.register(prefix + ".encrypt", encryptLatency);
+    }
+
+    public long getEncryptedCount() {
+        return encryptedCount.get();
+    }
+
+    /**
+     * @return Sends refused because no session key was negotiated for the app server
+     */
+    public long getNoSessionCount() {
+        return noSessionCount.get();
+    }
+
+}
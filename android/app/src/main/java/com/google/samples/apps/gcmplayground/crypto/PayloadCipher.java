@@ -0,0 +1,302 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.crypto;
+
+import com.google.samples.apps.gcmplayground.codec.CompactCodec;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Encrypts payloads with AES-GCM under a {@link SessionKey}.
+ *
+ * The encrypted payload has four keys: the envelope version, the key id, the IV followed by
+ * the ciphertext and tag in base64, and the client public key on the message that announces
+ * a new session. The key id is authenticated as additional data, so a ciphertext cannot be
+ * replayed under another session.
+ *
+ * Every thread keeps its own Cipher and buffers, so the per-message cost is the AES work and
+ * the base64 string rather than provider lookups and allocations.
+ */
+public class PayloadCipher {
+
+    public static final String KEY_VERSION = "e";
+    public static final String KEY_KEY_ID = "k";
+    public static final String KEY_CIPHERTEXT = "c";
+    public static final String KEY_PUBLIC_KEY = "p";
+
+    static final String VERSION = "1";
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int IV_BYTES = 12;
+    private static final int TAG_BITS = 128;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final SecureRandom random;
+    private final ThreadLocal<Engine> engines = new ThreadLocal<Engine>();
+
+    public PayloadCipher(SecureRandom random) {
+        this.random = random;
+    }
+
+    /**
+     * @return true if the payload is one of ours and needs {@link #decrypt}
+     */
+    public static boolean isEncrypted(Map<String, String> wire) {
+        return VERSION.equals(wire.get(KEY_VERSION)) && wire.containsKey(KEY_CIPHERTEXT);
+    }
+
+    /**
+     * @param session Session to encrypt for
+     * @param data Plain payload
+     * @param announce true to carry the client public key, so the app server can derive the
+     *                 session key; set on the registration that negotiates it
+     * @return The encrypted payload
+     */
+    public Map<String, String> encrypt(SessionKey session, Map<String, String> data,
+            boolean announce) throws GeneralSecurityException {
+        Engine engine = engine();
+        engine.serialize(data);
+        random.nextBytes(engine.iv);
+
+        Cipher cipher = engine.cipher;
+        cipher.init(Cipher.ENCRYPT_MODE, session.getKey(),
+                new GCMParameterSpec(TAG_BITS, engine.iv));
+        cipher.updateAAD(engine.keyIdBytes(session));
+        byte[] out = engine.output(IV_BYTES + cipher.getOutputSize(engine.length));
+        System.arraycopy(engine.iv, 0, out, 0, IV_BYTES);
+        int length = IV_BYTES + cipher.doFinal(engine.plain, 0, engine.length, out, IV_BYTES);
+
+        Map<String, String> wire = new HashMap<String, String>(announce ? 8 : 6);
+        wire.put(KEY_VERSION, VERSION);
+        wire.put(KEY_KEY_ID, session.getKeyId());
+        wire.put(KEY_CIPHERTEXT, CompactCodec.toBase64(Arrays.copyOf(out, length)));
+        if (announce) {
+            wire.put(KEY_PUBLIC_KEY, session.getPublicKey());
+        }
+        return wire;
+    }
+
+    /**
+     * @param session Session the payload was encrypted for
+     * @param wire Encrypted payload
+     * @return The plain payload
+     * @throws GeneralSecurityException if the payload is for another key or was altered
+     */
+    public Map<String, String> decrypt(SessionKey session, Map<String, String> wire)
+            throws GeneralSecurityException {
+        if (!session.getKeyId().equals(wire.get(KEY_KEY_ID))) {
+            throw new GeneralSecurityException("Payload is for key " + wire.get(KEY_KEY_ID));
+        }
+        byte[] sealed;
+        try {
+            sealed = CompactCodec.fromBase64(wire.get(KEY_CIPHERTEXT));
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException("Malformed ciphertext", e);
+        }
+        if (sealed.length < IV_BYTES) {
+            throw new GeneralSecurityException("Truncated ciphertext");
+        }
+
+        Engine engine = engine();
+        Cipher cipher = engine.cipher;
+        cipher.init(Cipher.DECRYPT_MODE, session.getKey(),
+                new GCMParameterSpec(TAG_BITS, sealed, 0, IV_BYTES));
+        cipher.updateAAD(engine.keyIdBytes(session));
+        byte[] out = engine.output(cipher.getOutputSize(sealed.length - IV_BYTES));
+        int length = cipher.doFinal(sealed, IV_BYTES, sealed.length - IV_BYTES, out, 0);
+        return deserialize(out, length);
+    }
+
+    private Engine engine() throws GeneralSecurityException {
+        Engine engine = engines.get();
+        if (engine == null) {
+            engine = new Engine(Cipher.getInstance(TRANSFORMATION));
+            engines.set(engine);
+        }
+        return engine;
+    }
+
+    /**
+     * Reads pairs written by {@link Engine#serialize}.
+     */
+    private static Map<String, String> deserialize(byte[] body, int length)
+            throws GeneralSecurityException {
+        int[] position = new int[1];
+        int count = readVarint(body, length, position);
+        Map<String, String> data = new HashMap<String, String>(count * 2);
+        for (int i = 0; i < count; i++) {
+            String key = readString(body, length, position);
+            data.put(key, readString(body, length, position));
+        }
+        return data;
+    }
+
+    private static String readString(byte[] body, int length, int[] position)
+            throws GeneralSecurityException {
+        int tag = readVarint(body, length, position);
+        if (tag == 0) {
+            return null;
+        }
+        int start = position[0];
+        int size = tag - 1;
+        if (size > length - start) {
+            throw new GeneralSecurityException("Malformed plaintext");
+        }
+        position[0] = start + size;
+        return new String(body, start, size, UTF_8);
+    }
+
+    private static int readVarint(byte[] body, int length, int[] position)
+            throws GeneralSecurityException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (position[0] >= length) {
+                throw new GeneralSecurityException("Malformed plaintext");
+            }
+            byte b = body[position[0]++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new GeneralSecurityException("Malformed plaintext");
+    }
+
+    /**
+     * Cipher and buffers of one thread.
+     */
+    private static final class Engine {
+
+        final Cipher cipher;
+        final byte[] iv = new byte[IV_BYTES];
+        byte[] plain = new byte[256];
+        int length;
+        private byte[] out = new byte[256];
+        private SessionKey lastSession;
+        private byte[] lastKeyId;
+
+        Engine(Cipher cipher) {
+            this.cipher = cipher;
+        }
+
+        byte[] output(int size) {
+            if (out.length < size) {
+                out = new byte[Math.max(size, out.length * 2)];
+            }
+            return out;
+        }
+
+        byte[] keyIdBytes(SessionKey session) {
+            if (session != lastSession) {
+                lastKeyId = session.getKeyId().getBytes(UTF_8);
+                lastSession = session;
+            }
+            return lastKeyId;
+        }
+
+        /**
+         * Writes a pair count followed by the pairs into {@link #plain}. Each string is a
+         * varint tag, 0 for null or its UTF-8 length plus one, followed by its bytes.
+         */
+        void serialize(Map<String, String> data) {
+            length = 0;
+            writeVarint(data.size());
+            for (Map.Entry<String, String> entry : data.entrySet()) {
+                writeString(entry.getKey());
+                writeString(entry.getValue());
+            }
+        }
+
+        private void writeString(String value) {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+            int chars = value.length();
+            int size = 0;
+            for (int i = 0; i < chars; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    size += 1;
+                } else if (c < 0x800) {
+                    size += 2;
+                } else if (!Character.isSurrogate(c)) {
+                    size += 3;
+                } else if (isPair(value, i)) {
+                    size += 4;
+                    i++;
+                } else {
+                    size += 1;
+                }
+            }
+            writeVarint(size + 1);
+            ensure(size);
+            byte[] buffer = plain;
+            int p = length;
+            for (int i = 0; i < chars; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    buffer[p++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[p++] = (byte) (0xC0 | c >> 6);
+                    buffer[p++] = (byte) (0x80 | (c & 0x3F));
+                } else if (!Character.isSurrogate(c)) {
+                    buffer[p++] = (byte) (0xE0 | c >> 12);
+                    buffer[p++] = (byte) (0x80 | (c >> 6 & 0x3F));
+                    buffer[p++] = (byte) (0x80 | (c & 0x3F));
+                } else if (isPair(value, i)) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    buffer[p++] = (byte) (0xF0 | codePoint >> 18);
+                    buffer[p++] = (byte) (0x80 | (codePoint >> 12 & 0x3F));
+                    buffer[p++] = (byte) (0x80 | (codePoint >> 6 & 0x3F));
+                    buffer[p++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else {
+                    // Lone surrogates are replaced, as String.getBytes does.
+                    buffer[p++] = '?';
+                }
+            }
+            length = p;
+        }
+
+        private static boolean isPair(String value, int index) {
+            return Character.isHighSurrogate(value.charAt(index)) && index + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(index + 1));
+        }
+
+        private void writeVarint(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                plain[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            plain[length++] = (byte) value;
+        }
+
+        private void ensure(int extra) {
+            if (plain.length - length < extra) {
+                plain = Arrays.copyOf(plain, Math.max(length + extra, plain.length * 2));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.crypto;
+
+import com.google.samples.apps.gcmplayground.codec.CompactCodec;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES key shared by the client and one app server for the lifetime of a registration.
+ *
+ * The client generates an EC key pair per registration and announces its public key with
+ * the registration. Both sides run ECDH between their own private key and the other side's
+ * public key, and derive the AES key from the shared secret with HKDF-SHA256, salted with the
+ * registration token.
+ */
+public class SessionKey {
+
+    static final String EC_CURVE = "secp256r1";
+    static final int AES_KEY_BYTES = 16;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] HKDF_INFO = "gcm-playground session key v1".getBytes(UTF_8);
+    private static final int KEY_ID_BYTES = 9;
+
+    private final String address;
+    private final String token;
+    private final String keyId;
+    private final SecretKey key;
+    private final String publicKey;
+
+    /**
+     * @param address Address of the app server the key is shared with
+     * @param token Registration token the key was negotiated for
+     * @param key Derived AES key
+     * @param publicKey Client public key the app server derives the key from, in base64
+     */
+    public SessionKey(String address, String token, SecretKey key, String publicKey)
+            throws GeneralSecurityException {
+        this.address = address;
+        this.token = token;
+        this.key = key;
+        this.publicKey = publicKey;
+        this.keyId = keyIdOf(publicKey);
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * @return Short id of the key sent with every message, so the app server can look it up
+     */
+    public String getKeyId() {
+        return keyId;
+    }
+
+    public SecretKey getKey() {
+        return key;
+    }
+
+    /**
+     * @return X.509 encoding of the client public key, in URL-safe base64
+     */
+    public String getPublicKey() {
+        return publicKey;
+    }
+
+    /**
+     * @return Id of the key derived from this client public key: the first bytes of its
+     *         SHA-256 in base64
+     */
+    public static String keyIdOf(String publicKey) throws GeneralSecurityException {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(publicKey.getBytes(UTF_8));
+        return CompactCodec.toBase64(Arrays.copyOf(digest, KEY_ID_BYTES));
+    }
+
+    /**
+     * Parses an X.509 encoded EC public key.
+     */
+    public static PublicKey parsePublicKey(byte[] encoded) throws GeneralSecurityException {
+        return KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(encoded));
+    }
+
+    /**
+     * Derives the AES key of a session. Either side can call it with its own private key and
+     * the other side's public key.
+     * @param ownKey Private key of the caller
+     * @param peerKey Public key of the other side
+     * @param token Registration token of the session
+     */
+    public static SecretKey derive(PrivateKey ownKey, PublicKey peerKey, String token)
+            throws GeneralSecurityException {
+        KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+        agreement.init(ownKey);
+        agreement.doPhase(peerKey, true);
+        byte[] secret = agreement.generateSecret();
+
+        // HKDF-SHA256 extract and a single expand step.
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(token.getBytes(UTF_8), "HmacSHA256"));
+        byte[] pseudoRandomKey = mac.doFinal(secret);
+        mac.init(new SecretKeySpec(pseudoRandomKey, "HmacSHA256"));
+        mac.update(HKDF_INFO);
+        mac.update((byte) 1);
+        byte[] okm = mac.doFinal();
+        Arrays.fill(secret, (byte) 0);
+        Arrays.fill(pseudoRandomKey, (byte) 0);
+        return new SecretKeySpec(okm, 0, AES_KEY_BYTES, "AES");
+    }
+
+}
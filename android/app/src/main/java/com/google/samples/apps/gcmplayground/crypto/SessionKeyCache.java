@@ -0,0 +1,318 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.crypto;
+
+import com.google.samples.apps.gcmplayground.codec.CompactCodec;
+import com.google.samples.apps.gcmplayground.metrics.MetricsRegistry;
+import com.google.samples.apps.gcmplayground.util.KeyValueStore;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Session keys per app server address, negotiated once per registration and kept until the
+ * client unregisters. Keys are cached in memory and persisted, so a restarted process keeps
+ * encrypting without registering again.
+ *
+ * A registration that replaces a key, e.g. after a token refresh, negotiates a pending key.
+ * Only the registration is encrypted under it; every other message keeps using the current
+ * key until {@link #promote} records that the app server has the new one.
+ *
+ * Given a wrapping key, each session key is stored sealed with AES-GCM under it, bound to
+ * its address, as the IV followed by the ciphertext and tag. On Android the wrapping key
+ * lives in the Keystore and never leaves it, so a copy of the preferences file does not
+ * reveal the session keys. Without one, e.g. before Android 6.0, the raw AES keys are
+ * stored in the backing store as they are, protected only by the app's private storage:
+ * anyone who can read the app's data, such as a backup or a rooted device, can decrypt
+ * the upstream traffic of the sessions. Entries that do not unwrap, e.g. stored before a
+ * wrapping key existed, read as missing, and the next registration negotiates a new key.
+ */
+public class SessionKeyCache {
+
+    private static final String KEY_PREFIX = "session:";
+    private static final String PENDING_PREFIX = "pending_session:";
+    private static final String KEY_ADDRESSES = "session_addresses";
+    private static final String SEPARATOR = "\n";
+    private static final String WRAP_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int WRAP_IV_BYTES = 12;
+    private static final int WRAP_TAG_BITS = 128;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final PublicKey serverKey;
+    private final KeyValueStore backing;
+    private final SecureRandom random;
+    private final SecretKey wrappingKey;
+    private final Map<String, SessionKey> sessions = new HashMap<String, SessionKey>();
+    private final Set<String> addresses = new LinkedHashSet<String>();
+
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong loadedCount = new AtomicLong();
+    private final AtomicLong promotedCount = new AtomicLong();
+    private final AtomicLong invalidatedCount = new AtomicLong();
+
+    /**
+     * Stores the session keys unwrapped.
+     * @param serverKey Public EC key of the app servers
+     * @param backing Storage of the keys. Writes should be synchronous, so a key that was
+     *         invalidated does not come back after a crash
+     * @param random Source of the client key pairs
+     */
+    public SessionKeyCache(PublicKey serverKey, KeyValueStore backing, SecureRandom random) {
+        this(serverKey, backing, random, null);
+    }
+
+    /**
+     * @param serverKey Public EC key of the app servers
+     * @param backing Storage of the keys. Writes should be synchronous, so a key that was
+     *         invalidated does not come back after a crash
+     * @param random Source of the client key pairs
+     * @param wrappingKey AES key the session keys are sealed with before they are stored, or
+     *         null to store them unwrapped
+     */
+    public SessionKeyCache(PublicKey serverKey, KeyValueStore backing, SecureRandom random,
+            SecretKey wrappingKey) {
+        this.serverKey = serverKey;
+        this.backing = backing;
+        this.random = random;
+        this.wrappingKey = wrappingKey;
+        String stored = backing.get(KEY_ADDRESSES);
+        if (stored != null && stored.length() > 0) {
+            for (String address : stored.split(SEPARATOR)) {
+                addresses.add(address);
+            }
+        }
+    }
+
+    /**
+     * Negotiates a new session key for a registration. The client public key travels with the
+     * registration payload. The first key of an address is current right away; a later one
+     * stays pending until {@link #promote}, replacing any earlier pending key.
+     * @param address Address of the app server
+     * @param token Registration token being registered
+     * @return The new session key
+     * @throws GeneralSecurityException if no key could be generated or derived
+     */
+    public synchronized SessionKey create(String address, String token)
+            throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec(SessionKey.EC_CURVE), random);
+        KeyPair pair = generator.generateKeyPair();
+        SessionKey session = new SessionKey(address, token,
+                SessionKey.derive(pair.getPrivate(), serverKey, token),
+                CompactCodec.toBase64(pair.getPublic().getEncoded()));
+
+        if (get(address) == null) {
+            sessions.put(address, session);
+            backing.put(KEY_PREFIX + address, encode(KEY_PREFIX, session));
+            if (addresses.add(address)) {
+                saveAddresses();
+            }
+        } else {
+            backing.put(PENDING_PREFIX + address, encode(PENDING_PREFIX, session));
+        }
+        createdCount.incrementAndGet();
+        return session;
+    }
+
+    /**
+     * Makes the pending key of an address current once its registration reached the app
+     * server. Does nothing if a newer registration replaced the pending key meanwhile.
+     * @param address Address of the app server
+     * @param token Registration token that was registered, or null if the confirmation does
+     *              not name it
+     * @return true if the pending key became current
+     */
+    public synchronized boolean promote(String address, String token) {
+        SessionKey session = load(PENDING_PREFIX, address);
+        if (session == null || (token != null && !session.getToken().equals(token))) {
+            return false;
+        }
+        sessions.put(address, session);
+        backing.put(KEY_PREFIX + address, encode(KEY_PREFIX, session));
+        backing.remove(PENDING_PREFIX + address);
+        promotedCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return The session key of the address, or null if none was negotiated since the last
+     *         invalidation
+     */
+    public synchronized SessionKey get(String address) {
+        SessionKey session = sessions.get(address);
+        if (session == null && addresses.contains(address)) {
+            session = load(KEY_PREFIX, address);
+            if (session != null) {
+                sessions.put(address, session);
+                loadedCount.incrementAndGet();
+            }
+        }
+        return session;
+    }
+
+    /**
+     * @return The key a registration to the address announces: the pending one if a
+     *         registration is under way, otherwise the current one
+     */
+    public synchronized SessionKey getNewest(String address) {
+        SessionKey pending = load(PENDING_PREFIX, address);
+        return pending != null ? pending : get(address);
+    }
+
+    /**
+     * @return true if the address has a current session key negotiated for this token
+     */
+    public synchronized boolean has(String address, String token) {
+        SessionKey session = get(address);
+        return session != null && session.getToken().equals(token);
+    }
+
+    /**
+     * Forgets the session key of an address, e.g. after unregistering.
+     */
+    public synchronized void invalidate(String address) {
+        sessions.remove(address);
+        backing.remove(KEY_PREFIX + address);
+        backing.remove(PENDING_PREFIX + address);
+        if (addresses.remove(address)) {
+            saveAddresses();
+            invalidatedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Publishes the counters as {@code <prefix>.created}, {@code <prefix>.loaded},
+     * {@code <prefix>.promoted} and {@code <prefix>.invalidated}.
+     */
+    public void registerMetrics(MetricsRegistry metrics, String prefix) {
+        metrics.register(prefix + ".created", createdCount);
+        metrics.register(prefix + ".loaded", loadedCount);
+        metrics.register(prefix + ".promoted", promotedCount);
+        metrics.register(prefix + ".invalidated", invalidatedCount);
+    }
+
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    /**
+     * @return Session keys read back from storage by a new process
+     */
+    public long getLoadedCount() {
+        return loadedCount.get();
+    }
+
+    /**
+     * @return Pending keys that became current
+     */
+    public long getPromotedCount() {
+        return promotedCount.get();
+    }
+
+    public long getInvalidatedCount() {
+        return invalidatedCount.get();
+    }
+
+    private SessionKey load(String prefix, String address) {
+        String stored = backing.get(prefix + address);
+        if (stored == null) {
+            return null;
+        }
+        String[] parts = stored.split(SEPARATOR);
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            byte[] key = CompactCodec.fromBase64(parts[1]);
+            if (wrappingKey != null) {
+                key = unwrap(prefix + address, key);
+            }
+            return new SessionKey(address, parts[0], new SecretKeySpec(key, "AES"), parts[2]);
+        } catch (GeneralSecurityException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            // Damaged entry; the next registration negotiates a new key.
+            return null;
+        }
+    }
+
+    /**
+     * @param prefix Prefix of the entry, which the wrapped key is bound to with its address
+     */
+    private String encode(String prefix, SessionKey session) {
+        byte[] key = session.getKey().getEncoded();
+        if (wrappingKey != null) {
+            try {
+                key = wrap(prefix + session.getAddress(), key);
+            } catch (GeneralSecurityException e) {
+                // Never stored in the clear once a wrapping key was asked for.
+                throw new IllegalStateException("Could not wrap session key", e);
+            }
+        }
+        return session.getToken() + SEPARATOR + CompactCodec.toBase64(key) + SEPARATOR
+                + session.getPublicKey();
+    }
+
+    private byte[] wrap(String entry, byte[] key) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(WRAP_TRANSFORMATION);
+        // The provider picks the IV: the Android Keystore refuses caller-chosen ones.
+        cipher.init(Cipher.ENCRYPT_MODE, wrappingKey);
+        cipher.updateAAD(entry.getBytes(UTF_8));
+        byte[] iv = cipher.getIV();
+        byte[] sealed = cipher.doFinal(key);
+        byte[] wrapped = Arrays.copyOf(iv, iv.length + sealed.length);
+        System.arraycopy(sealed, 0, wrapped, iv.length, sealed.length);
+        return wrapped;
+    }
+
+    private byte[] unwrap(String entry, byte[] wrapped) throws GeneralSecurityException {
+        if (wrapped.length <= WRAP_IV_BYTES + WRAP_TAG_BITS / 8) {
+            throw new GeneralSecurityException("Session key is not wrapped");
+        }
+        Cipher cipher = Cipher.getInstance(WRAP_TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, wrappingKey,
+                new GCMParameterSpec(WRAP_TAG_BITS, wrapped, 0, WRAP_IV_BYTES));
+        cipher.updateAAD(entry.getBytes(UTF_8));
+        return cipher.doFinal(wrapped, WRAP_IV_BYTES, wrapped.length - WRAP_IV_BYTES);
+    }
+
+    private void saveAddresses() {
+        StringBuilder joined = new StringBuilder();
+        for (String address : addresses) {
+            if (joined.length() > 0) {
+                joined.append(SEPARATOR);
+            }
+            joined.append(address);
+        }
+        backing.put(KEY_ADDRESSES, joined.toString());
+    }
+
+}
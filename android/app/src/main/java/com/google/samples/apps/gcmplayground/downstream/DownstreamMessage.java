@@ -0,0 +1,130 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.downstream;
+
+import com.google.samples.apps.gcmplayground.constants.Action;
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+import com.google.samples.apps.gcmplayground.constants.Status;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A downstream message, parsed once off the main thread. Its text for the UI is only built
+ * when a row showing it is bound.
+ */
+public class DownstreamMessage {
+
+    /** Key of the GCM collapse key in downstream payloads. */
+    public static final String COLLAPSE_KEY = "collapse_key";
+
+    /** Collapse key GCM reports for messages sent without one. */
+    public static final String DO_NOT_COLLAPSE = "do_not_collapse";
+
+    private final String from;
+    private final String actionName;
+    private final Action action;
+    private final Status status;
+    private final String message;
+    private final Map<String, String> data;
+    private final String collapseKey;
+    private final long receivedAtNanos;
+    private String text;
+
+    public DownstreamMessage(String from, Map<String, String> data, long receivedAtNanos) {
+        this(from, data, data.get(COLLAPSE_KEY), receivedAtNanos);
+    }
+
+    /**
+     * @param from SenderID of the sender
+     * @param data Decoded payload
+     * @param collapseKey Collapse key the message was sent with, or null;
+     *                    {@link #DO_NOT_COLLAPSE} counts as none
+     * @param receivedAtNanos System.nanoTime() when the message reached the app
+     */
+    public DownstreamMessage(String from, Map<String, String> data, String collapseKey,
+            long receivedAtNanos) {
+        this.from = from;
+        this.data = Collections.unmodifiableMap(data);
+        this.actionName = data.get(RegistrationConstants.ACTION);
+        this.action = Action.fromWireName(actionName);
+        this.status = Status.fromWireName(data.get(RegistrationConstants.STATUS));
+        this.message = data.get(RegistrationConstants.EXTRA_KEY_MESSAGE);
+        this.collapseKey = DO_NOT_COLLAPSE.equals(collapseKey) ? null : collapseKey;
+        this.receivedAtNanos = receivedAtNanos;
+    }
+
+    /**
+     * @return SenderID of the sender
+     */
+    public String getFrom() {
+        return from;
+    }
+
+    /**
+     * @return Raw value of the action field, also for actions unknown to {@link Action}
+     */
+    public String getActionName() {
+        return actionName;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return All key/value pairs of the message
+     */
+    public Map<String, String> getData() {
+        return data;
+    }
+
+    /**
+     * @return Collapse key the message was sent with, or null; of several waiting messages
+     *         with the same key only the newest is rendered
+     */
+    public String getCollapseKey() {
+        return collapseKey;
+    }
+
+    /**
+     * @return System.nanoTime() when the message reached the app
+     */
+    public long getReceivedAtNanos() {
+        return receivedAtNanos;
+    }
+
+    /**
+     * @return Text shown for the message in the UI, built on first use
+     */
+    public String getText() {
+        String result = text;
+        if (result == null) {
+            // Racy but harmless: at worst two threads build equal strings.
+            result = data.toString();
+            text = result;
+        }
+        return result;
+    }
+
+}
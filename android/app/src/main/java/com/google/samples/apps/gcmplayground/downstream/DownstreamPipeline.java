@@ -0,0 +1,240 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.downstream;
+
+import com.google.samples.apps.gcmplayground.codec.PayloadCodecs;
+import com.google.samples.apps.gcmplayground.metrics.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves downstream messages from the GCM listener to the UI in two stages.
+ *
+ * The parse stage drops repeated deliveries (see {@link DuplicateFilter}) and decodes the
+ * remaining payloads into {@link DownstreamMessage}s on a worker executor.
+ * The render stage collects parsed messages in a {@link DownstreamQueue} and hands them to
+ * the {@link Listener} in one batch per frame interval on the UI thread, so a burst of
+ * messages costs one UI update instead of one per message. Batches are capped; under a
+ * burst the backlog is rendered over several frames, most urgent messages first, and
+ * messages sharing a collapse key are merged while they wait.
+ */
+public class DownstreamPipeline {
+
+    public static final long DEFAULT_FRAME_INTERVAL_MILLIS = 16;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+
+    /**
+     * Receives parsed messages on the UI thread.
+     */
+    public interface Listener {
+        void onMessages(List<DownstreamMessage> messages);
+    }
+
+    /**
+     * Runs tasks on the UI thread after a delay.
+     */
+    public interface FrameScheduler {
+        void schedule(Runnable task, long delayMillis);
+    }
+
+    private final Executor worker;
+    private final DuplicateFilter duplicateFilter;
+    private final FrameScheduler frameScheduler;
+    private final long frameIntervalMillis;
+    private final DownstreamQueue pending;
+    private final int maxBatchSize;
+
+    private final Object lock = new Object();
+    private final List<DownstreamMessage> rendering = new ArrayList<DownstreamMessage>();
+    private boolean frameScheduled;
+    private volatile Listener listener;
+
+    private final AtomicLong receivedCount = new AtomicLong();
+    private final AtomicLong renderedCount = new AtomicLong();
+    private final AtomicLong frameCount = new AtomicLong();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram highPriorityLatency = new LatencyHistogram();
+
+    private final Runnable renderTask = new Runnable() {
+        @Override
+        public void run() {
+            render();
+        }
+    };
+
+    /**
+     * @param worker Executor of the parse stage; should run tasks in order
+     * @param duplicateFilter Filter of repeated deliveries
+     * @param frameScheduler Scheduler of the render stage on the UI thread
+     * @param frameIntervalMillis Minimum time between two UI updates
+     */
+    public DownstreamPipeline(Executor worker, DuplicateFilter duplicateFilter,
+            FrameScheduler frameScheduler, long frameIntervalMillis) {
+        this(worker, duplicateFilter, frameScheduler, frameIntervalMillis,
+                new DownstreamQueue(), DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * @param worker Executor of the parse stage; should run tasks in order
+     * @param duplicateFilter Filter of repeated deliveries
+     * @param frameScheduler Scheduler of the render stage on the UI thread
+     * @param frameIntervalMillis Minimum time between two UI updates
+     * @param backlog Queue of the parsed messages waiting for a frame
+     * @param maxBatchSize Maximum number of messages rendered per frame
+     */
+    public DownstreamPipeline(Executor worker, DuplicateFilter duplicateFilter,
+            FrameScheduler frameScheduler, long frameIntervalMillis, DownstreamQueue backlog,
+            int maxBatchSize) {
+        this.worker = worker;
+        this.duplicateFilter = duplicateFilter;
+        this.frameScheduler = frameScheduler;
+        this.frameIntervalMillis = frameIntervalMillis;
+        this.pending = backlog;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Sets the listener receiving rendered messages, or null to drop them.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Queues a message received from GCM. Can be called from any thread.
+     * @param from SenderID of the sender
+     * @param data Payload of the message
+     */
+    public void submit(final String from, final Map<String, String> data) {
+        final long receivedAtNanos = System.nanoTime();
+        receivedCount.incrementAndGet();
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (duplicateFilter.isDuplicate(data, System.currentTimeMillis())) {
+                    return;
+                }
+                enqueue(new DownstreamMessage(from, decode(data),
+                        data.get(DownstreamMessage.COLLAPSE_KEY), receivedAtNanos));
+            }
+        });
+    }
+
+    private static Map<String, String> decode(Map<String, String> data) {
+        try {
+            return PayloadCodecs.decode(data);
+        } catch (IllegalArgumentException e) {
+            // Not one of our encodings, show it as it arrived.
+            return data;
+        }
+    }
+
+    private void enqueue(DownstreamMessage message) {
+        synchronized (lock) {
+            pending.add(message);
+            if (frameScheduled) {
+                return;
+            }
+            frameScheduled = true;
+        }
+        frameScheduler.schedule(renderTask, frameIntervalMillis);
+    }
+
+    /**
+     * Hands the next batch of waiting messages to the listener, and schedules another frame
+     * if more are waiting. Runs on the UI thread.
+     */
+    private void render() {
+        boolean more;
+        synchronized (lock) {
+            pending.drainTo(rendering, maxBatchSize);
+            more = !pending.isEmpty();
+            frameScheduled = more;
+        }
+
+        Listener current = listener;
+        if (current != null && !rendering.isEmpty()) {
+            current.onMessages(rendering);
+        }
+
+        long now = System.nanoTime();
+        for (DownstreamMessage message : rendering) {
+            latency.record(now - message.getReceivedAtNanos());
+            if (pending.getPriority(message) == DownstreamQueue.Priority.HIGH) {
+                highPriorityLatency.record(now - message.getReceivedAtNanos());
+            }
+        }
+        renderedCount.addAndGet(rendering.size());
+        frameCount.incrementAndGet();
+        rendering.clear();
+        if (more) {
+            frameScheduler.schedule(renderTask, frameIntervalMillis);
+        }
+    }
+
+    public long getReceivedCount() {
+        return receivedCount.get();
+    }
+
+    public long getDuplicateCount() {
+        return duplicateFilter.getHitCount();
+    }
+
+    public long getRenderedCount() {
+        return renderedCount.get();
+    }
+
+    public long getFrameCount() {
+        return frameCount.get();
+    }
+
+    /**
+     * @return Queue of the messages waiting for a frame, with its priorities and counters
+     */
+    public DownstreamQueue getBacklog() {
+        return pending;
+    }
+
+    /**
+     * @return Average time from {@link #submit} until the message was rendered, in
+     *         milliseconds
+     */
+    public double getAverageLatencyMillis() {
+        return latency.getMeanNanos() / 1e6;
+    }
+
+    public double getMaxLatencyMillis() {
+        return latency.getMaxNanos() / 1e6;
+    }
+
+    /**
+     * @return Distribution of the latencies averaged by {@link #getAverageLatencyMillis()}
+     */
+    public LatencyHistogram getLatencyHistogram() {
+        return latency;
+    }
+
+    /**
+     * @return Latencies of the messages in the {@link DownstreamQueue.Priority#HIGH} lane
+     */
+    public LatencyHistogram getHighPriorityLatencyHistogram() {
+        return highPriorityLatency;
+    }
+
+}
@@ -0,0 +1,231 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.downstream;
+
+import com.google.samples.apps.gcmplayground.metrics.MetricsRegistry;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Backlog of parsed downstream messages waiting to be rendered, in priority lanes keyed by
+ * action.
+ *
+ * Messages leave the most urgent non-empty lane first, and in arrival order within a lane,
+ * so a status message the UI waits on overtakes a flood of updates. A message with the same
+ * sender, collapse key and lane as one still waiting replaces it in place: only the newest is
+ * rendered, at the position of the oldest. Messages in other lanes are never replaced, so a
+ * less urgent message cannot push a more urgent one back. When the backlog is full, the
+ * oldest message of the least urgent lane that is not more urgent than the new one is
+ * dropped, or else the new one. Not thread safe; callers synchronize.
+ */
+public class DownstreamQueue {
+
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    /**
+     * Lanes, most urgent first.
+     */
+    public enum Priority {
+        HIGH, NORMAL, LOW
+    }
+
+    private static class Slot {
+        DownstreamMessage message;
+        final String collapseKey;
+
+        Slot(DownstreamMessage message, String collapseKey) {
+            this.message = message;
+            this.collapseKey = collapseKey;
+        }
+    }
+
+    private final int capacity;
+    private final ConcurrentMap<String, Priority> priorities =
+            new ConcurrentHashMap<String, Priority>();
+    private final List<ArrayDeque<Slot>> lanes;
+    private final Map<String, Slot> byCollapseKey = new HashMap<String, Slot>();
+    private int size;
+
+    private final AtomicLong collapsedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong maxDepth = new AtomicLong();
+
+    public DownstreamQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Maximum number of waiting messages
+     */
+    public DownstreamQueue(int capacity) {
+        this.capacity = capacity;
+        lanes = new ArrayList<ArrayDeque<Slot>>(Priority.values().length);
+        for (int i = 0; i < Priority.values().length; i++) {
+            lanes.add(new ArrayDeque<Slot>());
+        }
+    }
+
+    /**
+     * Sets the lane of messages with the given action. Actions without a priority, and
+     * messages without an action, go to {@link Priority#NORMAL}. Can be called from any
+     * thread.
+     * @param action Wire name of the action
+     * @param priority Lane of messages with this action
+     */
+    public void setPriority(String action, Priority priority) {
+        priorities.put(action, priority);
+    }
+
+    public Priority getPriority(DownstreamMessage message) {
+        String action = message.getActionName();
+        Priority priority = action == null ? null : priorities.get(action);
+        return priority == null ? Priority.NORMAL : priority;
+    }
+
+    /**
+     * Queues a message, merging it into a waiting one with the same collapse key in its lane.
+     * @return false if the message was dropped because the backlog is full
+     */
+    public boolean add(DownstreamMessage message) {
+        Priority priority = getPriority(message);
+        String collapseKey = message.getCollapseKey() == null ? null
+                : priority.ordinal() + "\n" + message.getFrom() + '\n'
+                        + message.getCollapseKey();
+        if (collapseKey != null) {
+            Slot waiting = byCollapseKey.get(collapseKey);
+            if (waiting != null) {
+                waiting.message = message;
+                collapsedCount.incrementAndGet();
+                return true;
+            }
+        }
+
+        if (size >= capacity && !dropOldest(priority)) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        Slot slot = new Slot(message, collapseKey);
+        lanes.get(priority.ordinal()).addLast(slot);
+        if (collapseKey != null) {
+            byCollapseKey.put(collapseKey, slot);
+        }
+        size++;
+        if (size > maxDepth.get()) {
+            maxDepth.set(size);
+        }
+        return true;
+    }
+
+    /**
+     * Drops the oldest message of the least urgent lane, down to the given one.
+     * @return false if all waiting messages are more urgent
+     */
+    private boolean dropOldest(Priority priority) {
+        for (int lane = lanes.size() - 1; lane >= priority.ordinal(); lane--) {
+            Slot slot = lanes.get(lane).pollFirst();
+            if (slot != null) {
+                forget(slot);
+                droppedCount.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The next message to render, or null if none is waiting
+     */
+    public DownstreamMessage poll() {
+        for (ArrayDeque<Slot> lane : lanes) {
+            Slot slot = lane.pollFirst();
+            if (slot != null) {
+                forget(slot);
+                return slot.message;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves up to maxMessages waiting messages to the list, in rendering order.
+     * @return Number of messages moved
+     */
+    public int drainTo(List<DownstreamMessage> messages, int maxMessages) {
+        int count = 0;
+        while (count < maxMessages) {
+            DownstreamMessage message = poll();
+            if (message == null) {
+                break;
+            }
+            messages.add(message);
+            count++;
+        }
+        return count;
+    }
+
+    private void forget(Slot slot) {
+        if (slot.collapseKey != null) {
+            byCollapseKey.remove(slot.collapseKey);
+        }
+        size--;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Publishes the backlog counters as {@code <prefix>.collapsed}, {@code <prefix>.dropped}
+     * and {@code <prefix>.max_depth}.
+     */
+    public void registerMetrics(MetricsRegistry metrics, String prefix) {
+        metrics.register(prefix + ".collapsed", collapsedCount);
+        metrics.register(prefix + ".dropped", droppedCount);
+        metrics.register(prefix + ".max_depth", maxDepth);
+    }
+
+    /**
+     * @return Messages replaced by a newer one with the same collapse key
+     */
+    public long getCollapsedCount() {
+        return collapsedCount.get();
+    }
+
+    /**
+     * @return Messages dropped because the backlog was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return Highest number of messages that were waiting at once
+     */
+    public long getMaxDepth() {
+        return maxDepth.get();
+    }
+
+}
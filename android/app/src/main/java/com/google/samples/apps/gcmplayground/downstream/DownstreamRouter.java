@@ -0,0 +1,91 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.samples.apps.gcmplayground.downstream;
+
+import com.google.samples.apps.gcmplayground.constants.Action;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Routes downstream messages to the {@link DownstreamHandler} registered for their action.
+ *
+ * Handlers are looked up by the action's wire name in a hash map, so dispatch cost does not
+ * grow with the number of action types, and new types only need a {@link #register} call.
+ * Messages whose action has no handler go to the default handler, if any.
+ */
+public class DownstreamRouter implements DownstreamPipeline.Listener {
+
+    private final ConcurrentMap<String, DownstreamHandler> handlers =
+            new ConcurrentHashMap<String, DownstreamHandler>();
+    private volatile DownstreamHandler defaultHandler;
+
+    public void register(Action action, DownstreamHandler handler) {
+        register(action.wireName(), handler);
+    }
+
+    /**
+     * Registers the handler for an action, replacing any previous one.
+     * @param action Wire name of the action
+     * @param handler Handler for messages with this action
+     */
+    public void register(String action, DownstreamHandler handler) {
+        handlers.put(action, handler);
+    }
+
+    /**
+     * Removes the handler from every action it is registered for, and as default handler.
+     */
+    public void unregister(DownstreamHandler handler) {
+        handlers.values().removeAll(Collections.singleton(handler));
+        if (defaultHandler == handler) {
+            defaultHandler = null;
+        }
+    }
+
+    /**
+     * Sets the handler for messages no other handler is registered for, or null to drop them.
+     */
+    public void setDefaultHandler(DownstreamHandler handler) {
+        defaultHandler = handler;
+    }
+
+    /**
+     * @return true if a handler received the message
+     */
+    public boolean dispatch(DownstreamMessage message) {
+        String action = message.getActionName();
+        DownstreamHandler handler = action == null ? null : handlers.get(action);
+        if (handler == null) {
+            handler = defaultHandler;
+        }
+        if (handler == null) {
+            return false;
+        }
+        handler.onMessage(message);
+        return true;
+    }
+
+    @Override
+    public void onMessages(List<DownstreamMessage> messages) {
+        for (int i = 0; i < messages.size(); i++) {
+            dispatch(messages.get(i));
+        }
+    }
+
+}
@@ -0,0 +1,198 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.downstream;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Remembers recently seen downstream messages so repeated deliveries can be dropped.
+ *
+ * Messages are identified by a 64 bit hash of their GCM message id. Messages without one are
+ * never filtered: the same payload may legitimately arrive twice, e.g. two "registered"
+ * replies to two registrations. Keys live in two fixed-size open addressing tables of
+ * primitive longs, the current and the previous generation. Lookups check both; inserts go
+ * to the current one. Once the current generation is half the expiry window old, or half
+ * full, the previous one is cleared and the two swap. A key is therefore remembered for
+ * between half and all of the expiry window (less under a flood that fills a generation
+ * early), and memory stays constant however many messages arrive. Nothing is allocated
+ * per message.
+ */
+public class DuplicateFilter {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final long DEFAULT_EXPIRY_MILLIS = 10 * 60 * 1000;
+
+    /** Key of the GCM message id in downstream payloads. */
+    public static final String MESSAGE_ID = "google.message_id";
+
+    /** Key of a message without a message id, see {@link #keyOf(Map)}. */
+    public static final long NO_KEY = 0;
+
+    private static final long EMPTY = NO_KEY;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int mask;
+    private final int maxSize;
+    private final long generationMillis;
+    private long[] current;
+    private long[] previous;
+    private int currentSize;
+    private long currentStartMillis;
+
+    private long hitCount;
+    private long missCount;
+    private long rotationCount;
+
+    public DuplicateFilter() {
+        this(DEFAULT_CAPACITY, DEFAULT_EXPIRY_MILLIS);
+    }
+
+    /**
+     * @param capacity Slots per generation, rounded up to a power of two
+     * @param expiryMillis Time after which a key is forgotten
+     */
+    public DuplicateFilter(int capacity, long expiryMillis) {
+        int slots = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mask = slots - 1;
+        maxSize = slots / 2;
+        generationMillis = expiryMillis / 2;
+        current = new long[slots];
+        previous = new long[slots];
+        currentStartMillis = Long.MIN_VALUE;
+    }
+
+    /**
+     * Checks whether a message was seen before and remembers it.
+     * @param data Payload of the message
+     * @param nowMillis Current time
+     * @return true if the message is a repeated delivery, always false without a message id
+     */
+    public boolean isDuplicate(Map<String, String> data, long nowMillis) {
+        return isDuplicate(keyOf(data), nowMillis);
+    }
+
+    /**
+     * Checks whether a key was seen before and remembers it.
+     * @param key Key of the message, see {@link #keyOf(Map)}
+     * @param nowMillis Current time
+     * @return true if the key was seen within the expiry window, always false for
+     *         {@link #NO_KEY}
+     */
+    public synchronized boolean isDuplicate(long key, long nowMillis) {
+        if (key == NO_KEY) {
+            return false;
+        }
+        if (currentStartMillis == Long.MIN_VALUE) {
+            currentStartMillis = nowMillis;
+        } else if (nowMillis - currentStartMillis >= generationMillis) {
+            long elapsed = nowMillis - currentStartMillis;
+            rotate(nowMillis);
+            if (elapsed >= 2 * generationMillis) {
+                // Idle for more than the whole window, both generations are stale.
+                rotate(nowMillis);
+            }
+        }
+
+        if (contains(previous, key)) {
+            hitCount++;
+            return true;
+        }
+        int slot = mix(key) & mask;
+        while (current[slot] != EMPTY) {
+            if (current[slot] == key) {
+                hitCount++;
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        missCount++;
+        if (currentSize >= maxSize) {
+            rotate(nowMillis);
+            slot = mix(key) & mask;
+        }
+        current[slot] = key;
+        currentSize++;
+        return false;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getRotationCount() {
+        return rotationCount;
+    }
+
+    /**
+     * @return A 64 bit key for the message, the hash of its GCM message id, or
+     *         {@link #NO_KEY} if it has none
+     */
+    public static long keyOf(Map<String, String> data) {
+        String messageId = data.get(MESSAGE_ID);
+        if (messageId == null) {
+            return NO_KEY;
+        }
+        long key = hash(FNV_OFFSET, messageId);
+        return key == NO_KEY ? 1 : key;
+    }
+
+    private void rotate(long nowMillis) {
+        long[] cleared = previous;
+        Arrays.fill(cleared, EMPTY);
+        previous = current;
+        current = cleared;
+        currentSize = 0;
+        currentStartMillis = nowMillis;
+        rotationCount++;
+    }
+
+    private boolean contains(long[] table, long key) {
+        int slot = mix(key) & mask;
+        while (table[slot] != EMPTY) {
+            if (table[slot] == key) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    private static long hash(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static int mix(long key) {
+        return (int) (mix64(key) >>> 32);
+    }
+
+    private static long mix64(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return key;
+    }
+
+}
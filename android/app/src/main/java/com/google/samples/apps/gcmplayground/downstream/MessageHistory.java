@@ -0,0 +1,285 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.samples.apps.gcmplayground.downstream;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The last downstream messages, newest first, in a fixed-capacity ring buffer. Once full,
+ * every new message evicts the oldest one, so memory stays bounded however many arrive.
+ *
+ * Messages can be filtered by sender and action. Each message links to the previous one with
+ * the same sender and the same action, so applying a filter walks only the matching messages
+ * instead of the whole buffer; the filtered positions are then kept up to date as messages
+ * come and go. Not thread-safe; used from the UI thread.
+ */
+public class MessageHistory implements DownstreamPipeline.Listener {
+
+    public static final int DEFAULT_CAPACITY = 500;
+
+    /**
+     * Notified on the UI thread after messages were added.
+     */
+    public interface Observer {
+        void onHistoryChanged();
+    }
+
+    private final int capacity;
+    private final DownstreamMessage[] messages;
+    // Sequence number of the previous message with the same sender / action, or -1.
+    private final long[] previousFromSender;
+    private final long[] previousWithAction;
+    // Sequence number of the next message to be added; the oldest held is next - size.
+    private long next;
+
+    private final Map<String, Entry> senders = new HashMap<String, Entry>();
+    private final Map<String, Entry> actions = new HashMap<String, Entry>();
+
+    private String filterFrom;
+    private String filterAction;
+    // Sequence numbers of the messages passing the filter, oldest first, as a ring.
+    private final long[] filtered;
+    private int filteredStart;
+    private int filteredSize;
+
+    private Observer observer;
+
+    /**
+     * Latest message and count of one sender or action.
+     */
+    private static class Entry {
+        long latest;
+        int count;
+    }
+
+    public MessageHistory() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Maximum number of messages kept
+     */
+    public MessageHistory(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        messages = new DownstreamMessage[capacity];
+        previousFromSender = new long[capacity];
+        previousWithAction = new long[capacity];
+        filtered = new long[capacity];
+    }
+
+    public void setObserver(Observer observer) {
+        this.observer = observer;
+    }
+
+    @Override
+    public void onMessages(List<DownstreamMessage> batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            add(batch.get(i));
+        }
+        if (observer != null && !batch.isEmpty()) {
+            observer.onHistoryChanged();
+        }
+    }
+
+    /**
+     * Adds a message, evicting the oldest one if the history is full.
+     */
+    public void add(DownstreamMessage message) {
+        if (next >= capacity) {
+            evict(next - capacity);
+        }
+
+        long sequence = next++;
+        int slot = slot(sequence);
+        messages[slot] = message;
+        previousFromSender[slot] = link(senders, key(message.getFrom()), sequence);
+        previousWithAction[slot] = link(actions, key(message.getActionName()), sequence);
+
+        if (matches(message)) {
+            filtered[(filteredStart + filteredSize) % capacity] = sequence;
+            filteredSize++;
+        }
+    }
+
+    /**
+     * @return Number of messages passing the current filter
+     */
+    public int size() {
+        return filteredSize;
+    }
+
+    /**
+     * @param position 0 for the newest message passing the filter
+     * @return The message at the given position
+     */
+    public DownstreamMessage get(int position) {
+        return messages[slot(getSequence(position))];
+    }
+
+    /**
+     * @return Sequence number of the message at the given position, stable while it is held
+     */
+    public long getSequence(int position) {
+        if (position < 0 || position >= filteredSize) {
+            throw new IndexOutOfBoundsException("position " + position + ", size " + filteredSize);
+        }
+        return filtered[(filteredStart + filteredSize - 1 - position) % capacity];
+    }
+
+    /**
+     * Shows only the messages from the given sender with the given action.
+     * @param from SenderID to keep, or null for all
+     * @param action Action wire name to keep, or null for all
+     */
+    public void setFilter(String from, String action) {
+        filterFrom = from;
+        filterAction = action;
+        filteredStart = 0;
+        filteredSize = 0;
+
+        // Walk the shorter of the two chains, newest to oldest, then reverse into the ring.
+        Entry sender = from == null ? null : senders.get(from);
+        Entry withAction = action == null ? null : actions.get(action);
+        long sequence;
+        long[] previous;
+        if (from == null && action == null) {
+            sequence = next - 1;
+            previous = null;
+        } else if ((from != null && sender == null) || (action != null && withAction == null)) {
+            return;
+        } else if (withAction == null || (sender != null && sender.count <= withAction.count)) {
+            sequence = sender.latest;
+            previous = previousFromSender;
+        } else {
+            sequence = withAction.latest;
+            previous = previousWithAction;
+        }
+
+        long oldest = next - heldCount();
+        while (sequence >= oldest && sequence >= 0) {
+            DownstreamMessage message = messages[slot(sequence)];
+            if (matches(message)) {
+                filtered[filteredSize++] = sequence;
+            }
+            sequence = previous == null ? sequence - 1 : previous[slot(sequence)];
+        }
+        for (int i = 0, j = filteredSize - 1; i < j; i++, j--) {
+            long swap = filtered[i];
+            filtered[i] = filtered[j];
+            filtered[j] = swap;
+        }
+    }
+
+    public String getFilterFrom() {
+        return filterFrom;
+    }
+
+    public String getFilterAction() {
+        return filterAction;
+    }
+
+    /**
+     * @return Senders of the held messages, for choosing a filter
+     */
+    public List<String> getSenders() {
+        return sortedKeys(senders);
+    }
+
+    /**
+     * @return Actions of the held messages, for choosing a filter
+     */
+    public List<String> getActions() {
+        return sortedKeys(actions);
+    }
+
+    /**
+     * @return Number of messages ever added, including evicted ones
+     */
+    public long getTotalCount() {
+        return next;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private void evict(long sequence) {
+        int slot = slot(sequence);
+        DownstreamMessage message = messages[slot];
+        unlink(senders, key(message.getFrom()));
+        unlink(actions, key(message.getActionName()));
+        messages[slot] = null;
+
+        if (filteredSize > 0 && filtered[filteredStart] == sequence) {
+            filteredStart = (filteredStart + 1) % capacity;
+            filteredSize--;
+        }
+    }
+
+    private boolean matches(DownstreamMessage message) {
+        return (filterFrom == null || filterFrom.equals(key(message.getFrom())))
+                && (filterAction == null || filterAction.equals(key(message.getActionName())));
+    }
+
+    private int heldCount() {
+        return (int) Math.min(next, capacity);
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % capacity);
+    }
+
+    private static long link(Map<String, Entry> index, String key, long sequence) {
+        Entry entry = index.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            entry.latest = -1;
+            index.put(key, entry);
+        }
+        long previous = entry.latest;
+        entry.latest = sequence;
+        entry.count++;
+        return previous;
+    }
+
+    private static void unlink(Map<String, Entry> index, String key) {
+        Entry entry = index.get(key);
+        if (--entry.count == 0) {
+            index.remove(key);
+        }
+    }
+
+    private static List<String> sortedKeys(Map<String, Entry> index) {
+        List<String> keys = new ArrayList<String>(index.keySet());
+        Collections.sort(keys);
+        return keys;
+    }
+
+    /**
+     * Messages without a sender or action are indexed under the empty string.
+     */
+    private static String key(String value) {
+        return value == null ? "" : value;
+    }
+
+}
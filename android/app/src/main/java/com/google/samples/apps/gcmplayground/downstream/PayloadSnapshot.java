@@ -0,0 +1,112 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.downstream;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Read-only string view of a payload copied out of another container, such as the Bundle
+ * GCM delivers. The Bundle is not thread safe and unparcels lazily, while a payload is read
+ * by the pipeline worker, the message store and the trace recorder, so the receiving thread
+ * copies its fields once into a map of its own and hands that over. Each value is converted
+ * to a string the first time any thread reads it, so fields nobody reads cost nothing.
+ * Thread safe: the fields are never changed after construction, and conversions are
+ * published through a concurrent map.
+ */
+public class PayloadSnapshot extends AbstractMap<String, String> {
+
+    private final Map<String, ?> fields;
+    private final ConcurrentMap<String, String> strings;
+    private final Set<Entry<String, String>> entries = new EntrySet();
+
+    /**
+     * @param fields Fields of the payload, copied on the thread that received it. The map is
+     *               kept rather than copied again: pass a fresh one and do not change it
+     *               afterwards. Values may be any object; null values read as null.
+     */
+    public PayloadSnapshot(Map<String, ?> fields) {
+        this.fields = fields;
+        this.strings = new ConcurrentHashMap<String, String>(fields.size() * 4 / 3 + 1);
+    }
+
+    @Override
+    public String get(Object key) {
+        Object value = fields.get(key);
+        if (value == null) {
+            return null;
+        }
+        String string = strings.get(key);
+        if (string == null) {
+            // Two threads may convert the same value; both get the first one stored.
+            string = value.toString();
+            String raced = strings.putIfAbsent((String) key, string);
+            if (raced != null) {
+                string = raced;
+            }
+        }
+        return string;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return fields.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return fields.size();
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return entries;
+    }
+
+    private class EntrySet extends AbstractSet<Entry<String, String>> {
+        @Override
+        public Iterator<Entry<String, String>> iterator() {
+            final Iterator<String> keys = fields.keySet().iterator();
+            return new Iterator<Entry<String, String>>() {
+                @Override
+                public boolean hasNext() {
+                    return keys.hasNext();
+                }
+
+                @Override
+                public Entry<String, String> next() {
+                    String key = keys.next();
+                    return new SimpleImmutableEntry<String, String>(key, get(key));
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return fields.size();
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.samples.apps.gcmplayground.metrics;
+
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+import com.google.samples.apps.gcmplayground.upstream.UpstreamSender;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link UpstreamSender} that times every send and registers the requests the app server
+ * answers with a status message, so {@link MetricsRegistry#onReply(String, String)} can time
+ * the round trip. The in-flight window retransmits through this sender under the original
+ * message id; expectReply is idempotent per id, so a retransmission neither adds a pending
+ * reply nor restarts the round trip.
+ */
+public class MeteredUpstreamSender implements UpstreamSender {
+
+    private final UpstreamSender sender;
+    private final MetricsRegistry metrics;
+    private final LatencyHistogram sendLatency;
+    private final AtomicLong sentCount;
+    private final AtomicLong failedCount;
+
+    public MeteredUpstreamSender(UpstreamSender sender, MetricsRegistry metrics) {
+        this.sender = sender;
+        this.metrics = metrics;
+        this.sendLatency = metrics.histogram("upstream.send");
+        this.sentCount = metrics.counter("upstream.sent");
+        this.failedCount = metrics.counter("upstream.failed");
+    }
+
+    @Override
+    public void send(String to, String messageId, Map<String, String> data) throws IOException {
+        long start = System.nanoTime();
+        try {
+            sender.send(to, messageId, data);
+        } catch (IOException e) {
+            failedCount.incrementAndGet();
+            throw e;
+        } finally {
+            sendLatency.recordSince(start);
+        }
+        sentCount.incrementAndGet();
+
+        String action = data.get(RegistrationConstants.ACTION);
+        if (RegistrationConstants.REGISTER_NEW_CLIENT.equals(action)
+                || RegistrationConstants.UNREGISTER_CLIENT.equals(action)) {
+            // Upstream addresses are <SenderID>@gcm.googleapis.com; replies come from the ID.
+            int at = to.indexOf('@');
+            metrics.expectReply(action, at < 0 ? to : to.substring(0, at), messageId, start);
+        }
+    }
+
+}
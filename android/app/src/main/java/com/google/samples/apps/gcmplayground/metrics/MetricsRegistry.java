@@ -0,0 +1,244 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.samples.apps.gcmplayground.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters and latency histograms shared by the whole app, plus the correlation of
+ * upstream requests with the status message the app server answers them with.
+ *
+ * Look a metric up once and keep the reference; updating it afterwards is a lock-free atomic
+ * operation that does not allocate. {@link #writeTo(Writer)} exports a compact text snapshot.
+ */
+public class MetricsRegistry {
+
+    /**
+     * Requests of one kind to one sender waiting for their reply are capped; older ones
+     * count as lost.
+     */
+    static final int MAX_PENDING_REPLIES = 16;
+
+    private final ConcurrentMap<String, AtomicLong> counters =
+            new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, LatencyHistogram> histograms =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+    private final Map<String, ReplyKind> replyKinds = new HashMap<String, ReplyKind>();
+
+    /**
+     * The metrics of one kind of request and its requests waiting for a reply, per sender.
+     * Resolved once per kind, so recording a reply does not build metric names.
+     */
+    private class ReplyKind {
+        final LatencyHistogram roundTrip;
+        final AtomicLong unmatched;
+        final AtomicLong lost;
+        final Map<String, Deque<PendingReply>> pending =
+                new HashMap<String, Deque<PendingReply>>();
+
+        ReplyKind(String kind) {
+            roundTrip = histogram(kind + ".round_trip");
+            unmatched = counter(kind + ".reply_unmatched");
+            lost = counter(kind + ".reply_lost");
+        }
+    }
+
+    /**
+     * An upstream message waiting for its reply.
+     */
+    private static class PendingReply {
+        final ReplyKind kind;
+        final String messageId;
+        final long sentAtNanos;
+
+        PendingReply(ReplyKind kind, String messageId, long sentAtNanos) {
+            this.kind = kind;
+            this.messageId = messageId;
+            this.sentAtNanos = sentAtNanos;
+        }
+    }
+
+    /**
+     * @return The counter with the given name, created at 0 on first use
+     */
+    public AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * @return The histogram with the given name, created empty on first use
+     */
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Publishes a histogram owned by another component under the given name.
+     */
+    public void register(String name, LatencyHistogram histogram) {
+        histograms.put(name, histogram);
+    }
+
+    /**
+     * Publishes a counter owned by another component under the given name.
+     */
+    public void register(String name, AtomicLong counter) {
+        counters.put(name, counter);
+    }
+
+    /**
+     * Notes that an upstream message expecting a status reply was sent. Noting the same
+     * message id again, e.g. for a retransmission, keeps the first send time.
+     *
+     * The app server's status messages do not echo the upstream message id, so replies are
+     * matched to requests of the same kind to the same sender in the order they were sent.
+     * @param kind Action of the request, which the reply carries too
+     * @param senderId SenderID of the app server the request went to
+     * @param messageId CCS message id of the request
+     * @param sentAtNanos System.nanoTime() when the request was sent
+     */
+    public void expectReply(String kind, String senderId, String messageId, long sentAtNanos) {
+        synchronized (replyKinds) {
+            ReplyKind replyKind = replyKind(kind);
+            Deque<PendingReply> pending = replyKind.pending.get(senderId);
+            if (pending == null) {
+                pending = new ArrayDeque<PendingReply>();
+                replyKind.pending.put(senderId, pending);
+            }
+            for (PendingReply request : pending) {
+                if (request.messageId.equals(messageId)) {
+                    return;
+                }
+            }
+            if (pending.size() == MAX_PENDING_REPLIES) {
+                pending.removeFirst();
+                replyKind.lost.incrementAndGet();
+            }
+            pending.addLast(new PendingReply(replyKind, messageId, sentAtNanos));
+        }
+    }
+
+    /**
+     * Records the round trip of the oldest request of the given kind to the given sender
+     * into the histogram {@code <kind>.round_trip}.
+     * @param kind Action of the reply
+     * @param senderId SenderID the reply came from
+     * @return Message id of the matching request, or null if none was pending
+     */
+    public String onReply(String kind, String senderId) {
+        PendingReply request;
+        ReplyKind replyKind;
+        synchronized (replyKinds) {
+            replyKind = replyKind(kind);
+            Deque<PendingReply> pending = replyKind.pending.get(senderId);
+            request = pending == null ? null : pending.pollFirst();
+        }
+        if (request == null) {
+            replyKind.unmatched.incrementAndGet();
+            return null;
+        }
+        request.kind.roundTrip.recordSince(request.sentAtNanos);
+        return request.messageId;
+    }
+
+    /**
+     * Writes all metrics as text, one per line, sorted by name:
+     * <pre>
+     * counter &lt;name&gt; &lt;value&gt;
+     * histogram &lt;name&gt; &lt;count&gt; &lt;mean&gt; &lt;p50&gt; &lt;p90&gt; &lt;p99&gt; &lt;max&gt;
+     * pending &lt;kind&gt; &lt;sender id&gt; &lt;message id&gt; &lt;age&gt;
+     * </pre>
+     * Times are in microseconds.
+     */
+    public void writeTo(Writer writer) throws IOException {
+        for (Map.Entry<String, AtomicLong> entry
+                : new TreeMap<String, AtomicLong>(counters).entrySet()) {
+            writer.write("counter " + entry.getKey() + " " + entry.getValue().get() + "\n");
+        }
+        for (Map.Entry<String, LatencyHistogram> entry
+                : new TreeMap<String, LatencyHistogram>(histograms).entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            writer.write("histogram " + entry.getKey()
+                    + " " + histogram.getCount()
+                    + " " + micros(histogram.getMeanNanos())
+                    + " " + micros(histogram.getPercentileNanos(50))
+                    + " " + micros(histogram.getPercentileNanos(90))
+                    + " " + micros(histogram.getPercentileNanos(99))
+                    + " " + micros(histogram.getMaxNanos()) + "\n");
+        }
+        long now = System.nanoTime();
+        StringBuilder pending = new StringBuilder();
+        synchronized (replyKinds) {
+            for (Map.Entry<String, ReplyKind> kind : replyKinds.entrySet()) {
+                for (Map.Entry<String, Deque<PendingReply>> entry
+                        : kind.getValue().pending.entrySet()) {
+                    for (PendingReply request : entry.getValue()) {
+                        pending.append("pending ").append(kind.getKey())
+                                .append(' ').append(entry.getKey())
+                                .append(' ').append(request.messageId)
+                                .append(' ').append(micros(now - request.sentAtNanos))
+                                .append('\n');
+                    }
+                }
+            }
+        }
+        writer.write(pending.toString());
+        writer.flush();
+    }
+
+    /**
+     * @return The reply kind, created on first use; call with the replyKinds lock held
+     */
+    private ReplyKind replyKind(String kind) {
+        ReplyKind replyKind = replyKinds.get(kind);
+        if (replyKind == null) {
+            replyKind = new ReplyKind(kind);
+            replyKinds.put(kind, replyKind);
+        }
+        return replyKind;
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+}
@@ -0,0 +1,244 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.registration;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Turns token refresh events into re-registrations.
+ *
+ * When InstanceID rotates tokens for the whole fleet, every device gets its refresh at about
+ * the same time, often more than once. The coordinator waits a settle period, collapsing
+ * the events that arrive meanwhile into one, and then a random delay within a jitter window,
+ * so the app servers see the re-registrations spread over the window instead of all at
+ * once. The new token is registered under the identifier the user last registered with; a
+ * device that never registered has nothing to refresh.
+ *
+ * The due time is kept in the {@link RegistrationStore} and the wake-up is left to a
+ * {@link Scheduler} that outlives the process, so a refresh is registered even if the app
+ * is not started again before it is due. The due time is only cleared once the app server
+ * confirmed the registration, so a registration that failed or whose process was killed
+ * is started again.
+ */
+public class RefreshCoordinator {
+
+    public static final long DEFAULT_SETTLE_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    public static final long DEFAULT_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * Source of wall clock time, which keeps running while the device sleeps.
+     */
+    public interface Clock {
+        long currentTimeMillis();
+    }
+
+    /**
+     * Wakes the coordinator up later.
+     */
+    public interface Scheduler {
+        /**
+         * Calls {@link #onDue} after at least the given delay, also if the process is killed
+         * or the device sleeps meanwhile. Replaces the previously scheduled call, if any.
+         */
+        void schedule(long delayMillis);
+    }
+
+    /**
+     * Starts the registration of the current token.
+     */
+    public interface Registrar {
+        /**
+         * @param callback Called once the registration was sent or failed, on any thread
+         */
+        void register(String stringIdentifier, Callback callback);
+    }
+
+    /**
+     * Learns how the work started by {@link #onDue} ended.
+     */
+    public interface Callback {
+        /**
+         * @param retry true if the registration failed and the wake-up should be retried
+         */
+        void onFinished(boolean retry);
+    }
+
+    private final RegistrationStore store;
+    private final Clock clock;
+    private final Scheduler scheduler;
+    private final Registrar registrar;
+    private final long settleMillis;
+    private final long windowMillis;
+    private final Random random;
+
+    private final AtomicLong refreshCount = new AtomicLong();
+    private final AtomicLong collapsedCount = new AtomicLong();
+    private final AtomicLong registrationCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+    // Whether the registration started by onDue is still running; guarded by this.
+    private boolean registering;
+
+    /**
+     * @param store Store of the last identifier and the pending refresh
+     * @param clock Wall clock the due time is kept in
+     * @param scheduler Scheduler of the delayed registration
+     * @param registrar Starts the registration
+     * @param settleMillis Time to wait for duplicate refresh events
+     * @param windowMillis Width of the window the registration is randomly delayed within
+     * @param random Source of the random delay
+     */
+    public RefreshCoordinator(RegistrationStore store, Clock clock, Scheduler scheduler,
+            Registrar registrar, long settleMillis, long windowMillis, Random random) {
+        this.store = store;
+        this.clock = clock;
+        this.scheduler = scheduler;
+        this.registrar = registrar;
+        this.settleMillis = settleMillis;
+        this.windowMillis = windowMillis;
+        this.random = random;
+    }
+
+    /**
+     * Schedules the registration of a refreshed token, unless one is pending already.
+     * Can be called from any thread.
+     */
+    public void onTokenRefresh() {
+        refreshCount.incrementAndGet();
+        long delayMillis;
+        synchronized (this) {
+            if (store.isRefreshPending()) {
+                collapsedCount.incrementAndGet();
+                return;
+            }
+            delayMillis = settleMillis + (long) (random.nextDouble() * windowMillis);
+            store.setRefreshDue(clock.currentTimeMillis() + delayMillis);
+        }
+        scheduler.schedule(delayMillis);
+    }
+
+    /**
+     * Schedules the registration of a refresh that is still pending, e.g. after the
+     * scheduled wake-up was dropped along with the app's jobs. Counts as a refresh event.
+     */
+    public void resume() {
+        long delayMillis;
+        synchronized (this) {
+            long dueAt = store.getRefreshDue();
+            if (dueAt == 0) {
+                return;
+            }
+            refreshCount.incrementAndGet();
+            delayMillis = Math.max(0, dueAt - clock.currentTimeMillis());
+        }
+        scheduler.schedule(delayMillis);
+    }
+
+    /**
+     * Starts the pending registration if it is due; called by the {@link Scheduler}.
+     * Early calls reschedule, and calls while the registration runs do nothing.
+     * @param callback Called once the registration was sent or failed, or right away if
+     *                 none was started
+     */
+    public void onDue(final Callback callback) {
+        String stringIdentifier = claimDue();
+        if (stringIdentifier == null) {
+            callback.onFinished(false);
+            return;
+        }
+        registrationCount.incrementAndGet();
+        registrar.register(stringIdentifier, new Callback() {
+            @Override
+            public void onFinished(boolean retry) {
+                synchronized (RefreshCoordinator.this) {
+                    registering = false;
+                }
+                callback.onFinished(retry);
+            }
+        });
+    }
+
+    /**
+     * Reschedules an early wake-up, and drops a due refresh of a device that never
+     * registered.
+     * @return The identifier to register the due refresh under, or null if none is started
+     */
+    private String claimDue() {
+        long delayMillis;
+        synchronized (this) {
+            long dueAt = store.getRefreshDue();
+            if (dueAt == 0 || registering) {
+                return null;
+            }
+            delayMillis = dueAt - clock.currentTimeMillis();
+            if (delayMillis <= 0) {
+                String stringIdentifier = store.getLastIdentifier();
+                if (stringIdentifier != null) {
+                    registering = true;
+                    return stringIdentifier;
+                }
+                store.setRefreshDue(0);
+            }
+        }
+        if (delayMillis > 0) {
+            scheduler.schedule(delayMillis);
+        } else {
+            skippedCount.incrementAndGet();
+        }
+        return null;
+    }
+
+    /**
+     * Clears the pending refresh once the app server confirmed a registration started
+     * after it was due. A refresh that is not due yet stays pending, as its token may not
+     * have been registered.
+     */
+    public synchronized void onConfirmed() {
+        long dueAt = store.getRefreshDue();
+        if (dueAt != 0 && dueAt <= clock.currentTimeMillis()) {
+            store.setRefreshDue(0);
+        }
+    }
+
+    /**
+     * @return Refresh events received, including resumed ones
+     */
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    /**
+     * @return Refresh events merged into an already scheduled registration
+     */
+    public long getCollapsedCount() {
+        return collapsedCount.get();
+    }
+
+    /**
+     * @return Registrations started; at most the refresh count minus the collapsed count
+     */
+    public long getRegistrationCount() {
+        return registrationCount.get();
+    }
+
+    /**
+     * @return Scheduled registrations dropped because the user never registered
+     */
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+}
@@ -0,0 +1,224 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.registration;
+
+import com.google.samples.apps.gcmplayground.util.KeyValueStore;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which (sender ID, token, string identifier) registration the app server already
+ * has, so the registration is only sent again when one of them changes. A registration only
+ * counts once the app server confirmed it; until then it is pending, and the next
+ * registration request sends it again.
+ *
+ * Lookups hit an in-memory map; writes go through to a {@link KeyValueStore} that survives
+ * restarts. The store also numbers registration requests, so when several are queued (e.g.
+ * a burst of token refreshes) only the latest one does the work.
+ */
+public class RegistrationStore {
+
+    private static final String KEY_PREFIX = "registration:";
+    private static final String PENDING_PREFIX = "registration_pending:";
+    private static final String KEY_IDENTIFIER = "last_identifier";
+    private static final String KEY_REFRESH_PENDING = "refresh_pending";
+    private static final String NONE = "";
+
+    private final KeyValueStore backing;
+    private final ConcurrentMap<String, String> registrations =
+            new ConcurrentHashMap<String, String>();
+    private final AtomicLong latestRequest = new AtomicLong();
+
+    private final AtomicLong performedCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+    private final AtomicLong supersededCount = new AtomicLong();
+
+    public RegistrationStore(KeyValueStore backing) {
+        this.backing = backing;
+    }
+
+    /**
+     * Numbers a new registration request. Pass the number along with the request and check
+     * it with {@link #isSuperseded(long)} before doing the work.
+     * @return The number of the new request
+     */
+    public long newRequest() {
+        return latestRequest.incrementAndGet();
+    }
+
+    /**
+     * @param request Number returned by {@link #newRequest()}
+     * @return true if a later request is pending, in which case this one can be dropped
+     */
+    public boolean isSuperseded(long request) {
+        if (request < latestRequest.get()) {
+            supersededCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the app server confirmed exactly this registration
+     */
+    public boolean isRegistered(String senderId, String token, String stringIdentifier) {
+        return key(token, stringIdentifier).equals(load(senderId));
+    }
+
+    /**
+     * Counts a registration request that was not sent because the app server already had
+     * it. Called by the caller once it decided, as more than the store may go into that.
+     */
+    public void onSkipped() {
+        skippedCount.incrementAndGet();
+    }
+
+    /**
+     * Records that the registration was sent to the app server; it counts as registered once
+     * {@link #confirm} sees the server's reply.
+     */
+    public void setSent(String senderId, String token, String stringIdentifier) {
+        backing.put(PENDING_PREFIX + senderId, key(token, stringIdentifier));
+        performedCount.incrementAndGet();
+    }
+
+    /**
+     * Marks the registration last sent to a sender as confirmed by its app server.
+     * @param senderId Sender whose app server replied
+     * @param token Token the reply is for, or null if the reply does not name it
+     * @return true if a pending registration was confirmed
+     */
+    public boolean confirm(String senderId, String token) {
+        String key = backing.get(PENDING_PREFIX + senderId);
+        if (key == null || (token != null && !token.equals(tokenOf(key)))) {
+            return false;
+        }
+        registrations.put(senderId, key);
+        backing.put(KEY_PREFIX + senderId, key);
+        backing.remove(PENDING_PREFIX + senderId);
+        return true;
+    }
+
+    /**
+     * Records a registration the app server is known to have.
+     */
+    public void setRegistered(String senderId, String token, String stringIdentifier) {
+        String key = key(token, stringIdentifier);
+        registrations.put(senderId, key);
+        backing.put(KEY_PREFIX + senderId, key);
+    }
+
+    /**
+     * Forgets the registration for a sender, e.g. after unregistering.
+     */
+    public void clear(String senderId) {
+        registrations.put(senderId, NONE);
+        backing.remove(KEY_PREFIX + senderId);
+        backing.remove(PENDING_PREFIX + senderId);
+    }
+
+    /**
+     * @return The token last registered for the sender, or null
+     */
+    public String getToken(String senderId) {
+        return tokenOf(load(senderId));
+    }
+
+    /**
+     * @return The string identifier last registered for the sender, or null
+     */
+    public String getStringIdentifier(String senderId) {
+        String key = load(senderId);
+        int separator = key.indexOf('\n');
+        return separator < 0 ? null : key.substring(separator + 1);
+    }
+
+    /**
+     * Remembers the string identifier the user last registered with, so a token refresh can
+     * register the new token under the same name.
+     */
+    public void setLastIdentifier(String stringIdentifier) {
+        backing.put(KEY_IDENTIFIER, stringIdentifier);
+    }
+
+    /**
+     * @return The string identifier passed to {@link #setLastIdentifier}, or null
+     */
+    public String getLastIdentifier() {
+        return backing.get(KEY_IDENTIFIER);
+    }
+
+    /**
+     * Marks a token refresh whose registration has not been started yet, so it survives the
+     * process being killed in the meantime.
+     * @param dueAtMillis Wall clock time the registration is due at, or 0 if none is pending
+     */
+    public void setRefreshDue(long dueAtMillis) {
+        if (dueAtMillis != 0) {
+            backing.put(KEY_REFRESH_PENDING, Long.toString(dueAtMillis));
+        } else {
+            backing.remove(KEY_REFRESH_PENDING);
+        }
+    }
+
+    /**
+     * @return Wall clock time the pending refresh registration is due at, or 0 if none is
+     *         pending
+     */
+    public long getRefreshDue() {
+        String value = backing.get(KEY_REFRESH_PENDING);
+        return value == null ? 0 : Long.parseLong(value);
+    }
+
+    public boolean isRefreshPending() {
+        return getRefreshDue() != 0;
+    }
+
+    public long getPerformedCount() {
+        return performedCount.get();
+    }
+
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    public long getSupersededCount() {
+        return supersededCount.get();
+    }
+
+    private String load(String senderId) {
+        String key = registrations.get(senderId);
+        if (key == null) {
+            key = backing.get(KEY_PREFIX + senderId);
+            if (key == null) {
+                key = NONE;
+            }
+            registrations.putIfAbsent(senderId, key);
+        }
+        return key;
+    }
+
+    private static String tokenOf(String key) {
+        int separator = key.indexOf('\n');
+        return separator < 0 ? null : key.substring(0, separator);
+    }
+
+    private static String key(String token, String stringIdentifier) {
+        return token + '\n' + stringIdentifier;
+    }
+
+}
@@ -0,0 +1,102 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.samples.apps.gcmplayground.senders;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The available routing policies. All of them only pick senders whose app server confirmed
+ * a registration of this client; any other app server would drop the message.
+ */
+public class RoutingPolicies {
+
+    public static final String HASH_NAME = "hash";
+    public static final String LEAST_LOADED_NAME = "least_loaded";
+
+    /**
+     * Sends each message to the healthy sender with the shortest queue; to an unhealthy one
+     * only if no sender is healthy.
+     */
+    public static final RoutingPolicy LEAST_LOADED = new RoutingPolicy() {
+        @Override
+        public Sender route(List<Sender> senders, String routingKey, Map<String, String> data) {
+            Sender best = null;
+            for (int i = 0; i < senders.size(); i++) {
+                Sender sender = senders.get(i);
+                if (sender.isRegistered() && (best == null || isBetter(sender, best))) {
+                    best = sender;
+                }
+            }
+            return best;
+        }
+
+        private boolean isBetter(Sender sender, Sender than) {
+            if (sender.isHealthy() != than.isHealthy()) {
+                return sender.isHealthy();
+            }
+            return sender.getLoad() < than.getLoad();
+        }
+    };
+
+    /**
+     * Sends all messages of a client to the same sender, spreading clients evenly by their
+     * routing key (rendezvous hashing, so adding a sender only moves the clients it takes
+     * over). Unhealthy senders are skipped while others are healthy. Without a key, falls
+     * back to {@link #LEAST_LOADED}.
+     */
+    public static final RoutingPolicy HASH = new RoutingPolicy() {
+        @Override
+        public Sender route(List<Sender> senders, String routingKey, Map<String, String> data) {
+            if (routingKey == null) {
+                return LEAST_LOADED.route(senders, null, data);
+            }
+            Sender best = null;
+            long bestScore = 0;
+            for (int i = 0; i < senders.size(); i++) {
+                Sender sender = senders.get(i);
+                if (!sender.isRegistered()) {
+                    continue;
+                }
+                long score = mix(routingKey.hashCode() * 31L + sender.getSenderId().hashCode());
+                if (best == null || (sender.isHealthy() && !best.isHealthy())
+                        || (sender.isHealthy() == best.isHealthy() && score > bestScore)) {
+                    best = sender;
+                    bestScore = score;
+                }
+            }
+            return best;
+        }
+    };
+
+    /**
+     * @param name {@link #HASH_NAME} or {@link #LEAST_LOADED_NAME}
+     * @return The policy with the given name, {@link #HASH} for unknown names
+     */
+    public static RoutingPolicy forName(String name) {
+        return LEAST_LOADED_NAME.equals(name) ? LEAST_LOADED : HASH;
+    }
+
+    /**
+     * Finalizer of SplitMix64, so close inputs get unrelated scores.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+}
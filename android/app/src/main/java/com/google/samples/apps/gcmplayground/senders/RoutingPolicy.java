@@ -0,0 +1,35 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.samples.apps.gcmplayground.senders;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks the sender an upstream message goes to. See {@link RoutingPolicies}.
+ */
+public interface RoutingPolicy {
+
+    /**
+     * @param senders All senders, never empty
+     * @param routingKey Key identifying the client, or null if not known yet
+     * @param data Payload of the message
+     * @return The sender for the message, one whose app server this client is registered
+     *         with, or null if there is none
+     */
+    Sender route(List<Sender> senders, String routingKey, Map<String, String> data);
+
+}
@@ -0,0 +1,169 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.samples.apps.gcmplayground.senders;
+
+import com.google.samples.apps.gcmplayground.upstream.UpstreamDispatcher;
+import com.google.samples.apps.gcmplayground.upstream.UpstreamQueue;
+
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One GCM sender (project) the app talks to: its registration token, its upstream queue and
+ * the health of its connection.
+ */
+public class Sender implements UpstreamQueue {
+
+    /**
+     * Consecutive failed sends after which the sender counts as unhealthy.
+     */
+    public static final int UNHEALTHY_FAILURES = 3;
+
+    /**
+     * Callback that also learns the address of the app server a failed message was for and
+     * the message id it was sent under, e.g. to retry it there later under the same id. Its
+     * {@link #onFailed(String, String, Map, Throwable)} is called instead of the one without.
+     */
+    public interface DestinationCallback extends UpstreamDispatcher.Callback {
+        /**
+         * @param messageId Message id of the failed message, or null if it never got one
+         */
+        void onFailed(String to, String messageId, Map<String, String> data, Throwable error);
+    }
+
+    private final String senderId;
+    private final String address;
+    private final UpstreamDispatcher dispatcher;
+    private volatile String token;
+    private volatile boolean registered;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * @param senderId SenderID of the project
+     * @param address Upstream address of the project's app server
+     * @param dispatcher Queue for the upstream messages to that address
+     */
+    public Sender(String senderId, String address, UpstreamDispatcher dispatcher) {
+        this.senderId = senderId;
+        this.address = address;
+        this.dispatcher = dispatcher;
+    }
+
+    public String getSenderId() {
+        return senderId;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public UpstreamDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * @return The registration token for this sender, or null before registration
+     */
+    public String getToken() {
+        return token;
+    }
+
+    public void setToken(String token) {
+        this.token = token;
+    }
+
+    /**
+     * @return true if this sender's app server confirmed a registration of this client, so
+     *         it knows what to do with its upstream messages
+     */
+    public boolean isRegistered() {
+        return registered;
+    }
+
+    public void setRegistered(boolean registered) {
+        this.registered = registered;
+    }
+
+    /**
+     * @return Number of messages waiting in this sender's queue
+     */
+    public int getLoad() {
+        return dispatcher.getQueueDepth();
+    }
+
+    /**
+     * @return false after {@link #UNHEALTHY_FAILURES} failed sends in a row
+     */
+    public boolean isHealthy() {
+        return consecutiveFailures.get() < UNHEALTHY_FAILURES;
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    @Override
+    public Future<Void> send(Map<String, String> data, final UpstreamDispatcher.Callback callback) {
+        return dispatcher.send(data, new UpstreamDispatcher.TrackedCallback() {
+            @Override
+            public void onSent(Map<String, String> data) {
+                consecutiveFailures.set(0);
+                sentCount.incrementAndGet();
+                if (callback != null) {
+                    callback.onSent(data);
+                }
+            }
+
+            @Override
+            public void onUnconfirmed(Map<String, String> data) {
+                if (callback != null) {
+                    callback.onUnconfirmed(data);
+                }
+            }
+
+            @Override
+            public void onFailed(Map<String, String> data, Throwable error) {
+                onFailed(null, data, error);
+            }
+
+            @Override
+            public void onFailed(String messageId, Map<String, String> data, Throwable error) {
+                consecutiveFailures.incrementAndGet();
+                failedCount.incrementAndGet();
+                if (callback instanceof DestinationCallback) {
+                    ((DestinationCallback) callback).onFailed(address, messageId, data, error);
+                } else if (callback != null) {
+                    callback.onFailed(data, error);
+                }
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return senderId + (isHealthy() ? "" : " (unhealthy)") + ", load " + getLoad();
+    }
+
+}
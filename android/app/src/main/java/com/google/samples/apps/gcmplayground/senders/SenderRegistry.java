@@ -0,0 +1,98 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.samples.apps.gcmplayground.senders;
+
+import com.google.samples.apps.gcmplayground.upstream.UpstreamDispatcher;
+import com.google.samples.apps.gcmplayground.upstream.UpstreamQueue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * All senders the app is configured for, the first one being the default. Upstream messages
+ * sent through the registry go to the sender its {@link RoutingPolicy} picks, so client
+ * traffic spreads across several projects and their app servers.
+ */
+public class SenderRegistry implements UpstreamQueue {
+
+    private final List<Sender> senders;
+    private final RoutingPolicy policy;
+    private volatile String routingKey;
+
+    /**
+     * @param senders Senders, the default first; must not be empty
+     * @param policy Policy picking the sender of each upstream message
+     */
+    public SenderRegistry(List<Sender> senders, RoutingPolicy policy) {
+        if (senders.isEmpty()) {
+            throw new IllegalArgumentException("No senders");
+        }
+        this.senders = Collections.unmodifiableList(new ArrayList<Sender>(senders));
+        this.policy = policy;
+    }
+
+    public List<Sender> getSenders() {
+        return senders;
+    }
+
+    public Sender getDefaultSender() {
+        return senders.get(0);
+    }
+
+    /**
+     * @return The sender with the given SenderID, or null
+     */
+    public Sender getSender(String senderId) {
+        for (int i = 0; i < senders.size(); i++) {
+            if (senders.get(i).getSenderId().equals(senderId)) {
+                return senders.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets the key identifying this client to the routing policy, e.g. its string identifier.
+     */
+    public void setRoutingKey(String routingKey) {
+        this.routingKey = routingKey;
+    }
+
+    public String getRoutingKey() {
+        return routingKey;
+    }
+
+    /**
+     * @return The sender the next message with this payload would go to; the default sender
+     *         if no app server confirmed a registration yet
+     */
+    public Sender route(Map<String, String> data) {
+        if (senders.size() == 1) {
+            return senders.get(0);
+        }
+        Sender sender = policy.route(senders, routingKey, data);
+        return sender != null ? sender : senders.get(0);
+    }
+
+    @Override
+    public Future<Void> send(Map<String, String> data, UpstreamDispatcher.Callback callback) {
+        return route(data).send(data, callback);
+    }
+
+}
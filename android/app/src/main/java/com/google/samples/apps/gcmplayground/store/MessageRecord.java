@@ -0,0 +1,83 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.store;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * One message sent or received by this client, as kept in the {@link MessageStore}.
+ */
+public class MessageRecord {
+
+    public enum Direction {
+        SENT,
+        RECEIVED
+    }
+
+    private final long timestampMillis;
+    private final Direction direction;
+    private final String peer;
+    private final String action;
+    private final Map<String, String> data;
+
+    /**
+     * @param timestampMillis Wall clock time the message was sent or received
+     * @param direction Whether the message went upstream or came downstream
+     * @param peer SenderID the message came from or went to, or null if not known yet
+     * @param action Value of the action field, or null
+     * @param data Payload of the message; must not change afterwards
+     */
+    public MessageRecord(long timestampMillis, Direction direction, String peer, String action,
+            Map<String, String> data) {
+        this.timestampMillis = timestampMillis;
+        this.direction = direction;
+        this.peer = peer;
+        this.action = action;
+        this.data = Collections.unmodifiableMap(data);
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    public Direction getDirection() {
+        return direction;
+    }
+
+    /**
+     * @return SenderID the message came from or went to, or null if not known
+     */
+    public String getPeer() {
+        return peer;
+    }
+
+    /**
+     * @return Value of the action field, or null
+     */
+    public String getAction() {
+        return action;
+    }
+
+    public Map<String, String> getData() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return timestampMillis + " " + direction + " " + peer + " " + action + " " + data;
+    }
+
+}
@@ -0,0 +1,709 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Log of the messages this client sent and received, kept in append-only segment files.
+ *
+ * Each record is [length][crc32][timestamp][direction][peer][action][payload]. Timestamps
+ * are clamped to never go backwards, so every segment is sorted by time. A segment is
+ * sealed once it is full and gets an index file with a sparse timestamp index (one entry
+ * every {@link #INDEX_INTERVAL} records) and a posting list of record offsets per action.
+ * On open the indexes of sealed segments are loaded; only the segment still being written
+ * is scanned, up to its first torn or corrupt record.
+ *
+ * Queries skip segments outside the time range, seek to the range start with the sparse
+ * index and, for an action, only read the records in its posting list. The oldest segments
+ * are deleted once there are more than the configured maximum.
+ *
+ * Records are not forced to disk on every append; the mapped pages survive a crash of the
+ * process, and segments are forced when they are sealed and when the store is closed.
+ */
+public class MessageStore implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+    public static final int DEFAULT_MAX_SEGMENTS = 16;
+
+    /** Records between two entries of the sparse timestamp index. */
+    public static final int INDEX_INTERVAL = 64;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int INDEX_MAGIC = 0x47434d31;
+    private static final int RECORD_HEADER_SIZE = 4 + 4;
+    private static final int ENTRY_HEADER_SIZE = 8 + 1;
+
+    private final File directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final CRC32 crc = new CRC32();
+    private final byte[] checksumChunk = new byte[4096];
+    private final List<Segment> segments = new ArrayList<Segment>();
+
+    private ByteBuffer scratch = ByteBuffer.allocate(1024);
+    private Segment active;
+    private long lastTimestampMillis = Long.MIN_VALUE;
+
+    private long appendedCount;
+    private long deletedSegmentCount;
+
+    public MessageStore(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * Opens the store, recovering the segments left from previous runs.
+     * @param directory Directory of the segment files, created if it does not exist
+     * @param segmentBytes Size of one segment file; also the largest possible record
+     * @param maxSegments Number of segments kept before the oldest is deleted
+     * @throws IOException if the segments cannot be opened
+     */
+    public MessageStore(File directory, int segmentBytes, int maxSegments) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = Math.max(2, maxSegments);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        synchronized (this) {
+            open();
+        }
+    }
+
+    /**
+     * Appends a record. Its timestamp is raised to the one of the previous record if the
+     * clock went backwards.
+     * @throws IOException if the record is larger than a segment or cannot be written
+     */
+    public synchronized void append(MessageRecord record) throws IOException {
+        long timestamp = Math.max(record.getTimestampMillis(), lastTimestampMillis);
+        encode(timestamp, record);
+        int recordLength = scratch.remaining();
+        int size = RECORD_HEADER_SIZE + recordLength;
+        if (size > segmentBytes) {
+            throw new IOException("Record of " + size + " bytes does not fit in a segment");
+        }
+        if (active.end + size > segmentBytes) {
+            roll();
+        }
+
+        MappedByteBuffer buffer = active.buffer;
+        int offset = active.end;
+        buffer.position(offset);
+        buffer.putInt(recordLength);
+        buffer.putInt(checksum(scratch.duplicate()));
+        buffer.put(scratch);
+        active.end = offset + size;
+        active.index(timestamp, record.getAction(), offset);
+        lastTimestampMillis = timestamp;
+        appendedCount++;
+    }
+
+    /**
+     * Finds records by time and action, oldest first.
+     * @param action Action of the records, or null for all records
+     * @param fromMillis Earliest timestamp, inclusive
+     * @param toMillis Latest timestamp, exclusive
+     * @param limit Maximum number of records returned
+     * @return The matching records
+     * @throws IOException if a sealed segment cannot be read
+     */
+    public synchronized List<MessageRecord> query(String action, long fromMillis, long toMillis,
+            int limit) throws IOException {
+        List<MessageRecord> result = new ArrayList<MessageRecord>();
+        for (int i = 0; i < segments.size() && result.size() < limit; i++) {
+            Segment segment = segments.get(i);
+            if (segment.count == 0 || segment.maxTimestamp < fromMillis) {
+                continue;
+            }
+            if (segment.minTimestamp >= toMillis) {
+                break;
+            }
+            ByteBuffer buffer = segment.read();
+            int start = segment.seek(fromMillis);
+            boolean pastRange;
+            if (action == null) {
+                pastRange = scan(buffer, start, segment.end, fromMillis, toMillis, limit, result);
+            } else {
+                IntList postings = segment.postings.get(action);
+                pastRange = postings != null && scanPostings(buffer, postings, start, fromMillis,
+                        toMillis, limit, result);
+            }
+            if (pastRange) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads consecutive records from an offset until the end of the time range.
+     * @return true if a record at or after the end of the range was reached
+     */
+    private static boolean scan(ByteBuffer buffer, int offset, int end, long fromMillis,
+            long toMillis, int limit, List<MessageRecord> result) {
+        while (offset < end && result.size() < limit) {
+            long timestamp = buffer.getLong(offset + RECORD_HEADER_SIZE);
+            if (timestamp >= toMillis) {
+                return true;
+            }
+            if (timestamp >= fromMillis) {
+                result.add(decode(buffer, offset));
+            }
+            offset += RECORD_HEADER_SIZE + buffer.getInt(offset);
+        }
+        return false;
+    }
+
+    /**
+     * Reads the records of a posting list from an offset until the end of the time range.
+     * @return true if a record at or after the end of the range was reached
+     */
+    private static boolean scanPostings(ByteBuffer buffer, IntList postings, int offset,
+            long fromMillis, long toMillis, int limit, List<MessageRecord> result) {
+        for (int i = postings.ceiling(offset); i < postings.size() && result.size() < limit;
+                i++) {
+            int recordOffset = postings.get(i);
+            long timestamp = buffer.getLong(recordOffset + RECORD_HEADER_SIZE);
+            if (timestamp >= toMillis) {
+                return true;
+            }
+            if (timestamp >= fromMillis) {
+                result.add(decode(buffer, recordOffset));
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Number of records in the store
+     */
+    public synchronized long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.count;
+        }
+        return size;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    public synchronized long getAppendedCount() {
+        return appendedCount;
+    }
+
+    /**
+     * @return Segments deleted to stay within the maximum number of segments
+     */
+    public synchronized long getDeletedSegmentCount() {
+        return deletedSegmentCount;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        active.buffer.force();
+        for (Segment segment : segments) {
+            segment.close();
+        }
+    }
+
+    private void open() throws IOException {
+        File[] files = directory.listFiles();
+        List<Long> ids = new ArrayList<Long>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        ids.add(Long.parseLong(
+                                name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // Not one of ours.
+                    }
+                }
+            }
+        }
+        Collections.sort(ids);
+
+        for (int i = 0; i < ids.size(); i++) {
+            Segment segment = new Segment(ids.get(i));
+            boolean last = i == ids.size() - 1;
+            if (last) {
+                segment.map();
+                recover(segment, true);
+            } else if (!readIndex(segment)) {
+                // The index was lost or torn; the sealed segment itself is still complete.
+                recover(segment, false);
+                writeIndex(segment);
+            }
+            segments.add(segment);
+            if (segment.count > 0) {
+                lastTimestampMillis = Math.max(lastTimestampMillis, segment.maxTimestamp);
+            }
+        }
+
+        if (segments.isEmpty()) {
+            Segment segment = new Segment(0);
+            segment.map();
+            segments.add(segment);
+        }
+        active = segments.get(segments.size() - 1);
+    }
+
+    /**
+     * Seals the active segment and starts a new one, deleting the oldest segments if there
+     * are too many.
+     */
+    private void roll() throws IOException {
+        active.buffer.force();
+        writeIndex(active);
+        Segment segment = new Segment(active.id + 1);
+        segment.map();
+        segments.add(segment);
+        active = segment;
+
+        while (segments.size() > maxSegments) {
+            Segment oldest = segments.remove(0);
+            oldest.close();
+            if (!oldest.file.delete() || !indexFile(oldest).delete()) {
+                throw new IOException("Could not delete " + oldest.file);
+            }
+            deletedSegmentCount++;
+        }
+    }
+
+    /**
+     * Rebuilds the index of a segment from its records.
+     * @param writable true for the segment appended to next; anything after its first torn or
+     *               corrupt record is cleared, so later appends are not followed by stale
+     *               bytes
+     */
+    private void recover(Segment segment, boolean writable) throws IOException {
+        ByteBuffer buffer = segment.read();
+        int position = 0;
+        boolean torn = false;
+        while (buffer.limit() - position >= RECORD_HEADER_SIZE + ENTRY_HEADER_SIZE) {
+            int recordLength = buffer.getInt(position);
+            int checksum = buffer.getInt(position + 4);
+            int start = position + RECORD_HEADER_SIZE;
+            if (recordLength < ENTRY_HEADER_SIZE || recordLength > buffer.limit() - start) {
+                torn = recordLength != 0 || checksum != 0;
+                break;
+            }
+            ByteBuffer record = buffer.duplicate();
+            record.position(start);
+            record.limit(start + recordLength);
+            if (checksum(record.slice()) != checksum) {
+                torn = true;
+                break;
+            }
+            long timestamp = record.getLong();
+            record.get();
+            readString(record);
+            segment.index(timestamp, readString(record), position);
+            position = start + recordLength;
+        }
+        segment.end = position;
+
+        if (torn && writable) {
+            for (int i = position; i < buffer.limit(); i++) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+    }
+
+    private File indexFile(Segment segment) {
+        return new File(directory, segment.name() + INDEX_SUFFIX);
+    }
+
+    /**
+     * Writes the index of a sealed segment next to it.
+     */
+    private void writeIndex(Segment segment) throws IOException {
+        int size = 4 * 3 + 8 * 2 + 4 + segment.sparseOffsets.size() * (8 + 4) + 4;
+        List<byte[]> actions = new ArrayList<byte[]>(segment.postings.size());
+        for (Map.Entry<String, IntList> entry : segment.postings.entrySet()) {
+            byte[] action = entry.getKey().getBytes(UTF_8);
+            actions.add(action);
+            size += 4 + action.length + 4 + entry.getValue().size() * 4;
+        }
+        ByteBuffer index = ByteBuffer.allocate(size + 4);
+        index.putInt(INDEX_MAGIC);
+        index.putInt(segment.end);
+        index.putInt(segment.count);
+        index.putLong(segment.minTimestamp);
+        index.putLong(segment.maxTimestamp);
+        index.putInt(segment.sparseOffsets.size());
+        for (int i = 0; i < segment.sparseOffsets.size(); i++) {
+            index.putLong(segment.sparseTimestamps.get(i));
+            index.putInt(segment.sparseOffsets.get(i));
+        }
+        index.putInt(actions.size());
+        int i = 0;
+        for (IntList postings : segment.postings.values()) {
+            byte[] action = actions.get(i++);
+            index.putInt(action.length);
+            index.put(action);
+            index.putInt(postings.size());
+            for (int j = 0; j < postings.size(); j++) {
+                index.putInt(postings.get(j));
+            }
+        }
+        ByteBuffer content = index.duplicate();
+        content.flip();
+        index.putInt(checksum(content));
+
+        File file = indexFile(segment);
+        File temporary = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temporary);
+        try {
+            out.write(index.array());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /**
+     * Loads the index of a sealed segment.
+     * @return false if the index is missing or damaged
+     */
+    private boolean readIndex(Segment segment) throws IOException {
+        File file = indexFile(segment);
+        if (!file.isFile() || file.length() < 4 || file.length() > Integer.MAX_VALUE) {
+            return false;
+        }
+        ByteBuffer index = ByteBuffer.allocate((int) file.length());
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.readFully(index.array());
+        } finally {
+            raf.close();
+        }
+        ByteBuffer content = index.duplicate();
+        content.limit(index.capacity() - 4);
+        if (checksum(content) != index.getInt(index.capacity() - 4)) {
+            return false;
+        }
+
+        try {
+            if (index.getInt() != INDEX_MAGIC) {
+                return false;
+            }
+            segment.end = index.getInt();
+            segment.count = index.getInt();
+            segment.minTimestamp = index.getLong();
+            segment.maxTimestamp = index.getLong();
+            int sparseCount = index.getInt();
+            for (int i = 0; i < sparseCount; i++) {
+                segment.sparseTimestamps.add(index.getLong());
+                segment.sparseOffsets.add(index.getInt());
+            }
+            int actionCount = index.getInt();
+            for (int i = 0; i < actionCount; i++) {
+                byte[] action = new byte[index.getInt()];
+                index.get(action);
+                int postingCount = index.getInt();
+                IntList postings = new IntList(postingCount);
+                for (int j = 0; j < postingCount; j++) {
+                    postings.add(index.getInt());
+                }
+                segment.postings.put(new String(action, UTF_8), postings);
+            }
+            return true;
+        } catch (RuntimeException e) {
+            // Checksum collision on a damaged file; rebuild from the segment.
+            segment.reset();
+            return false;
+        }
+    }
+
+    /**
+     * Encodes a record body into the scratch buffer, ready to be read.
+     */
+    private void encode(long timestamp, MessageRecord record) {
+        scratch.clear();
+        scratch.putLong(timestamp);
+        scratch.put((byte) record.getDirection().ordinal());
+        writeString(record.getPeer());
+        writeString(record.getAction());
+        Map<String, String> data = record.getData();
+        ensureScratch(4);
+        scratch.putInt(data.size());
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            writeString(entry.getKey());
+            writeString(entry.getValue());
+        }
+        scratch.flip();
+    }
+
+    private static MessageRecord decode(ByteBuffer buffer, int offset) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset + RECORD_HEADER_SIZE);
+        long timestamp = record.getLong();
+        MessageRecord.Direction direction = MessageRecord.Direction.values()[record.get()];
+        String peer = readString(record);
+        String action = readString(record);
+        int count = record.getInt();
+        Map<String, String> data = new LinkedHashMap<String, String>(count * 2);
+        for (int i = 0; i < count; i++) {
+            String key = readString(record);
+            data.put(key, readString(record));
+        }
+        return new MessageRecord(timestamp, direction, peer, action, data);
+    }
+
+    private void writeString(String value) {
+        if (value == null) {
+            ensureScratch(4);
+            scratch.putInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        ensureScratch(4 + bytes.length);
+        scratch.putInt(bytes.length);
+        scratch.put(bytes);
+    }
+
+    private void ensureScratch(int needed) {
+        if (scratch.remaining() < needed) {
+            ByteBuffer larger = ByteBuffer.allocate(
+                    Math.max(scratch.capacity() * 2, scratch.position() + needed));
+            scratch.flip();
+            larger.put(scratch);
+            scratch = larger;
+        }
+    }
+
+    private static String readString(ByteBuffer record) {
+        int length = record.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private int checksum(ByteBuffer record) {
+        crc.reset();
+        if (record.hasArray()) {
+            crc.update(record.array(), record.arrayOffset() + record.position(),
+                    record.remaining());
+        } else {
+            // Mapped records are only checked on recovery; copy them in chunks.
+            while (record.hasRemaining()) {
+                int length = Math.min(checksumChunk.length, record.remaining());
+                record.get(checksumChunk, 0, length);
+                crc.update(checksumChunk, 0, length);
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * One segment file with its in-memory index.
+     */
+    private class Segment {
+
+        final long id;
+        final File file;
+        final LongList sparseTimestamps = new LongList();
+        final IntList sparseOffsets = new IntList(16);
+        final Map<String, IntList> postings = new HashMap<String, IntList>();
+        RandomAccessFile raf;
+        MappedByteBuffer buffer;
+        int end;
+        int count;
+        long minTimestamp;
+        long maxTimestamp;
+
+        Segment(long id) {
+            this.id = id;
+            this.file = new File(directory, name() + SEGMENT_SUFFIX);
+        }
+
+        String name() {
+            return String.format(Locale.US, "%012d", id);
+        }
+
+        /**
+         * Maps the segment for writing, growing the file to the segment size.
+         */
+        void map() throws IOException {
+            raf = new RandomAccessFile(file, "rw");
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+
+        /**
+         * @return The mapped segment, mapped read-only on first use if it is sealed
+         */
+        ByteBuffer read() throws IOException {
+            if (buffer == null) {
+                raf = new RandomAccessFile(file, "r");
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            }
+            return buffer;
+        }
+
+        void index(long timestamp, String action, int offset) {
+            if (count % INDEX_INTERVAL == 0) {
+                sparseTimestamps.add(timestamp);
+                sparseOffsets.add(offset);
+            }
+            if (action != null) {
+                IntList list = postings.get(action);
+                if (list == null) {
+                    list = new IntList(16);
+                    postings.put(action, list);
+                }
+                list.add(offset);
+            }
+            if (count == 0) {
+                minTimestamp = timestamp;
+            }
+            maxTimestamp = timestamp;
+            count++;
+        }
+
+        /**
+         * @return Offset of a record at or before the first one not older than the timestamp
+         */
+        int seek(long timestamp) {
+            // Last index entry strictly older than the timestamp; equal timestamps may
+            // also precede the entry.
+            int low = 0;
+            int high = sparseTimestamps.size() - 1;
+            int found = 0;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (sparseTimestamps.get(middle) < timestamp) {
+                    found = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return sparseOffsets.size() == 0 ? 0 : sparseOffsets.get(found);
+        }
+
+        void reset() {
+            sparseTimestamps.clear();
+            sparseOffsets.clear();
+            postings.clear();
+            end = 0;
+            count = 0;
+        }
+
+        void close() throws IOException {
+            if (raf != null) {
+                raf.close();
+                raf = null;
+                buffer = null;
+            }
+        }
+    }
+
+    /**
+     * Growable list of ints, sorted when used as a posting list.
+     */
+    private static class IntList {
+
+        private int[] values;
+        private int size;
+
+        IntList(int capacity) {
+            values = new int[Math.max(1, capacity)];
+        }
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        /**
+         * @return Index of the first value not smaller than the passed one
+         */
+        int ceiling(int value) {
+            int index = Arrays.binarySearch(values, 0, size, value);
+            return index < 0 ? -index - 1 : index;
+        }
+    }
+
+    private static class LongList {
+
+        private long[] values = new long[16];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long get(int index) {
+            return values[index];
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+
+}
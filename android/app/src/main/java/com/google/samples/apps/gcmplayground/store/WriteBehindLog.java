@@ -0,0 +1,269 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.store;
+
+import com.google.samples.apps.gcmplayground.metrics.LatencyHistogram;
+import com.google.samples.apps.gcmplayground.metrics.MetricsRegistry;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers message records in memory and appends them to a {@link MessageStore} in batches
+ * from a background thread, so the GCM listener and the UI never wait for disk.
+ *
+ * A batch is written once {@code batchSize} records are waiting or {@code flushDelayMillis}
+ * after the first of them arrived. The store is opened on the writer thread on first use.
+ * If the writer falls behind by {@code capacity} records the oldest buffered ones are
+ * dropped; records that cannot be written are counted as failed.
+ */
+public class WriteBehindLog implements Closeable {
+
+    public static final int DEFAULT_CAPACITY = 2000;
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final long DEFAULT_FLUSH_DELAY_MILLIS = 1000;
+
+    /**
+     * Opens the store on the writer thread.
+     */
+    public interface Opener {
+        MessageStore open() throws IOException;
+    }
+
+    private final Opener opener;
+    private final int capacity;
+    private final int batchSize;
+    private final long flushDelayMillis;
+    private final ScheduledExecutorService executor;
+
+    private final ArrayDeque<MessageRecord> buffer = new ArrayDeque<MessageRecord>();
+    private ScheduledFuture<?> scheduledFlush;
+    private boolean flushNow;
+    private boolean closed;
+    // Only used on the writer thread.
+    private MessageStore store;
+
+    private final AtomicLong recordedCount = new AtomicLong();
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final LatencyHistogram flushLatency = new LatencyHistogram();
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (WriteBehindLog.this) {
+                scheduledFlush = null;
+            }
+            drain();
+        }
+    };
+
+    public WriteBehindLog(Opener opener) {
+        this(opener, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_DELAY_MILLIS);
+    }
+
+    /**
+     * @param opener Opens the store on first use
+     * @param capacity Maximum number of buffered records
+     * @param batchSize Number of buffered records that triggers a write right away
+     * @param flushDelayMillis Longest time a record stays buffered
+     */
+    public WriteBehindLog(Opener opener, int capacity, int batchSize, long flushDelayMillis) {
+        this.opener = opener;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.flushDelayMillis = flushDelayMillis;
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "WriteBehindLog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Buffers a record. Never blocks on disk; can be called from any thread.
+     */
+    public synchronized void record(MessageRecord record) {
+        recordedCount.incrementAndGet();
+        if (closed) {
+            droppedCount.incrementAndGet();
+            return;
+        }
+        if (buffer.size() >= capacity) {
+            buffer.pollFirst();
+            droppedCount.incrementAndGet();
+        }
+        buffer.addLast(record);
+        scheduleFlush(buffer.size() >= batchSize);
+    }
+
+    /**
+     * Writes the buffered records, then runs a query on the writer thread, so it sees every
+     * record buffered before the call.
+     * @see MessageStore#query(String, long, long, int)
+     */
+    public Future<List<MessageRecord>> query(final String action, final long fromMillis,
+            final long toMillis, final int limit) {
+        return executor.submit(new Callable<List<MessageRecord>>() {
+            @Override
+            public List<MessageRecord> call() throws IOException {
+                drain();
+                return open().query(action, fromMillis, toMillis, limit);
+            }
+        });
+    }
+
+    /**
+     * Writes the buffered records.
+     * @return Completes once the records buffered before the call were written
+     */
+    public Future<?> flush() {
+        return executor.submit(flushTask);
+    }
+
+    /**
+     * Writes the buffered records and closes the store. Later records are dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+        }
+        Future<?> closing = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                drain();
+                if (store != null) {
+                    store.close();
+                }
+                return null;
+            }
+        });
+        executor.shutdown();
+        try {
+            closing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void scheduleFlush(boolean now) {
+        if (scheduledFlush != null) {
+            if (!now || flushNow) {
+                return;
+            }
+            scheduledFlush.cancel(false);
+        }
+        flushNow = now;
+        scheduledFlush = executor.schedule(flushTask, now ? 0 : flushDelayMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private MessageStore open() throws IOException {
+        if (store == null) {
+            store = opener.open();
+        }
+        return store;
+    }
+
+    /**
+     * Appends the buffered records in batches until none are left. Runs on the writer
+     * thread.
+     */
+    private void drain() {
+        List<MessageRecord> batch = new ArrayList<MessageRecord>(batchSize);
+        while (true) {
+            synchronized (this) {
+                while (batch.size() < batchSize && !buffer.isEmpty()) {
+                    batch.add(buffer.pollFirst());
+                }
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < batch.size(); i++) {
+                try {
+                    open().append(batch.get(i));
+                    writtenCount.incrementAndGet();
+                } catch (IOException e) {
+                    failedCount.incrementAndGet();
+                }
+            }
+            flushLatency.recordSince(start);
+            batch.clear();
+        }
+    }
+
+    public long getRecordedCount() {
+        return recordedCount.get();
+    }
+
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    /**
+     * @return Records dropped because the buffer was full or the log closed
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return Records that could not be written to the store
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * @return Time taken to write one batch
+     */
+    public LatencyHistogram getFlushLatencyHistogram() {
+        return flushLatency;
+    }
+
+    /**
+     * Publishes the counters as {@code <prefix>.written}, {@code <prefix>.dropped} and
+     * {@code <prefix>.failed}, and the batch write time as {@code <prefix>.flush}.
+     */
+    public void registerMetrics(MetricsRegistry metrics, String prefix) {
+        metrics.register(prefix + ".written", writtenCount);
+        metrics.register(prefix + ".dropped", droppedCount);
+        metrics.register(prefix + ".failed", failedCount);
+        metrics.register(prefix + ".flush", flushLatency);
+    }
+
+}
@@ -0,0 +1,331 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.samples.apps.gcmplayground.tasks;
+
+import com.google.samples.apps.gcmplayground.metrics.LatencyHistogram;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The app's pool for one-off background work, replacing IntentService and AsyncTask.
+ *
+ * Tasks are queued in priority lanes, so a registration never waits behind a backlog of
+ * topic syncs, and run on a bounded number of threads. Each task belongs to a {@link Scope};
+ * cancelling the scope (e.g. when an activity is destroyed) drops its queued tasks,
+ * interrupts its running ones and suppresses their callbacks. Tasks of a serial lane also
+ * run one at a time, e.g. so two registrations never race each other.
+ */
+public class TaskScheduler {
+
+    public static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Priority lanes, most urgent first. Within a lane tasks start in submission order.
+     */
+    public enum Lane {
+        REGISTRATION(true),
+        UPSTREAM(false),
+        TOPIC_SYNC(false),
+        MAINTENANCE(false);
+
+        private final boolean serial;
+
+        Lane(boolean serial) {
+            this.serial = serial;
+        }
+
+        /**
+         * @return true if a task of the lane only starts once the previous one finished
+         */
+        public boolean isSerial() {
+            return serial;
+        }
+    }
+
+    /**
+     * A unit of background work with an optional result callback.
+     */
+    public static abstract class Task<T> {
+
+        /**
+         * Does the work on a scheduler thread. Should return early when interrupted.
+         */
+        protected abstract T run() throws Exception;
+
+        /**
+         * Called on the callback executor with the result, unless the scope was cancelled.
+         */
+        protected void onDone(T result) {
+        }
+
+        /**
+         * Called on the callback executor if {@link #run()} threw, unless the scope was
+         * cancelled.
+         */
+        protected void onError(Exception error) {
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final Executor callbackExecutor;
+    private final Scope appScope = new Scope();
+    private final AtomicLong sequence = new AtomicLong();
+    private final LatencyHistogram[] queueDelays = new LatencyHistogram[Lane.values().length];
+    private final SerialQueue[] serialQueues = new SerialQueue[Lane.values().length];
+
+    /**
+     * @param threads Maximum number of tasks running at once
+     * @param callbackExecutor Executor running {@link Task#onDone} and {@link Task#onError},
+     *                         usually the main thread
+     */
+    public TaskScheduler(int threads, Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+        for (int i = 0; i < queueDelays.length; i++) {
+            queueDelays[i] = new LatencyHistogram();
+            if (Lane.values()[i].isSerial()) {
+                serialQueues[i] = new SerialQueue();
+            }
+        }
+        executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "TaskScheduler-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Submits a task that lives as long as the app.
+     */
+    public <T> Future<T> submit(Lane lane, Task<T> task) {
+        return appScope.submit(lane, task);
+    }
+
+    /**
+     * Submits plain work that lives as long as the app.
+     */
+    public Future<?> execute(Lane lane, final Runnable runnable) {
+        return submit(lane, new Task<Void>() {
+            @Override
+            protected Void run() {
+                runnable.run();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @return A new scope whose tasks can be cancelled together
+     */
+    public Scope newScope() {
+        return new Scope();
+    }
+
+    /**
+     * @return Distribution of the time tasks of the lane waited before starting
+     */
+    public LatencyHistogram getQueueDelayHistogram(Lane lane) {
+        return queueDelays[lane.ordinal()];
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Stops accepting tasks; queued ones still run.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * A group of tasks cancelled together, typically bound to a component's lifecycle.
+     */
+    public class Scope {
+
+        private final Set<Job<?>> jobs =
+                Collections.newSetFromMap(new ConcurrentHashMap<Job<?>, Boolean>());
+        private volatile boolean cancelled;
+
+        /**
+         * Queues a task in the given lane. If the scope is already cancelled the task never
+         * runs and the returned future is cancelled.
+         */
+        public <T> Future<T> submit(Lane lane, Task<T> task) {
+            Job<T> job = new Job<T>(this, lane, task);
+            jobs.add(job);
+            if (cancelled) {
+                job.cancel(false);
+            } else if (lane.isSerial()) {
+                serialQueues[lane.ordinal()].offer(job);
+            } else {
+                executor.execute(job);
+            }
+            return job;
+        }
+
+        /**
+         * Cancels all queued and running tasks of the scope, and any submitted later.
+         */
+        public void cancel() {
+            cancelled = true;
+            for (Job<?> job : jobs) {
+                job.cancel(true);
+                // A cancelled job of a serial lane still runs, as a no-op, to start the next.
+                if (!job.lane.isSerial()) {
+                    executor.remove(job);
+                }
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * The tasks of a serial lane waiting for the running one to finish.
+     */
+    private class SerialQueue {
+
+        private final ArrayDeque<Job<?>> waiting = new ArrayDeque<Job<?>>();
+        private boolean running;
+
+        synchronized void offer(Job<?> job) {
+            if (running) {
+                waiting.add(job);
+            } else {
+                running = true;
+                executor.execute(job);
+            }
+        }
+
+        synchronized void onFinished() {
+            Job<?> next = waiting.poll();
+            if (next == null) {
+                running = false;
+            } else {
+                executor.execute(next);
+            }
+        }
+    }
+
+    /**
+     * A queued task, ordered by lane and then by submission.
+     */
+    private class Job<T> extends FutureTask<T> implements Comparable<Job<?>> {
+
+        private final Scope scope;
+        private final Lane lane;
+        private final Task<T> task;
+        private final long sequenceNumber = sequence.getAndIncrement();
+        private final long enqueuedAtNanos = System.nanoTime();
+
+        Job(Scope scope, Lane lane, final Task<T> task) {
+            super(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    return task.run();
+                }
+            });
+            this.scope = scope;
+            this.lane = lane;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            queueDelays[lane.ordinal()].recordSince(enqueuedAtNanos);
+            try {
+                super.run();
+            } finally {
+                if (lane.isSerial()) {
+                    serialQueues[lane.ordinal()].onFinished();
+                }
+            }
+        }
+
+        @Override
+        protected void done() {
+            scope.jobs.remove(this);
+            if (isCancelled() || scope.cancelled) {
+                return;
+            }
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    deliver();
+                }
+            });
+        }
+
+        private void deliver() {
+            if (scope.cancelled) {
+                return;
+            }
+            T result;
+            try {
+                result = get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                task.onError((Exception) cause);
+                return;
+            } catch (InterruptedException e) {
+                // Done, so get() cannot block.
+                throw new AssertionError(e);
+            }
+            task.onDone(result);
+        }
+
+        @Override
+        public int compareTo(Job<?> other) {
+            if (lane != other.lane) {
+                return lane.compareTo(other.lane);
+            }
+            return sequenceNumber < other.sequenceNumber ? -1
+                    : (sequenceNumber == other.sequenceNumber ? 0 : 1);
+        }
+    }
+
+}
@@ -0,0 +1,54 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.samples.apps.gcmplayground.topics;
+
+import android.content.Context;
+
+import com.google.android.gms.gcm.GcmPubSub;
+
+import java.io.IOException;
+
+/**
+ * {@link TopicClient} backed by {@link GcmPubSub}. The GcmPubSub client is created on the
+ * first subscription change, not at startup.
+ */
+public class GcmTopicClient implements TopicClient {
+
+    private final Context context;
+    private GcmPubSub pubSub;
+
+    public GcmTopicClient(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    private synchronized GcmPubSub getPubSub() {
+        if (pubSub == null) {
+            pubSub = GcmPubSub.getInstance(context);
+        }
+        return pubSub;
+    }
+
+    @Override
+    public void subscribe(String token, String topic) throws IOException {
+        getPubSub().subscribe(token, topic, null);
+    }
+
+    @Override
+    public void unsubscribe(String token, String topic) throws IOException {
+        getPubSub().unsubscribe(token, topic);
+    }
+
+}
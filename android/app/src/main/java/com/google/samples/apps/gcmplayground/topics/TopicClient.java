@@ -0,0 +1,30 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.samples.apps.gcmplayground.topics;
+
+import java.io.IOException;
+
+/**
+ * Subscribes registration tokens to topics. Implemented by {@link GcmTopicClient}; other
+ * implementations let {@link TopicSubscriptionManager} run on a plain JVM.
+ */
+public interface TopicClient {
+
+    void subscribe(String token, String topic) throws IOException;
+
+    void unsubscribe(String token, String topic) throws IOException;
+
+}
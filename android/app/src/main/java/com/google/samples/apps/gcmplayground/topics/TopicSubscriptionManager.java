@@ -0,0 +1,281 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.samples.apps.gcmplayground.topics;
+
+import com.google.samples.apps.gcmplayground.util.KeyValueStore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the topic subscriptions of the registration token in line with the set of topics the
+ * user asked for.
+ *
+ * Both the wanted topics and the topics actually subscribed (and for which token) are
+ * persisted. {@link #sync(String)} only subscribes or unsubscribes the difference, running up
+ * to a fixed number of topic calls in parallel and retrying each failed call with backoff.
+ * A new token invalidates all subscriptions, so every wanted topic is subscribed again.
+ */
+public class TopicSubscriptionManager {
+
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_RETRY_DELAY_MILLIS = 500;
+
+    /**
+     * Outcome of one {@link #sync(String)}.
+     */
+    public static class SyncResult {
+
+        public final List<String> subscribed = new ArrayList<String>();
+        public final List<String> unsubscribed = new ArrayList<String>();
+        public final List<String> failed = new ArrayList<String>();
+        public long durationMillis;
+
+        public boolean isSuccess() {
+            return failed.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "subscribed " + subscribed.size() + ", unsubscribed " + unsubscribed.size()
+                    + ", failed " + failed + " in " + durationMillis + " ms";
+        }
+    }
+
+    private static final String KEY_WANTED = "topics_wanted";
+    private static final String KEY_SUBSCRIBED = "topics_subscribed";
+    private static final String KEY_TOKEN = "topics_token";
+    private static final String SEPARATOR = "\n";
+
+    private final TopicClient client;
+    private final KeyValueStore backing;
+    private final ExecutorService executor;
+    private final int maxAttempts;
+    private final long retryDelayMillis;
+
+    private final Set<String> wanted;
+    private final Set<String> subscribed;
+    private String subscribedToken;
+
+    private long syncCount;
+    private long totalSyncMillis;
+    private final AtomicLong callCount = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+
+    public TopicSubscriptionManager(TopicClient client, KeyValueStore backing) {
+        this(client, backing, DEFAULT_PARALLELISM, DEFAULT_MAX_ATTEMPTS,
+                DEFAULT_RETRY_DELAY_MILLIS);
+    }
+
+    /**
+     * @param client Client making the topic calls
+     * @param backing Storage of the topic sets
+     * @param parallelism Maximum number of topic calls in flight
+     * @param maxAttempts Attempts per topic before giving up until the next sync
+     * @param retryDelayMillis Delay before the first retry, doubled for each further one
+     */
+    public TopicSubscriptionManager(TopicClient client, KeyValueStore backing, int parallelism,
+            int maxAttempts, long retryDelayMillis) {
+        this.client = client;
+        this.backing = backing;
+        this.maxAttempts = maxAttempts;
+        this.retryDelayMillis = retryDelayMillis;
+        this.executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "TopicSubscriptionManager");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        wanted = load(KEY_WANTED);
+        subscribed = load(KEY_SUBSCRIBED);
+        subscribedToken = backing.get(KEY_TOKEN);
+    }
+
+    public synchronized void addTopic(String topic) {
+        if (wanted.add(topic)) {
+            save(KEY_WANTED, wanted);
+        }
+    }
+
+    public synchronized void removeTopic(String topic) {
+        if (wanted.remove(topic)) {
+            save(KEY_WANTED, wanted);
+        }
+    }
+
+    public synchronized Set<String> getTopics() {
+        return Collections.unmodifiableSet(new LinkedHashSet<String>(wanted));
+    }
+
+    /**
+     * @return true if the topic is subscribed for the given token
+     */
+    public synchronized boolean isSubscribed(String token, String topic) {
+        return token != null && token.equals(subscribedToken) && subscribed.contains(topic);
+    }
+
+    /**
+     * Brings the subscriptions of the token in line with the wanted topics. Blocks until
+     * every topic call has finished, so call it off the main thread.
+     * @param token Current registration token
+     * @return What was changed and what failed
+     */
+    public synchronized SyncResult sync(String token) {
+        long start = System.nanoTime();
+        SyncResult result = new SyncResult();
+
+        if (!token.equals(subscribedToken)) {
+            // Subscriptions belong to the old token.
+            subscribed.clear();
+            subscribedToken = token;
+            backing.put(KEY_TOKEN, token);
+        }
+
+        List<String> toSubscribe = new ArrayList<String>();
+        for (String topic : wanted) {
+            if (!subscribed.contains(topic)) {
+                toSubscribe.add(topic);
+            }
+        }
+        List<String> toUnsubscribe = new ArrayList<String>();
+        for (String topic : subscribed) {
+            if (!wanted.contains(topic)) {
+                toUnsubscribe.add(topic);
+            }
+        }
+
+        List<Future<Boolean>> subscribeCalls = submit(token, toSubscribe, true);
+        List<Future<Boolean>> unsubscribeCalls = submit(token, toUnsubscribe, false);
+        collect(toSubscribe, subscribeCalls, result.subscribed, result.failed);
+        collect(toUnsubscribe, unsubscribeCalls, result.unsubscribed, result.failed);
+
+        subscribed.addAll(result.subscribed);
+        subscribed.removeAll(result.unsubscribed);
+        save(KEY_SUBSCRIBED, subscribed);
+
+        result.durationMillis = (System.nanoTime() - start) / 1000000;
+        syncCount++;
+        totalSyncMillis += result.durationMillis;
+        return result;
+    }
+
+    public synchronized long getSyncCount() {
+        return syncCount;
+    }
+
+    public synchronized double getAverageSyncMillis() {
+        return syncCount == 0 ? 0 : (double) totalSyncMillis / syncCount;
+    }
+
+    public long getCallCount() {
+        return callCount.get();
+    }
+
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    private List<Future<Boolean>> submit(final String token, List<String> topics,
+            final boolean subscribe) {
+        List<Future<Boolean>> calls = new ArrayList<Future<Boolean>>(topics.size());
+        for (final String topic : topics) {
+            calls.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws InterruptedException {
+                    return callWithRetry(token, topic, subscribe);
+                }
+            }));
+        }
+        return calls;
+    }
+
+    private void collect(List<String> topics, List<Future<Boolean>> calls, List<String> done,
+            List<String> failed) {
+        for (int i = 0; i < topics.size(); i++) {
+            boolean succeeded;
+            try {
+                succeeded = calls.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                succeeded = false;
+            } catch (ExecutionException e) {
+                succeeded = false;
+            }
+            (succeeded ? done : failed).add(topics.get(i));
+        }
+    }
+
+    private boolean callWithRetry(String token, String topic, boolean subscribe)
+            throws InterruptedException {
+        long delay = retryDelayMillis;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                callCount.incrementAndGet();
+                if (attempt > 1) {
+                    retryCount.incrementAndGet();
+                }
+                if (subscribe) {
+                    client.subscribe(token, topic);
+                } else {
+                    client.unsubscribe(token, topic);
+                }
+                return true;
+            } catch (IOException e) {
+                if (attempt >= maxAttempts) {
+                    return false;
+                }
+            }
+            Thread.sleep(delay);
+            delay *= 2;
+        }
+    }
+
+    private Set<String> load(String key) {
+        Set<String> topics = new LinkedHashSet<String>();
+        String value = backing.get(key);
+        if (value != null && value.length() > 0) {
+            Collections.addAll(topics, value.split(SEPARATOR));
+        }
+        return topics;
+    }
+
+    private void save(String key, Set<String> topics) {
+        StringBuilder value = new StringBuilder();
+        for (String topic : topics) {
+            if (value.length() > 0) {
+                value.append(SEPARATOR);
+            }
+            value.append(topic);
+        }
+        backing.put(key, value.toString());
+    }
+
+}
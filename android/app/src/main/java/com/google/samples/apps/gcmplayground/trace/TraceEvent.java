@@ -0,0 +1,76 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.trace;
+
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * One message in a recorded trace.
+ */
+public class TraceEvent {
+
+    public enum Kind {
+        DOWNSTREAM,
+        UPSTREAM
+    }
+
+    private final Kind kind;
+    private final long offsetNanos;
+    private final String peer;
+    private final Map<String, String> data;
+
+    /**
+     * @param kind Whether the message was received or sent
+     * @param offsetNanos Time since the start of the recording
+     * @param peer SenderID the message came from or went to, or null if not known
+     * @param data Payload of the message, including its action
+     */
+    public TraceEvent(Kind kind, long offsetNanos, String peer, Map<String, String> data) {
+        this.kind = kind;
+        this.offsetNanos = offsetNanos;
+        this.peer = peer;
+        this.data = Collections.unmodifiableMap(data);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return Time since the start of the recording, in nanoseconds
+     */
+    public long getOffsetNanos() {
+        return offsetNanos;
+    }
+
+    public String getPeer() {
+        return peer;
+    }
+
+    /**
+     * @return Value of the action field, or null
+     */
+    public String getAction() {
+        return data.get(RegistrationConstants.ACTION);
+    }
+
+    public Map<String, String> getData() {
+        return data;
+    }
+
+}
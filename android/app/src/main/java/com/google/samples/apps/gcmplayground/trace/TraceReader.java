@@ -0,0 +1,155 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.trace;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads a trace written by {@link TraceWriter}, one event at a time. A trace cut off in the
+ * middle of an event, e.g. because the app was killed while recording, ends at the last
+ * complete event.
+ */
+public class TraceReader implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAX_FIELD_COUNT = 64 * 1024;
+
+    private final DataInputStream in;
+    private final long startMillis;
+    private final List<String> stringTable = new ArrayList<String>();
+    private final TraceEvent.Kind[] kinds = TraceEvent.Kind.values();
+    private long offsetNanos;
+    private boolean truncated;
+
+    /**
+     * Reads the header.
+     * @throws IOException if the stream is not a trace of a known version
+     */
+    public TraceReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        if (this.in.readInt() != TraceWriter.MAGIC) {
+            throw new IOException("Not a trace");
+        }
+        int version = this.in.readUnsignedByte();
+        if (version != TraceWriter.VERSION) {
+            throw new IOException("Unsupported trace version " + version);
+        }
+        startMillis = this.in.readLong();
+    }
+
+    /**
+     * @return Wall clock time the recording started
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    /**
+     * @return The next event, or null at the end of the trace
+     * @throws IOException if the trace cannot be read or is corrupt
+     */
+    public TraceEvent next() throws IOException {
+        int kind = in.read();
+        if (kind < 0) {
+            return null;
+        }
+        try {
+            if (kind >= kinds.length) {
+                throw new IOException("Unknown event kind " + kind);
+            }
+            offsetNanos += readVarLong();
+            String peer = readTableString();
+            long count = readVarLong();
+            if (count > MAX_FIELD_COUNT) {
+                throw new IOException("Bad field count " + count);
+            }
+            Map<String, String> data = new LinkedHashMap<String, String>((int) count * 2);
+            for (int i = 0; i < count; i++) {
+                String key = readTableString();
+                data.put(key, readString());
+            }
+            return new TraceEvent(kinds[kind], offsetNanos, peer, data);
+        } catch (EOFException e) {
+            truncated = true;
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the trace ended in the middle of an event
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private String readTableString() throws IOException {
+        long tag = readVarLong();
+        if (tag == 0) {
+            return null;
+        }
+        if (tag <= stringTable.size()) {
+            return stringTable.get((int) tag - 1);
+        }
+        if (tag != stringTable.size() + 1) {
+            throw new IOException("Bad string table reference " + tag);
+        }
+        String value = readString();
+        if (stringTable.size() < TraceWriter.MAX_STRING_TABLE_SIZE) {
+            stringTable.add(value);
+        }
+        return value;
+    }
+
+    private String readString() throws IOException {
+        long length = readVarLong();
+        if (length == 0) {
+            return null;
+        }
+        if (length - 1 > Integer.MAX_VALUE) {
+            throw new IOException("Bad string length " + (length - 1));
+        }
+        byte[] bytes = new byte[(int) (length - 1)];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Bad variable-length number");
+    }
+
+}
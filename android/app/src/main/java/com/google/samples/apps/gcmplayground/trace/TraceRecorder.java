@@ -0,0 +1,107 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.trace;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the messages the client receives and sends into a trace while recording is on.
+ * While it is off, {@link #record} costs a volatile read.
+ *
+ * Every event is flushed to the stream as it is written, so a trace survives the process
+ * being killed up to its last event. A write error stops the recording.
+ */
+public class TraceRecorder {
+
+    private volatile boolean recording;
+    private TraceWriter writer;
+
+    private final AtomicLong recordedCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+
+    /**
+     * Starts a new trace, stopping the current one.
+     * @param out Stream of the trace; closed when the recording stops
+     * @throws IOException if the trace header cannot be written
+     */
+    public synchronized void start(OutputStream out) throws IOException {
+        stop();
+        writer = new TraceWriter(out, System.currentTimeMillis(), System.nanoTime());
+        writer.flush();
+        recording = true;
+    }
+
+    /**
+     * Stops and closes the current trace, if any.
+     * @throws IOException if the trace could not be closed
+     */
+    public synchronized void stop() throws IOException {
+        recording = false;
+        if (writer != null) {
+            TraceWriter closing = writer;
+            writer = null;
+            closing.close();
+        }
+    }
+
+    public boolean isRecording() {
+        return recording;
+    }
+
+    /**
+     * Adds a message to the trace if recording. Can be called from any thread; events are
+     * kept in the order of the calls.
+     * @param kind Whether the message was received or sent
+     * @param peer SenderID the message came from or went to, or null
+     * @param data Payload of the message
+     */
+    public void record(TraceEvent.Kind kind, String peer, Map<String, String> data) {
+        if (!recording) {
+            return;
+        }
+        synchronized (this) {
+            if (writer == null) {
+                return;
+            }
+            try {
+                writer.write(kind, System.nanoTime(), peer, data);
+                writer.flush();
+                recordedCount.incrementAndGet();
+            } catch (IOException e) {
+                errorCount.incrementAndGet();
+                try {
+                    stop();
+                } catch (IOException ignored) {
+                    // Already failing; the trace ends at its last complete event.
+                }
+            }
+        }
+    }
+
+    public long getRecordedCount() {
+        return recordedCount.get();
+    }
+
+    /**
+     * @return Write errors, each of which stopped a recording
+     */
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+}
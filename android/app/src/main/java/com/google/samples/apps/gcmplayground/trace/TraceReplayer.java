@@ -0,0 +1,84 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.trace;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds a recorded trace back into the client's message paths, in the recorded order,
+ * either with the recorded gaps between messages or as fast as possible.
+ */
+public class TraceReplayer {
+
+    public static final double REAL_TIME = 1;
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    /**
+     * Receives the replayed messages on the replaying thread.
+     */
+    public interface Target {
+        void onDownstream(String from, Map<String, String> data);
+
+        void onUpstream(String to, Map<String, String> data);
+    }
+
+    private final Target target;
+    private final double speed;
+
+    /**
+     * @param target Entry points the messages are replayed into
+     * @param speed {@link #REAL_TIME}, a multiple of it, or {@link #AS_FAST_AS_POSSIBLE}
+     */
+    public TraceReplayer(Target target, double speed) {
+        this.target = target;
+        this.speed = speed;
+    }
+
+    /**
+     * Replays the rest of a trace. Gaps are measured from the first replayed event, so a
+     * recording that started long before its first message does not wait for it.
+     * @return Number of events replayed
+     * @throws IOException if the trace cannot be read
+     */
+    public long replay(TraceReader reader) throws IOException {
+        long startNanos = System.nanoTime();
+        long firstOffsetNanos = -1;
+        long count = 0;
+        TraceEvent event;
+        while ((event = reader.next()) != null) {
+            if (firstOffsetNanos < 0) {
+                firstOffsetNanos = event.getOffsetNanos();
+            }
+            if (speed > 0) {
+                long dueNanos = startNanos
+                        + (long) ((event.getOffsetNanos() - firstOffsetNanos) / speed);
+                long waitNanos;
+                while ((waitNanos = dueNanos - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(waitNanos);
+                }
+            }
+            if (event.getKind() == TraceEvent.Kind.DOWNSTREAM) {
+                target.onDownstream(event.getPeer(), event.getData());
+            } else {
+                target.onUpstream(event.getPeer(), event.getData());
+            }
+            count++;
+        }
+        return count;
+    }
+
+}
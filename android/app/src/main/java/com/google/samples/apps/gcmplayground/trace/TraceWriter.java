@@ -0,0 +1,149 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.trace;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes messages in the binary trace format read by {@link TraceReader}.
+ *
+ * A trace starts with a header of [magic][version][wall clock start millis]. Each event is
+ * [kind][time since the previous event][peer][field count] followed by its fields as
+ * [key][value]. Numbers are variable-length, so most events take a few bytes on top of
+ * their values. Peers and keys repeat across events and are written once, then referred to
+ * by their index in a string table both sides build as they go.
+ */
+public class TraceWriter implements Closeable {
+
+    static final int MAGIC = 0x47434d54;
+    static final int VERSION = 1;
+    static final int MAX_STRING_TABLE_SIZE = 4096;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final DataOutputStream out;
+    private final long startNanos;
+    private final Map<String, Integer> stringTable = new HashMap<String, Integer>();
+    private long lastOffsetNanos;
+    private long eventCount;
+
+    /**
+     * Writes the header.
+     * @param out Stream of the trace
+     * @param startMillis Wall clock time the recording started
+     * @param startNanos System.nanoTime() the recording started
+     * @throws IOException if the header cannot be written
+     */
+    public TraceWriter(OutputStream out, long startMillis, long startNanos) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.startNanos = startNanos;
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+        this.out.writeLong(startMillis);
+    }
+
+    /**
+     * Appends one event. Times before the previous event are recorded as equal to it.
+     * @param kind Whether the message was received or sent
+     * @param nowNanos System.nanoTime() the message was received or sent
+     * @param peer SenderID the message came from or went to, or null
+     * @param data Payload of the message
+     * @throws IOException if the event cannot be written
+     */
+    public void write(TraceEvent.Kind kind, long nowNanos, String peer, Map<String, String> data)
+            throws IOException {
+        long offsetNanos = Math.max(nowNanos - startNanos, lastOffsetNanos);
+        out.writeByte(kind.ordinal());
+        writeVarLong(offsetNanos - lastOffsetNanos);
+        lastOffsetNanos = offsetNanos;
+        writeTableString(peer);
+        writeVarLong(data.size());
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            writeTableString(entry.getKey());
+            writeString(entry.getValue());
+        }
+        eventCount++;
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    public long getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * @return Bytes written so far, including those not flushed yet
+     */
+    public long getSize() {
+        return out.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Writes 0 for null, the index + 1 of a string already in the table, or the table size
+     * + 1 followed by the string, which is then added to the table unless it is full.
+     */
+    private void writeTableString(String value) throws IOException {
+        if (value == null) {
+            writeVarLong(0);
+            return;
+        }
+        Integer index = stringTable.get(value);
+        if (index != null) {
+            writeVarLong(index + 1);
+            return;
+        }
+        writeVarLong(stringTable.size() + 1);
+        writeString(value);
+        if (stringTable.size() < MAX_STRING_TABLE_SIZE) {
+            stringTable.put(value, stringTable.size());
+        }
+    }
+
+    /**
+     * Writes 0 for null, or the length + 1 followed by the UTF-8 bytes.
+     */
+    private void writeString(String value) throws IOException {
+        if (value == null) {
+            writeVarLong(0);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        writeVarLong(bytes.length + 1L);
+        out.write(bytes);
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+}
@@ -0,0 +1,77 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.upstream;
+
+import android.content.Context;
+import android.os.Bundle;
+
+import com.google.android.gms.gcm.GoogleCloudMessaging;
+import com.google.samples.apps.gcmplayground.codec.PayloadCodec;
+import com.google.samples.apps.gcmplayground.codec.PayloadCodecs;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * {@link UpstreamSender} backed by {@link GoogleCloudMessaging}. Payloads are encoded with
+ * the current {@link PayloadCodec} right before they are put into a Bundle.
+ *
+ * The GoogleCloudMessaging client is created on the first send, which happens on a
+ * background thread, so creating the sender does not delay app startup.
+ */
+public class GcmUpstreamSender implements UpstreamSender {
+
+    private final Context context;
+    private GoogleCloudMessaging gcm;
+    private volatile PayloadCodec codec = PayloadCodecs.PLAIN;
+
+    public GcmUpstreamSender(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    private synchronized GoogleCloudMessaging getGcm() {
+        if (gcm == null) {
+            gcm = GoogleCloudMessaging.getInstance(context);
+        }
+        return gcm;
+    }
+
+    public PayloadCodec getCodec() {
+        return codec;
+    }
+
+    public void setCodec(PayloadCodec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public void send(String to, String messageId, Map<String, String> data) throws IOException {
+        getGcm().send(to, messageId, toBundle(codec.encode(data)));
+    }
+
+    /**
+     * Copies a string payload into a Bundle.
+     * @param data Payload to copy
+     * @return A bundle with the same key/value pairs
+     */
+    public static Bundle toBundle(Map<String, String> data) {
+        Bundle bundle = new Bundle(data.size());
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            bundle.putString(entry.getKey(), entry.getValue());
+        }
+        return bundle;
+    }
+
+}
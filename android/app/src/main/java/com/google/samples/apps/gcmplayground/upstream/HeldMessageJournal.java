@@ -0,0 +1,115 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.upstream;
+
+import com.google.samples.apps.gcmplayground.codec.CompactCodec;
+import com.google.samples.apps.gcmplayground.codec.PayloadCodecs;
+import com.google.samples.apps.gcmplayground.util.KeyValueStore;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * {@link SendScheduler.Journal} over a key/value {@link KeyValueStore}. Each held message is one
+ * compact-encoded value; the handles of the held messages are kept in an index value.
+ */
+public class HeldMessageJournal implements SendScheduler.Journal {
+
+    private static final String KEY_PREFIX = "held:";
+    private static final String KEY_HANDLES = "held_handles";
+    private static final String SEPARATOR = "\n";
+
+    private final KeyValueStore backing;
+    private final Set<Long> handles = new LinkedHashSet<Long>();
+    private long nextHandle = 1;
+
+    public HeldMessageJournal(KeyValueStore backing) {
+        this.backing = backing;
+        String stored = backing.get(KEY_HANDLES);
+        if (stored != null && stored.length() > 0) {
+            for (String handle : stored.split(SEPARATOR)) {
+                long value = Long.parseLong(handle);
+                handles.add(value);
+                nextHandle = Math.max(nextHandle, value + 1);
+            }
+        }
+    }
+
+    @Override
+    public synchronized long append(Map<String, String> data) {
+        long handle = nextHandle++;
+        backing.put(KEY_PREFIX + handle,
+                PayloadCodecs.COMPACT.encode(data).get(CompactCodec.BODY_KEY));
+        handles.add(handle);
+        saveHandles();
+        return handle;
+    }
+
+    @Override
+    public synchronized void remove(long handle) {
+        if (handles.remove(handle)) {
+            backing.remove(KEY_PREFIX + handle);
+            saveHandles();
+        }
+    }
+
+    @Override
+    public synchronized SortedMap<Long, Map<String, String>> load() {
+        SortedMap<Long, Map<String, String>> messages = new TreeMap<Long, Map<String, String>>();
+        boolean dropped = false;
+        for (Iterator<Long> it = handles.iterator(); it.hasNext(); ) {
+            Long handle = it.next();
+            String body = backing.get(KEY_PREFIX + handle);
+            if (body != null) {
+                Map<String, String> wire = new HashMap<String, String>(4);
+                wire.put(CompactCodec.BODY_KEY, body);
+                try {
+                    messages.put(handle, PayloadCodecs.COMPACT.decode(wire));
+                    continue;
+                } catch (IllegalArgumentException e) {
+                    // Torn write, dropped below.
+                }
+            }
+            backing.remove(KEY_PREFIX + handle);
+            it.remove();
+            dropped = true;
+        }
+        if (dropped) {
+            saveHandles();
+        }
+        return messages;
+    }
+
+    public synchronized int size() {
+        return handles.size();
+    }
+
+    private void saveHandles() {
+        StringBuilder joined = new StringBuilder();
+        for (Long handle : handles) {
+            if (joined.length() > 0) {
+                joined.append(SEPARATOR);
+            }
+            joined.append(handle);
+        }
+        backing.put(KEY_HANDLES, joined.toString());
+    }
+
+}
@@ -0,0 +1,387 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.upstream;
+
+import com.google.samples.apps.gcmplayground.metrics.LatencyHistogram;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks upstream messages from the send until CCS acknowledges them, keyed by message id.
+ *
+ * CCS only accepts a limited number of unacknowledged upstream messages per device. The
+ * window holds at most that many: {@link #send} blocks while it is full, which stalls the
+ * dispatcher thread and lets its queue push back on callers. A message that is not
+ * acknowledged within the timeout, or is rejected with {@link #onNack}, is sent again under
+ * the same message id, up to a maximum number of attempts. Then it fails if its last attempt
+ * was rejected or could not be handed to GCM. If it merely was not acknowledged, GCM still
+ * holds it and may well have delivered it, so it is reported as unconfirmed instead: sending
+ * it again under a new id would only duplicate it at the app server.
+ *
+ * All upstream sends go through the window; as an {@link UpstreamSender} it sends a message
+ * and waits for its outcome.
+ */
+public class InFlightWindow implements UpstreamSender {
+
+    public static final int DEFAULT_WINDOW_SIZE = 20;
+    public static final long DEFAULT_ACK_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    /**
+     * Notified on the window's thread once a message was acknowledged or given up.
+     */
+    public interface Listener {
+        void onAcked(String messageId);
+
+        /**
+         * The message was handed to GCM but not acknowledged after the maximum number of
+         * attempts. It is not a failure: GCM keeps it until it can be delivered.
+         */
+        void onUnconfirmed(String messageId);
+
+        void onFailed(String messageId, Throwable error);
+    }
+
+    private final UpstreamSender sender;
+    private final int windowSize;
+    private final long ackTimeoutMillis;
+    private final int maxAttempts;
+    private final ScheduledExecutorService timer;
+
+    private final Map<String, InFlight> inFlight = new LinkedHashMap<String, InFlight>();
+
+    private final AtomicLong ackedCount = new AtomicLong();
+    private final AtomicLong nackCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong retransmitCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong unconfirmedCount = new AtomicLong();
+    private final AtomicLong unmatchedCount = new AtomicLong();
+    private final AtomicLong blockedCount = new AtomicLong();
+    private final LatencyHistogram ackLatency = new LatencyHistogram();
+
+    private class InFlight {
+        final String to;
+        final String messageId;
+        final Map<String, String> data;
+        final Listener listener;
+        final long sentAtNanos = System.nanoTime();
+        int attempts;
+        // Why the last attempt failed, or null if it was handed to GCM.
+        String failure;
+        ScheduledFuture<?> timeout;
+
+        InFlight(String to, String messageId, Map<String, String> data, Listener listener) {
+            this.to = to;
+            this.messageId = messageId;
+            this.data = data;
+            this.listener = listener;
+        }
+    }
+
+    public InFlightWindow(UpstreamSender sender) {
+        this(sender, DEFAULT_WINDOW_SIZE, DEFAULT_ACK_TIMEOUT_MILLIS, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    /**
+     * @param sender Sender used for the actual CCS calls
+     * @param windowSize Maximum number of unacknowledged messages
+     * @param ackTimeoutMillis Time after which an unacknowledged message is sent again
+     * @param maxAttempts Sends of one message before it fails
+     */
+    public InFlightWindow(UpstreamSender sender, int windowSize, long ackTimeoutMillis,
+            int maxAttempts) {
+        if (windowSize < 1 || maxAttempts < 1) {
+            throw new IllegalArgumentException("Invalid window size or attempts");
+        }
+        this.sender = sender;
+        this.windowSize = windowSize;
+        this.ackTimeoutMillis = ackTimeoutMillis;
+        this.maxAttempts = maxAttempts;
+        this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "InFlightWindow");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Sends a message and tracks it until it is acknowledged. Blocks while the window is
+     * full, for at most the ack timeout.
+     * @param to Address of the app server
+     * @param messageId Unique id of the message
+     * @param data Payload of the message
+     * @param listener Notified when the message was acknowledged or given up, unless the
+     *                 send itself throws
+     * @throws IOException if the window stayed full or the first send failed
+     */
+    public void send(String to, String messageId, Map<String, String> data, Listener listener)
+            throws IOException {
+        InFlight message = new InFlight(to, messageId, data, listener);
+        synchronized (this) {
+            if (inFlight.size() >= windowSize) {
+                blockedCount.incrementAndGet();
+                long deadline =
+                        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ackTimeoutMillis);
+                try {
+                    while (inFlight.size() >= windowSize) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            throw new IOException("In-flight window is full");
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the in-flight window");
+                }
+            }
+            inFlight.put(messageId, message);
+        }
+
+        try {
+            transmit(message);
+        } catch (IOException e) {
+            if (release(messageId) != null) {
+                message.timeout.cancel(false);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a message and waits until it was acknowledged, unconfirmed or given up, which
+     * can take all attempts' ack timeouts. Callers on shared threads, e.g. the task
+     * scheduler's, use {@link #send(String, String, Map, Listener)} instead.
+     * @throws IOException if the message failed; an unconfirmed message does not throw
+     */
+    @Override
+    public void send(String to, String messageId, Map<String, String> data)
+            throws IOException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Throwable[] error = new Throwable[1];
+        send(to, messageId, data, new Listener() {
+            @Override
+            public void onAcked(String messageId) {
+                done.countDown();
+            }
+
+            @Override
+            public void onUnconfirmed(String messageId) {
+                done.countDown();
+            }
+
+            @Override
+            public void onFailed(String messageId, Throwable failure) {
+                error[0] = failure;
+                done.countDown();
+            }
+        });
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            // The message stays in the window; a later send under the same id is harmless.
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the acknowledgement");
+        }
+        if (error[0] != null) {
+            throw error[0] instanceof IOException ? (IOException) error[0]
+                    : new IOException(error[0]);
+        }
+    }
+
+    /**
+     * Called when CCS acknowledged a message, see GcmListenerService#onMessageSent.
+     */
+    public void onAck(String messageId) {
+        InFlight message = release(messageId);
+        if (message == null) {
+            unmatchedCount.incrementAndGet();
+            return;
+        }
+        message.timeout.cancel(false);
+        ackedCount.incrementAndGet();
+        ackLatency.record(System.nanoTime() - message.sentAtNanos);
+        message.listener.onAcked(messageId);
+    }
+
+    /**
+     * Called when CCS rejected a message, see GcmListenerService#onSendError.
+     */
+    public void onNack(final String messageId, final String error) {
+        nackCount.incrementAndGet();
+        timer.execute(new Runnable() {
+            @Override
+            public void run() {
+                retry(messageId, "Send error: " + error, true);
+            }
+        });
+    }
+
+    public void shutdown() {
+        timer.shutdown();
+    }
+
+    /**
+     * Sends the message once more and restarts its timeout. Runs on the caller's thread for
+     * the first attempt and on the timer thread for retransmissions. Each attempt goes
+     * through the whole sender chain again under the same message id; the metrics'
+     * expectReply ignores the repeated id.
+     */
+    private void transmit(final InFlight message) throws IOException {
+        synchronized (this) {
+            message.attempts++;
+            message.failure = null;
+            if (message.timeout != null) {
+                message.timeout.cancel(false);
+            }
+            message.timeout = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    timeoutCount.incrementAndGet();
+                    retry(message.messageId, "Not acknowledged in " + ackTimeoutMillis + " ms",
+                            false);
+                }
+            }, ackTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        sender.send(message.to, message.messageId, message.data);
+    }
+
+    /**
+     * Sends a message again, or gives up after the maximum number of attempts.
+     * @param rejected Whether CCS rejected the last attempt, rather than not acknowledging it
+     */
+    private void retry(String messageId, String reason, boolean rejected) {
+        InFlight message;
+        boolean giveUp;
+        String failure;
+        synchronized (this) {
+            message = inFlight.get(messageId);
+            if (message == null) {
+                return;
+            }
+            if (rejected) {
+                message.failure = reason;
+            }
+            failure = message.failure;
+            giveUp = message.attempts >= maxAttempts;
+            if (giveUp) {
+                release(messageId);
+            }
+        }
+        if (giveUp) {
+            message.timeout.cancel(false);
+            if (failure == null) {
+                unconfirmedCount.incrementAndGet();
+                message.listener.onUnconfirmed(messageId);
+            } else {
+                failedCount.incrementAndGet();
+                message.listener.onFailed(messageId, new IOException(failure + " after "
+                        + maxAttempts + " attempts"));
+            }
+            return;
+        }
+
+        retransmitCount.incrementAndGet();
+        try {
+            transmit(message);
+        } catch (IOException e) {
+            // Counts as an attempt; the restarted timeout retries or gives up.
+            synchronized (this) {
+                message.failure = "Send failed: " + e.getMessage();
+            }
+        }
+    }
+
+    private synchronized InFlight release(String messageId) {
+        InFlight message = inFlight.remove(messageId);
+        if (message != null) {
+            notifyAll();
+        }
+        return message;
+    }
+
+    public synchronized int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public long getAckedCount() {
+        return ackedCount.get();
+    }
+
+    public long getNackCount() {
+        return nackCount.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    public long getRetransmitCount() {
+        return retransmitCount.get();
+    }
+
+    /**
+     * @return Messages given up after the maximum number of attempts, the last one rejected
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * @return Messages handed to GCM but never acknowledged in the maximum number of attempts
+     */
+    public long getUnconfirmedCount() {
+        return unconfirmedCount.get();
+    }
+
+    /**
+     * @return Acknowledgements for messages the window does not track
+     */
+    public long getUnmatchedCount() {
+        return unmatchedCount.get();
+    }
+
+    /**
+     * @return Sends that had to wait for a free slot
+     */
+    public long getBlockedCount() {
+        return blockedCount.get();
+    }
+
+    /**
+     * @return Distribution of the time from the first send until the acknowledgement
+     */
+    public LatencyHistogram getAckLatencyHistogram() {
+        return ackLatency;
+    }
+
+}
@@ -0,0 +1,668 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.upstream;
+
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+import com.google.samples.apps.gcmplayground.util.MessageIdGenerator;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Persists upstream messages that could not be sent and replays them later.
+ *
+ * Entries live in an append-only log file mapped into memory. Each record is
+ * [length][crc32][type][entry id][body]; a PUT_MESSAGE record carries the address of the
+ * app server, the CCS message id and a payload, and an ACK record marks an earlier entry as
+ * delivered. On open the log is scanned up to the first torn or corrupt record, and once
+ * acknowledged records take up more space than pending ones the log is rewritten with only
+ * the pending entries.
+ *
+ * Each added entry is forced to disk before {@link #add} returns, so it survives a power
+ * loss. ACK records are not forced: one lost with the power only gets its entry replayed
+ * again, under the same message id.
+ *
+ * Pending entries are replayed in order from a background thread, each under the message id
+ * it was first sent with, so the app server can recognize a message it already got. With an
+ * {@link InFlightWindow} the thread does not wait for acknowledgements: it hands one entry to
+ * the window and the window's listener replays the next. After a failed replay the next
+ * attempt is delayed by an exponential backoff with jitter, until
+ * {@link #onConnectivityRestored()} resets it.
+ *
+ * The outbox is bounded by entry count and payload bytes; when full, the oldest entries are
+ * dropped. Registration state only matters in its latest form: a queued registration or
+ * unregistration replaces any older one for the same app server, and
+ * {@link #supersedeRegistrations(String)} drops them once a newer one reached the app server
+ * another way.
+ */
+public class Outbox implements Closeable {
+
+    public static final long DEFAULT_BASE_BACKOFF_MILLIS = 1000;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    private static final int MIN_COMPACTION_BYTES = 16 * 1024;
+    private static final int RECORD_HEADER_SIZE = 4 + 4;
+    private static final int ENTRY_HEADER_SIZE = 1 + 8;
+    private static final byte TYPE_ACK = 2;
+    private static final byte TYPE_PUT_MESSAGE = 4;
+
+    private final File file;
+    private final UpstreamSender sender;
+    private final InFlightWindow window;
+    private final String to;
+    private final MessageIdGenerator idGenerator;
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+    private final int maxEntries;
+    private final int maxBytes;
+    private final Random random = new Random();
+    private final CRC32 crc = new CRC32();
+    private final ScheduledExecutorService executor;
+
+    private final LinkedHashMap<Long, Entry> pending = new LinkedHashMap<Long, Entry>();
+    private ByteBuffer scratch = ByteBuffer.allocate(1024);
+    private RandomAccessFile raf;
+    private MappedByteBuffer log;
+    private long nextEntryId;
+    private int liveBytes;
+    private int attempt;
+    private ScheduledFuture<?> scheduledReplay;
+    // Whether an entry was handed to the window and its outcome is not known yet.
+    private boolean replayInFlight;
+
+    private long appendedCount;
+    private long replayedCount;
+    private long replayFailureCount;
+    private long compactionCount;
+    private long droppedCount;
+    private long supersededCount;
+
+    private final Runnable replayTask = new Runnable() {
+        @Override
+        public void run() {
+            replay();
+        }
+    };
+
+    public Outbox(File file, UpstreamSender sender, String to, MessageIdGenerator idGenerator)
+            throws IOException {
+        this(file, sender, to, idGenerator, DEFAULT_BASE_BACKOFF_MILLIS,
+                DEFAULT_MAX_BACKOFF_MILLIS);
+    }
+
+    /**
+     * Opens the outbox, recovering entries left from a previous run, and schedules their
+     * replay.
+     * @param file Log file, created if it does not exist
+     * @param sender Sender used to replay entries; returns once the message was acknowledged
+     * @param to Address of the default app server
+     * @param idGenerator Source of the CCS message ids of entries added without one
+     * @param baseBackoffMillis Delay before the first retry
+     * @param maxBackoffMillis Upper bound of the retry delay
+     * @throws IOException if the log file cannot be opened
+     */
+    public Outbox(File file, UpstreamSender sender, String to, MessageIdGenerator idGenerator,
+            long baseBackoffMillis, long maxBackoffMillis) throws IOException {
+        this(file, sender, to, idGenerator, baseBackoffMillis, maxBackoffMillis,
+                DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Opens the outbox, recovering entries left from a previous run, and schedules their
+     * replay.
+     * @param file Log file, created if it does not exist
+     * @param sender Sender used to replay entries; returns once the message was acknowledged
+     * @param to Address of the default app server
+     * @param idGenerator Source of the CCS message ids of entries added without one
+     * @param baseBackoffMillis Delay before the first retry
+     * @param maxBackoffMillis Upper bound of the retry delay
+     * @param maxEntries Maximum number of pending entries
+     * @param maxBytes Maximum size of the pending entries in the log
+     * @throws IOException if the log file cannot be opened
+     */
+    public Outbox(File file, UpstreamSender sender, String to, MessageIdGenerator idGenerator,
+            long baseBackoffMillis, long maxBackoffMillis, int maxEntries, int maxBytes)
+            throws IOException {
+        this(file, sender, null, to, idGenerator, baseBackoffMillis, maxBackoffMillis,
+                maxEntries, maxBytes);
+    }
+
+    public Outbox(File file, InFlightWindow window, String to, MessageIdGenerator idGenerator)
+            throws IOException {
+        this(file, window, to, idGenerator, DEFAULT_BASE_BACKOFF_MILLIS,
+                DEFAULT_MAX_BACKOFF_MILLIS, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Opens the outbox, recovering entries left from a previous run, and schedules their
+     * replay.
+     * @param file Log file, created if it does not exist
+     * @param window Window that replays entries and tracks them until acknowledged
+     * @param to Address of the default app server
+     * @param idGenerator Source of the CCS message ids of entries added without one
+     * @param baseBackoffMillis Delay before the first retry
+     * @param maxBackoffMillis Upper bound of the retry delay
+     * @param maxEntries Maximum number of pending entries
+     * @param maxBytes Maximum size of the pending entries in the log
+     * @throws IOException if the log file cannot be opened
+     */
+    public Outbox(File file, InFlightWindow window, String to, MessageIdGenerator idGenerator,
+            long baseBackoffMillis, long maxBackoffMillis, int maxEntries, int maxBytes)
+            throws IOException {
+        this(file, null, window, to, idGenerator, baseBackoffMillis, maxBackoffMillis,
+                maxEntries, maxBytes);
+    }
+
+    private Outbox(File file, UpstreamSender sender, InFlightWindow window, String to,
+            MessageIdGenerator idGenerator, long baseBackoffMillis, long maxBackoffMillis,
+            int maxEntries, int maxBytes) throws IOException {
+        if (maxEntries < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("Invalid outbox bounds");
+        }
+        this.file = file;
+        this.sender = sender;
+        this.window = window;
+        this.to = to;
+        this.idGenerator = idGenerator;
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Outbox");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        synchronized (this) {
+            open();
+            if (!pending.isEmpty()) {
+                scheduleReplay(0);
+            }
+        }
+    }
+
+    /**
+     * Persists a payload for the default app server under a new message id and schedules its
+     * delivery.
+     * @see #add(String, String, Map)
+     */
+    public void add(Map<String, String> data) throws IOException {
+        add(null, null, data);
+    }
+
+    /**
+     * Persists a payload under a new message id and schedules its delivery.
+     * @see #add(String, String, Map)
+     */
+    public void add(String to, Map<String, String> data) throws IOException {
+        add(to, null, data);
+    }
+
+    /**
+     * Persists a payload and schedules its delivery. A registration or unregistration
+     * replaces the ones still pending for the same app server, and the oldest entries are
+     * dropped if the outbox is full.
+     * @param to Address of the app server the payload is for, or null for the default one
+     * @param messageId Message id the payload was already sent under, or null if it never
+     *                  got one
+     * @param data Payload of the upstream message
+     * @throws IOException if the payload could not be written
+     */
+    public synchronized void add(String to, String messageId, Map<String, String> data)
+            throws IOException {
+        if (to == null) {
+            to = this.to;
+        }
+        if (isRegistration(data)) {
+            supersedeRegistrations(to);
+        }
+        long id = nextEntryId++;
+        Entry added = new Entry(id, to, messageId != null ? messageId : idGenerator.next(),
+                data);
+        added.size = append(TYPE_PUT_MESSAGE, added);
+        log.force();
+        pending.put(id, added);
+        liveBytes += added.size;
+        appendedCount++;
+
+        // The new entry itself is never dropped, a single payload is far below the bounds.
+        Iterator<Entry> oldest = pending.values().iterator();
+        while ((pending.size() > maxEntries || liveBytes > maxBytes) && pending.size() > 1) {
+            Entry entry = oldest.next();
+            oldest.remove();
+            discard(entry);
+            droppedCount++;
+        }
+        scheduleReplay(backoffMillis(attempt));
+    }
+
+    /**
+     * Drops the pending registrations and unregistrations for an app server, e.g. because a
+     * newer one was just delivered and replaying them would undo it.
+     * @param to Address of the app server
+     * @return Number of entries dropped
+     * @throws IOException if the log could not be written
+     */
+    public synchronized int supersedeRegistrations(String to) throws IOException {
+        int count = 0;
+        Iterator<Entry> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.to.equals(to) && isRegistration(entry.data)) {
+                iterator.remove();
+                discard(entry);
+                count++;
+            }
+        }
+        supersededCount += count;
+        return count;
+    }
+
+    private static boolean isRegistration(Map<String, String> data) {
+        String action = data.get(RegistrationConstants.ACTION);
+        return RegistrationConstants.REGISTER_NEW_CLIENT.equals(action)
+                || RegistrationConstants.UNREGISTER_CLIENT.equals(action);
+    }
+
+    /**
+     * Resets the backoff and replays pending entries right away.
+     */
+    public synchronized void onConnectivityRestored() {
+        attempt = 0;
+        if (!pending.isEmpty()) {
+            if (scheduledReplay != null) {
+                scheduledReplay.cancel(false);
+                scheduledReplay = null;
+            }
+            scheduleReplay(0);
+        }
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    public synchronized long getAppendedCount() {
+        return appendedCount;
+    }
+
+    public synchronized long getReplayedCount() {
+        return replayedCount;
+    }
+
+    public synchronized long getReplayFailureCount() {
+        return replayFailureCount;
+    }
+
+    public synchronized long getCompactionCount() {
+        return compactionCount;
+    }
+
+    /**
+     * @return Entries dropped because the outbox was full
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return Registrations and unregistrations dropped in favour of a newer one
+     */
+    public synchronized long getSupersededCount() {
+        return supersededCount;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        executor.shutdownNow();
+        log.force();
+        raf.close();
+    }
+
+    /**
+     * Sends pending entries in order until one fails or none are left. Runs on the outbox
+     * thread; the lock is not held while sending.
+     */
+    private void replay() {
+        while (true) {
+            Entry entry;
+            synchronized (this) {
+                scheduledReplay = null;
+                Iterator<Entry> iterator = pending.values().iterator();
+                if (!iterator.hasNext()) {
+                    attempt = 0;
+                    return;
+                }
+                entry = iterator.next();
+                replayInFlight = window != null;
+            }
+
+            if (window != null) {
+                replayThroughWindow(entry);
+                return;
+            }
+            try {
+                sender.send(entry.to, entry.messageId, entry.data);
+            } catch (IOException e) {
+                onReplayed(entry, false);
+                return;
+            }
+            onReplayed(entry, true);
+        }
+    }
+
+    /**
+     * Hands one entry to the window without waiting for its outcome; the window's listener
+     * schedules the replay of the next one.
+     */
+    private void replayThroughWindow(final Entry entry) {
+        try {
+            window.send(entry.to, entry.messageId, entry.data, new InFlightWindow.Listener() {
+                @Override
+                public void onAcked(String messageId) {
+                    onReplayed(entry, true);
+                }
+
+                @Override
+                public void onUnconfirmed(String messageId) {
+                    // GCM still holds it; replaying it again would duplicate it.
+                    onReplayed(entry, true);
+                }
+
+                @Override
+                public void onFailed(String messageId, Throwable error) {
+                    onReplayed(entry, false);
+                }
+            });
+        } catch (IOException e) {
+            onReplayed(entry, false);
+        }
+    }
+
+    /**
+     * Records the outcome of replaying an entry. After a failure the next replay is delayed
+     * by the backoff; after an entry sent through the window the next one is replayed now.
+     */
+    private synchronized void onReplayed(Entry entry, boolean sent) {
+        boolean wasInFlight = replayInFlight;
+        replayInFlight = false;
+        if (!sent) {
+            replayFailureCount++;
+            attempt++;
+            scheduleReplay(backoffMillis(attempt));
+            return;
+        }
+        replayedCount++;
+        // Unless it was dropped or superseded while it was being sent.
+        if (pending.remove(entry.id) != null) {
+            try {
+                discard(entry);
+            } catch (IOException e) {
+                // The entry will be sent again after the next restart.
+            }
+        }
+        if (wasInFlight) {
+            scheduleReplay(0);
+        }
+    }
+
+    private void scheduleReplay(long delayMillis) {
+        if (scheduledReplay == null && !replayInFlight && !executor.isShutdown()) {
+            scheduledReplay = executor.schedule(replayTask, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return A random delay between half and all of base * 2^attempt, capped at the maximum
+     */
+    private long backoffMillis(int attempt) {
+        long cap = baseBackoffMillis << Math.min(attempt, 20);
+        if (cap <= 0 || cap > maxBackoffMillis) {
+            cap = maxBackoffMillis;
+        }
+        long half = cap / 2;
+        return half + (long) (random.nextDouble() * (cap - half));
+    }
+
+    /**
+     * Marks an entry already removed from the pending ones as done in the log.
+     */
+    private void discard(Entry entry) throws IOException {
+        liveBytes -= entry.size;
+        append(TYPE_ACK, entry);
+
+        int garbageBytes = log.position() - liveBytes;
+        if (garbageBytes > MIN_COMPACTION_BYTES && garbageBytes > liveBytes) {
+            compact();
+        }
+    }
+
+    /**
+     * Maps the log and rebuilds the pending entries from it.
+     */
+    private void open() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        int length = (int) raf.length();
+        log = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                Math.max(length, INITIAL_CAPACITY));
+
+        boolean torn = false;
+        while (log.remaining() >= RECORD_HEADER_SIZE + ENTRY_HEADER_SIZE) {
+            int start = log.position();
+            int recordLength = log.getInt();
+            int checksum = log.getInt();
+            if (recordLength < ENTRY_HEADER_SIZE || recordLength > log.remaining()) {
+                torn = recordLength != 0 || checksum != 0;
+                log.position(start);
+                break;
+            }
+
+            ByteBuffer record = log.slice();
+            record.limit(recordLength);
+            if (checksum(record) != checksum) {
+                torn = true;
+                log.position(start);
+                break;
+            }
+
+            byte type = record.get();
+            long id = record.getLong();
+            nextEntryId = Math.max(nextEntryId, id + 1);
+            if (type == TYPE_PUT_MESSAGE) {
+                String entryTo = readString(record);
+                String messageId = readString(record);
+                Entry entry = new Entry(id, entryTo, messageId, readPayload(record));
+                entry.size = RECORD_HEADER_SIZE + recordLength;
+                pending.put(id, entry);
+                liveBytes += entry.size;
+            } else {
+                Entry entry = pending.remove(id);
+                if (entry != null) {
+                    liveBytes -= entry.size;
+                }
+            }
+            log.position(start + RECORD_HEADER_SIZE + recordLength);
+        }
+
+        // Rewrite the log so no stale bytes follow the last valid record.
+        if (torn) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the log with only the pending entries and swaps it in.
+     */
+    private void compact() throws IOException {
+        File compacted = new File(file.getPath() + ".tmp");
+        RandomAccessFile oldRaf = raf;
+        raf = new RandomAccessFile(compacted, "rw");
+        raf.setLength(0);
+        log = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                Math.max(INITIAL_CAPACITY, Integer.highestOneBit(liveBytes) << 2));
+
+        liveBytes = 0;
+        for (Entry entry : pending.values()) {
+            entry.size = append(TYPE_PUT_MESSAGE, entry);
+            liveBytes += entry.size;
+        }
+        log.force();
+        oldRaf.close();
+
+        if (!compacted.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+        compactionCount++;
+    }
+
+    /**
+     * Appends one record for an entry to the log, growing the mapping if needed.
+     * @return Size of the record in bytes
+     */
+    private int append(byte type, Entry entry) throws IOException {
+        scratch.clear();
+        scratch.put(type);
+        scratch.putLong(entry.id);
+        if (type == TYPE_PUT_MESSAGE) {
+            writeString(entry.to);
+            writeString(entry.messageId);
+            writePayload(entry.data);
+        }
+        scratch.flip();
+
+        int recordLength = scratch.remaining();
+        int size = RECORD_HEADER_SIZE + recordLength;
+        if (log.remaining() < size) {
+            int position = log.position();
+            long capacity = log.capacity();
+            while (capacity - position < size) {
+                capacity <<= 1;
+            }
+            log = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            log.position(position);
+        }
+
+        log.putInt(recordLength);
+        log.putInt(checksum(scratch.duplicate()));
+        log.put(scratch);
+        return size;
+    }
+
+    private void writePayload(Map<String, String> data) {
+        ensureScratch(4);
+        scratch.putInt(data.size());
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            writeString(entry.getKey());
+            writeString(entry.getValue());
+        }
+    }
+
+    private void writeString(String value) {
+        if (value == null) {
+            ensureScratch(4);
+            scratch.putInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        ensureScratch(4 + bytes.length);
+        scratch.putInt(bytes.length);
+        scratch.put(bytes);
+    }
+
+    private void ensureScratch(int needed) {
+        if (scratch.remaining() < needed) {
+            ByteBuffer larger = ByteBuffer.allocate(
+                    Math.max(scratch.capacity() * 2, scratch.position() + needed));
+            scratch.flip();
+            larger.put(scratch);
+            scratch = larger;
+        }
+    }
+
+    private static Map<String, String> readPayload(ByteBuffer record) {
+        int count = record.getInt();
+        Map<String, String> data = new LinkedHashMap<String, String>(count * 2);
+        for (int i = 0; i < count; i++) {
+            String key = readString(record);
+            data.put(key, readString(record));
+        }
+        return data;
+    }
+
+    private static String readString(ByteBuffer record) {
+        int length = record.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private int checksum(ByteBuffer record) {
+        crc.reset();
+        if (record.hasArray()) {
+            crc.update(record.array(), record.arrayOffset() + record.position(),
+                    record.remaining());
+        } else {
+            while (record.hasRemaining()) {
+                crc.update(record.get());
+            }
+            record.rewind();
+        }
+        return (int) crc.getValue();
+    }
+
+    private static class Entry {
+
+        final long id;
+        final String to;
+        final String messageId;
+        final Map<String, String> data;
+        int size;
+
+        Entry(long id, String to, String messageId, Map<String, String> data) {
+            this.id = id;
+            this.to = to;
+            this.messageId = messageId;
+            this.data = data;
+        }
+    }
+
+}
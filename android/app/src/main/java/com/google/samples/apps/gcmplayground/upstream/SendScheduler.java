@@ -0,0 +1,360 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.samples.apps.gcmplayground.upstream;
+
+import com.google.samples.apps.gcmplayground.metrics.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds back non-urgent upstream messages until sending them is cheap.
+ *
+ * Waking a cold cellular radio costs far more energy than the few bytes of an upstream
+ * message, and the radio stays powered for several seconds after any traffic. So
+ * non-urgent messages are held until the radio is already active (because of other traffic),
+ * until enough of them are waiting, or until the oldest one reaches its deadline, and then
+ * handed to the {@link UpstreamQueue} together. Deadlines are longer on metered
+ * networks. Urgent messages such as unregistration bypass the holding queue.
+ *
+ * Held messages are written to a {@link Journal} until they are handed to the queue, so
+ * messages held when the process dies are not lost: {@link #recover} sends them on the next
+ * start.
+ *
+ * Time and network state come from a {@link Clock} and a {@link Connectivity}, so the policy
+ * can be simulated on a JVM.
+ */
+public class SendScheduler {
+
+    public static final long DEFAULT_MAX_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    public static final long DEFAULT_MAX_DELAY_METERED_MILLIS = TimeUnit.MINUTES.toMillis(2);
+    public static final int DEFAULT_MAX_HELD = UpstreamDispatcher.DEFAULT_MAX_BATCH_SIZE;
+
+    /**
+     * Source of time and delayed execution.
+     */
+    public interface Clock {
+        long nowMillis();
+        void schedule(Runnable task, long delayMillis);
+    }
+
+    /**
+     * Current state of the default network.
+     */
+    public interface Connectivity {
+        boolean isConnected();
+        boolean isMetered();
+
+        /**
+         * @return true if the radio is in a high power state already, so sending now does
+         *         not wake it up
+         */
+        boolean isRadioActive();
+    }
+
+    /**
+     * Durable storage of the held messages.
+     */
+    public interface Journal {
+
+        /**
+         * Persists a held message.
+         * @return Handle of the message, increasing with every call
+         */
+        long append(Map<String, String> data);
+
+        /**
+         * Forgets a message that was handed to the queue.
+         */
+        void remove(long handle);
+
+        /**
+         * @return The messages held when the process last stopped, by handle
+         */
+        SortedMap<Long, Map<String, String>> load();
+    }
+
+    private final UpstreamQueue queue;
+    private final Clock clock;
+    private final Connectivity connectivity;
+    private final long maxDelayMillis;
+    private final long maxDelayMeteredMillis;
+    private final int maxHeld;
+    private final Journal journal;
+
+    private final List<HeldMessage> held = new ArrayList<HeldMessage>();
+    private boolean timerScheduled;
+
+    private final AtomicLong urgentCount = new AtomicLong();
+    private final AtomicLong heldCount = new AtomicLong();
+    private final AtomicLong radioActiveFlushCount = new AtomicLong();
+    private final AtomicLong fullFlushCount = new AtomicLong();
+    private final AtomicLong deadlineFlushCount = new AtomicLong();
+    private final AtomicLong recoveredCount = new AtomicLong();
+    private final LatencyHistogram holdDelay = new LatencyHistogram();
+
+    private final Runnable deadlineTask = new Runnable() {
+        @Override
+        public void run() {
+            onDeadline();
+        }
+    };
+
+    public SendScheduler(UpstreamQueue queue, Clock clock, Connectivity connectivity) {
+        this(queue, clock, connectivity, DEFAULT_MAX_DELAY_MILLIS,
+                DEFAULT_MAX_DELAY_METERED_MILLIS, DEFAULT_MAX_HELD, null);
+    }
+
+    /**
+     * @param queue Queue sending the messages
+     * @param clock Source of time
+     * @param connectivity Source of the network state
+     * @param maxDelayMillis Longest time a message is held on an unmetered network
+     * @param maxDelayMeteredMillis Longest time a message is held on a metered network
+     * @param maxHeld Number of held messages that triggers sending them anyway
+     * @param journal Storage of the held messages, or null to hold them in memory only
+     */
+    public SendScheduler(UpstreamQueue queue, Clock clock, Connectivity connectivity,
+            long maxDelayMillis, long maxDelayMeteredMillis, int maxHeld, Journal journal) {
+        this.queue = queue;
+        this.clock = clock;
+        this.connectivity = connectivity;
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxDelayMeteredMillis = maxDelayMeteredMillis;
+        this.maxHeld = maxHeld;
+        this.journal = journal;
+    }
+
+    /**
+     * Sends a message now, or holds it until the radio is active or its deadline expires.
+     * @param data Payload of the message
+     * @param urgent true to skip holding, e.g. for unregistration
+     * @param callback Optional callback notified once the message was sent or has failed
+     */
+    public void send(Map<String, String> data, boolean urgent,
+            UpstreamDispatcher.Callback callback) {
+        if (urgent) {
+            urgentCount.incrementAndGet();
+            queue.send(data, callback);
+            return;
+        }
+
+        List<HeldMessage> flushed = null;
+        synchronized (this) {
+            long now = clock.nowMillis();
+            long delay = connectivity.isMetered() ? maxDelayMeteredMillis : maxDelayMillis;
+            long handle = journal == null ? 0 : journal.append(data);
+            held.add(new HeldMessage(data, callback, handle, now, now + delay));
+            heldCount.incrementAndGet();
+            flushed = flushIfDue(now);
+        }
+        dispatch(flushed);
+    }
+
+    /**
+     * Holds the messages the journal kept from a previous run again, due right away as
+     * they waited already. Call once, before the first {@link #send}.
+     * @param callback Optional callback for the recovered messages, whose original callbacks
+     *                 died with the process
+     * @return Number of messages recovered
+     */
+    public int recover(UpstreamDispatcher.Callback callback) {
+        if (journal == null) {
+            return 0;
+        }
+        SortedMap<Long, Map<String, String>> stored = journal.load();
+        if (stored.isEmpty()) {
+            return 0;
+        }
+        List<HeldMessage> flushed;
+        synchronized (this) {
+            long now = clock.nowMillis();
+            for (Map.Entry<Long, Map<String, String>> entry : stored.entrySet()) {
+                held.add(new HeldMessage(entry.getValue(), callback, entry.getKey(), now, now));
+            }
+            recoveredCount.addAndGet(stored.size());
+            flushed = flushIfDue(now);
+        }
+        dispatch(flushed);
+        return stored.size();
+    }
+
+    /**
+     * Sends held messages if the radio just became active. Call when the platform reports
+     * network activity or a connectivity change.
+     */
+    public void onNetworkActive() {
+        List<HeldMessage> flushed = null;
+        synchronized (this) {
+            if (!held.isEmpty() && isCheapToSend()) {
+                radioActiveFlushCount.incrementAndGet();
+                flushed = drain();
+            }
+        }
+        dispatch(flushed);
+    }
+
+    public synchronized int getHeldSize() {
+        return held.size();
+    }
+
+    public long getUrgentCount() {
+        return urgentCount.get();
+    }
+
+    public long getHeldCount() {
+        return heldCount.get();
+    }
+
+    /**
+     * @return Number of messages recovered from the journal after a restart
+     */
+    public long getRecoveredCount() {
+        return recoveredCount.get();
+    }
+
+    /**
+     * @return Number of times held messages were sent because the radio was active
+     */
+    public long getRadioActiveFlushCount() {
+        return radioActiveFlushCount.get();
+    }
+
+    /**
+     * @return Number of times held messages were sent because too many were waiting
+     */
+    public long getFullFlushCount() {
+        return fullFlushCount.get();
+    }
+
+    /**
+     * @return Number of times held messages were sent because a deadline expired
+     */
+    public long getDeadlineFlushCount() {
+        return deadlineFlushCount.get();
+    }
+
+    /**
+     * @return Distribution of the time non-urgent messages were held, in clock time
+     */
+    public LatencyHistogram getHoldDelayHistogram() {
+        return holdDelay;
+    }
+
+    private void onDeadline() {
+        List<HeldMessage> flushed = null;
+        synchronized (this) {
+            timerScheduled = false;
+            if (held.isEmpty()) {
+                return;
+            }
+            long now = clock.nowMillis();
+            if (earliestDeadline() <= now) {
+                deadlineFlushCount.incrementAndGet();
+                flushed = drain();
+            } else {
+                scheduleTimer(now);
+            }
+        }
+        dispatch(flushed);
+    }
+
+    /**
+     * Drains the held messages if sending is cheap or too many wait, and otherwise makes
+     * sure the deadline timer runs. Call with the lock held.
+     */
+    private List<HeldMessage> flushIfDue(long now) {
+        if (isCheapToSend()) {
+            radioActiveFlushCount.incrementAndGet();
+            return drain();
+        } else if (held.size() >= maxHeld) {
+            fullFlushCount.incrementAndGet();
+            return drain();
+        }
+        scheduleTimer(now);
+        return null;
+    }
+
+    private boolean isCheapToSend() {
+        return connectivity.isConnected() && connectivity.isRadioActive();
+    }
+
+    private void scheduleTimer(long now) {
+        if (!timerScheduled) {
+            timerScheduled = true;
+            clock.schedule(deadlineTask, Math.max(0, earliestDeadline() - now));
+        }
+    }
+
+    /**
+     * Deadlines depend on the network when a message was held, so they are not ordered.
+     */
+    private long earliestDeadline() {
+        long earliest = Long.MAX_VALUE;
+        for (int i = 0; i < held.size(); i++) {
+            earliest = Math.min(earliest, held.get(i).deadlineMillis);
+        }
+        return earliest;
+    }
+
+    private List<HeldMessage> drain() {
+        List<HeldMessage> drained = new ArrayList<HeldMessage>(held);
+        held.clear();
+        long now = clock.nowMillis();
+        for (HeldMessage message : drained) {
+            holdDelay.record(TimeUnit.MILLISECONDS.toNanos(now - message.heldAtMillis));
+        }
+        return drained;
+    }
+
+    /**
+     * Hands messages to the queue, outside the lock.
+     */
+    private void dispatch(List<HeldMessage> messages) {
+        if (messages == null) {
+            return;
+        }
+        for (HeldMessage message : messages) {
+            queue.send(message.data, message.callback);
+            // From here on the queue reports failures, e.g. to the outbox.
+            if (journal != null) {
+                journal.remove(message.handle);
+            }
+        }
+    }
+
+    private static class HeldMessage {
+        final Map<String, String> data;
+        final UpstreamDispatcher.Callback callback;
+        final long handle;
+        final long heldAtMillis;
+        final long deadlineMillis;
+
+        HeldMessage(Map<String, String> data, UpstreamDispatcher.Callback callback,
+                long handle, long heldAtMillis, long deadlineMillis) {
+            this.data = data;
+            this.callback = callback;
+            this.handle = handle;
+            this.heldAtMillis = heldAtMillis;
+            this.deadlineMillis = deadlineMillis;
+        }
+    }
+
+}
@@ -0,0 +1,494 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.upstream;
+
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+import com.google.samples.apps.gcmplayground.metrics.LatencyHistogram;
+import com.google.samples.apps.gcmplayground.util.MessageIdGenerator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queues upstream messages and sends them from a background thread.
+ *
+ * Upstream messages queued within one flush window are coalesced into a single
+ * {@link RegistrationConstants#UPSTREAM_BATCH} message, so a burst of sends costs one CCS
+ * round trip instead of one per message; the app server splits a batch back into its
+ * messages. A batch is closed before it would grow past {@link #MAX_BATCH_BYTES}, the CCS
+ * payload limit; a message that is too large by itself is sent alone, for CCS to accept or
+ * reject. Any other action (e.g. unregister) is sent on its own, in queue order, since the
+ * app server dispatches on the top level action.
+ *
+ * With an {@link InFlightWindow}, a message only counts as sent once CCS acknowledged it, and
+ * a full window stalls the dispatcher thread until acknowledgements free it up. A message
+ * that was handed to GCM but never acknowledged is reported as unconfirmed: it is neither
+ * known to be delivered nor worth sending again.
+ *
+ * Every message gets its CCS message id when it is queued; a batch goes out under the id of
+ * its first message. A {@link TrackedCallback} learns the id of a failed message, so a
+ * retry can reuse it.
+ */
+public class UpstreamDispatcher implements UpstreamQueue {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 20;
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 500;
+
+    /**
+     * Largest batch payload, in bytes of its JSON encoding: the CCS upstream payload limit.
+     */
+    public static final int MAX_BATCH_BYTES = 4096;
+
+    // {"action":"upstream_batch","batch_size":"20"}, braces included.
+    private static final int BATCH_HEADER_BYTES = 2
+            + entryBytes(RegistrationConstants.ACTION, RegistrationConstants.UPSTREAM_BATCH)
+            + entryBytes(RegistrationConstants.BATCH_SIZE, "00");
+
+    /**
+     * Notified once a queued message has been sent or has failed: on the dispatcher thread,
+     * or on the in-flight window's thread when the dispatcher has one.
+     */
+    public interface Callback {
+        void onSent(Map<String, String> data);
+
+        /**
+         * The message was handed to GCM but CCS never acknowledged it, so GCM may or may not
+         * deliver it. Only reported when the dispatcher has an in-flight window.
+         */
+        void onUnconfirmed(Map<String, String> data);
+
+        void onFailed(Map<String, String> data, Throwable error);
+    }
+
+    /**
+     * Callback that also learns the message id a failed message was queued under. Its
+     * {@link #onFailed(String, Map, Throwable)} is called instead of the one without id.
+     */
+    public interface TrackedCallback extends Callback {
+        void onFailed(String messageId, Map<String, String> data, Throwable error);
+    }
+
+    private final UpstreamSender sender;
+    private final InFlightWindow window;
+    private final String to;
+    private final MessageIdGenerator idGenerator;
+    private final int maxBatchSize;
+    private final long flushIntervalMillis;
+    private final BlockingQueue<PendingMessage> queue;
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong unconfirmedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong flushedMessageCount = new AtomicLong();
+    private final AtomicInteger lastFlushSize = new AtomicInteger();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled.set(false);
+            flush();
+        }
+    };
+
+    public UpstreamDispatcher(UpstreamSender sender, String to, MessageIdGenerator idGenerator) {
+        this(sender, to, idGenerator, DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_BATCH_SIZE,
+                DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param sender Sender used for the actual CCS calls
+     * @param to Address of the app server
+     * @param idGenerator Source of the CCS message ids
+     * @param queueCapacity Maximum number of queued messages, further sends are rejected
+     * @param maxBatchSize Number of queued messages that triggers an immediate flush
+     * @param flushIntervalMillis Maximum time a message waits for others to join its batch
+     */
+    public UpstreamDispatcher(UpstreamSender sender, String to, MessageIdGenerator idGenerator,
+            int queueCapacity, int maxBatchSize, long flushIntervalMillis) {
+        this(sender, null, to, idGenerator, queueCapacity, maxBatchSize, flushIntervalMillis);
+    }
+
+    public UpstreamDispatcher(InFlightWindow window, String to, MessageIdGenerator idGenerator) {
+        this(window, to, idGenerator, DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_BATCH_SIZE,
+                DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param window Window that sends the messages and tracks them until acknowledged
+     * @param to Address of the app server
+     * @param idGenerator Source of the CCS message ids
+     * @param queueCapacity Maximum number of queued messages, further sends are rejected
+     * @param maxBatchSize Number of queued messages that triggers an immediate flush
+     * @param flushIntervalMillis Maximum time a message waits for others to join its batch
+     */
+    public UpstreamDispatcher(InFlightWindow window, String to, MessageIdGenerator idGenerator,
+            int queueCapacity, int maxBatchSize, long flushIntervalMillis) {
+        this(null, window, to, idGenerator, queueCapacity, maxBatchSize, flushIntervalMillis);
+    }
+
+    private UpstreamDispatcher(UpstreamSender sender, InFlightWindow window, String to,
+            MessageIdGenerator idGenerator, int queueCapacity, int maxBatchSize,
+            long flushIntervalMillis) {
+        if (maxBatchSize < 1 || queueCapacity < maxBatchSize) {
+            throw new IllegalArgumentException("Invalid queue capacity or batch size");
+        }
+        this.sender = sender;
+        this.window = window;
+        this.to = to;
+        this.idGenerator = idGenerator;
+        this.maxBatchSize = maxBatchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.queue = new ArrayBlockingQueue<PendingMessage>(queueCapacity);
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "UpstreamDispatcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public Future<Void> send(Map<String, String> data) {
+        return send(data, null);
+    }
+
+    /**
+     * Queues a message for sending. Never blocks; if the queue is full the returned future
+     * fails immediately.
+     * @param data Payload of the message
+     * @param callback Optional callback notified when the message was sent or failed
+     * @return A future that completes once the message was handed to CCS, or acknowledged
+     *         by CCS or given up unconfirmed when the dispatcher has an in-flight window
+     */
+    @Override
+    public Future<Void> send(Map<String, String> data, Callback callback) {
+        PendingMessage message = new PendingMessage(idGenerator.next(), data, callback);
+        if (executor.isShutdown() || !queue.offer(message)) {
+            rejectedCount.incrementAndGet();
+            message.fail(new IOException("Upstream queue is full"));
+            return message;
+        }
+
+        if (queue.size() >= maxBatchSize) {
+            executor.execute(flushTask);
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            executor.schedule(flushTask, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        return message;
+    }
+
+    /**
+     * Stops the background thread after sending whatever is still queued.
+     */
+    public void shutdown() {
+        executor.execute(flushTask);
+        executor.shutdown();
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    public long getUnconfirmedCount() {
+        return unconfirmedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    public int getLastFlushSize() {
+        return lastFlushSize.get();
+    }
+
+    public double getAverageFlushSize() {
+        long flushes = flushCount.get();
+        return flushes == 0 ? 0 : (double) flushedMessageCount.get() / flushes;
+    }
+
+    /**
+     * @return Average time between {@link #send} and completion, in milliseconds
+     */
+    public double getAverageLatencyMillis() {
+        return latency.getMeanNanos() / 1e6;
+    }
+
+    public double getMaxLatencyMillis() {
+        return latency.getMaxNanos() / 1e6;
+    }
+
+    /**
+     * @return Distribution of the latencies averaged by {@link #getAverageLatencyMillis()}
+     */
+    public LatencyHistogram getLatencyHistogram() {
+        return latency;
+    }
+
+    /**
+     * Drains the queue, one batch of at most maxBatchSize messages and
+     * {@link #MAX_BATCH_BYTES} at a time.
+     */
+    private void flush() {
+        List<PendingMessage> drained = new ArrayList<PendingMessage>(maxBatchSize);
+        List<PendingMessage> batch = new ArrayList<PendingMessage>(maxBatchSize);
+        while (queue.drainTo(drained, maxBatchSize) > 0) {
+            flushCount.incrementAndGet();
+            flushedMessageCount.addAndGet(drained.size());
+            lastFlushSize.set(drained.size());
+
+            int batchBytes = BATCH_HEADER_BYTES;
+            for (PendingMessage message : drained) {
+                if (RegistrationConstants.UPSTREAM_MESSAGE.equals(
+                        message.data.get(RegistrationConstants.ACTION))) {
+                    int messageBytes = batchedBytes(batch.size(), message.data);
+                    if (!batch.isEmpty() && batchBytes + messageBytes > MAX_BATCH_BYTES) {
+                        sendBatch(batch);
+                        batchBytes = BATCH_HEADER_BYTES;
+                        messageBytes = batchedBytes(0, message.data);
+                    }
+                    batch.add(message);
+                    batchBytes += messageBytes;
+                } else {
+                    sendBatch(batch);
+                    batch.add(message);
+                    sendBatch(batch);
+                }
+            }
+            sendBatch(batch);
+            drained.clear();
+        }
+    }
+
+    /**
+     * Sends the given messages as one CCS message and clears the list.
+     */
+    private void sendBatch(List<PendingMessage> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        String messageId = batch.get(0).messageId;
+        Map<String, String> data;
+        if (batch.size() == 1) {
+            data = batch.get(0).data;
+        } else {
+            List<Map<String, String>> payloads = new ArrayList<Map<String, String>>(batch.size());
+            for (PendingMessage message : batch) {
+                payloads.add(message.data);
+            }
+            data = coalesce(payloads);
+        }
+
+        if (window != null) {
+            final List<PendingMessage> sent = new ArrayList<PendingMessage>(batch);
+            batch.clear();
+            try {
+                window.send(to, messageId, data, new InFlightWindow.Listener() {
+                    @Override
+                    public void onAcked(String messageId) {
+                        complete(sent, null);
+                    }
+
+                    @Override
+                    public void onUnconfirmed(String messageId) {
+                        for (PendingMessage message : sent) {
+                            unconfirmedCount.incrementAndGet();
+                            message.unconfirm();
+                            latency.record(System.nanoTime() - message.enqueuedAtNanos);
+                        }
+                    }
+
+                    @Override
+                    public void onFailed(String messageId, Throwable error) {
+                        complete(sent, error);
+                    }
+                });
+            } catch (IOException e) {
+                complete(sent, e);
+            }
+            return;
+        }
+
+        IOException error = null;
+        try {
+            sender.send(to, messageId, data);
+        } catch (IOException e) {
+            error = e;
+        }
+        complete(batch, error);
+        batch.clear();
+    }
+
+    /**
+     * Completes the messages of one CCS message.
+     * @param error Why it failed, or null if it was sent
+     */
+    private void complete(List<PendingMessage> messages, Throwable error) {
+        for (PendingMessage message : messages) {
+            if (error == null) {
+                sentCount.incrementAndGet();
+                message.succeed();
+            } else {
+                failedCount.incrementAndGet();
+                message.fail(error);
+            }
+            latency.record(System.nanoTime() - message.enqueuedAtNanos);
+        }
+    }
+
+    /**
+     * Merges several upstream payloads into one batch payload. The keys of the n-th payload
+     * are prefixed with "n:", e.g. "0:message", "1:message".
+     * @param payloads Payloads to merge
+     * @return A single payload with action {@link RegistrationConstants#UPSTREAM_BATCH}
+     */
+    public static Map<String, String> coalesce(List<Map<String, String>> payloads) {
+        Map<String, String> batch = new HashMap<String, String>();
+        batch.put(RegistrationConstants.ACTION, RegistrationConstants.UPSTREAM_BATCH);
+        batch.put(RegistrationConstants.BATCH_SIZE, String.valueOf(payloads.size()));
+        for (int i = 0; i < payloads.size(); i++) {
+            for (Map.Entry<String, String> entry : payloads.get(i).entrySet()) {
+                if (!RegistrationConstants.ACTION.equals(entry.getKey())) {
+                    batch.put(i + ":" + entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * @return Bytes a payload adds to a batch as its n-th message, in the JSON encoding
+     *         of {@link #coalesce(List)}
+     */
+    private static int batchedBytes(int n, Map<String, String> data) {
+        int prefixBytes = String.valueOf(n).length() + 1;
+        int bytes = 0;
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            if (!RegistrationConstants.ACTION.equals(entry.getKey())) {
+                bytes += prefixBytes + entryBytes(entry.getKey(), entry.getValue());
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return Bytes of "key":"value", in UTF-8, with the separating comma
+     */
+    private static int entryBytes(String key, String value) {
+        return utf8Length(key) + (value == null ? 4 : utf8Length(value)) + 6;
+    }
+
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // Each half of a surrogate pair counts two of its four bytes.
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static final Callable<Void> NO_OP = new Callable<Void>() {
+        @Override
+        public Void call() {
+            return null;
+        }
+    };
+
+    /**
+     * A queued message; doubles as the future handed back to the caller.
+     */
+    private static class PendingMessage extends FutureTask<Void> {
+
+        final String messageId;
+        final Map<String, String> data;
+        final Callback callback;
+        final long enqueuedAtNanos = System.nanoTime();
+
+        PendingMessage(String messageId, Map<String, String> data, Callback callback) {
+            super(NO_OP);
+            this.messageId = messageId;
+            this.data = data;
+            this.callback = callback;
+        }
+
+        void succeed() {
+            set(null);
+            if (callback != null) {
+                callback.onSent(data);
+            }
+        }
+
+        void unconfirm() {
+            // Not a failure: GCM still holds it, and sending it again would duplicate it.
+            set(null);
+            if (callback != null) {
+                callback.onUnconfirmed(data);
+            }
+        }
+
+        void fail(Throwable error) {
+            setException(error);
+            if (callback instanceof TrackedCallback) {
+                ((TrackedCallback) callback).onFailed(messageId, data, error);
+            } else if (callback != null) {
+                callback.onFailed(data, error);
+            }
+        }
+    }
+
+}
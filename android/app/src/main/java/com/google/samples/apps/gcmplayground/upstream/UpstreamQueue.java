@@ -0,0 +1,33 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.upstream;
+
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Accepts upstream messages for asynchronous delivery.
+ */
+public interface UpstreamQueue {
+
+    /**
+     * Queues a message for sending. Never blocks.
+     * @param data Payload of the message
+     * @param callback Optional callback notified once the message was sent or has failed
+     * @return A future that completes once the message was handed to CCS
+     */
+    Future<Void> send(Map<String, String> data, UpstreamDispatcher.Callback callback);
+
+}
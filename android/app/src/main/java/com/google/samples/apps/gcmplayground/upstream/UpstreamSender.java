@@ -0,0 +1,35 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.upstream;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Sends a single upstream message to CCS. Payloads are plain string maps so that
+ * implementations other than {@link GcmUpstreamSender} can run on a plain JVM.
+ */
+public interface UpstreamSender {
+
+    /**
+     * Sends one upstream message.
+     * @param to Address of the app server, see GcmPlaygroundUtil.getServerUrl
+     * @param messageId Unique id of this message
+     * @param data Key/value payload of the message
+     * @throws IOException if the message could not be handed to CCS
+     */
+    void send(String to, String messageId, Map<String, String> data) throws IOException;
+
+}
@@ -14,10 +14,41 @@
 
 package com.google.samples.apps.gcmplayground.util;
 
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+
+import com.google.samples.apps.gcmplayground.downstream.PayloadSnapshot;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
 public class GcmPlaygroundUtil {
 
+    private static final String PREFERENCES_NAME = "gcm_playground";
+
     public static String getServerUrl(String senderId) {
         return senderId + "@gcm.googleapis.com";
     }
 
+    /**
+     * Copies the fields of a Bundle into a read-only string map that can be handed to other
+     * threads. Values are converted to strings when first read.
+     * @param bundle Bundle to copy, on the thread that received it
+     * @return A map with the same keys and the string form of each value
+     */
+    public static Map<String, String> asMap(Bundle bundle) {
+        Set<String> keys = bundle.keySet();
+        Map<String, Object> fields = new HashMap<String, Object>(keys.size() * 4 / 3 + 1);
+        for (String key : keys) {
+            fields.put(key, bundle.get(key));
+        }
+        return new PayloadSnapshot(fields);
+    }
+
+    public static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
 }
@@ -0,0 +1,60 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.util;
+
+import android.content.SharedPreferences;
+
+/**
+ * {@link KeyValueStore} over shared preferences.
+ */
+public class GcmPreferencesStore implements KeyValueStore {
+
+    private final SharedPreferences prefs;
+    private final boolean synchronous;
+
+    /**
+     * @param prefs Preferences to store the values in
+     * @param synchronous Whether writes are committed before they return, instead of being
+     *         applied in the background
+     */
+    public GcmPreferencesStore(SharedPreferences prefs, boolean synchronous) {
+        this.prefs = prefs;
+        this.synchronous = synchronous;
+    }
+
+    @Override
+    public String get(String key) {
+        return prefs.getString(key, null);
+    }
+
+    @Override
+    public void put(String key, String value) {
+        write(prefs.edit().putString(key, value));
+    }
+
+    @Override
+    public void remove(String key) {
+        write(prefs.edit().remove(key));
+    }
+
+    private void write(SharedPreferences.Editor editor) {
+        if (synchronous) {
+            editor.commit();
+        } else {
+            editor.apply();
+        }
+    }
+
+}
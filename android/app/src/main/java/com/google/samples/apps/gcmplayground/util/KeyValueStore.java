@@ -0,0 +1,32 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.util;
+
+/**
+ * Durable string key/value storage, e.g. the app's shared preferences. Components that keep
+ * state across restarts take one, so they can be tested against a map.
+ */
+public interface KeyValueStore {
+
+    /**
+     * @return The stored value, or null if there is none
+     */
+    String get(String key);
+
+    void put(String key, String value);
+
+    void remove(String key);
+
+}
@@ -0,0 +1,80 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which events of a hot path get logged: one in every {@code sampleEvery}, and at
+ * most {@code maxPerSecond} of those per second. Callers check {@link #shouldLog(long)}
+ * before building the log message, so suppressed events cost no formatting.
+ */
+public class LogSampler {
+
+    private static final long SECOND_MILLIS = 1000;
+
+    private final int sampleEvery;
+    private final int maxPerSecond;
+
+    private final AtomicLong eventCount = new AtomicLong();
+    private final AtomicLong suppressedCount = new AtomicLong();
+    private long windowStartMillis = -SECOND_MILLIS;
+    private int loggedInWindow;
+
+    /**
+     * @param sampleEvery Log one in this many events
+     * @param maxPerSecond Maximum number of logged events per second
+     */
+    public LogSampler(int sampleEvery, int maxPerSecond) {
+        this.sampleEvery = Math.max(1, sampleEvery);
+        this.maxPerSecond = maxPerSecond;
+    }
+
+    /**
+     * Counts an event.
+     * @param nowMillis Current time of a monotonic clock
+     * @return true if this event should be logged
+     */
+    public boolean shouldLog(long nowMillis) {
+        if (eventCount.getAndIncrement() % sampleEvery != 0) {
+            suppressedCount.incrementAndGet();
+            return false;
+        }
+        synchronized (this) {
+            if (nowMillis - windowStartMillis >= SECOND_MILLIS) {
+                windowStartMillis = nowMillis;
+                loggedInWindow = 0;
+            }
+            if (loggedInWindow < maxPerSecond) {
+                loggedInWindow++;
+                return true;
+            }
+        }
+        suppressedCount.incrementAndGet();
+        return false;
+    }
+
+    public long getEventCount() {
+        return eventCount.get();
+    }
+
+    /**
+     * @return Events that were not logged
+     */
+    public long getSuppressedCount() {
+        return suppressedCount.get();
+    }
+
+}
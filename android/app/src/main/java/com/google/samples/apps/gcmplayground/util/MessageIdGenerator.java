@@ -0,0 +1,88 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates upstream message ids of the form "&lt;prefix&gt;&lt;counter&gt;".
+ *
+ * The counter is a lock-free atomic, so ids are unique within a process. Uniqueness across
+ * process restarts comes from the prefix, which must differ between generator instances;
+ * see GcmPlaygroundApplication.getMessageIdGenerator for the per-install, per-launch prefix.
+ */
+public class MessageIdGenerator {
+
+    private static final int RADIX = 36;
+    private static final char[] DIGITS = "0123456789abcdefghijklmnopqrstuvwxyz".toCharArray();
+
+    /** Longest base 36 representation of a non-negative long. */
+    private static final int MAX_COUNTER_LENGTH = 13;
+
+    private final char[] prefix;
+    private final AtomicLong counter = new AtomicLong();
+    private final ThreadLocal<char[]> buffers = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[maxLength()];
+        }
+    };
+
+    public MessageIdGenerator(String prefix) {
+        this.prefix = prefix.toCharArray();
+    }
+
+    /**
+     * @return The length of the longest id this generator can produce
+     */
+    public int maxLength() {
+        return prefix.length + MAX_COUNTER_LENGTH;
+    }
+
+    /**
+     * @return A new unique message id
+     */
+    public String next() {
+        char[] buffer = buffers.get();
+        return new String(buffer, 0, next(buffer, 0));
+    }
+
+    /**
+     * Writes a new unique message id into the buffer without allocating.
+     * @param buffer Destination, needs at least {@link #maxLength()} chars after offset
+     * @param offset Position of the first char to write
+     * @return Number of chars written
+     */
+    public int next(char[] buffer, int offset) {
+        long value = counter.getAndIncrement() & Long.MAX_VALUE;
+        System.arraycopy(prefix, 0, buffer, offset, prefix.length);
+
+        int start = offset + prefix.length;
+        int end = start;
+        do {
+            buffer[end++] = DIGITS[(int) (value % RADIX)];
+            value /= RADIX;
+        } while (value != 0);
+
+        // Digits were written least significant first.
+        for (int i = start, j = end - 1; i < j; i++, j--) {
+            char c = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = c;
+        }
+        return end - offset;
+    }
+
+}
@@ -0,0 +1,78 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records how long startup phases take, measured from the moment the trace was created.
+ * Each phase is recorded the first time it is marked only, so later frames or
+ * re-registrations do not move it.
+ */
+public class StartupTrace {
+
+    private final long startNanos;
+    private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+
+    /**
+     * @param startNanos System.nanoTime() at which startup began
+     */
+    public StartupTrace(long startNanos) {
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * Marks the end of a phase.
+     * @param phase Name of the phase
+     * @param nowNanos Current System.nanoTime()
+     * @return Time from the start to the end of the phase in nanoseconds, or -1 if the phase
+     *         was already marked
+     */
+    public synchronized long mark(String phase, long nowNanos) {
+        if (phases.containsKey(phase)) {
+            return -1;
+        }
+        long elapsed = nowNanos - startNanos;
+        phases.put(phase, elapsed);
+        return elapsed;
+    }
+
+    /**
+     * @return true if the phase was marked
+     */
+    public synchronized boolean isMarked(String phase) {
+        return phases.containsKey(phase);
+    }
+
+    /**
+     * @return Phases in the order they were marked, e.g.
+     *         "first_frame=182.4ms registration_state=201.0ms"
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            long tenthsOfMillis = phase.getValue() / 100000;
+            builder.append(phase.getKey()).append('=').append(tenthsOfMillis / 10)
+                    .append('.').append(tenthsOfMillis % 10).append("ms");
+        }
+        return builder.toString();
+    }
+
+}
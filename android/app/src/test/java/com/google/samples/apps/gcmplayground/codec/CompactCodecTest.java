@@ -0,0 +1,181 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+public class CompactCodecTest {
+
+    private final CompactCodec codec = new CompactCodec();
+
+    @Test
+    public void roundTripsRegistration() {
+        Map<String, String> payload = new LinkedHashMap<String, String>();
+        payload.put(RegistrationConstants.ACTION, RegistrationConstants.REGISTER_NEW_CLIENT);
+        payload.put(RegistrationConstants.REGISTRATION_TOKEN, "dGVzdC10b2tlbg:APA91b");
+        payload.put(RegistrationConstants.STRING_IDENTIFIER, "pixel");
+
+        Map<String, String> wire = codec.encode(payload);
+        assertEquals(String.valueOf(PayloadCodecs.COMPACT_VERSION),
+                wire.get(PayloadCodecs.VERSION_KEY));
+        assertEquals(2, wire.size());
+        assertEquals(payload, codec.decode(wire));
+    }
+
+    @Test
+    public void keepsOrderNullsAndEmptyStrings() {
+        Map<String, String> payload = new LinkedHashMap<String, String>();
+        payload.put("z", "");
+        payload.put("", "empty key");
+        payload.put("a", null);
+        payload.put(RegistrationConstants.STATUS, RegistrationConstants.STATUS_REGISTERED);
+
+        Map<String, String> decoded = codec.decode(codec.encode(payload));
+        assertEquals(payload, decoded);
+        assertArrayEquals(payload.keySet().toArray(), decoded.keySet().toArray());
+    }
+
+    @Test
+    public void roundTripsEmptyPayload() {
+        assertEquals(new LinkedHashMap<String, String>(),
+                codec.decode(codec.encode(new LinkedHashMap<String, String>())));
+    }
+
+    @Test
+    public void roundTripsNonAscii() {
+        Map<String, String> payload = new LinkedHashMap<String, String>();
+        payload.put(RegistrationConstants.EXTRA_KEY_MESSAGE, "caf\u00e9 \ud83d\ude00 \u4e2d\u6587");
+        assertEquals(payload, codec.decode(codec.encode(payload)));
+    }
+
+    @Test
+    public void deflatesLargeRepetitiveBodies() {
+        Map<String, String> payload = new LinkedHashMap<String, String>();
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            message.append("hello world ");
+        }
+        payload.put(RegistrationConstants.EXTRA_KEY_MESSAGE, message.toString());
+
+        Map<String, String> wire = codec.encode(payload);
+        byte[] body = CompactCodec.fromBase64(wire.get(CompactCodec.BODY_KEY));
+        assertEquals(1, body[0] & 1);
+        assertTrue(body.length < message.length() / 4);
+        assertEquals(payload, codec.decode(wire));
+    }
+
+    @Test
+    public void roundTripsRandomPayloads() {
+        Random random = new Random(42);
+        for (int round = 0; round < 500; round++) {
+            Map<String, String> payload = new LinkedHashMap<String, String>();
+            int fields = random.nextInt(8);
+            for (int i = 0; i < fields; i++) {
+                payload.put(randomString(random), random.nextInt(10) == 0
+                        ? null : randomString(random));
+            }
+            CompactCodec small = new CompactCodec(random.nextInt(64));
+            assertEquals(payload, small.decode(small.encode(payload)));
+        }
+    }
+
+    @Test
+    public void base64RoundTripsAllLengths() {
+        Random random = new Random(7);
+        for (int length = 0; length < 64; length++) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            String text = CompactCodec.toBase64(data);
+            assertEquals((length * 4 + 2) / 3, text.length());
+            assertArrayEquals(data, CompactCodec.fromBase64(text));
+        }
+    }
+
+    @Test
+    public void rejectsMalformedWire() {
+        assertRejected(new LinkedHashMap<String, String>());
+        assertRejected(wire(""));
+        assertRejected(wire("A"));
+        assertRejected(wire("AB+/"));
+        // Flags byte, one pair, key claims 10 bytes that are not there.
+        assertRejected(wire(CompactCodec.toBase64(new byte[] { 0, 1, 22, 'a' })));
+        // Unknown alias.
+        assertRejected(wire(CompactCodec.toBase64(new byte[] { 0, 1, 127, 0 })));
+        // Deflated flag over garbage.
+        assertRejected(wire(CompactCodec.toBase64(new byte[] { 1, 9, 9, 9 })));
+    }
+
+    @Test
+    public void rejectsOversizedBodies() {
+        // A pair count of 2^31 - 1 with no pairs behind it.
+        assertRejected(wire(CompactCodec.toBase64(
+                new byte[] { 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 7 })));
+
+        // A megabyte of zeros deflates to about a kilobyte.
+        byte[] zeros = new byte[1024 * 1024];
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        deflater.setInput(zeros);
+        deflater.finish();
+        byte[] deflated = new byte[zeros.length];
+        deflated[0] = 1;
+        int length = 1 + deflater.deflate(deflated, 1, deflated.length - 1);
+        deflater.end();
+        assertRejected(wire(CompactCodec.toBase64(Arrays.copyOf(deflated, length))));
+    }
+
+    private void assertRejected(Map<String, String> wire) {
+        try {
+            codec.decode(wire);
+            fail("Decoded " + wire);
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static Map<String, String> wire(String body) {
+        Map<String, String> wire = new LinkedHashMap<String, String>();
+        wire.put(PayloadCodecs.VERSION_KEY, String.valueOf(PayloadCodecs.COMPACT_VERSION));
+        wire.put(CompactCodec.BODY_KEY, body);
+        return wire;
+    }
+
+    private static String randomString(Random random) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return RegistrationConstants.ACTION;
+            case 1:
+                return RegistrationConstants.UPSTREAM_MESSAGE;
+            default:
+                char[] chars = new char[random.nextInt(300)];
+                for (int i = 0; i < chars.length; i++) {
+                    chars[i] = (char) (random.nextBoolean()
+                            ? 'a' + random.nextInt(26) : 0x80 + random.nextInt(0x700));
+                }
+                return new String(chars);
+        }
+    }
+}
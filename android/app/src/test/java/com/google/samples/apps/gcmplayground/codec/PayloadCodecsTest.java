@@ -0,0 +1,66 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.codec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class PayloadCodecsTest {
+
+    @Test
+    public void negotiatesNewestCommonVersion() {
+        assertSame(PayloadCodecs.PLAIN, PayloadCodecs.negotiate(null));
+        assertSame(PayloadCodecs.PLAIN, PayloadCodecs.negotiate("0"));
+        assertSame(PayloadCodecs.PLAIN, PayloadCodecs.negotiate("-3"));
+        assertSame(PayloadCodecs.PLAIN, PayloadCodecs.negotiate("compact"));
+        assertSame(PayloadCodecs.COMPACT, PayloadCodecs.negotiate("1"));
+        assertSame(PayloadCodecs.COMPACT, PayloadCodecs.negotiate("99"));
+    }
+
+    @Test
+    public void decodesByVersionField() {
+        Map<String, String> payload = new HashMap<String, String>();
+        payload.put(RegistrationConstants.ACTION, RegistrationConstants.UPSTREAM_MESSAGE);
+        payload.put(RegistrationConstants.EXTRA_KEY_MESSAGE, "hi");
+
+        assertEquals(payload, PayloadCodecs.decode(PayloadCodecs.PLAIN.encode(payload)));
+        assertEquals(payload, PayloadCodecs.decode(PayloadCodecs.COMPACT.encode(payload)));
+    }
+
+    @Test
+    public void rejectsUnknownVersion() {
+        Map<String, String> wire = new HashMap<String, String>();
+        wire.put(PayloadCodecs.VERSION_KEY, "7");
+        try {
+            PayloadCodecs.decode(wire);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        wire.put(PayloadCodecs.VERSION_KEY, "x");
+        try {
+            PayloadCodecs.decode(wire);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,285 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.samples.apps.gcmplayground.codec.CompactCodec;
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+import com.google.samples.apps.gcmplayground.upstream.UpstreamSender;
+import com.google.samples.apps.gcmplayground.util.KeyValueStore;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+public class SessionKeyCacheTest {
+
+    private static final String SERVER = "server@gcm.googleapis.com";
+    private static final String OTHER = "other@gcm.googleapis.com";
+
+    private final MapBacking backing = new MapBacking();
+    private SecureRandom random;
+    private KeyPair server;
+    private PayloadCipher cipher;
+    private SessionKeyCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        random = SecureRandom.getInstance("SHA1PRNG");
+        random.setSeed(42);
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec(SessionKey.EC_CURVE), random);
+        server = generator.generateKeyPair();
+        cipher = new PayloadCipher(random);
+        cache = newCache();
+    }
+
+    @Test
+    public void serverDerivesSameKeyFromRegistration() throws Exception {
+        SessionKey session = cache.create(SERVER, "token-1");
+        Map<String, String> registration = cipher.encrypt(session, registration("token-1"), true);
+
+        SessionKey derived = serverSide(SERVER, "token-1", registration);
+        assertArrayEquals(session.getKey().getEncoded(), derived.getKey().getEncoded());
+        assertEquals("token-1", cipher.decrypt(derived, registration)
+                .get(RegistrationConstants.REGISTRATION_TOKEN));
+        assertTrue(cache.has(SERVER, "token-1"));
+    }
+
+    @Test
+    public void restartReusesStoredKeys() throws Exception {
+        SessionKey server1 = cache.create(SERVER, "token-1");
+        cache.create(OTHER, "token-1");
+
+        cache = newCache();
+        assertTrue(cache.has(SERVER, "token-1"));
+        assertTrue(cache.has(OTHER, "token-1"));
+        assertEquals(server1.getKeyId(), cache.get(SERVER).getKeyId());
+        assertEquals(2, cache.getLoadedCount());
+        assertEquals(0, cache.getCreatedCount());
+    }
+
+    @Test
+    public void wrappedKeysSurviveRestartButNotInTheClear() throws Exception {
+        SecretKey wrappingKey = new SecretKeySpec(new byte[16], "AES");
+        cache = new SessionKeyCache(server.getPublic(), backing, random, wrappingKey);
+        SessionKey session = cache.create(SERVER, "token-1");
+        String raw = CompactCodec.toBase64(session.getKey().getEncoded());
+        for (String stored : backing.values.values()) {
+            assertFalse(stored.contains(raw));
+        }
+
+        cache = new SessionKeyCache(server.getPublic(), backing, random, wrappingKey);
+        assertArrayEquals(session.getKey().getEncoded(), cache.get(SERVER).getKey().getEncoded());
+
+        // Entries that do not unwrap are renegotiated rather than trusted.
+        cache = new SessionKeyCache(server.getPublic(), backing, random,
+                new SecretKeySpec(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15,
+                        16}, "AES"));
+        assertNull(cache.get(SERVER));
+    }
+
+    @Test
+    public void refreshKeepsOldKeyUntilRegistrationConfirmed() throws Exception {
+        SessionKey old = cache.create(SERVER, "token-1");
+
+        SessionKey fresh = cache.create(SERVER, "token-2");
+        assertEquals(old.getKeyId(), cache.get(SERVER).getKeyId());
+        assertEquals(fresh.getKeyId(), cache.getNewest(SERVER).getKeyId());
+        assertFalse(cache.has(SERVER, "token-2"));
+
+        assertTrue(cache.promote(SERVER, "token-2"));
+        assertEquals(fresh.getKeyId(), cache.get(SERVER).getKeyId());
+        assertEquals(fresh.getKeyId(), cache.getNewest(SERVER).getKeyId());
+        assertTrue(cache.has(SERVER, "token-2"));
+        assertEquals(1, cache.getPromotedCount());
+    }
+
+    @Test
+    public void pendingKeySurvivesRestart() throws Exception {
+        SessionKey old = cache.create(SERVER, "token-1");
+        SessionKey fresh = cache.create(SERVER, "token-2");
+
+        cache = newCache();
+        assertEquals(old.getKeyId(), cache.get(SERVER).getKeyId());
+        assertEquals(fresh.getKeyId(), cache.getNewest(SERVER).getKeyId());
+        assertTrue(cache.promote(SERVER, null));
+
+        cache = newCache();
+        assertEquals(fresh.getKeyId(), cache.get(SERVER).getKeyId());
+        assertFalse(cache.promote(SERVER, "token-2"));
+    }
+
+    @Test
+    public void promoteIgnoresReplacedPendingKey() throws Exception {
+        SessionKey old = cache.create(SERVER, "token-1");
+        cache.create(SERVER, "token-2");
+        SessionKey newer = cache.create(SERVER, "token-3");
+
+        assertFalse(cache.promote(SERVER, "token-2"));
+        assertEquals(old.getKeyId(), cache.get(SERVER).getKeyId());
+        assertTrue(cache.promote(SERVER, "token-3"));
+        assertEquals(newer.getKeyId(), cache.get(SERVER).getKeyId());
+    }
+
+    @Test
+    public void oldCiphertextDoesNotOpenUnderNewKey() throws Exception {
+        SessionKey old = cache.create(SERVER, "token-1");
+        String ciphertext = cipher.encrypt(old, message("before refresh"), false)
+                .get(PayloadCipher.KEY_CIPHERTEXT);
+        SessionKey fresh = cache.create(SERVER, "token-2");
+        assertFalse(fresh.getKeyId().equals(old.getKeyId()));
+
+        Map<String, String> replayed = new HashMap<String, String>();
+        replayed.put(PayloadCipher.KEY_KEY_ID, fresh.getKeyId());
+        replayed.put(PayloadCipher.KEY_CIPHERTEXT, ciphertext);
+        try {
+            cipher.decrypt(fresh, replayed);
+            fail("old ciphertext opened under the new key");
+        } catch (GeneralSecurityException expected) {
+            // Authentication failed, as it should.
+        }
+    }
+
+    @Test
+    public void invalidateForgetsOnlyThatAddress() throws Exception {
+        cache.create(SERVER, "token-1");
+        cache.create(SERVER, "token-2");
+        cache.create(OTHER, "token-1");
+
+        cache.invalidate(SERVER);
+        assertNull(cache.get(SERVER));
+        assertNull(cache.getNewest(SERVER));
+        assertNotNull(cache.get(OTHER));
+        assertEquals(1, cache.getInvalidatedCount());
+
+        cache = newCache();
+        assertNull(cache.get(SERVER));
+        assertNotNull(cache.get(OTHER));
+    }
+
+    @Test
+    public void sendsKeepEncryptingDuringRefresh() throws Exception {
+        RecordingSender ccs = new RecordingSender();
+        EncryptingUpstreamSender sender = new EncryptingUpstreamSender(ccs, cache, cipher);
+        try {
+            sender.send(SERVER, "m-0", message("no key yet"));
+            fail("sent without a session key");
+        } catch (IOException expected) {
+            assertTrue(ccs.sent.isEmpty());
+        }
+
+        SessionKey old = cache.create(SERVER, "token-1");
+        cache.create(SERVER, "token-2");
+        sender.send(SERVER, "m-1", message("between refresh and registration"));
+        sender.send(SERVER, "m-2", registration("token-2"));
+        sender.send(SERVER, "m-3", message("before confirmation"));
+
+        Map<String, String> registration = ccs.sent.get(1);
+        SessionKey derived = serverSide(SERVER, "token-2", registration);
+        assertEquals("token-2", cipher.decrypt(derived, registration)
+                .get(RegistrationConstants.REGISTRATION_TOKEN));
+        assertEquals("between refresh and registration",
+                cipher.decrypt(old, ccs.sent.get(0)).get(RegistrationConstants.EXTRA_KEY_MESSAGE));
+        assertEquals("before confirmation",
+                cipher.decrypt(old, ccs.sent.get(2)).get(RegistrationConstants.EXTRA_KEY_MESSAGE));
+
+        cache.promote(SERVER, "token-2");
+        sender.send(SERVER, "m-4", message("after confirmation"));
+        assertEquals("after confirmation", cipher.decrypt(derived, ccs.sent.get(3))
+                .get(RegistrationConstants.EXTRA_KEY_MESSAGE));
+    }
+
+    private SessionKeyCache newCache() {
+        return new SessionKeyCache(server.getPublic(), backing, random);
+    }
+
+    /**
+     * What the app server does with a registration: derive the key from the announced public
+     * key and its own private key.
+     */
+    private SessionKey serverSide(String address, String token,
+            Map<String, String> registration) throws GeneralSecurityException {
+        String publicKey = registration.get(PayloadCipher.KEY_PUBLIC_KEY);
+        assertNotNull("registration did not announce a public key", publicKey);
+        assertEquals(SessionKey.keyIdOf(publicKey), registration.get(PayloadCipher.KEY_KEY_ID));
+        return new SessionKey(address, token, SessionKey.derive(server.getPrivate(),
+                SessionKey.parsePublicKey(CompactCodec.fromBase64(publicKey)), token), publicKey);
+    }
+
+    private static Map<String, String> registration(String token) {
+        Map<String, String> data = new HashMap<String, String>();
+        data.put(RegistrationConstants.ACTION, RegistrationConstants.REGISTER_NEW_CLIENT);
+        data.put(RegistrationConstants.REGISTRATION_TOKEN, token);
+        data.put(RegistrationConstants.STRING_IDENTIFIER, "Pixel \u00e9\ud83d\ude00");
+        return data;
+    }
+
+    private static Map<String, String> message(String text) {
+        Map<String, String> data = new HashMap<String, String>();
+        data.put(RegistrationConstants.ACTION, RegistrationConstants.UPSTREAM_MESSAGE);
+        data.put(RegistrationConstants.EXTRA_KEY_MESSAGE, text);
+        return data;
+    }
+
+    private static class RecordingSender implements UpstreamSender {
+        final List<Map<String, String>> sent = new ArrayList<Map<String, String>>();
+
+        @Override
+        public void send(String to, String messageId, Map<String, String> data) {
+            sent.add(data);
+        }
+    }
+
+    private static class MapBacking implements KeyValueStore {
+        private final Map<String, String> values = new HashMap<String, String>();
+
+        @Override
+        public String get(String key) {
+            return values.get(key);
+        }
+
+        @Override
+        public void put(String key, String value) {
+            values.put(key, value);
+        }
+
+        @Override
+        public void remove(String key) {
+            values.remove(key);
+        }
+    }
+
+}
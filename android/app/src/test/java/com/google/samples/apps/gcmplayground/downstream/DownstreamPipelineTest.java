@@ -0,0 +1,204 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.downstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+public class DownstreamPipelineTest {
+
+    private static final String FROM = "1234";
+    private static final long FRAME_MILLIS = 16;
+
+    private final QueuedExecutor worker = new QueuedExecutor();
+    private final ManualFrames frames = new ManualFrames();
+    private final List<List<String>> rendered = new ArrayList<List<String>>();
+    private final DownstreamQueue backlog = new DownstreamQueue();
+    private DownstreamPipeline pipeline = newPipeline(DownstreamPipeline.DEFAULT_MAX_BATCH_SIZE);
+
+    @Test
+    public void parsesOnWorkerThenRendersInOneFrame() {
+        pipeline.submit(FROM, message("m-1", "first", null));
+        pipeline.submit(FROM, message("m-2", "second", null));
+        pipeline.submit(FROM, message("m-3", "third", null));
+
+        // Nothing reaches the render stage until the worker parsed the messages.
+        assertEquals(0, frames.size());
+        worker.runAll();
+        assertEquals(1, frames.size());
+        assertEquals(FRAME_MILLIS, frames.delays.get(0).longValue());
+        assertEquals(0, rendered.size());
+
+        frames.runNext();
+        assertEquals(1, rendered.size());
+        assertEquals(Arrays.asList("first", "second", "third"), rendered.get(0));
+        assertEquals(0, frames.size());
+        assertEquals(3, pipeline.getReceivedCount());
+        assertEquals(3, pipeline.getRenderedCount());
+        assertEquals(1, pipeline.getFrameCount());
+    }
+
+    @Test
+    public void messagesParsedWhileFrameIsPendingJoinIt() {
+        pipeline.submit(FROM, message("m-1", "first", null));
+        worker.runAll();
+        pipeline.submit(FROM, message("m-2", "second", null));
+        worker.runAll();
+
+        assertEquals(1, frames.size());
+        frames.runNext();
+        assertEquals(Arrays.asList("first", "second"), rendered.get(0));
+    }
+
+    @Test
+    public void dropsRepeatedDeliveries() {
+        pipeline.submit(FROM, message("m-1", "first", null));
+        pipeline.submit(FROM, message("m-1", "first", null));
+        worker.runAll();
+        frames.runNext();
+
+        assertEquals(Arrays.asList("first"), rendered.get(0));
+        assertEquals(2, pipeline.getReceivedCount());
+        assertEquals(1, pipeline.getDuplicateCount());
+    }
+
+    @Test
+    public void rendersBacklogOverSeveralFramesMostUrgentFirst() {
+        pipeline = newPipeline(2);
+        backlog.setPriority(RegistrationConstants.REGISTER_NEW_CLIENT,
+                DownstreamQueue.Priority.HIGH);
+        for (int i = 0; i < 4; i++) {
+            pipeline.submit(FROM, message("m-" + i, "update " + i, null));
+        }
+        Map<String, String> status = message("m-status", "registered", null);
+        status.put(RegistrationConstants.ACTION, RegistrationConstants.REGISTER_NEW_CLIENT);
+        pipeline.submit(FROM, status);
+        worker.runAll();
+
+        frames.runNext();
+        frames.runNext();
+        frames.runNext();
+
+        assertEquals(0, frames.size());
+        assertEquals(3, rendered.size());
+        assertEquals(Arrays.asList("registered", "update 0"), rendered.get(0));
+        assertEquals(Arrays.asList("update 1", "update 2"), rendered.get(1));
+        assertEquals(Arrays.asList("update 3"), rendered.get(2));
+        assertEquals(3, pipeline.getFrameCount());
+    }
+
+    @Test
+    public void collapsesWaitingMessagesWithSameKey() {
+        pipeline.submit(FROM, message("m-1", "old score", "score"));
+        pipeline.submit(FROM, message("m-2", "news", null));
+        pipeline.submit(FROM, message("m-3", "new score", "score"));
+        worker.runAll();
+        frames.runNext();
+
+        assertEquals(Arrays.asList("new score", "news"), rendered.get(0));
+        assertEquals(1, backlog.getCollapsedCount());
+    }
+
+    @Test
+    public void dropsRenderedMessagesWithoutListener() {
+        pipeline.setListener(null);
+        pipeline.submit(FROM, message("m-1", "first", null));
+        worker.runAll();
+        frames.runNext();
+
+        assertTrue(rendered.isEmpty());
+        assertEquals(1, pipeline.getRenderedCount());
+    }
+
+    private DownstreamPipeline newPipeline(int maxBatchSize) {
+        DownstreamPipeline created = new DownstreamPipeline(worker, new DuplicateFilter(),
+                frames, FRAME_MILLIS, backlog, maxBatchSize);
+        created.setListener(new DownstreamPipeline.Listener() {
+            @Override
+            public void onMessages(List<DownstreamMessage> messages) {
+                List<String> texts = new ArrayList<String>();
+                for (DownstreamMessage message : messages) {
+                    assertEquals(FROM, message.getFrom());
+                    texts.add(message.getMessage());
+                }
+                rendered.add(texts);
+            }
+        });
+        return created;
+    }
+
+    private static Map<String, String> message(String messageId, String text,
+            String collapseKey) {
+        Map<String, String> data = new HashMap<String, String>();
+        data.put(DuplicateFilter.MESSAGE_ID, messageId);
+        data.put(RegistrationConstants.ACTION, RegistrationConstants.UPSTREAM_MESSAGE);
+        data.put(RegistrationConstants.EXTRA_KEY_MESSAGE, text);
+        if (collapseKey != null) {
+            data.put(DownstreamMessage.COLLAPSE_KEY, collapseKey);
+        }
+        return data;
+    }
+
+    /**
+     * Runs the parse stage only when the test says so.
+     */
+    private static class QueuedExecutor implements Executor {
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    /**
+     * Stands in for the UI thread: frames run one at a time when the test says so.
+     */
+    private static class ManualFrames implements DownstreamPipeline.FrameScheduler {
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+        final List<Long> delays = new ArrayList<Long>();
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            tasks.add(task);
+            delays.add(delayMillis);
+        }
+
+        int size() {
+            return tasks.size();
+        }
+
+        void runNext() {
+            tasks.remove(0).run();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.downstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class DownstreamQueueTest {
+
+    private static final String FROM = "1234";
+    private static final String URGENT = "urgent";
+
+    private final DownstreamQueue queue = new DownstreamQueue();
+
+    @Test
+    public void collapsesNewerMessageIntoWaitingOne() {
+        DownstreamMessage first = message(null, "feed");
+        DownstreamMessage second = message(null, "other");
+        DownstreamMessage third = message(null, "feed");
+        queue.add(first);
+        queue.add(second);
+        queue.add(third);
+
+        assertEquals(2, queue.size());
+        assertSame(third, queue.poll());
+        assertSame(second, queue.poll());
+        assertEquals(1, queue.getCollapsedCount());
+    }
+
+    @Test
+    public void doNotCollapseIsNoKey() {
+        DownstreamMessage first = message(null, DownstreamMessage.DO_NOT_COLLAPSE);
+        DownstreamMessage second = message(null, DownstreamMessage.DO_NOT_COLLAPSE);
+        queue.add(first);
+        queue.add(second);
+
+        assertNull(first.getCollapseKey());
+        assertEquals(2, queue.size());
+        assertSame(first, queue.poll());
+        assertSame(second, queue.poll());
+        assertEquals(0, queue.getCollapsedCount());
+    }
+
+    @Test
+    public void lessUrgentMessageDoesNotReplaceMoreUrgentOne() {
+        queue.setPriority(URGENT, DownstreamQueue.Priority.HIGH);
+        DownstreamMessage urgent = message(URGENT, "state");
+        DownstreamMessage normal = message(null, "state");
+        queue.add(urgent);
+        queue.add(normal);
+
+        assertEquals(2, queue.size());
+        assertSame(urgent, queue.poll());
+        assertSame(normal, queue.poll());
+        assertEquals(0, queue.getCollapsedCount());
+    }
+
+    @Test
+    public void collapsesWithinEachLane() {
+        queue.setPriority(URGENT, DownstreamQueue.Priority.HIGH);
+        queue.add(message(null, "state"));
+        queue.add(message(URGENT, "state"));
+        DownstreamMessage normal = message(null, "state");
+        DownstreamMessage urgent = message(URGENT, "state");
+        queue.add(normal);
+        queue.add(urgent);
+
+        assertEquals(2, queue.size());
+        assertSame(urgent, queue.poll());
+        assertSame(normal, queue.poll());
+        assertEquals(2, queue.getCollapsedCount());
+    }
+
+    @Test
+    public void fullBacklogDropsOldestOfLeastUrgentLane() {
+        DownstreamQueue small = new DownstreamQueue(2);
+        small.setPriority(URGENT, DownstreamQueue.Priority.HIGH);
+        DownstreamMessage urgent = message(URGENT, null);
+        DownstreamMessage oldest = message(null, null);
+        DownstreamMessage newest = message(null, null);
+        small.add(urgent);
+        small.add(oldest);
+        small.add(newest);
+
+        assertSame(urgent, small.poll());
+        assertSame(newest, small.poll());
+        assertEquals(1, small.getDroppedCount());
+    }
+
+    private static DownstreamMessage message(String action, String collapseKey) {
+        Map<String, String> data = new HashMap<String, String>();
+        if (action != null) {
+            data.put(RegistrationConstants.ACTION, action);
+        }
+        return new DownstreamMessage(FROM, data, collapseKey, 0);
+    }
+}
@@ -0,0 +1,131 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.downstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.samples.apps.gcmplayground.constants.Action;
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DownstreamRouterTest {
+
+    private final DownstreamRouter router = new DownstreamRouter();
+    private final RecordingHandler register = new RecordingHandler();
+    private final RecordingHandler unregister = new RecordingHandler();
+    private final RecordingHandler fallback = new RecordingHandler();
+
+    @Test
+    public void routesByAction() {
+        router.register(Action.REGISTER_NEW_CLIENT, register);
+        router.register(Action.UNREGISTER_CLIENT, unregister);
+        DownstreamMessage registered = message(RegistrationConstants.REGISTER_NEW_CLIENT);
+        DownstreamMessage unregistered = message(RegistrationConstants.UNREGISTER_CLIENT);
+
+        assertTrue(router.dispatch(registered));
+        assertTrue(router.dispatch(unregistered));
+
+        assertEquals(Arrays.asList(registered), register.received);
+        assertEquals(Arrays.asList(unregistered), unregister.received);
+    }
+
+    @Test
+    public void unknownAndMissingActionsGoToDefaultHandler() {
+        router.register(Action.REGISTER_NEW_CLIENT, register);
+        DownstreamMessage custom = message("custom_action");
+        DownstreamMessage none = message(null);
+
+        assertFalse(router.dispatch(custom));
+        router.setDefaultHandler(fallback);
+        assertTrue(router.dispatch(custom));
+        assertTrue(router.dispatch(none));
+
+        assertEquals(Arrays.asList(custom, none), fallback.received);
+        assertTrue(register.received.isEmpty());
+    }
+
+    @Test
+    public void routesActionsByWireName() {
+        router.register("custom_action", register);
+        DownstreamMessage custom = message("custom_action");
+
+        router.dispatch(custom);
+        assertSame(custom, register.received.get(0));
+    }
+
+    @Test
+    public void laterRegistrationReplacesHandler() {
+        router.register(Action.REGISTER_NEW_CLIENT, register);
+        router.register(Action.REGISTER_NEW_CLIENT, unregister);
+
+        router.dispatch(message(RegistrationConstants.REGISTER_NEW_CLIENT));
+        assertTrue(register.received.isEmpty());
+        assertEquals(1, unregister.received.size());
+    }
+
+    @Test
+    public void unregisterRemovesHandlerFromEveryAction() {
+        router.register(Action.REGISTER_NEW_CLIENT, register);
+        router.register(Action.UPSTREAM_MESSAGE, register);
+        router.register(Action.UNREGISTER_CLIENT, unregister);
+        router.setDefaultHandler(register);
+
+        router.unregister(register);
+
+        assertFalse(router.dispatch(message(RegistrationConstants.REGISTER_NEW_CLIENT)));
+        assertFalse(router.dispatch(message(RegistrationConstants.UPSTREAM_MESSAGE)));
+        assertTrue(router.dispatch(message(RegistrationConstants.UNREGISTER_CLIENT)));
+        assertTrue(register.received.isEmpty());
+    }
+
+    @Test
+    public void batchIsDispatchedInOrder() {
+        router.register(Action.UPSTREAM_MESSAGE, register);
+        router.setDefaultHandler(register);
+        List<DownstreamMessage> batch = Arrays.asList(
+                message(RegistrationConstants.UPSTREAM_MESSAGE), message(null),
+                message(RegistrationConstants.UPSTREAM_MESSAGE));
+
+        router.onMessages(batch);
+        assertEquals(batch, register.received);
+    }
+
+    private static DownstreamMessage message(String action) {
+        Map<String, String> data = new HashMap<String, String>();
+        if (action != null) {
+            data.put(RegistrationConstants.ACTION, action);
+        }
+        return new DownstreamMessage("1234", data, 0);
+    }
+
+    private static class RecordingHandler implements DownstreamHandler {
+        final List<DownstreamMessage> received = new ArrayList<DownstreamMessage>();
+
+        @Override
+        public void onMessage(DownstreamMessage message) {
+            received.add(message);
+        }
+    }
+}
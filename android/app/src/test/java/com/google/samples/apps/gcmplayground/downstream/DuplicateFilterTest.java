@@ -0,0 +1,77 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.downstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class DuplicateFilterTest {
+
+    private static final long EXPIRY_MILLIS = 1000;
+
+    private final DuplicateFilter filter = new DuplicateFilter(64, EXPIRY_MILLIS);
+
+    @Test
+    public void dropsRepeatedMessageId() {
+        assertFalse(filter.isDuplicate(message("0:1", "hello"), 0));
+        assertTrue(filter.isDuplicate(message("0:1", "hello"), 10));
+        assertFalse(filter.isDuplicate(message("0:2", "hello"), 20));
+        assertEquals(1, filter.getHitCount());
+    }
+
+    @Test
+    public void passesRepeatedPayloadWithoutMessageId() {
+        Map<String, String> registered = new HashMap<String, String>();
+        registered.put(RegistrationConstants.ACTION, RegistrationConstants.REGISTER_NEW_CLIENT);
+        registered.put(RegistrationConstants.STATUS, RegistrationConstants.STATUS_REGISTERED);
+
+        assertEquals(DuplicateFilter.NO_KEY, DuplicateFilter.keyOf(registered));
+        assertFalse(filter.isDuplicate(registered, 0));
+        assertFalse(filter.isDuplicate(registered, 10));
+        assertEquals(0, filter.getHitCount());
+    }
+
+    @Test
+    public void forgetsIdsAfterExpiry() {
+        assertFalse(filter.isDuplicate(message("0:1", "hello"), 0));
+        assertTrue(filter.isDuplicate(message("0:1", "hello"), EXPIRY_MILLIS / 2 - 1));
+        assertFalse(filter.isDuplicate(message("0:1", "hello"), 2 * EXPIRY_MILLIS + 1));
+    }
+
+    @Test
+    public void memoryStaysBoundedUnderFlood() {
+        for (int i = 0; i < 10000; i++) {
+            assertFalse(filter.isDuplicate(message("0:" + i, "flood"), 0));
+        }
+        // The latest ids are still remembered.
+        assertTrue(filter.isDuplicate(message("0:9999", "flood"), 0));
+        assertTrue(filter.getRotationCount() > 0);
+    }
+
+    private static Map<String, String> message(String messageId, String text) {
+        Map<String, String> data = new HashMap<String, String>();
+        data.put(DuplicateFilter.MESSAGE_ID, messageId);
+        data.put(RegistrationConstants.EXTRA_KEY_MESSAGE, text);
+        return data;
+    }
+}
@@ -0,0 +1,114 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.downstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class MessageHistoryTest {
+
+    @Test
+    public void keepsNewestMessagesFirst() {
+        MessageHistory history = new MessageHistory(3);
+        for (int i = 0; i < 5; i++) {
+            history.add(message("s", "a", "m" + i));
+        }
+        assertEquals(3, history.size());
+        assertEquals("m4", history.get(0).getMessage());
+        assertEquals("m2", history.get(2).getMessage());
+        assertEquals(5, history.getTotalCount());
+    }
+
+    @Test
+    public void filtersBySenderAndAction() {
+        MessageHistory history = new MessageHistory(10);
+        history.add(message("s1", "a", "1"));
+        history.add(message("s2", "a", "2"));
+        history.add(message("s1", "b", "3"));
+        history.add(message("s1", "a", "4"));
+
+        history.setFilter("s1", "a");
+        assertEquals(2, history.size());
+        assertEquals("4", history.get(0).getMessage());
+        assertEquals("1", history.get(1).getMessage());
+
+        // New messages keep the filter up to date.
+        history.add(message("s1", "a", "5"));
+        history.add(message("s2", "b", "6"));
+        assertEquals(3, history.size());
+        assertEquals("5", history.get(0).getMessage());
+
+        history.setFilter(null, "b");
+        assertEquals(2, history.size());
+        assertEquals(Arrays.asList("s1", "s2"), history.getSenders());
+
+        history.setFilter("nobody", null);
+        assertEquals(0, history.size());
+    }
+
+    @Test
+    public void filteredViewDropsEvictedMessages() {
+        MessageHistory history = new MessageHistory(4);
+        history.setFilter("s1", null);
+        for (int i = 0; i < 10; i++) {
+            history.add(message(i % 2 == 0 ? "s1" : "s2", "a", String.valueOf(i)));
+        }
+        assertEquals(2, history.size());
+        assertEquals("8", history.get(0).getMessage());
+        assertEquals("6", history.get(1).getMessage());
+    }
+
+    @Test
+    public void memoryStaysConstantUnderFlood() {
+        int capacity = 100;
+        MessageHistory history = new MessageHistory(capacity);
+        history.setFilter(null, RegistrationConstants.UPSTREAM_MESSAGE);
+        DownstreamMessage first = message("sender-0", "action-0", "first");
+        WeakReference<DownstreamMessage> evicted = new WeakReference<DownstreamMessage>(first);
+        history.add(first);
+        first = null;
+
+        for (int i = 1; i < 100000; i++) {
+            history.add(message("sender-" + i, i % 2 == 0
+                    ? RegistrationConstants.UPSTREAM_MESSAGE : "action-" + i, "flood " + i));
+        }
+
+        // Only the held messages are indexed, and nothing else holds on to evicted ones.
+        assertEquals(capacity, history.getSenders().size());
+        assertEquals(capacity / 2 + 1, history.getActions().size());
+        assertEquals(capacity / 2, history.size());
+        for (int i = 0; i < 20 && evicted.get() != null; i++) {
+            System.gc();
+        }
+        assertNull(evicted.get());
+        assertEquals(100000, history.getTotalCount());
+    }
+
+    private static DownstreamMessage message(String from, String action, String text) {
+        Map<String, String> data = new HashMap<String, String>();
+        data.put(RegistrationConstants.ACTION, action);
+        data.put(RegistrationConstants.EXTRA_KEY_MESSAGE, text);
+        return new DownstreamMessage(from, data, 0);
+    }
+}
@@ -0,0 +1,133 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.downstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PayloadSnapshotTest {
+
+    private final Map<String, Object> fields = new HashMap<String, Object>();
+
+    @Test
+    public void readsStringFormOfEachValue() {
+        fields.put("count", 3);
+        fields.put("text", new StringBuilder("hello"));
+        fields.put("missing", null);
+
+        Map<String, String> snapshot = new PayloadSnapshot(fields);
+
+        assertEquals(3, snapshot.size());
+        assertEquals("3", snapshot.get("count"));
+        assertEquals("hello", snapshot.get("text"));
+        assertNull(snapshot.get("missing"));
+        assertTrue(snapshot.containsKey("missing"));
+        assertNull(snapshot.get("absent"));
+        Map<String, String> expected = new HashMap<String, String>();
+        expected.put("count", "3");
+        expected.put("text", "hello");
+        expected.put("missing", null);
+        assertEquals(expected, snapshot);
+    }
+
+    @Test
+    public void convertsEachValueOnceOnFirstRead() {
+        final AtomicInteger conversions = new AtomicInteger();
+        fields.put("lazy", new Object() {
+            @Override
+            public String toString() {
+                conversions.incrementAndGet();
+                return "value";
+            }
+        });
+        Map<String, String> snapshot = new PayloadSnapshot(fields);
+        assertEquals(0, conversions.get());
+
+        String first = snapshot.get("lazy");
+
+        assertSame(first, snapshot.get("lazy"));
+        assertEquals(1, conversions.get());
+    }
+
+    @Test
+    public void concurrentReadersSeeSameString() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            fields.put("field_" + i, i);
+        }
+        final Map<String, String> snapshot = new PayloadSnapshot(fields);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Map<String, String>> seen = new ArrayList<Map<String, String>>();
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final Map<String, String> read = new HashMap<String, String>();
+            seen.add(read);
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (Map.Entry<String, String> entry : snapshot.entrySet()) {
+                        read.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            });
+            readers.add(reader);
+            reader.start();
+        }
+        start.countDown();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        for (Map<String, String> read : seen) {
+            assertEquals(100, read.size());
+            for (int i = 0; i < 100; i++) {
+                assertEquals(String.valueOf(i), read.get("field_" + i));
+                assertSame(snapshot.get("field_" + i), read.get("field_" + i));
+            }
+        }
+    }
+
+    @Test
+    public void isUnmodifiable() {
+        fields.put("text", "hello");
+        Map<String, String> snapshot = new PayloadSnapshot(fields);
+        try {
+            snapshot.put("key", "value");
+            fail();
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            snapshot.entrySet().iterator().next().setValue("value");
+            fail();
+        } catch (UnsupportedOperationException expected) {
+        }
+    }
+}
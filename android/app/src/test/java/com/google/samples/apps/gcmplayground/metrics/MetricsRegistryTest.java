@@ -0,0 +1,93 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+public class MetricsRegistryTest {
+
+    private static final String REGISTER = "register_new_client";
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+
+    @Test
+    public void matchesRepliesPerSender() {
+        metrics.expectReply(REGISTER, "1111", "a1", System.nanoTime());
+        metrics.expectReply(REGISTER, "2222", "b1", System.nanoTime());
+        metrics.expectReply(REGISTER, "1111", "a2", System.nanoTime());
+
+        assertEquals("b1", metrics.onReply(REGISTER, "2222"));
+        assertEquals("a1", metrics.onReply(REGISTER, "1111"));
+        assertEquals("a2", metrics.onReply(REGISTER, "1111"));
+        assertNull(metrics.onReply(REGISTER, "2222"));
+
+        assertEquals(3, metrics.histogram(REGISTER + ".round_trip").getCount());
+        assertEquals(1, metrics.counter(REGISTER + ".reply_unmatched").get());
+    }
+
+    @Test
+    public void retransmissionIsExpectedOnce() {
+        metrics.expectReply(REGISTER, "1111", "a1", 1);
+        metrics.expectReply(REGISTER, "1111", "a1", 2);
+
+        assertEquals("a1", metrics.onReply(REGISTER, "1111"));
+        assertNull(metrics.onReply(REGISTER, "1111"));
+    }
+
+    @Test
+    public void capsPendingRequests() throws Exception {
+        for (int i = 0; i < MetricsRegistry.MAX_PENDING_REPLIES + 2; i++) {
+            metrics.expectReply(REGISTER, "1111", "m" + i, System.nanoTime());
+        }
+        assertEquals(2, metrics.counter(REGISTER + ".reply_lost").get());
+        assertEquals("m2", metrics.onReply(REGISTER, "1111"));
+
+        StringWriter text = new StringWriter();
+        metrics.writeTo(text);
+        assertTrue(text.toString().contains("pending " + REGISTER + " 1111 m3 "));
+    }
+
+    @Test
+    public void recordingRepliesDoesNotAllocate() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        long thread = Thread.currentThread().getId();
+        metrics.onReply(REGISTER, "1111");
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < MetricsRegistry.MAX_PENDING_REPLIES; i++) {
+                metrics.expectReply(REGISTER, "1111", "m" + i, System.nanoTime());
+            }
+            long before = allocations.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < 1000; i++) {
+                metrics.onReply(REGISTER, "1111");
+            }
+            long allocated = allocations.getThreadAllocatedBytes(thread) - before;
+            if (round == 2) {
+                assertTrue("Allocated " + allocated + " bytes", allocated < 1000);
+            }
+        }
+    }
+}
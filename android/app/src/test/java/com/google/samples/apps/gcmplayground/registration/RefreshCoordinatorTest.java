@@ -0,0 +1,335 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.registration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.samples.apps.gcmplayground.util.KeyValueStore;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class RefreshCoordinatorTest {
+
+    private static final long SETTLE_MILLIS = 30000;
+    private static final long WINDOW_MILLIS = 600000;
+
+    private final MapBacking backing = new MapBacking();
+    private final FakeWorld world = new FakeWorld();
+
+    @Test
+    public void registersOnceWithinSettleAndWindow() {
+        RegistrationStore store = newStore("name");
+        RefreshCoordinator coordinator = newCoordinator(store, 1);
+        coordinator.onTokenRefresh();
+        world.advance(SETTLE_MILLIS / 2);
+        coordinator.onTokenRefresh();
+
+        world.advance(SETTLE_MILLIS / 2 - 1);
+        assertTrue(world.registered.isEmpty());
+        world.advance(WINDOW_MILLIS);
+
+        assertEquals(1, world.registered.size());
+        assertEquals("name", world.registered.get(0));
+        long at = world.registeredAt.get(0);
+        assertTrue(at >= SETTLE_MILLIS && at <= SETTLE_MILLIS + WINDOW_MILLIS);
+        assertEquals(2, coordinator.getRefreshCount());
+        assertEquals(1, coordinator.getCollapsedCount());
+        assertFalse(store.isRefreshPending());
+    }
+
+    @Test
+    public void spreadsRegistrationsOverWindow() {
+        long earliest = Long.MAX_VALUE;
+        long latest = 0;
+        Random random = new Random(42);
+        for (int i = 0; i < 100; i++) {
+            FakeWorld device = new FakeWorld();
+            RegistrationStore store = new RegistrationStore(new MapBacking());
+            store.setLastIdentifier("name");
+            device.target = new RefreshCoordinator(store, device, device, device,
+                    SETTLE_MILLIS, WINDOW_MILLIS, random);
+            device.target.onTokenRefresh();
+            device.advance(SETTLE_MILLIS + WINDOW_MILLIS);
+            long at = device.registeredAt.get(0);
+            earliest = Math.min(earliest, at);
+            latest = Math.max(latest, at);
+        }
+        assertTrue(earliest >= SETTLE_MILLIS);
+        assertTrue(latest <= SETTLE_MILLIS + WINDOW_MILLIS);
+        assertTrue(latest - earliest > WINDOW_MILLIS / 2);
+    }
+
+    @Test
+    public void wakeUpInNewProcessRegisters() {
+        newCoordinator(newStore("name"), 1).onTokenRefresh();
+        long delay = world.pendingDelay();
+
+        // The process dies; the scheduled job starts a fresh one when it is due.
+        world.now += delay;
+        newCoordinator(new RegistrationStore(backing), 2).onDue(FakeWorld.IGNORE);
+
+        assertEquals(1, world.registered.size());
+        assertFalse(new RegistrationStore(backing).isRefreshPending());
+    }
+
+    @Test
+    public void resumeSchedulesRemainingDelay() {
+        newCoordinator(newStore("name"), 1).onTokenRefresh();
+        long delay = world.pendingDelay();
+        world.now += 10000;
+        world.wakeAt = -1;
+
+        newCoordinator(new RegistrationStore(backing), 2).resume();
+
+        assertEquals(delay - 10000, world.pendingDelay());
+        world.advance(delay);
+        assertEquals(1, world.registered.size());
+    }
+
+    @Test
+    public void resumeOfOverdueRefreshRunsRightAway() {
+        newCoordinator(newStore("name"), 1).onTokenRefresh();
+        world.now += SETTLE_MILLIS + WINDOW_MILLIS + 1;
+        world.wakeAt = -1;
+
+        newCoordinator(new RegistrationStore(backing), 2).resume();
+
+        assertEquals(0, world.pendingDelay());
+    }
+
+    @Test
+    public void earlyWakeUpReschedules() {
+        RefreshCoordinator coordinator = newCoordinator(newStore("name"), 1);
+        coordinator.onTokenRefresh();
+        long delay = world.pendingDelay();
+        world.now += 1000;
+
+        coordinator.onDue(FakeWorld.IGNORE);
+
+        assertTrue(world.registered.isEmpty());
+        assertEquals(delay - 1000, world.pendingDelay());
+    }
+
+    @Test
+    public void repeatedWakeUpRegistersOnce() {
+        RefreshCoordinator coordinator = newCoordinator(newStore("name"), 1);
+        coordinator.onTokenRefresh();
+        world.advance(SETTLE_MILLIS + WINDOW_MILLIS);
+        coordinator.onDue(FakeWorld.IGNORE);
+
+        assertEquals(1, world.registered.size());
+        assertEquals(1, coordinator.getRegistrationCount());
+    }
+
+    @Test
+    public void skipsDeviceThatNeverRegistered() {
+        RefreshCoordinator coordinator = newCoordinator(newStore(null), 1);
+        coordinator.onTokenRefresh();
+        world.advance(SETTLE_MILLIS + WINDOW_MILLIS);
+
+        assertTrue(world.registered.isEmpty());
+        assertEquals(1, coordinator.getSkippedCount());
+    }
+
+    @Test
+    public void staysPendingUntilConfirmed() {
+        RegistrationStore store = newStore("name");
+        RefreshCoordinator coordinator = newCoordinator(store, 1);
+        world.confirm = false;
+        coordinator.onTokenRefresh();
+        world.advance(SETTLE_MILLIS + WINDOW_MILLIS);
+
+        assertEquals(1, world.registered.size());
+        assertTrue(store.isRefreshPending());
+
+        // The process dies before the reply; the next start registers again.
+        newCoordinator(new RegistrationStore(backing), 2).resume();
+        world.confirm = true;
+        world.advance(0);
+
+        assertEquals(2, world.registered.size());
+        assertFalse(new RegistrationStore(backing).isRefreshPending());
+    }
+
+    @Test
+    public void failedRegistrationAsksForRetry() {
+        RegistrationStore store = newStore("name");
+        RefreshCoordinator coordinator = newCoordinator(store, 1);
+        world.confirm = false;
+        world.fail = true;
+        coordinator.onTokenRefresh();
+        world.now += SETTLE_MILLIS + WINDOW_MILLIS;
+        world.wakeAt = -1;
+
+        final List<Boolean> retries = new ArrayList<Boolean>();
+        RefreshCoordinator.Callback callback = new RefreshCoordinator.Callback() {
+            @Override
+            public void onFinished(boolean retry) {
+                retries.add(retry);
+            }
+        };
+        coordinator.onDue(callback);
+        world.fail = false;
+        world.confirm = true;
+        coordinator.onDue(callback);
+
+        assertEquals(Arrays.asList(true, false), retries);
+        assertEquals(2, world.registered.size());
+        assertFalse(store.isRefreshPending());
+    }
+
+    @Test
+    public void wakeUpDuringRegistrationDoesNothing() {
+        RegistrationStore store = newStore("name");
+        RefreshCoordinator coordinator = newCoordinator(store, 1);
+        world.hold = true;
+        coordinator.onTokenRefresh();
+        world.advance(SETTLE_MILLIS + WINDOW_MILLIS);
+        coordinator.onDue(FakeWorld.IGNORE);
+
+        assertEquals(1, world.registered.size());
+        world.finishHeld();
+        assertFalse(store.isRefreshPending());
+    }
+
+    @Test
+    public void earlyConfirmationKeepsRefreshPending() {
+        RegistrationStore store = newStore("name");
+        RefreshCoordinator coordinator = newCoordinator(store, 1);
+        coordinator.onTokenRefresh();
+
+        coordinator.onConfirmed();
+
+        assertTrue(store.isRefreshPending());
+    }
+
+    private RegistrationStore newStore(String lastIdentifier) {
+        RegistrationStore store = new RegistrationStore(backing);
+        if (lastIdentifier != null) {
+            store.setLastIdentifier(lastIdentifier);
+        }
+        return store;
+    }
+
+    private RefreshCoordinator newCoordinator(RegistrationStore store, long seed) {
+        world.target = new RefreshCoordinator(store, world, world, world, SETTLE_MILLIS,
+                WINDOW_MILLIS, new Random(seed));
+        return world.target;
+    }
+
+    /**
+     * Simulated wall clock with a single scheduled wake-up, like a job that is replaced when
+     * scheduled again. Wake-ups go to the coordinator that scheduled them last.
+     */
+    private static class FakeWorld implements RefreshCoordinator.Clock,
+            RefreshCoordinator.Scheduler, RefreshCoordinator.Registrar {
+
+        static final RefreshCoordinator.Callback IGNORE = new RefreshCoordinator.Callback() {
+            @Override
+            public void onFinished(boolean retry) {
+            }
+        };
+
+        final List<String> registered = new ArrayList<String>();
+        final List<Long> registeredAt = new ArrayList<Long>();
+        long now;
+        long wakeAt = -1;
+        RefreshCoordinator target;
+        // How the next registrations end: confirmed by the app server, failed, or held
+        // until finishHeld().
+        boolean confirm = true;
+        boolean fail;
+        boolean hold;
+        RefreshCoordinator.Callback held;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+
+        @Override
+        public void schedule(long delayMillis) {
+            wakeAt = now + delayMillis;
+        }
+
+        @Override
+        public void register(String stringIdentifier, RefreshCoordinator.Callback callback) {
+            registered.add(stringIdentifier);
+            registeredAt.add(now);
+            if (hold) {
+                held = callback;
+                return;
+            }
+            finish(callback);
+        }
+
+        void finishHeld() {
+            RefreshCoordinator.Callback callback = held;
+            held = null;
+            finish(callback);
+        }
+
+        private void finish(RefreshCoordinator.Callback callback) {
+            if (confirm && !fail) {
+                target.onConfirmed();
+            }
+            callback.onFinished(fail);
+        }
+
+        long pendingDelay() {
+            assertTrue(wakeAt >= 0);
+            return wakeAt - now;
+        }
+
+        void advance(long millis) {
+            long end = now + millis;
+            while (wakeAt >= 0 && wakeAt <= end) {
+                now = wakeAt;
+                wakeAt = -1;
+                target.onDue(IGNORE);
+            }
+            now = end;
+        }
+    }
+
+    private static class MapBacking implements KeyValueStore {
+
+        private final Map<String, String> values = new HashMap<String, String>();
+
+        @Override
+        public String get(String key) {
+            return values.get(key);
+        }
+
+        @Override
+        public void put(String key, String value) {
+            values.put(key, value);
+        }
+
+        @Override
+        public void remove(String key) {
+            values.remove(key);
+        }
+    }
+}
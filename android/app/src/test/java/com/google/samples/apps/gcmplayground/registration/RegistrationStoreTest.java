@@ -0,0 +1,126 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.registration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.samples.apps.gcmplayground.util.KeyValueStore;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class RegistrationStoreTest {
+
+    private static final String SENDER_ID = "1234";
+
+    private final MapBacking backing = new MapBacking();
+    private final RegistrationStore store = new RegistrationStore(backing);
+
+    @Test
+    public void sentRegistrationIsPendingUntilConfirmed() {
+        store.setSent(SENDER_ID, "token", "name");
+        assertFalse(store.isRegistered(SENDER_ID, "token", "name"));
+        assertNull(store.getToken(SENDER_ID));
+
+        assertTrue(store.confirm(SENDER_ID, "token"));
+        assertTrue(store.isRegistered(SENDER_ID, "token", "name"));
+        assertEquals("token", store.getToken(SENDER_ID));
+        assertEquals("name", store.getStringIdentifier(SENDER_ID));
+        assertEquals(1, store.getPerformedCount());
+    }
+
+    @Test
+    public void confirmationSurvivesRestart() {
+        store.setSent(SENDER_ID, "token", "name");
+        RegistrationStore restarted = new RegistrationStore(backing);
+        assertTrue(restarted.confirm(SENDER_ID, "token"));
+
+        assertTrue(new RegistrationStore(backing).isRegistered(SENDER_ID, "token", "name"));
+    }
+
+    @Test
+    public void replyForOtherTokenDoesNotConfirm() {
+        store.setSent(SENDER_ID, "new", "name");
+        assertFalse(store.confirm(SENDER_ID, "old"));
+        assertFalse(store.isRegistered(SENDER_ID, "new", "name"));
+
+        // Replies without a token confirm whatever was sent last.
+        assertTrue(store.confirm(SENDER_ID, null));
+        assertTrue(store.isRegistered(SENDER_ID, "new", "name"));
+    }
+
+    @Test
+    public void replyWithoutPendingRegistrationIsIgnored() {
+        assertFalse(store.confirm(SENDER_ID, "token"));
+        store.setSent(SENDER_ID, "token", "name");
+        assertTrue(store.confirm(SENDER_ID, "token"));
+        assertFalse(store.confirm(SENDER_ID, "token"));
+    }
+
+    @Test
+    public void clearDropsPendingRegistration() {
+        store.setSent(SENDER_ID, "token", "name");
+        store.clear(SENDER_ID);
+        assertFalse(store.confirm(SENDER_ID, "token"));
+        assertFalse(store.isRegistered(SENDER_ID, "token", "name"));
+    }
+
+    @Test
+    public void lookupsDoNotCountSkips() {
+        store.setSent(SENDER_ID, "token", "name");
+        store.confirm(SENDER_ID, "token");
+        store.isRegistered(SENDER_ID, "token", "name");
+        store.isRegistered(SENDER_ID, "token", "name");
+        assertEquals(0, store.getSkippedCount());
+
+        store.onSkipped();
+        assertEquals(1, store.getSkippedCount());
+        assertEquals(1, store.getPerformedCount());
+    }
+
+    @Test
+    public void laterRequestSupersedesEarlier() {
+        long first = store.newRequest();
+        long second = store.newRequest();
+        assertTrue(store.isSuperseded(first));
+        assertFalse(store.isSuperseded(second));
+        assertEquals(1, store.getSupersededCount());
+    }
+
+    private static class MapBacking implements KeyValueStore {
+
+        private final Map<String, String> values = new HashMap<String, String>();
+
+        @Override
+        public String get(String key) {
+            return values.get(key);
+        }
+
+        @Override
+        public void put(String key, String value) {
+            values.put(key, value);
+        }
+
+        @Override
+        public void remove(String key) {
+            values.remove(key);
+        }
+    }
+}
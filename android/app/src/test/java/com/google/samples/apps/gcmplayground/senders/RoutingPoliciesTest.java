@@ -0,0 +1,117 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.senders;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.google.samples.apps.gcmplayground.upstream.UpstreamDispatcher;
+import com.google.samples.apps.gcmplayground.upstream.UpstreamSender;
+import com.google.samples.apps.gcmplayground.util.MessageIdGenerator;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class RoutingPoliciesTest {
+
+    private final List<Sender> senders = new ArrayList<Sender>();
+    private final List<UpstreamDispatcher> dispatchers = new ArrayList<UpstreamDispatcher>();
+
+    @After
+    public void tearDown() {
+        for (UpstreamDispatcher dispatcher : dispatchers) {
+            dispatcher.shutdown();
+        }
+    }
+
+    @Test
+    public void leastLoadedSkipsUnregisteredSenders() {
+        newSender("1");
+        Sender second = newSender("2");
+        second.setRegistered(true);
+
+        assertSame(second, RoutingPolicies.LEAST_LOADED.route(senders, null, payload()));
+    }
+
+    @Test
+    public void hashSkipsUnregisteredSenders() {
+        newSender("1");
+        newSender("2");
+        Sender third = newSender("3");
+        third.setRegistered(true);
+
+        for (int i = 0; i < 50; i++) {
+            assertSame(third, RoutingPolicies.HASH.route(senders, "client-" + i, payload()));
+        }
+    }
+
+    @Test
+    public void hashSpreadsOverSendersOnceRegistered() {
+        Sender first = newSender("1");
+        Sender second = newSender("2");
+        first.setRegistered(true);
+        second.setRegistered(true);
+
+        Set<Sender> used = new HashSet<Sender>();
+        for (int i = 0; i < 50; i++) {
+            used.add(RoutingPolicies.HASH.route(senders, "client-" + i, payload()));
+        }
+        assertEquals(2, used.size());
+    }
+
+    @Test
+    public void noRegisteredSenderRoutesNowhere() {
+        newSender("1");
+        newSender("2");
+
+        assertNull(RoutingPolicies.LEAST_LOADED.route(senders, null, payload()));
+        assertNull(RoutingPolicies.HASH.route(senders, "client", payload()));
+    }
+
+    @Test
+    public void registryFallsBackToDefaultSender() {
+        Sender first = newSender("1");
+        newSender("2");
+        SenderRegistry registry = new SenderRegistry(senders, RoutingPolicies.HASH);
+        registry.setRoutingKey("client");
+
+        assertSame(first, registry.route(payload()));
+    }
+
+    private Sender newSender(String senderId) {
+        UpstreamDispatcher dispatcher = new UpstreamDispatcher(new UpstreamSender() {
+            @Override
+            public void send(String to, String messageId, Map<String, String> data) {
+            }
+        }, senderId + "@gcm.googleapis.com", new MessageIdGenerator("t-"));
+        dispatchers.add(dispatcher);
+        Sender sender = new Sender(senderId, senderId + "@gcm.googleapis.com", dispatcher);
+        senders.add(sender);
+        return sender;
+    }
+
+    private static Map<String, String> payload() {
+        return new HashMap<String, String>();
+    }
+
+}
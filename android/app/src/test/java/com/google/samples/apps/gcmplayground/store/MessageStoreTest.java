@@ -0,0 +1,217 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class MessageStoreTest {
+
+    private static final int SEGMENT_BYTES = 4096;
+    private static final int RECORDS = 500;
+    private static final long START_MILLIS = 1000000;
+    private static final String[] ACTIONS = {"upstream_message", "register_new_client", null};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private MessageStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("messages");
+        store = new MessageStore(directory, SEGMENT_BYTES, 100);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.close();
+    }
+
+    @Test
+    public void queriesTimeRangeAcrossSegments() throws IOException {
+        appendRecords(store, 0, RECORDS);
+        assertTrue(store.getSegmentCount() > 5);
+
+        List<MessageRecord> found = store.query(null, START_MILLIS + 100, START_MILLIS + 400,
+                RECORDS);
+
+        assertEquals(300, found.size());
+        for (int i = 0; i < found.size(); i++) {
+            assertRecord(100 + i, found.get(i));
+        }
+        assertEquals(20, store.query(null, START_MILLIS + 100, START_MILLIS + 400, 20).size());
+        assertEquals(0, store.query(null, START_MILLIS + RECORDS, Long.MAX_VALUE, 10).size());
+    }
+
+    @Test
+    public void queriesActionAcrossSegments() throws IOException {
+        appendRecords(store, 0, RECORDS);
+
+        List<MessageRecord> found = store.query(ACTIONS[1], START_MILLIS + 50,
+                START_MILLIS + 450, RECORDS);
+
+        assertEquals(expectedCount(1, 50, 450), found.size());
+        long previous = Long.MIN_VALUE;
+        for (MessageRecord record : found) {
+            assertEquals(ACTIONS[1], record.getAction());
+            assertTrue(record.getTimestampMillis() >= START_MILLIS + 50);
+            assertTrue(record.getTimestampMillis() < START_MILLIS + 450);
+            assertTrue(record.getTimestampMillis() > previous);
+            previous = record.getTimestampMillis();
+            assertRecord((int) (record.getTimestampMillis() - START_MILLIS), record);
+        }
+    }
+
+    @Test
+    public void reopenAfterRestartKeepsRecordsAndAppends() throws IOException {
+        appendRecords(store, 0, RECORDS);
+        int segments = store.getSegmentCount();
+        store.close();
+
+        store = new MessageStore(directory, SEGMENT_BYTES, 100);
+        assertEquals(RECORDS, store.size());
+        assertEquals(segments, store.getSegmentCount());
+        appendRecords(store, RECORDS, 10);
+
+        List<MessageRecord> found = store.query(null, START_MILLIS + RECORDS - 5,
+                Long.MAX_VALUE, RECORDS);
+        assertEquals(15, found.size());
+        for (int i = 0; i < found.size(); i++) {
+            assertRecord(RECORDS - 5 + i, found.get(i));
+        }
+        assertEquals(expectedCount(0, 0, RECORDS + 10),
+                store.query(ACTIONS[0], 0, Long.MAX_VALUE, 2 * RECORDS).size());
+    }
+
+    @Test
+    public void reopenRebuildsLostIndexes() throws IOException {
+        appendRecords(store, 0, RECORDS);
+        store.close();
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".idx")) {
+                assertTrue(file.delete());
+            }
+        }
+
+        store = new MessageStore(directory, SEGMENT_BYTES, 100);
+        assertEquals(RECORDS, store.size());
+        assertEquals(expectedCount(1, 0, RECORDS),
+                store.query(ACTIONS[1], 0, Long.MAX_VALUE, RECORDS).size());
+    }
+
+    @Test
+    public void reopenDropsCorruptTail() throws IOException {
+        appendRecords(store, 0, 10);
+        store.close();
+        // The active segment is the only one; its last non-zero byte is in the last record.
+        RandomAccessFile file = new RandomAccessFile(new File(directory, "000000000000.seg"), "rw");
+        try {
+            long position = file.length() - 1;
+            file.seek(position);
+            while (file.read() == 0) {
+                file.seek(--position);
+            }
+            file.seek(position);
+            file.write(0x7f);
+        } finally {
+            file.close();
+        }
+
+        store = new MessageStore(directory, SEGMENT_BYTES, 100);
+        assertEquals(9, store.size());
+        appendRecords(store, 10, 1);
+        List<MessageRecord> found = store.query(null, 0, Long.MAX_VALUE, RECORDS);
+        assertEquals(10, found.size());
+        assertRecord(10, found.get(9));
+    }
+
+    @Test
+    public void deletesOldestSegments() throws IOException {
+        store.close();
+        store = new MessageStore(directory, SEGMENT_BYTES, 3);
+        appendRecords(store, 0, RECORDS);
+
+        assertEquals(3, store.getSegmentCount());
+        assertTrue(store.getDeletedSegmentCount() > 0);
+        List<MessageRecord> found = store.query(null, 0, Long.MAX_VALUE, RECORDS);
+        assertEquals(store.size(), found.size());
+        assertRecord(RECORDS - 1, found.get(found.size() - 1));
+    }
+
+    @Test
+    public void clampsTimestampsThatGoBackwards() throws IOException {
+        store.append(record(5000, "first"));
+        store.append(record(4000, "second"));
+
+        List<MessageRecord> found = store.query(null, 5000, 5001, 10);
+        assertEquals(2, found.size());
+        assertEquals("second", found.get(1).getData().get("message"));
+    }
+
+    private static void appendRecords(MessageStore store, int from, int count)
+            throws IOException {
+        for (int i = from; i < from + count; i++) {
+            store.append(record(START_MILLIS + i, "message " + i));
+        }
+    }
+
+    private static MessageRecord record(long timestampMillis, String text) {
+        int i = (int) (timestampMillis - START_MILLIS);
+        String action = ACTIONS[Math.abs(i % ACTIONS.length)];
+        Map<String, String> data = new HashMap<String, String>();
+        data.put("message", text);
+        data.put("action", action);
+        return new MessageRecord(timestampMillis,
+                i % 2 == 0 ? MessageRecord.Direction.SENT : MessageRecord.Direction.RECEIVED,
+                "sender-" + (i % 4), action, data);
+    }
+
+    private static void assertRecord(int i, MessageRecord record) {
+        assertEquals(START_MILLIS + i, record.getTimestampMillis());
+        assertEquals(i % 2 == 0 ? MessageRecord.Direction.SENT
+                : MessageRecord.Direction.RECEIVED, record.getDirection());
+        assertEquals("sender-" + (i % 4), record.getPeer());
+        assertEquals(ACTIONS[i % ACTIONS.length], record.getAction());
+        assertEquals("message " + i, record.getData().get("message"));
+    }
+
+    /**
+     * @return Records in [from, to) that have the n-th action
+     */
+    private static int expectedCount(int action, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (i % ACTIONS.length == action) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
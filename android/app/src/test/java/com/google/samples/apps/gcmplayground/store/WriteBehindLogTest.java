@@ -0,0 +1,157 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.store;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class WriteBehindLogTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final long NEVER_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private WriteBehindLog log;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("messages");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    @Test
+    public void writesOnceBatchIsFull() throws Exception {
+        log = newLog(100, 10, NEVER_MILLIS);
+        for (int i = 0; i < 9; i++) {
+            log.record(record(i));
+        }
+        Thread.sleep(50);
+        assertEquals(0, log.getWrittenCount());
+
+        log.record(record(9));
+        awaitWritten(10);
+    }
+
+    @Test
+    public void writesAfterFlushDelay() throws Exception {
+        log = newLog(100, 10, 50);
+        log.record(record(0));
+        log.record(record(1));
+
+        awaitWritten(2);
+    }
+
+    @Test
+    public void flushWritesBufferedRecords() throws Exception {
+        log = newLog(100, 10, NEVER_MILLIS);
+        for (int i = 0; i < 3; i++) {
+            log.record(record(i));
+        }
+
+        log.flush().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals(3, log.getWrittenCount());
+    }
+
+    @Test
+    public void querySeesRecordsStillBuffered() throws Exception {
+        log = newLog(100, 10, NEVER_MILLIS);
+        for (int i = 0; i < 5; i++) {
+            log.record(record(i));
+        }
+
+        List<MessageRecord> found = log.query(null, 0, Long.MAX_VALUE, 100)
+                .get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals(5, found.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals("message " + i, found.get(i).getData().get("message"));
+        }
+    }
+
+    @Test
+    public void dropsOldestRecordsWhenFull() throws Exception {
+        log = newLog(4, 100, NEVER_MILLIS);
+        for (int i = 0; i < 7; i++) {
+            log.record(record(i));
+        }
+
+        List<MessageRecord> found = log.query(null, 0, Long.MAX_VALUE, 100)
+                .get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals(3, log.getDroppedCount());
+        assertEquals(4, found.size());
+        assertEquals("message 3", found.get(0).getData().get("message"));
+    }
+
+    @Test
+    public void closeWritesBufferedRecordsAndDropsLaterOnes() throws Exception {
+        log = newLog(100, 10, NEVER_MILLIS);
+        for (int i = 0; i < 3; i++) {
+            log.record(record(i));
+        }
+        log.close();
+        log.record(record(3));
+
+        assertEquals(3, log.getWrittenCount());
+        assertEquals(1, log.getDroppedCount());
+        log = null;
+        MessageStore store = new MessageStore(directory);
+        try {
+            assertEquals(3, store.size());
+        } finally {
+            store.close();
+        }
+    }
+
+    private WriteBehindLog newLog(int capacity, int batchSize, long flushDelayMillis) {
+        return new WriteBehindLog(new WriteBehindLog.Opener() {
+            @Override
+            public MessageStore open() throws IOException {
+                return new MessageStore(directory);
+            }
+        }, capacity, batchSize, flushDelayMillis);
+    }
+
+    private void awaitWritten(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (log.getWrittenCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, log.getWrittenCount());
+    }
+
+    private static MessageRecord record(int i) {
+        return new MessageRecord(1000 + i, MessageRecord.Direction.RECEIVED, "sender",
+                "upstream_message", Collections.singletonMap("message", "message " + i));
+    }
+}
@@ -0,0 +1,137 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.tasks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TaskSchedulerTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final TaskScheduler scheduler = new TaskScheduler(4, DIRECT);
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void serialLaneRunsOneTaskAtATime() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(scheduler.execute(TaskScheduler.Lane.REGISTRATION, new Runnable() {
+                @Override
+                public void run() {
+                    int now = running.incrementAndGet();
+                    if (now > maxRunning.get()) {
+                        maxRunning.set(now);
+                    }
+                    sleep(5);
+                    running.decrementAndGet();
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        assertEquals(1, maxRunning.get());
+    }
+
+    @Test
+    public void otherLanesRunInParallel() throws Exception {
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 2; i++) {
+            scheduler.execute(TaskScheduler.Lane.TOPIC_SYNC, new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    await(release);
+                }
+            });
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    public void cancelledSerialTaskReleasesLane() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch blocking = new CountDownLatch(1);
+        scheduler.execute(TaskScheduler.Lane.REGISTRATION, new Runnable() {
+            @Override
+            public void run() {
+                blocking.countDown();
+                await(release);
+            }
+        });
+        assertTrue(blocking.await(5, TimeUnit.SECONDS));
+
+        final AtomicInteger cancelledRuns = new AtomicInteger();
+        TaskScheduler.Scope scope = scheduler.newScope();
+        scope.submit(TaskScheduler.Lane.REGISTRATION, new TaskScheduler.Task<Void>() {
+            @Override
+            protected Void run() {
+                cancelledRuns.incrementAndGet();
+                return null;
+            }
+        });
+        scope.cancel();
+        Future<?> after = scheduler.execute(TaskScheduler.Lane.REGISTRATION, new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        release.countDown();
+
+        after.get(5, TimeUnit.SECONDS);
+        assertEquals(0, cancelledRuns.get());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
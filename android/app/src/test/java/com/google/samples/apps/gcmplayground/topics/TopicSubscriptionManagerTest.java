@@ -0,0 +1,240 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.topics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.samples.apps.gcmplayground.util.KeyValueStore;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TopicSubscriptionManagerTest {
+
+    private final FakeTopicClient client = new FakeTopicClient();
+    private final MapBacking backing = new MapBacking();
+
+    @Test
+    public void firstSyncSubscribesEveryWantedTopic() {
+        TopicSubscriptionManager manager = newManager(4, 3);
+        manager.addTopic("/topics/a");
+        manager.addTopic("/topics/b");
+
+        TopicSubscriptionManager.SyncResult result = manager.sync("t1");
+
+        assertTrue(result.isSuccess());
+        assertEquals(set("/topics/a", "/topics/b"), new HashSet<String>(result.subscribed));
+        assertTrue(result.unsubscribed.isEmpty());
+        assertEquals(set("sub t1 /topics/a", "sub t1 /topics/b"), client.calls());
+        assertTrue(manager.isSubscribed("t1", "/topics/a"));
+        assertFalse(manager.isSubscribed("t2", "/topics/a"));
+    }
+
+    @Test
+    public void syncOnlyCallsForTheDifference() {
+        TopicSubscriptionManager manager = newManager(4, 3);
+        manager.addTopic("/topics/a");
+        manager.addTopic("/topics/b");
+        manager.sync("t1");
+        client.clearCalls();
+
+        TopicSubscriptionManager.SyncResult unchanged = manager.sync("t1");
+        assertTrue(unchanged.subscribed.isEmpty());
+        assertTrue(client.calls().isEmpty());
+
+        manager.removeTopic("/topics/a");
+        manager.addTopic("/topics/c");
+        TopicSubscriptionManager.SyncResult changed = manager.sync("t1");
+
+        assertEquals(Collections.singletonList("/topics/c"), changed.subscribed);
+        assertEquals(Collections.singletonList("/topics/a"), changed.unsubscribed);
+        assertEquals(set("sub t1 /topics/c", "unsub t1 /topics/a"), client.calls());
+        assertFalse(manager.isSubscribed("t1", "/topics/a"));
+    }
+
+    @Test
+    public void newTokenSubscribesEverythingAgain() {
+        TopicSubscriptionManager manager = newManager(4, 3);
+        manager.addTopic("/topics/a");
+        manager.sync("t1");
+        client.clearCalls();
+
+        TopicSubscriptionManager.SyncResult result = manager.sync("t2");
+
+        assertEquals(Collections.singletonList("/topics/a"), result.subscribed);
+        assertEquals(set("sub t2 /topics/a"), client.calls());
+        assertFalse(manager.isSubscribed("t1", "/topics/a"));
+        assertTrue(manager.isSubscribed("t2", "/topics/a"));
+    }
+
+    @Test
+    public void stateSurvivesRestart() {
+        TopicSubscriptionManager manager = newManager(4, 3);
+        manager.addTopic("/topics/a");
+        manager.addTopic("/topics/b");
+        manager.sync("t1");
+        client.clearCalls();
+
+        TopicSubscriptionManager restarted = newManager(4, 3);
+        assertEquals(set("/topics/a", "/topics/b"), restarted.getTopics());
+        assertTrue(restarted.isSubscribed("t1", "/topics/b"));
+        restarted.sync("t1");
+        assertTrue(client.calls().isEmpty());
+    }
+
+    @Test
+    public void retriesTransientFailures() {
+        TopicSubscriptionManager manager = newManager(4, 3);
+        client.failures.put("/topics/a", 2);
+        manager.addTopic("/topics/a");
+
+        TopicSubscriptionManager.SyncResult result = manager.sync("t1");
+
+        assertTrue(result.isSuccess());
+        assertEquals(3, manager.getCallCount());
+        assertEquals(2, manager.getRetryCount());
+    }
+
+    @Test
+    public void reportsPersistentFailureAndRetriesOnNextSync() {
+        TopicSubscriptionManager manager = newManager(4, 2);
+        client.failures.put("/topics/a", 5);
+        manager.addTopic("/topics/a");
+        manager.addTopic("/topics/b");
+
+        TopicSubscriptionManager.SyncResult result = manager.sync("t1");
+        assertFalse(result.isSuccess());
+        assertEquals(Collections.singletonList("/topics/a"), result.failed);
+        assertEquals(Collections.singletonList("/topics/b"), result.subscribed);
+        assertFalse(manager.isSubscribed("t1", "/topics/a"));
+
+        client.failures.clear();
+        client.clearCalls();
+        result = manager.sync("t1");
+        assertTrue(result.isSuccess());
+        assertEquals(set("sub t1 /topics/a"), client.calls());
+    }
+
+    @Test
+    public void boundsCallsInFlight() {
+        TopicSubscriptionManager manager = newManager(3, 1);
+        client.callMillis = 5;
+        for (int i = 0; i < 20; i++) {
+            manager.addTopic("/topics/" + i);
+        }
+
+        assertTrue(manager.sync("t1").isSuccess());
+        assertEquals(20, client.calls().size());
+        assertTrue(client.maxInFlight.get() <= 3);
+    }
+
+    private TopicSubscriptionManager newManager(int parallelism, int maxAttempts) {
+        return new TopicSubscriptionManager(client, backing, parallelism, maxAttempts, 1);
+    }
+
+    private static HashSet<String> set(String... values) {
+        return new HashSet<String>(Arrays.asList(values));
+    }
+
+    /**
+     * Records calls and fails a topic a given number of times.
+     */
+    private static class FakeTopicClient implements TopicClient {
+
+        final Map<String, Integer> failures = new ConcurrentHashMap<String, Integer>();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        volatile long callMillis;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final List<String> calls = new ArrayList<String>();
+
+        @Override
+        public void subscribe(String token, String topic) throws IOException {
+            call("sub " + token + " " + topic, topic);
+        }
+
+        @Override
+        public void unsubscribe(String token, String topic) throws IOException {
+            call("unsub " + token + " " + topic, topic);
+        }
+
+        synchronized HashSet<String> calls() {
+            return new HashSet<String>(calls);
+        }
+
+        synchronized void clearCalls() {
+            calls.clear();
+        }
+
+        private void call(String call, String topic) throws IOException {
+            int now = inFlight.incrementAndGet();
+            while (true) {
+                int max = maxInFlight.get();
+                if (now <= max || maxInFlight.compareAndSet(max, now)) {
+                    break;
+                }
+            }
+            try {
+                if (callMillis > 0) {
+                    Thread.sleep(callMillis);
+                }
+                Integer remaining = failures.get(topic);
+                if (remaining != null && remaining > 0) {
+                    failures.put(topic, remaining - 1);
+                    throw new IOException("Fake failure for " + topic);
+                }
+                synchronized (this) {
+                    calls.add(call);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private static class MapBacking implements KeyValueStore {
+
+        private final Map<String, String> values = new HashMap<String, String>();
+
+        @Override
+        public synchronized String get(String key) {
+            return values.get(key);
+        }
+
+        @Override
+        public synchronized void put(String key, String value) {
+            values.put(key, value);
+        }
+
+        @Override
+        public synchronized void remove(String key) {
+            values.remove(key);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.trace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class TraceReaderTest {
+
+    private static final long START_MILLIS = 1447201240000L;
+    private static final long START_NANOS = 123456789L;
+    private static final String SENDER = "123456789012";
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    @Test
+    public void roundTripKeepsTimeSenderActionAndPayload() throws IOException {
+        TraceWriter writer = new TraceWriter(bytes, START_MILLIS, START_NANOS);
+        writer.write(TraceEvent.Kind.DOWNSTREAM, START_NANOS + 1500, SENDER,
+                message(RegistrationConstants.UPSTREAM_MESSAGE, "hello \u00e9\ud83d\ude00"));
+        writer.write(TraceEvent.Kind.UPSTREAM, START_NANOS + 4000000000L, null,
+                message(RegistrationConstants.REGISTER_NEW_CLIENT, null));
+        // Earlier than the previous event: recorded at the same time.
+        writer.write(TraceEvent.Kind.DOWNSTREAM, START_NANOS + 1000, SENDER,
+                message(RegistrationConstants.UPSTREAM_MESSAGE, ""));
+        writer.close();
+        assertEquals(3, writer.getEventCount());
+
+        TraceReader reader = reader();
+        assertEquals(START_MILLIS, reader.getStartMillis());
+        assertEvent(reader.next(), TraceEvent.Kind.DOWNSTREAM, 1500, SENDER,
+                message(RegistrationConstants.UPSTREAM_MESSAGE, "hello \u00e9\ud83d\ude00"));
+        assertEvent(reader.next(), TraceEvent.Kind.UPSTREAM, 4000000000L, null,
+                message(RegistrationConstants.REGISTER_NEW_CLIENT, null));
+        assertEvent(reader.next(), TraceEvent.Kind.DOWNSTREAM, 4000000000L, SENDER,
+                message(RegistrationConstants.UPSTREAM_MESSAGE, ""));
+        assertNull(reader.next());
+        assertFalse(reader.isTruncated());
+    }
+
+    @Test
+    public void truncatedTailEndsAtLastCompleteEvent() throws IOException {
+        TraceWriter writer = new TraceWriter(bytes, START_MILLIS, START_NANOS);
+        writer.write(TraceEvent.Kind.DOWNSTREAM, START_NANOS + 10, SENDER,
+                message(RegistrationConstants.UPSTREAM_MESSAGE, "first"));
+        writer.write(TraceEvent.Kind.DOWNSTREAM, START_NANOS + 20, SENDER,
+                message(RegistrationConstants.UPSTREAM_MESSAGE, "second"));
+        writer.flush();
+        int complete = bytes.size();
+        writer.write(TraceEvent.Kind.UPSTREAM, START_NANOS + 30, "other",
+                message(RegistrationConstants.UPSTREAM_MESSAGE, "third"));
+        writer.close();
+        byte[] trace = bytes.toByteArray();
+
+        for (int length = complete; length < trace.length; length++) {
+            TraceReader reader = new TraceReader(
+                    new ByteArrayInputStream(Arrays.copyOf(trace, length)));
+            assertEquals("first", reader.next().getData().get("message"));
+            TraceEvent second = reader.next();
+            assertEquals(20, second.getOffsetNanos());
+            assertEquals("second", second.getData().get("message"));
+            assertNull(reader.next());
+            assertEquals(length > complete, reader.isTruncated());
+        }
+    }
+
+    @Test
+    public void readsStringsBeyondFullStringTable() throws IOException {
+        TraceWriter writer = new TraceWriter(bytes, START_MILLIS, START_NANOS);
+        int peers = TraceWriter.MAX_STRING_TABLE_SIZE + 10;
+        for (int i = 0; i < peers; i++) {
+            writer.write(TraceEvent.Kind.DOWNSTREAM, START_NANOS + i, "peer-" + i,
+                    message(RegistrationConstants.UPSTREAM_MESSAGE, "m"));
+        }
+        writer.write(TraceEvent.Kind.DOWNSTREAM, START_NANOS + peers, "peer-0",
+                message(RegistrationConstants.UPSTREAM_MESSAGE, "m"));
+        writer.write(TraceEvent.Kind.DOWNSTREAM, START_NANOS + peers, "peer-" + (peers - 1),
+                message(RegistrationConstants.UPSTREAM_MESSAGE, "m"));
+        writer.close();
+
+        TraceReader reader = reader();
+        for (int i = 0; i < peers; i++) {
+            assertEquals("peer-" + i, reader.next().getPeer());
+        }
+        assertEquals("peer-0", reader.next().getPeer());
+        assertEquals("peer-" + (peers - 1), reader.next().getPeer());
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void rejectsStreamThatIsNotATrace() throws IOException {
+        try {
+            new TraceReader(new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}));
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    private TraceReader reader() throws IOException {
+        return new TraceReader(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    private static Map<String, String> message(String action, String text) {
+        Map<String, String> data = new HashMap<String, String>();
+        data.put(RegistrationConstants.ACTION, action);
+        data.put(RegistrationConstants.EXTRA_KEY_MESSAGE, text);
+        return data;
+    }
+
+    private static void assertEvent(TraceEvent event, TraceEvent.Kind kind, long offsetNanos,
+            String peer, Map<String, String> data) {
+        assertEquals(kind, event.getKind());
+        assertEquals(offsetNanos, event.getOffsetNanos());
+        assertEquals(peer, event.getPeer());
+        assertEquals(data.get(RegistrationConstants.ACTION), event.getAction());
+        assertEquals(data, event.getData());
+    }
+}
@@ -0,0 +1,255 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.upstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+import com.google.samples.apps.gcmplayground.util.MessageIdGenerator;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class InFlightWindowTest {
+
+    private static final String TO = "server@gcm.googleapis.com";
+    private static final long ACK_TIMEOUT_MILLIS = 50;
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final AckingSender ccs = new AckingSender();
+    private final InFlightWindow window =
+            new InFlightWindow(ccs, 4, ACK_TIMEOUT_MILLIS, MAX_ATTEMPTS);
+    private UpstreamDispatcher dispatcher;
+
+    @After
+    public void tearDown() {
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+        }
+        window.shutdown();
+    }
+
+    @Test
+    public void retransmitsLostAckUnderSameId() throws Exception {
+        ccs.answers(Answer.LOST, Answer.ACK);
+        RecordingListener listener = new RecordingListener();
+
+        window.send(TO, "m-1", message("hello"), listener);
+
+        assertEquals("acked", listener.await());
+        assertEquals(Arrays.asList("m-1", "m-1"), ccs.ids());
+        assertEquals(1, window.getRetransmitCount());
+        assertEquals(0, window.getInFlightCount());
+    }
+
+    @Test
+    public void lostAcksAreUnconfirmedNotFailed() throws Exception {
+        ccs.answers(Answer.LOST, Answer.NACK, Answer.LOST);
+        RecordingListener listener = new RecordingListener();
+
+        window.send(TO, "m-1", message("hello"), listener);
+
+        assertEquals("unconfirmed", listener.await());
+        assertEquals(Arrays.asList("m-1", "m-1", "m-1"), ccs.ids());
+        assertEquals(1, window.getUnconfirmedCount());
+        assertEquals(0, window.getFailedCount());
+    }
+
+    @Test
+    public void rejectedLastAttemptFails() throws Exception {
+        ccs.answers(Answer.LOST, Answer.LOST, Answer.NACK);
+        RecordingListener listener = new RecordingListener();
+
+        window.send(TO, "m-1", message("hello"), listener);
+
+        assertEquals("failed", listener.await());
+        assertEquals(1, window.getFailedCount());
+        assertEquals(0, window.getUnconfirmedCount());
+    }
+
+    @Test
+    public void blockingSendWaitsForOutcome() throws Exception {
+        ccs.answers(Answer.LOST, Answer.ACK);
+        window.send(TO, "m-1", message("acked"));
+        assertEquals(1, window.getAckedCount());
+
+        ccs.answers(Answer.LOST, Answer.LOST, Answer.LOST);
+        window.send(TO, "m-2", message("unconfirmed"));
+        assertEquals(1, window.getUnconfirmedCount());
+
+        ccs.answers(Answer.NACK, Answer.NACK, Answer.NACK);
+        try {
+            window.send(TO, "m-3", message("rejected"));
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(0, window.getInFlightCount());
+    }
+
+    @Test
+    public void dispatcherReportsIdOfFailedMessage() throws Exception {
+        dispatcher = new UpstreamDispatcher(window, TO, new MessageIdGenerator("d-"), 16, 1,
+                1000);
+        ccs.answers(Answer.NACK, Answer.NACK, Answer.NACK);
+        final CountDownLatch failed = new CountDownLatch(1);
+        final String[] failedId = new String[1];
+
+        dispatcher.send(message("hello"), new UpstreamDispatcher.TrackedCallback() {
+            @Override
+            public void onSent(Map<String, String> data) {
+            }
+
+            @Override
+            public void onUnconfirmed(Map<String, String> data) {
+            }
+
+            @Override
+            public void onFailed(Map<String, String> data, Throwable error) {
+                fail("Tracked callbacks learn the message id");
+            }
+
+            @Override
+            public void onFailed(String messageId, Map<String, String> data, Throwable error) {
+                failedId[0] = messageId;
+                failed.countDown();
+            }
+        });
+
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        List<String> ids = ccs.ids();
+        assertEquals(MAX_ATTEMPTS, ids.size());
+        for (String id : ids) {
+            assertEquals(failedId[0], id);
+        }
+    }
+
+    @Test
+    public void dispatcherReportsUnconfirmedMessage() throws Exception {
+        dispatcher = new UpstreamDispatcher(window, TO, new MessageIdGenerator("d-"), 16, 1,
+                1000);
+        ccs.answers(Answer.LOST, Answer.LOST, Answer.LOST);
+        final CountDownLatch unconfirmed = new CountDownLatch(1);
+
+        Future<Void> sent = dispatcher.send(message("hello"), new UpstreamDispatcher.Callback() {
+            @Override
+            public void onSent(Map<String, String> data) {
+                fail("Unconfirmed message reported as sent");
+            }
+
+            @Override
+            public void onUnconfirmed(Map<String, String> data) {
+                unconfirmed.countDown();
+            }
+
+            @Override
+            public void onFailed(Map<String, String> data, Throwable error) {
+                fail("Unconfirmed message reported as failed");
+            }
+        });
+
+        assertTrue(unconfirmed.await(5, TimeUnit.SECONDS));
+        assertNull(sent.get(5, TimeUnit.SECONDS));
+        assertEquals(0, dispatcher.getSentCount());
+        assertEquals(1, dispatcher.getUnconfirmedCount());
+        assertEquals(0, dispatcher.getFailedCount());
+    }
+
+    private static Map<String, String> message(String text) {
+        Map<String, String> data = new HashMap<String, String>();
+        data.put(RegistrationConstants.ACTION, RegistrationConstants.UPSTREAM_MESSAGE);
+        data.put(RegistrationConstants.EXTRA_KEY_MESSAGE, text);
+        return data;
+    }
+
+    private enum Answer {
+        ACK, NACK, LOST
+    }
+
+    /**
+     * Answers each send with the next scripted answer, right away like a fast CCS; acks once
+     * the script runs out.
+     */
+    private class AckingSender implements UpstreamSender {
+        private final List<Answer> script = new ArrayList<Answer>();
+        private final List<String> ids = new ArrayList<String>();
+
+        synchronized void answers(Answer... answers) {
+            script.clear();
+            script.addAll(Arrays.asList(answers));
+            ids.clear();
+        }
+
+        synchronized List<String> ids() {
+            return new ArrayList<String>(ids);
+        }
+
+        @Override
+        public void send(String to, String messageId, Map<String, String> data) {
+            Answer answer;
+            synchronized (this) {
+                ids.add(messageId);
+                answer = script.isEmpty() ? Answer.ACK : script.remove(0);
+            }
+            if (answer == Answer.ACK) {
+                window.onAck(messageId);
+            } else if (answer == Answer.NACK) {
+                window.onNack(messageId, "SERVICE_NOT_AVAILABLE");
+            }
+        }
+    }
+
+    private static class RecordingListener implements InFlightWindow.Listener {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile String outcome;
+
+        @Override
+        public void onAcked(String messageId) {
+            finish("acked");
+        }
+
+        @Override
+        public void onUnconfirmed(String messageId) {
+            finish("unconfirmed");
+        }
+
+        @Override
+        public void onFailed(String messageId, Throwable error) {
+            finish("failed");
+        }
+
+        private void finish(String result) {
+            outcome = result;
+            done.countDown();
+        }
+
+        String await() throws InterruptedException {
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            return outcome;
+        }
+    }
+}
@@ -0,0 +1,443 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.upstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+import com.google.samples.apps.gcmplayground.util.MessageIdGenerator;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class OutboxTest {
+
+    private static final String TO = "server@gcm.googleapis.com";
+    private static final String OTHER = "other@gcm.googleapis.com";
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final FakeSender sender = new FakeSender();
+    private File file;
+    private String idPrefix = "t-";
+    private Outbox outbox;
+
+    @After
+    public void tearDown() throws IOException {
+        if (outbox != null) {
+            outbox.close();
+        }
+    }
+
+    @Test
+    public void replaysThroughWindowOneEntryAtATime() throws Exception {
+        InFlightWindow window = new InFlightWindow(sender, 4, 60000, 1);
+        file = new File(folder.getRoot(), "outbox.log");
+        outbox = new Outbox(file, window, TO, new MessageIdGenerator(idPrefix), 1, 10,
+                Outbox.DEFAULT_MAX_ENTRIES, Outbox.DEFAULT_MAX_BYTES);
+        sender.online = true;
+        for (int i = 0; i < 3; i++) {
+            outbox.add(message("message " + i));
+        }
+
+        // Each entry is handed over without waiting; the next one follows its ack.
+        for (int i = 0; i < 3; i++) {
+            awaitSent(i + 1);
+            assertEquals(1, window.getInFlightCount());
+            assertEquals(3 - i, outbox.size());
+            window.onAck(sender.attemptedIds().get(i));
+        }
+        awaitEmpty();
+
+        List<Map<String, String>> sent = sender.sent();
+        for (int i = 0; i < 3; i++) {
+            assertEquals("message " + i,
+                    sent.get(i).get(RegistrationConstants.EXTRA_KEY_MESSAGE));
+        }
+        window.shutdown();
+    }
+
+    @Test
+    public void retriesEntryRejectedThroughWindow() throws Exception {
+        InFlightWindow window = new InFlightWindow(sender, 4, 60000, 1);
+        file = new File(folder.getRoot(), "outbox.log");
+        outbox = new Outbox(file, window, TO, new MessageIdGenerator(idPrefix), 1, 10,
+                Outbox.DEFAULT_MAX_ENTRIES, Outbox.DEFAULT_MAX_BYTES);
+        sender.online = true;
+        outbox.add(message("rejected once"));
+
+        awaitSent(1);
+        window.onNack(sender.attemptedIds().get(0), "InternalServerError");
+        awaitSent(2);
+        window.onAck(sender.attemptedIds().get(1));
+        awaitEmpty();
+
+        assertEquals(1, outbox.getReplayFailureCount());
+        assertEquals(sender.attemptedIds().get(0), sender.attemptedIds().get(1));
+        window.shutdown();
+    }
+
+    @Test
+    public void replaysAppendedEntriesInOrder() throws Exception {
+        outbox = open(Outbox.DEFAULT_MAX_ENTRIES, Outbox.DEFAULT_MAX_BYTES);
+        for (int i = 0; i < 50; i++) {
+            outbox.add(message("message " + i));
+        }
+        assertEquals(50, outbox.size());
+
+        sender.online = true;
+        outbox.onConnectivityRestored();
+        awaitEmpty();
+
+        assertEquals(50, outbox.getReplayedCount());
+        List<Map<String, String>> sent = sender.sent();
+        for (int i = 0; i < 50; i++) {
+            assertEquals("message " + i,
+                    sent.get(i).get(RegistrationConstants.EXTRA_KEY_MESSAGE));
+        }
+    }
+
+    @Test
+    public void recoversPendingEntriesAfterRestart() throws Exception {
+        outbox = open(Outbox.DEFAULT_MAX_ENTRIES, Outbox.DEFAULT_MAX_BYTES);
+        outbox.add(message("first"));
+        outbox.add(message("second \u00e9\ud83d\ude00"));
+        outbox.close();
+
+        outbox = open(Outbox.DEFAULT_MAX_ENTRIES, Outbox.DEFAULT_MAX_BYTES);
+        assertEquals(2, outbox.size());
+        sender.online = true;
+        outbox.onConnectivityRestored();
+        awaitEmpty();
+        assertEquals("second \u00e9\ud83d\ude00",
+                sender.sent().get(1).get(RegistrationConstants.EXTRA_KEY_MESSAGE));
+
+        // Delivered entries stay delivered.
+        outbox.close();
+        outbox = open(Outbox.DEFAULT_MAX_ENTRIES, Outbox.DEFAULT_MAX_BYTES);
+        assertEquals(0, outbox.size());
+    }
+
+    @Test
+    public void dropsCorruptLastRecord() throws Exception {
+        outbox = open(Outbox.DEFAULT_MAX_ENTRIES, Outbox.DEFAULT_MAX_BYTES);
+        outbox.add(message("first"));
+        outbox.add(message("second"));
+        outbox.add(message("torn"));
+        outbox.close();
+
+        long[] records = recordOffsets();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // Flip a byte in the body of the last record, as a write cut short would.
+            long position = records[2] + 8 + 9;
+            raf.seek(position);
+            int value = raf.read();
+            raf.seek(position);
+            raf.write(value ^ 0xFF);
+        } finally {
+            raf.close();
+        }
+
+        outbox = open(Outbox.DEFAULT_MAX_ENTRIES, Outbox.DEFAULT_MAX_BYTES);
+        assertEquals(2, outbox.size());
+        outbox.add(message("after recovery"));
+        outbox.close();
+
+        outbox = open(Outbox.DEFAULT_MAX_ENTRIES, Outbox.DEFAULT_MAX_BYTES);
+        assertEquals(3, outbox.size());
+        sender.online = true;
+        outbox.onConnectivityRestored();
+        awaitEmpty();
+        List<Map<String, String>> sent = sender.sent();
+        assertEquals("second", sent.get(1).get(RegistrationConstants.EXTRA_KEY_MESSAGE));
+        assertEquals("after recovery",
+                sent.get(2).get(RegistrationConstants.EXTRA_KEY_MESSAGE));
+    }
+
+    @Test
+    public void ignoresTornHeaderAfterLastRecord() throws Exception {
+        outbox = open(Outbox.DEFAULT_MAX_ENTRIES, Outbox.DEFAULT_MAX_BYTES);
+        outbox.add(message("kept"));
+        outbox.close();
+
+        long[] records = recordOffsets();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // After the last record, a header claiming more bytes than the file holds.
+            raf.seek(records[0]);
+            raf.seek(records[0] + 8 + raf.readInt());
+            raf.writeInt(Integer.MAX_VALUE / 2);
+            raf.writeInt(42);
+        } finally {
+            raf.close();
+        }
+
+        outbox = open(Outbox.DEFAULT_MAX_ENTRIES, Outbox.DEFAULT_MAX_BYTES);
+        assertEquals(1, outbox.size());
+    }
+
+    @Test
+    public void compactsDeliveredEntries() throws Exception {
+        outbox = open(Outbox.DEFAULT_MAX_ENTRIES, Outbox.DEFAULT_MAX_BYTES);
+        sender.online = true;
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            text.append("padding ");
+        }
+        for (int i = 0; i < 500; i++) {
+            outbox.add(message(text + " " + i));
+            if (i % 50 == 49) {
+                awaitEmpty();
+            }
+        }
+        awaitEmpty();
+
+        assertTrue(outbox.getCompactionCount() > 0);
+        // Without compaction the log would hold all 500 entries and their acks.
+        assertTrue(file.length() < 500 * text.length());
+
+        sender.online = false;
+        outbox.add(message("pending"));
+        outbox.close();
+        outbox = open(Outbox.DEFAULT_MAX_ENTRIES, Outbox.DEFAULT_MAX_BYTES);
+        assertEquals(1, outbox.size());
+    }
+
+    @Test
+    public void dropsOldestEntriesWhenFull() throws Exception {
+        outbox = open(10, Outbox.DEFAULT_MAX_BYTES);
+        for (int i = 0; i < 25; i++) {
+            outbox.add(message("message " + i));
+        }
+        assertEquals(10, outbox.size());
+        assertEquals(15, outbox.getDroppedCount());
+
+        sender.online = true;
+        outbox.onConnectivityRestored();
+        awaitEmpty();
+        assertEquals("message 15",
+                sender.sent().get(0).get(RegistrationConstants.EXTRA_KEY_MESSAGE));
+    }
+
+    @Test
+    public void boundsPendingBytes() throws Exception {
+        outbox = open(Outbox.DEFAULT_MAX_ENTRIES, 4096);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append('x');
+        }
+        for (int i = 0; i < 20; i++) {
+            outbox.add(message(text.toString()));
+        }
+        assertTrue(outbox.size() <= 4);
+        assertTrue(outbox.getDroppedCount() >= 16);
+    }
+
+    @Test
+    public void newerRegistrationSupersedesQueuedOnes() throws Exception {
+        outbox = open(Outbox.DEFAULT_MAX_ENTRIES, Outbox.DEFAULT_MAX_BYTES);
+        outbox.add(registration(RegistrationConstants.REGISTER_NEW_CLIENT, "old-token"));
+        outbox.add(message("kept"));
+        outbox.add(registration(RegistrationConstants.UNREGISTER_CLIENT, "old-token"));
+        outbox.add(registration(RegistrationConstants.REGISTER_NEW_CLIENT, "new-token"));
+        assertEquals(2, outbox.size());
+        assertEquals(2, outbox.getSupersededCount());
+
+        // A registration delivered directly drops the queued one.
+        assertEquals(1, outbox.supersedeRegistrations(TO));
+        outbox.close();
+        outbox = open(Outbox.DEFAULT_MAX_ENTRIES, Outbox.DEFAULT_MAX_BYTES);
+        assertEquals(1, outbox.size());
+        sender.online = true;
+        outbox.onConnectivityRestored();
+        awaitEmpty();
+        assertEquals("kept", sender.sent().get(0).get(RegistrationConstants.EXTRA_KEY_MESSAGE));
+    }
+
+    @Test
+    public void replaysToEachEntrysAppServer() throws Exception {
+        outbox = open(Outbox.DEFAULT_MAX_ENTRIES, Outbox.DEFAULT_MAX_BYTES);
+        outbox.add(OTHER, message("routed"));
+        outbox.add(message("default"));
+        outbox.close();
+
+        outbox = open(Outbox.DEFAULT_MAX_ENTRIES, Outbox.DEFAULT_MAX_BYTES);
+        sender.online = true;
+        outbox.onConnectivityRestored();
+        awaitEmpty();
+        assertEquals(OTHER, sender.addresses().get(0));
+        assertEquals(TO, sender.addresses().get(1));
+    }
+
+    @Test
+    public void replaysUnderOriginalMessageId() throws Exception {
+        outbox = open(Outbox.DEFAULT_MAX_ENTRIES, Outbox.DEFAULT_MAX_BYTES);
+        outbox.add(TO, "m-1", message("sent before"));
+        outbox.add(message("never sent"));
+        // Let a few offline replays fail.
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (sender.attemptedIds().size() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        outbox.close();
+
+        // A new process numbers its ids differently; the entries keep theirs.
+        idPrefix = "restarted-";
+        outbox = open(Outbox.DEFAULT_MAX_ENTRIES, Outbox.DEFAULT_MAX_BYTES);
+        sender.online = true;
+        outbox.onConnectivityRestored();
+        awaitEmpty();
+
+        List<String> attempts = sender.attemptedIds();
+        assertTrue(attempts.size() > 3);
+        for (int i = 0; i < attempts.size() - 1; i++) {
+            assertEquals("m-1", attempts.get(i));
+        }
+        assertTrue(attempts.get(attempts.size() - 1).startsWith("t-"));
+    }
+
+    @Test
+    public void supersedesRegistrationsPerAppServer() throws Exception {
+        outbox = open(Outbox.DEFAULT_MAX_ENTRIES, Outbox.DEFAULT_MAX_BYTES);
+        outbox.add(registration(RegistrationConstants.REGISTER_NEW_CLIENT, "token"));
+        outbox.add(OTHER, registration(RegistrationConstants.REGISTER_NEW_CLIENT, "token"));
+        assertEquals(2, outbox.size());
+
+        assertEquals(1, outbox.supersedeRegistrations(OTHER));
+        sender.online = true;
+        outbox.onConnectivityRestored();
+        awaitEmpty();
+        assertEquals(Collections.singletonList(TO), sender.addresses());
+    }
+
+    private Outbox open(int maxEntries, int maxBytes) throws IOException {
+        if (file == null) {
+            file = new File(folder.getRoot(), "outbox.log");
+        }
+        return new Outbox(file, sender, TO, new MessageIdGenerator(idPrefix), 1, 10, maxEntries,
+                maxBytes);
+    }
+
+    private void awaitSent(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (sender.sent().size() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError(sender.sent().size() + " of " + count + " sent");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private void awaitEmpty() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (outbox.size() > 0) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError(outbox.size() + " entries still pending");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * @return Start of every record in the log, walking the length prefixes
+     */
+    private long[] recordOffsets() throws IOException {
+        List<Long> offsets = new ArrayList<Long>();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long position = 0;
+            while (position + 8 <= raf.length()) {
+                raf.seek(position);
+                int length = raf.readInt();
+                if (length == 0) {
+                    break;
+                }
+                offsets.add(position);
+                position += 8 + length;
+            }
+        } finally {
+            raf.close();
+        }
+        long[] result = new long[offsets.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = offsets.get(i);
+        }
+        return result;
+    }
+
+    private static Map<String, String> message(String text) {
+        Map<String, String> data = new HashMap<String, String>();
+        data.put(RegistrationConstants.ACTION, RegistrationConstants.UPSTREAM_MESSAGE);
+        data.put(RegistrationConstants.EXTRA_KEY_MESSAGE, text);
+        return data;
+    }
+
+    private static Map<String, String> registration(String action, String token) {
+        Map<String, String> data = new HashMap<String, String>();
+        data.put(RegistrationConstants.ACTION, action);
+        data.put(RegistrationConstants.REGISTRATION_TOKEN, token);
+        return data;
+    }
+
+    private static class FakeSender implements UpstreamSender {
+        private final List<Map<String, String>> sent = new ArrayList<Map<String, String>>();
+        private final List<String> addresses = new ArrayList<String>();
+        private final List<String> attemptedIds = new ArrayList<String>();
+        volatile boolean online;
+
+        @Override
+        public void send(String to, String messageId, Map<String, String> data)
+                throws IOException {
+            synchronized (this) {
+                attemptedIds.add(messageId);
+            }
+            if (!online) {
+                throw new IOException("Offline");
+            }
+            synchronized (this) {
+                sent.add(data);
+                addresses.add(to);
+            }
+        }
+
+        synchronized List<String> attemptedIds() {
+            return new ArrayList<String>(attemptedIds);
+        }
+
+        synchronized List<String> addresses() {
+            return new ArrayList<String>(addresses);
+        }
+
+        synchronized List<Map<String, String>> sent() {
+            return new ArrayList<Map<String, String>>(sent);
+        }
+    }
+
+}
@@ -0,0 +1,241 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.upstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+import com.google.samples.apps.gcmplayground.util.KeyValueStore;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+public class SendSchedulerTest {
+
+    private static final long DELAY = 30000;
+    private static final long METERED_DELAY = 120000;
+
+    private final FakeWorld world = new FakeWorld();
+    private final RecordingQueue queue = new RecordingQueue();
+    private final HeldMessageJournal journal = new HeldMessageJournal(new MapBacking());
+
+    @Test
+    public void holdsUntilDeadline() {
+        SendScheduler scheduler = newScheduler(10);
+        scheduler.send(message("a"), false, null);
+        world.advance(DELAY - 1);
+        assertTrue(queue.sent.isEmpty());
+
+        world.advance(1);
+        assertEquals(1, queue.sent.size());
+        assertEquals(1, scheduler.getDeadlineFlushCount());
+    }
+
+    @Test
+    public void meteredNetworkWaitsLonger() {
+        world.metered = true;
+        SendScheduler scheduler = newScheduler(10);
+        scheduler.send(message("a"), false, null);
+        world.advance(DELAY);
+        assertTrue(queue.sent.isEmpty());
+        world.advance(METERED_DELAY - DELAY);
+        assertEquals(1, queue.sent.size());
+    }
+
+    @Test
+    public void sendsWhenRadioBecomesActive() {
+        SendScheduler scheduler = newScheduler(10);
+        scheduler.send(message("a"), false, null);
+        scheduler.send(message("b"), false, null);
+        world.radioActive = true;
+        scheduler.onNetworkActive();
+
+        assertEquals(2, queue.sent.size());
+        assertEquals(1, scheduler.getRadioActiveFlushCount());
+    }
+
+    @Test
+    public void urgentAndFullSkipHolding() {
+        SendScheduler scheduler = newScheduler(2);
+        scheduler.send(message("urgent"), true, null);
+        assertEquals(1, queue.sent.size());
+
+        scheduler.send(message("a"), false, null);
+        scheduler.send(message("b"), false, null);
+        assertEquals(3, queue.sent.size());
+        assertEquals(1, scheduler.getFullFlushCount());
+    }
+
+    @Test
+    public void heldMessagesAreJournaledUntilSent() {
+        SendScheduler scheduler = newScheduler(10);
+        scheduler.send(message("a"), false, null);
+        scheduler.send(message("b"), false, null);
+        assertEquals(2, journal.size());
+
+        world.advance(DELAY);
+        assertEquals(2, queue.sent.size());
+        assertEquals(0, journal.size());
+    }
+
+    @Test
+    public void recoversMessagesHeldByKilledProcess() {
+        MapBacking backing = new MapBacking();
+        SendScheduler killed = new SendScheduler(queue, world, world, DELAY, METERED_DELAY, 10,
+                new HeldMessageJournal(backing));
+        killed.send(message("a"), false, null);
+        killed.send(message("b"), false, null);
+        // The process dies before the deadline; its timer never fires.
+        world.timers.clear();
+
+        UpstreamDispatcher.Callback callback = new RecordingCallback();
+        SendScheduler restarted = new SendScheduler(queue, world, world, DELAY, METERED_DELAY,
+                10, new HeldMessageJournal(backing));
+        assertEquals(2, restarted.recover(callback));
+        world.advance(0);
+
+        assertEquals(2, queue.sent.size());
+        assertEquals("a", queue.sent.get(0).get(RegistrationConstants.EXTRA_KEY_MESSAGE));
+        assertEquals("b", queue.sent.get(1).get(RegistrationConstants.EXTRA_KEY_MESSAGE));
+        assertSame(callback, queue.callbacks.get(0));
+        assertEquals(2, restarted.getRecoveredCount());
+        assertEquals(0, new HeldMessageJournal(backing).load().size());
+    }
+
+    private SendScheduler newScheduler(int maxHeld) {
+        return new SendScheduler(queue, world, world, DELAY, METERED_DELAY, maxHeld, journal);
+    }
+
+    private static Map<String, String> message(String text) {
+        Map<String, String> data = new HashMap<String, String>();
+        data.put(RegistrationConstants.ACTION, RegistrationConstants.UPSTREAM_MESSAGE);
+        data.put(RegistrationConstants.EXTRA_KEY_MESSAGE, text);
+        return data;
+    }
+
+    /**
+     * Simulated clock and network; scheduled tasks run when the clock passes them.
+     */
+    private static class FakeWorld implements SendScheduler.Clock, SendScheduler.Connectivity {
+
+        final List<Timer> timers = new ArrayList<Timer>();
+        long now;
+        boolean metered;
+        boolean radioActive;
+
+        @Override
+        public long nowMillis() {
+            return now;
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            timers.add(new Timer(now + delayMillis, task));
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public boolean isMetered() {
+            return metered;
+        }
+
+        @Override
+        public boolean isRadioActive() {
+            return radioActive;
+        }
+
+        void advance(long millis) {
+            now += millis;
+            for (int i = 0; i < timers.size(); ) {
+                if (timers.get(i).dueMillis <= now) {
+                    timers.remove(i).task.run();
+                    i = 0;
+                } else {
+                    i++;
+                }
+            }
+        }
+    }
+
+    private static class Timer {
+        final long dueMillis;
+        final Runnable task;
+
+        Timer(long dueMillis, Runnable task) {
+            this.dueMillis = dueMillis;
+            this.task = task;
+        }
+    }
+
+    private static class RecordingQueue implements UpstreamQueue {
+
+        final List<Map<String, String>> sent = new ArrayList<Map<String, String>>();
+        final List<UpstreamDispatcher.Callback> callbacks =
+                new ArrayList<UpstreamDispatcher.Callback>();
+
+        @Override
+        public Future<Void> send(Map<String, String> data, UpstreamDispatcher.Callback callback) {
+            sent.add(data);
+            callbacks.add(callback);
+            return null;
+        }
+    }
+
+    private static class RecordingCallback implements UpstreamDispatcher.Callback {
+
+        @Override
+        public void onSent(Map<String, String> data) {
+        }
+
+        @Override
+        public void onUnconfirmed(Map<String, String> data) {
+        }
+
+        @Override
+        public void onFailed(Map<String, String> data, Throwable error) {
+        }
+    }
+
+    private static class MapBacking implements KeyValueStore {
+
+        private final Map<String, String> values = new HashMap<String, String>();
+
+        @Override
+        public String get(String key) {
+            return values.get(key);
+        }
+
+        @Override
+        public void put(String key, String value) {
+            values.put(key, value);
+        }
+
+        @Override
+        public void remove(String key) {
+            values.remove(key);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.upstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+import com.google.samples.apps.gcmplayground.util.MessageIdGenerator;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class UpstreamDispatcherTest {
+
+    private static final String TO = "server@gcm.googleapis.com";
+
+    private final FakeSender sender = new FakeSender();
+    private UpstreamDispatcher dispatcher;
+
+    @After
+    public void tearDown() {
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+        }
+    }
+
+    @Test
+    public void coalescesBurstIntoOneBatch() throws Exception {
+        dispatcher = new UpstreamDispatcher(sender, TO, new MessageIdGenerator("t-"), 64, 5,
+                10000);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(dispatcher.send(upstream("hello " + i)));
+        }
+        for (Future<Void> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+
+        assertEquals(1, sender.sent.size());
+        Map<String, String> batch = sender.sent.get(0);
+        assertEquals(TO, sender.addresses.get(0));
+        assertEquals(RegistrationConstants.UPSTREAM_BATCH, batch.get(RegistrationConstants.ACTION));
+        assertEquals("5", batch.get(RegistrationConstants.BATCH_SIZE));
+        for (int i = 0; i < 5; i++) {
+            assertEquals("hello " + i,
+                    batch.get(i + ":" + RegistrationConstants.EXTRA_KEY_MESSAGE));
+        }
+        assertEquals(5, dispatcher.getSentCount());
+        assertEquals(1, dispatcher.getFlushCount());
+    }
+
+    @Test
+    public void sendsOtherActionsAloneInQueueOrder() throws Exception {
+        dispatcher = new UpstreamDispatcher(sender, TO, new MessageIdGenerator("t-"), 64, 4,
+                10000);
+        Map<String, String> unregister = new HashMap<String, String>();
+        unregister.put(RegistrationConstants.ACTION, RegistrationConstants.UNREGISTER_CLIENT);
+        unregister.put(RegistrationConstants.REGISTRATION_TOKEN, "token");
+
+        dispatcher.send(upstream("first"));
+        dispatcher.send(unregister);
+        dispatcher.send(upstream("second"));
+        dispatcher.send(upstream("third")).get(5, TimeUnit.SECONDS);
+
+        assertEquals(3, sender.sent.size());
+        assertEquals("first", sender.sent.get(0).get(RegistrationConstants.EXTRA_KEY_MESSAGE));
+        assertEquals(unregister, sender.sent.get(1));
+        assertEquals("2", sender.sent.get(2).get(RegistrationConstants.BATCH_SIZE));
+        Set<String> ids = new HashSet<String>(sender.messageIds);
+        assertEquals(3, ids.size());
+    }
+
+    @Test
+    public void closesBatchBeforeByteLimitAndSendsOversizedMessageAlone() throws Exception {
+        dispatcher = new UpstreamDispatcher(sender, TO, new MessageIdGenerator("t-"), 64, 6,
+                10000);
+        String kilobyte = text(1000);
+        dispatcher.send(upstream(kilobyte));
+        dispatcher.send(upstream(kilobyte));
+        dispatcher.send(upstream(kilobyte));
+        dispatcher.send(upstream(kilobyte));
+        dispatcher.send(upstream(text(UpstreamDispatcher.MAX_BATCH_BYTES)));
+        dispatcher.send(upstream("small")).get(5, TimeUnit.SECONDS);
+
+        assertEquals(4, sender.sent.size());
+        assertEquals("3", sender.sent.get(0).get(RegistrationConstants.BATCH_SIZE));
+        assertEquals(kilobyte, sender.sent.get(1).get(RegistrationConstants.EXTRA_KEY_MESSAGE));
+        assertEquals(UpstreamDispatcher.MAX_BATCH_BYTES,
+                sender.sent.get(2).get(RegistrationConstants.EXTRA_KEY_MESSAGE).length());
+        assertEquals("small", sender.sent.get(3).get(RegistrationConstants.EXTRA_KEY_MESSAGE));
+        for (int i = 0; i < sender.sent.size(); i++) {
+            if (i != 2) {
+                assertTrue(jsonLength(sender.sent.get(i)) <= UpstreamDispatcher.MAX_BATCH_BYTES);
+            }
+        }
+        assertEquals(6, dispatcher.getSentCount());
+    }
+
+    @Test
+    public void failedSendFailsEveryMessageOfTheBatch() throws Exception {
+        sender.failing = true;
+        dispatcher = new UpstreamDispatcher(sender, TO, new MessageIdGenerator("t-"), 64, 3,
+                10000);
+        final CountDownLatch failed = new CountDownLatch(3);
+        UpstreamDispatcher.Callback callback = new UpstreamDispatcher.Callback() {
+            @Override
+            public void onSent(Map<String, String> data) {
+                fail("Message reported as sent");
+            }
+
+            @Override
+            public void onUnconfirmed(Map<String, String> data) {
+                fail("Message reported as unconfirmed");
+            }
+
+            @Override
+            public void onFailed(Map<String, String> data, Throwable error) {
+                failed.countDown();
+            }
+        };
+        Future<Void> last = null;
+        for (int i = 0; i < 3; i++) {
+            last = dispatcher.send(upstream("lost " + i), callback);
+        }
+
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        try {
+            last.get();
+            fail("Expected the send to fail");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof IOException);
+        }
+        assertEquals(3, dispatcher.getFailedCount());
+        assertEquals(0, dispatcher.getSentCount());
+    }
+
+    @Test
+    public void rejectsSendsBeyondCapacity() throws Exception {
+        sender.blocked = new CountDownLatch(1);
+        dispatcher = new UpstreamDispatcher(sender, TO, new MessageIdGenerator("t-"), 2, 1,
+                10000);
+        // The first message is taken off the queue and blocks in the sender.
+        dispatcher.send(upstream("in flight"));
+        assertTrue(sender.entered.await(5, TimeUnit.SECONDS));
+        dispatcher.send(upstream("queued 1"));
+        dispatcher.send(upstream("queued 2"));
+        Future<Void> rejected = dispatcher.send(upstream("rejected"));
+
+        assertTrue(rejected.isDone());
+        assertEquals(1, dispatcher.getRejectedCount());
+        sender.blocked.countDown();
+    }
+
+    @Test
+    public void coalescedBatchKeepsEveryPayload() {
+        List<Map<String, String>> payloads = new ArrayList<Map<String, String>>();
+        for (int i = 0; i < 12; i++) {
+            Map<String, String> payload = upstream("message " + i);
+            payload.put("extra", "value:" + i);
+            payloads.add(payload);
+        }
+        Map<String, String> batch = UpstreamDispatcher.coalesce(payloads);
+
+        assertEquals("12", batch.get(RegistrationConstants.BATCH_SIZE));
+        // action and batch_size, plus two keys per payload.
+        assertEquals(2 + 12 * 2, batch.size());
+        assertEquals("value:11", batch.get("11:extra"));
+        assertFalse(batch.containsKey("0:" + RegistrationConstants.ACTION));
+        assertNotEquals(batch.get("1:extra"), batch.get("10:extra"));
+    }
+
+    private static Map<String, String> upstream(String message) {
+        Map<String, String> data = new HashMap<String, String>();
+        data.put(RegistrationConstants.ACTION, RegistrationConstants.UPSTREAM_MESSAGE);
+        data.put(RegistrationConstants.EXTRA_KEY_MESSAGE, message);
+        return data;
+    }
+
+    private static String text(int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, 'x');
+        return new String(chars);
+    }
+
+    private static int jsonLength(Map<String, String> data) {
+        int length = 1;
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            length += entry.getKey().length() + entry.getValue().length() + 6;
+        }
+        return length;
+    }
+
+    private static class FakeSender implements UpstreamSender {
+        final List<String> addresses = new ArrayList<String>();
+        final List<String> messageIds = new ArrayList<String>();
+        final List<Map<String, String>> sent = new ArrayList<Map<String, String>>();
+        final CountDownLatch entered = new CountDownLatch(1);
+        volatile CountDownLatch blocked;
+        volatile boolean failing;
+
+        @Override
+        public void send(String to, String messageId, Map<String, String> data)
+                throws IOException {
+            entered.countDown();
+            CountDownLatch latch = blocked;
+            if (latch != null) {
+                try {
+                    latch.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (failing) {
+                throw new IOException("Simulated failure");
+            }
+            synchronized (this) {
+                addresses.add(to);
+                messageIds.add(messageId);
+                sent.add(data);
+            }
+        }
+    }
+
+}
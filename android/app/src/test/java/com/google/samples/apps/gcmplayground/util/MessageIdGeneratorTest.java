@@ -0,0 +1,109 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class MessageIdGeneratorTest {
+
+    private static final int THREADS = 8;
+    private static final int IDS_PER_THREAD = 20000;
+
+    @Test
+    public void countsInBase36AfterPrefix() {
+        MessageIdGenerator generator = new MessageIdGenerator("p-");
+        assertEquals("p-0", generator.next());
+        for (int i = 1; i < 35; i++) {
+            generator.next();
+        }
+        assertEquals("p-z", generator.next());
+        assertEquals("p-10", generator.next());
+    }
+
+    @Test
+    public void idsAreUniqueAcrossThreadsAndPrefixes() throws Exception {
+        final MessageIdGenerator first = new MessageIdGenerator("a1-");
+        final MessageIdGenerator second = new MessageIdGenerator("a2-");
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+        try {
+            for (int t = 0; t < THREADS; t++) {
+                final MessageIdGenerator generator = t % 2 == 0 ? first : second;
+                final boolean intoBuffer = t % 4 < 2;
+                results.add(executor.submit(new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() throws InterruptedException {
+                        start.await();
+                        List<String> ids = new ArrayList<String>(IDS_PER_THREAD);
+                        char[] buffer = new char[generator.maxLength() + 3];
+                        for (int i = 0; i < IDS_PER_THREAD; i++) {
+                            if (intoBuffer) {
+                                int length = generator.next(buffer, 3);
+                                ids.add(new String(buffer, 3, length));
+                            } else {
+                                ids.add(generator.next());
+                            }
+                        }
+                        return ids;
+                    }
+                }));
+            }
+            start.countDown();
+
+            Set<String> ids = new HashSet<String>();
+            for (Future<List<String>> result : results) {
+                ids.addAll(result.get(30, TimeUnit.SECONDS));
+            }
+            assertEquals(THREADS * IDS_PER_THREAD, ids.size());
+            for (String id : ids) {
+                assertTrue(id, id.startsWith("a1-") || id.startsWith("a2-"));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void bufferVariantMatchesNext() {
+        MessageIdGenerator strings = new MessageIdGenerator("launch-");
+        MessageIdGenerator chars = new MessageIdGenerator("launch-");
+        char[] buffer = new char[chars.maxLength() + 5];
+        for (int i = 0; i < 5000; i++) {
+            int length = chars.next(buffer, 5);
+            assertEquals(strings.next(), new String(buffer, 5, length));
+        }
+    }
+
+    @Test
+    public void longestIdFitsMaxLength() {
+        MessageIdGenerator generator = new MessageIdGenerator("x");
+        assertEquals(1 + Long.toString(Long.MAX_VALUE, 36).length(), generator.maxLength());
+    }
+}
@@ -0,0 +1,70 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class StartupTraceTest {
+
+    private static final long START_NANOS = 5000000000L;
+    private static final String FIRST_FRAME = "first_frame";
+    private static final String REGISTRATION_STATE = "registration_state";
+
+    private final StartupTrace trace = new StartupTrace(START_NANOS);
+
+    @Test
+    public void recordsFirstFrameBeforeRegistrationState() {
+        assertEquals(182400000, trace.mark(FIRST_FRAME, START_NANOS + 182400000));
+        assertTrue(trace.isMarked(FIRST_FRAME));
+        assertFalse(trace.isMarked(REGISTRATION_STATE));
+
+        assertEquals(201000000, trace.mark(REGISTRATION_STATE, START_NANOS + 201000000));
+        assertEquals("first_frame=182.4ms registration_state=201.0ms", trace.toString());
+    }
+
+    @Test
+    public void keepsPhasesInTheOrderTheyWereMarked() {
+        trace.mark(REGISTRATION_STATE, START_NANOS + millis(40));
+        trace.mark(FIRST_FRAME, START_NANOS + millis(90));
+
+        assertEquals("registration_state=40.0ms first_frame=90.0ms", trace.toString());
+    }
+
+    @Test
+    public void laterMarksDoNotMoveAPhase() {
+        trace.mark(FIRST_FRAME, START_NANOS + millis(100));
+
+        assertEquals(-1, trace.mark(FIRST_FRAME, START_NANOS + millis(500)));
+        trace.mark(REGISTRATION_STATE, START_NANOS + millis(120));
+        assertEquals(-1, trace.mark(REGISTRATION_STATE, START_NANOS + millis(900)));
+        assertEquals("first_frame=100.0ms registration_state=120.0ms", trace.toString());
+    }
+
+    @Test
+    public void emptyTraceHasNoPhases() {
+        assertEquals("", trace.toString());
+        assertFalse(trace.isMarked(FIRST_FRAME));
+    }
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
@@ -0,0 +1,96 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.samples.apps.gcmplayground.benchmark;
+
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+import com.google.samples.apps.gcmplayground.downstream.DownstreamHandler;
+import com.google.samples.apps.gcmplayground.downstream.DownstreamMessage;
+import com.google.samples.apps.gcmplayground.downstream.DownstreamRouter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Dispatch of downstream messages across many action types: the chain of equals() checks
+ * MyGcmListenerService used to do, against {@link DownstreamRouter}.
+ */
+@State(Scope.Thread)
+public class DownstreamDispatchBenchmark {
+
+    @Param({"4", "64", "512"})
+    public int actionCount;
+
+    private String[] actions;
+    private DownstreamMessage[] messages;
+    private DownstreamRouter router;
+    private int next;
+    private int handled;
+
+    @Setup
+    public void setUp() {
+        actions = new String[actionCount];
+        router = new DownstreamRouter();
+        for (int i = 0; i < actionCount; i++) {
+            actions[i] = "action_" + i;
+            final int index = i;
+            router.register(actions[i], new DownstreamHandler() {
+                @Override
+                public void onMessage(DownstreamMessage message) {
+                    handled += index;
+                }
+            });
+        }
+
+        messages = new DownstreamMessage[1024];
+        for (int i = 0; i < messages.length; i++) {
+            Map<String, String> data = new HashMap<String, String>();
+            // A fresh String, so equals() cannot short-cut on identity.
+            data.put(RegistrationConstants.ACTION, new String(actions[i % actionCount]));
+            messages[i] = new DownstreamMessage(FakeCcs.SENDER_ID, data, 0);
+        }
+    }
+
+    @Benchmark
+    public int equalsChain() {
+        String action = nextMessage().getActionName();
+        for (int i = 0; i < actions.length; i++) {
+            if (actions[i].equals(action)) {
+                handled += i;
+                break;
+            }
+        }
+        return handled;
+    }
+
+    @Benchmark
+    public int router() {
+        router.dispatch(nextMessage());
+        return handled;
+    }
+
+    private DownstreamMessage nextMessage() {
+        DownstreamMessage message = messages[next];
+        next = (next + 1) & (messages.length - 1);
+        return message;
+    }
+
+}
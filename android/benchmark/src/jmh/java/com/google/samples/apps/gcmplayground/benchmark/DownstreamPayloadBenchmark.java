@@ -0,0 +1,105 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.benchmark;
+
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+import com.google.samples.apps.gcmplayground.downstream.DownstreamMessage;
+import com.google.samples.apps.gcmplayground.downstream.DuplicateFilter;
+import com.google.samples.apps.gcmplayground.downstream.PayloadSnapshot;
+import com.google.samples.apps.gcmplayground.util.LogSampler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-message cost of taking a large downstream payload into the app: copying it into a
+ * string map and formatting it for the log and the UI, as the listener service used to,
+ * against a {@link PayloadSnapshot} with sampled logging and text built only for the rows
+ * on screen. Run with the gc profiler for allocations per message.
+ */
+@State(Scope.Thread)
+public class DownstreamPayloadBenchmark {
+
+    /**
+     * One in this many messages is bound to a visible row.
+     */
+    private static final int VISIBLE_EVERY = 50;
+
+    @Param({"10", "100"})
+    public int fieldCount;
+
+    @Param({"200"})
+    public int valueLength;
+
+    // Stands in for the Bundle: values are kept as objects until read.
+    private Map<String, Object> bundle;
+    private LogSampler sampler;
+    private long next;
+
+    @Setup
+    public void setUp() {
+        StringBuilder value = new StringBuilder();
+        while (value.length() < valueLength) {
+            value.append("payload ");
+        }
+        bundle = new HashMap<String, Object>();
+        bundle.put(DuplicateFilter.MESSAGE_ID, "0:1447201240000000%cafe");
+        bundle.put(RegistrationConstants.ACTION, RegistrationConstants.UPSTREAM_MESSAGE);
+        bundle.put(RegistrationConstants.EXTRA_KEY_MESSAGE, "hello");
+        for (int i = 0; i < fieldCount; i++) {
+            bundle.put("field_" + i, new StringBuilder(value).append(i));
+        }
+        sampler = new LogSampler(100, 1);
+    }
+
+    @Benchmark
+    public Object copyAndFormat() {
+        String logLine = bundle.toString();
+        Map<String, String> data = new HashMap<String, String>(bundle.size() * 2);
+        for (String key : bundle.keySet()) {
+            Object value = bundle.get(key);
+            data.put(key, value == null ? null : value.toString());
+        }
+        DownstreamMessage message = new DownstreamMessage(FakeCcs.SENDER_ID, data, 0);
+        return message.getText().length() + logLine.length();
+    }
+
+    @Benchmark
+    public Object snapshot() {
+        int logged = 0;
+        // What the listener service does with the Bundle.
+        Map<String, Object> fields = new HashMap<String, Object>(bundle.size() * 4 / 3 + 1);
+        for (String key : bundle.keySet()) {
+            fields.put(key, bundle.get(key));
+        }
+        Map<String, String> data = new PayloadSnapshot(fields);
+        // One message per millisecond.
+        if (sampler.shouldLog(next)) {
+            logged = data.toString().length();
+        }
+        DownstreamMessage message = new DownstreamMessage(FakeCcs.SENDER_ID, data, 0);
+        if (next++ % VISIBLE_EVERY == 0) {
+            logged += message.getText().length();
+        }
+        return message.getMessage().length() + logged;
+    }
+
+}
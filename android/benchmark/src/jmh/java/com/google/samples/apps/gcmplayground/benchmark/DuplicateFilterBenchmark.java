@@ -0,0 +1,71 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.samples.apps.gcmplayground.benchmark;
+
+import com.google.samples.apps.gcmplayground.downstream.DuplicateFilter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * {@link DuplicateFilter} lookups over a stream of millions of message ids in which every
+ * fourth id is a repeat of a recent one.
+ */
+@State(Scope.Thread)
+public class DuplicateFilterBenchmark {
+
+    private static final int IDS = 1 << 22;
+
+    @Param({"4096", "65536"})
+    public int capacity;
+
+    private long[] keys;
+    private DuplicateFilter filter;
+    private int next;
+    private long now;
+
+    @Setup
+    public void setUp() {
+        keys = new long[IDS];
+        long seed = 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < IDS; i++) {
+            if (i % 4 == 3) {
+                keys[i] = keys[i - 3];
+            } else {
+                seed ^= seed << 13;
+                seed ^= seed >>> 7;
+                seed ^= seed << 17;
+                keys[i] = seed;
+            }
+        }
+        filter = new DuplicateFilter(capacity, DuplicateFilter.DEFAULT_EXPIRY_MILLIS);
+    }
+
+    @Benchmark
+    public boolean isDuplicate() {
+        long key = keys[next];
+        next = (next + 1) & (IDS - 1);
+        // Ten messages per millisecond, so generations rotate as they would under load.
+        if ((next & 15) == 0) {
+            now++;
+        }
+        return filter.isDuplicate(key, now);
+    }
+
+}
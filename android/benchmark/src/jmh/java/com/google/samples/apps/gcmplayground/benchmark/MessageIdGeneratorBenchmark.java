@@ -0,0 +1,58 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.samples.apps.gcmplayground.benchmark;
+
+import com.google.samples.apps.gcmplayground.util.MessageIdGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Message ID generation under contention, against the System.currentTimeMillis() string the
+ * app used before.
+ */
+@State(Scope.Benchmark)
+@Threads(8)
+public class MessageIdGeneratorBenchmark {
+
+    private final MessageIdGenerator generator = new MessageIdGenerator("0123456789abcdef-1-");
+
+    @State(Scope.Thread)
+    public static class Buffer {
+        char[] chars;
+    }
+
+    @Benchmark
+    public String currentTimeMillis() {
+        return Long.toString(System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public String next() {
+        return generator.next();
+    }
+
+    @Benchmark
+    public int nextIntoBuffer(Buffer buffer) {
+        if (buffer.chars == null) {
+            buffer.chars = new char[generator.maxLength()];
+        }
+        return generator.next(buffer.chars, 0);
+    }
+
+}
@@ -0,0 +1,177 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.benchmark;
+
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+import com.google.samples.apps.gcmplayground.store.MessageRecord;
+import com.google.samples.apps.gcmplayground.store.MessageStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MessageStore} with a million records, one per millisecond: appends, time-range and
+ * action queries, and a reopen. {@link #actionByScan()} answers the same action query as
+ * {@link #actionInRange()} by reading every record in the range, as a store without posting
+ * lists would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageStoreBenchmark {
+
+    private static final int RECORDS = 1000000;
+    private static final long START_MILLIS = 1447200000000L;
+    // One in a hundred records is an unregistration.
+    private static final String RARE_ACTION = RegistrationConstants.UNREGISTER_CLIENT;
+    private static final long RANGE_MILLIS = 60 * 1000;
+
+    private File directory;
+    private File ingestDirectory;
+    private MessageStore store;
+    private MessageStore ingestStore;
+    private Random random;
+    private long ingestMillis;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = createDirectory("store");
+        ingestDirectory = createDirectory("ingest");
+        store = new MessageStore(directory, MessageStore.DEFAULT_SEGMENT_BYTES, 1000);
+        for (int i = 0; i < RECORDS; i++) {
+            store.append(newRecord(START_MILLIS + i, i));
+        }
+        // Reopened, so full segments are read through their index files as after a restart.
+        store.close();
+        store = new MessageStore(directory, MessageStore.DEFAULT_SEGMENT_BYTES, 1000);
+
+        // Appends run for millions of records; old segments are dropped as on a device.
+        ingestStore = new MessageStore(ingestDirectory);
+        random = new Random(42);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        ingestStore.close();
+        delete(directory);
+        delete(ingestDirectory);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void append() throws IOException {
+        ingestStore.append(newRecord(ingestMillis++, (int) ingestMillis));
+    }
+
+    /**
+     * The 100 records following a random point in time.
+     */
+    @Benchmark
+    public List<MessageRecord> timeRange() throws IOException {
+        long from = randomStart();
+        return store.query(null, from, from + RANGE_MILLIS, 100);
+    }
+
+    /**
+     * The unregistrations among a minute of records.
+     */
+    @Benchmark
+    public List<MessageRecord> actionInRange() throws IOException {
+        long from = randomStart();
+        return store.query(RARE_ACTION, from, from + RANGE_MILLIS, Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public int actionByScan() throws IOException {
+        long from = randomStart();
+        int matches = 0;
+        for (MessageRecord record : store.query(null, from, from + RANGE_MILLIS,
+                Integer.MAX_VALUE)) {
+            if (RARE_ACTION.equals(record.getAction())) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Opening the store loads the indexes of the sealed segments and scans the last one.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long reopen() throws IOException {
+        store.close();
+        store = new MessageStore(directory, MessageStore.DEFAULT_SEGMENT_BYTES, 1000);
+        return store.size();
+    }
+
+    private long randomStart() {
+        return START_MILLIS + random.nextInt((int) (RECORDS - RANGE_MILLIS));
+    }
+
+    private static MessageRecord newRecord(long timestampMillis, int i) {
+        Map<String, String> data = new HashMap<String, String>();
+        String action;
+        if (i % 100 == 0) {
+            action = RARE_ACTION;
+            data.put(RegistrationConstants.REGISTRATION_TOKEN, "token-" + (i % 1000));
+        } else if (i % 10 == 0) {
+            action = RegistrationConstants.REGISTER_NEW_CLIENT;
+            data.put(RegistrationConstants.STATUS, RegistrationConstants.STATUS_REGISTERED);
+        } else {
+            action = RegistrationConstants.UPSTREAM_MESSAGE;
+            data.put(RegistrationConstants.EXTRA_KEY_MESSAGE, "message " + i);
+        }
+        data.put(RegistrationConstants.ACTION, action);
+        MessageRecord.Direction direction = (i & 1) == 0
+                ? MessageRecord.Direction.RECEIVED : MessageRecord.Direction.SENT;
+        return new MessageRecord(timestampMillis, direction, FakeCcs.SENDER_ID, action, data);
+    }
+
+    private static File createDirectory(String name) throws IOException {
+        File directory = File.createTempFile("message-" + name, "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create " + directory);
+        }
+        return directory;
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+}
@@ -0,0 +1,104 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.benchmark;
+
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+import com.google.samples.apps.gcmplayground.upstream.Outbox;
+import com.google.samples.apps.gcmplayground.upstream.UpstreamSender;
+import com.google.samples.apps.gcmplayground.util.MessageIdGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Outbox} while offline: appends to a full outbox, which drops its oldest entry and
+ * compacts the log now and then, and the recovery of a full outbox after a restart.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class OutboxBenchmark {
+
+    private static final UpstreamSender OFFLINE = new UpstreamSender() {
+        @Override
+        public void send(String to, String messageId, Map<String, String> data)
+                throws IOException {
+            throw new IOException("Offline");
+        }
+    };
+
+    private File appendFile;
+    private File recoverFile;
+    private Outbox outbox;
+    private Map<String, String> data;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        data = new HashMap<String, String>();
+        data.put(RegistrationConstants.ACTION, RegistrationConstants.UPSTREAM_MESSAGE);
+        data.put(RegistrationConstants.EXTRA_KEY_MESSAGE, "Hello from the benchmark");
+
+        appendFile = File.createTempFile("outbox-append", ".log");
+        outbox = open(appendFile);
+        recoverFile = File.createTempFile("outbox-recover", ".log");
+        Outbox full = open(recoverFile);
+        for (int i = 0; i < Outbox.DEFAULT_MAX_ENTRIES; i++) {
+            full.add(data);
+        }
+        full.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        outbox.close();
+        appendFile.delete();
+        recoverFile.delete();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void append() throws IOException {
+        outbox.add(data);
+    }
+
+    @Benchmark
+    public int recover() throws IOException {
+        Outbox recovered = open(recoverFile);
+        int size = recovered.size();
+        recovered.close();
+        return size;
+    }
+
+    private static Outbox open(File file) throws IOException {
+        // Long backoff, so the replay thread stays out of the measurement.
+        return new Outbox(file, OFFLINE, FakeCcs.SENDER_ID + "@gcm.googleapis.com",
+                new MessageIdGenerator("bench-"), TimeUnit.HOURS.toMillis(1),
+                TimeUnit.HOURS.toMillis(1));
+    }
+
+}
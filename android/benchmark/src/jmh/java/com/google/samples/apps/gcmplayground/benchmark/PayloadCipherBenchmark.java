@@ -0,0 +1,120 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.benchmark;
+
+import com.google.samples.apps.gcmplayground.codec.CompactCodec;
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+import com.google.samples.apps.gcmplayground.crypto.PayloadCipher;
+import com.google.samples.apps.gcmplayground.crypto.SessionKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.spec.ECGenParameterSpec;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Per-message cost of encrypting upstream payloads with the cached session key, against
+ * negotiating a key for every message and looking up a new Cipher each time.
+ */
+@State(Scope.Thread)
+public class PayloadCipherBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Param({"small", "large"})
+    public String payload;
+
+    private PayloadCipher cipher;
+    private SessionKey session;
+    private KeyPair serverPair;
+    private KeyPairGenerator generator;
+    private SecureRandom random;
+    private Map<String, String> data;
+    private Map<String, String> encrypted;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        random = new SecureRandom();
+        generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"), random);
+        serverPair = generator.generateKeyPair();
+        KeyPair clientPair = generator.generateKeyPair();
+        String token =
+                "dGhpcyBpcyBub3QgYSByZWFsIHRva2VuIGJ1dCBpdCBpcyBhYm91dCBhcyBsb25nIGFzIG9uZQ";
+        session = new SessionKey("server@gcm.googleapis.com", token,
+                SessionKey.derive(clientPair.getPrivate(), serverPair.getPublic(), token),
+                CompactCodec.toBase64(clientPair.getPublic().getEncoded()));
+        cipher = new PayloadCipher(random);
+
+        data = new HashMap<String, String>();
+        data.put(RegistrationConstants.ACTION, RegistrationConstants.UPSTREAM_MESSAGE);
+        data.put(RegistrationConstants.EXTRA_KEY_MESSAGE, "Hello from the benchmark");
+        if ("large".equals(payload)) {
+            StringBuilder message = new StringBuilder();
+            for (int i = 0; i < 40; i++) {
+                message.append("The quick brown fox jumps over the lazy dog. ");
+            }
+            data.put(RegistrationConstants.EXTRA_KEY_MESSAGE, message.toString());
+        }
+        encrypted = cipher.encrypt(session, data, false);
+    }
+
+    @Benchmark
+    public Map<String, String> encrypt() throws GeneralSecurityException {
+        return cipher.encrypt(session, data, false);
+    }
+
+    @Benchmark
+    public Map<String, String> decrypt() throws GeneralSecurityException {
+        return cipher.decrypt(session, encrypted);
+    }
+
+    /**
+     * What encryption costs without the session cache: a key pair and key agreement per
+     * message, a new Cipher and the payload serialized through a String.
+     */
+    @Benchmark
+    public Map<String, String> encryptWithoutSession() throws GeneralSecurityException {
+        KeyPair pair = generator.generateKeyPair();
+        String token = session.getToken();
+        Cipher aes = Cipher.getInstance("AES/GCM/NoPadding");
+        byte[] iv = new byte[12];
+        random.nextBytes(iv);
+        aes.init(Cipher.ENCRYPT_MODE,
+                SessionKey.derive(pair.getPrivate(), serverPair.getPublic(), token),
+                new GCMParameterSpec(128, iv));
+        byte[] sealed = aes.doFinal(data.toString().getBytes(UTF_8));
+
+        Map<String, String> wire = new HashMap<String, String>();
+        wire.put(PayloadCipher.KEY_PUBLIC_KEY,
+                CompactCodec.toBase64(pair.getPublic().getEncoded()));
+        wire.put(PayloadCipher.KEY_CIPHERTEXT, CompactCodec.toBase64(sealed));
+        return wire;
+    }
+
+}
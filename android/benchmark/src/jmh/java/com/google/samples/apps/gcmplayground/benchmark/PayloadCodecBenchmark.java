@@ -0,0 +1,91 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.samples.apps.gcmplayground.benchmark;
+
+import com.google.samples.apps.gcmplayground.codec.PayloadCodec;
+import com.google.samples.apps.gcmplayground.codec.PayloadCodecs;
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encode and decode cost of the payload codecs, with the encoded size reported alongside.
+ */
+@State(Scope.Thread)
+public class PayloadCodecBenchmark {
+
+    @Param({"0", "1"})
+    public int version;
+
+    @Param({"small", "large"})
+    public String payload;
+
+    private PayloadCodec codec;
+    private Map<String, String> data;
+    private Map<String, String> encoded;
+
+    /**
+     * Characters of the last encoded payload, keys and values included.
+     */
+    @AuxCounters
+    @State(Scope.Thread)
+    public static class Size {
+        public long encodedChars;
+    }
+
+    @Setup
+    public void setUp() {
+        codec = PayloadCodecs.negotiate(String.valueOf(version));
+        data = new HashMap<String, String>();
+        data.put(RegistrationConstants.ACTION, RegistrationConstants.REGISTER_NEW_CLIENT);
+        data.put(RegistrationConstants.REGISTRATION_TOKEN,
+                "dGhpcyBpcyBub3QgYSByZWFsIHRva2VuIGJ1dCBpdCBpcyBhYm91dCBhcyBsb25nIGFzIG9uZQ");
+        data.put(RegistrationConstants.STRING_IDENTIFIER, "Pixel of the benchmark");
+        if ("large".equals(payload)) {
+            StringBuilder message = new StringBuilder();
+            for (int i = 0; i < 40; i++) {
+                message.append("The quick brown fox jumps over the lazy dog. ");
+            }
+            data.put(RegistrationConstants.EXTRA_KEY_MESSAGE, message.toString());
+        }
+        encoded = codec.encode(data);
+    }
+
+    @Benchmark
+    public Map<String, String> encode(Size size) {
+        Map<String, String> result = codec.encode(data);
+        long chars = 0;
+        for (Map.Entry<String, String> entry : result.entrySet()) {
+            chars += entry.getKey().length() + entry.getValue().length();
+        }
+        size.encodedChars = chars;
+        return result;
+    }
+
+    @Benchmark
+    public Map<String, String> decode() {
+        return PayloadCodecs.decode(encoded);
+    }
+
+}
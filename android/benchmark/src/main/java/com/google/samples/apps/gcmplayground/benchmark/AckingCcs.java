@@ -0,0 +1,122 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.benchmark;
+
+import com.google.samples.apps.gcmplayground.upstream.InFlightWindow;
+import com.google.samples.apps.gcmplayground.upstream.UpstreamSender;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for CCS that acknowledges upstream messages asynchronously, the way
+ * GcmListenerService#onMessageSent and #onSendError report them.
+ *
+ * Each send is answered after a delay with an ack, a nack at a configurable rate, or not at
+ * all at another rate, as if the ack was lost. The fake counts the messages it holds
+ * unanswered and remembers the highest count, to check the client's window against the CCS
+ * limit.
+ */
+public class AckingCcs implements UpstreamSender {
+
+    private final long ackDelayMicros;
+    private final double nackRate;
+    private final double lostRate;
+    private final Random random = new Random(42);
+    private final ScheduledExecutorService acks = Executors.newSingleThreadScheduledExecutor();
+    private volatile InFlightWindow window;
+
+    private final Set<String> pending = new HashSet<String>();
+    private final Set<String> accepted = new HashSet<String>();
+    private int maxPending;
+    private final AtomicLong sendCount = new AtomicLong();
+
+    /**
+     * @param ackDelayMicros Time until a send is answered
+     * @param nackRate Fraction of sends answered with a nack
+     * @param lostRate Fraction of sends never answered
+     */
+    public AckingCcs(long ackDelayMicros, double nackRate, double lostRate) {
+        this.ackDelayMicros = ackDelayMicros;
+        this.nackRate = nackRate;
+        this.lostRate = lostRate;
+    }
+
+    /**
+     * Sets the window receiving the acknowledgements.
+     */
+    public void setWindow(InFlightWindow window) {
+        this.window = window;
+    }
+
+    @Override
+    public void send(String to, final String messageId, Map<String, String> data) {
+        sendCount.incrementAndGet();
+        final double outcome;
+        synchronized (this) {
+            pending.add(messageId);
+            maxPending = Math.max(maxPending, pending.size());
+            outcome = random.nextDouble();
+        }
+        acks.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (AckingCcs.this) {
+                    pending.remove(messageId);
+                    if (outcome >= nackRate + lostRate) {
+                        accepted.add(messageId);
+                    }
+                }
+                if (outcome < nackRate) {
+                    window.onNack(messageId, "SERVICE_NOT_AVAILABLE");
+                } else if (outcome >= nackRate + lostRate) {
+                    window.onAck(messageId);
+                }
+            }
+        }, ackDelayMicros, TimeUnit.MICROSECONDS);
+    }
+
+    public void shutdown() {
+        acks.shutdown();
+    }
+
+    /**
+     * @return Sends received, retransmissions included
+     */
+    public long getSendCount() {
+        return sendCount.get();
+    }
+
+    /**
+     * @return Highest number of sends that were waiting for their answer at once
+     */
+    public synchronized int getMaxPending() {
+        return maxPending;
+    }
+
+    /**
+     * @return Distinct message ids acknowledged at least once
+     */
+    public synchronized int getAcceptedCount() {
+        return accepted.size();
+    }
+
+}
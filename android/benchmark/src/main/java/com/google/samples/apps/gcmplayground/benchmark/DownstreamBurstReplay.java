@@ -0,0 +1,164 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.benchmark;
+
+import com.google.samples.apps.gcmplayground.constants.Action;
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+import com.google.samples.apps.gcmplayground.constants.Status;
+import com.google.samples.apps.gcmplayground.downstream.DownstreamMessage;
+import com.google.samples.apps.gcmplayground.downstream.DownstreamPipeline;
+import com.google.samples.apps.gcmplayground.downstream.DownstreamQueue;
+import com.google.samples.apps.gcmplayground.downstream.DuplicateFilter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+/**
+ * Replays a downstream burst through {@link DownstreamPipeline} frame by frame and reports
+ * how long the status replies the UI waits on take to render, with and without priority
+ * lanes and collapse keys.
+ *
+ * The burst is a flood of feed updates spread over a few collapse keys, some chat messages,
+ * and a registration and an unregistration reply in the middle of it. Time is counted in
+ * frames, so the numbers do not depend on the machine.
+ */
+public class DownstreamBurstReplay {
+
+    private static final String FEED_UPDATE = "feed_update";
+    private static final int BURST_SIZE = 3000;
+    private static final int BURST_FRAMES = 10;
+    private static final int COLLAPSE_KEYS = 20;
+
+    private final List<Map<String, String>> burst = new ArrayList<Map<String, String>>();
+
+    public DownstreamBurstReplay(long seed) {
+        Random random = new Random(seed);
+        for (int i = 0; i < BURST_SIZE; i++) {
+            Map<String, String> data = new HashMap<String, String>();
+            data.put(DuplicateFilter.MESSAGE_ID, "burst-" + i);
+            if (i == BURST_SIZE / 2) {
+                data.put(RegistrationConstants.ACTION, RegistrationConstants.REGISTER_NEW_CLIENT);
+                data.put(RegistrationConstants.STATUS, RegistrationConstants.STATUS_REGISTERED);
+            } else if (i == BURST_SIZE - 10) {
+                data.put(RegistrationConstants.ACTION, RegistrationConstants.UNREGISTER_CLIENT);
+                data.put(RegistrationConstants.STATUS, RegistrationConstants.STATUS_UNREGISTERED);
+            } else if (random.nextInt(10) == 0) {
+                data.put(RegistrationConstants.ACTION, RegistrationConstants.UPSTREAM_MESSAGE);
+                data.put(RegistrationConstants.EXTRA_KEY_MESSAGE, "chat " + i);
+            } else {
+                data.put(RegistrationConstants.ACTION, FEED_UPDATE);
+                data.put(DownstreamMessage.COLLAPSE_KEY, "feed-" + random.nextInt(COLLAPSE_KEYS));
+                data.put(RegistrationConstants.EXTRA_KEY_MESSAGE, "update " + i);
+            }
+            burst.add(data);
+        }
+    }
+
+    public void run() {
+        System.out.println("downstream burst: " + BURST_SIZE + " messages over " + BURST_FRAMES
+                + " frames");
+        replay("one batch per frame", Integer.MAX_VALUE, false, false);
+        replay("capped batches", DownstreamPipeline.DEFAULT_MAX_BATCH_SIZE, false, false);
+        replay("+ priority lanes", DownstreamPipeline.DEFAULT_MAX_BATCH_SIZE, true, false);
+        replay("+ collapse keys", DownstreamPipeline.DEFAULT_MAX_BATCH_SIZE, true, true);
+    }
+
+    /**
+     * @param maxBatchSize Messages rendered per frame; unlimited batches also get an
+     *                     unlimited backlog, as the pipeline had before it was capped
+     */
+    private void replay(String name, int maxBatchSize, boolean priorities, boolean collapse) {
+        final List<Runnable> nextFrame = new ArrayList<Runnable>();
+        DownstreamQueue backlog = maxBatchSize == Integer.MAX_VALUE
+                ? new DownstreamQueue(Integer.MAX_VALUE) : new DownstreamQueue();
+        if (priorities) {
+            backlog.setPriority(RegistrationConstants.REGISTER_NEW_CLIENT,
+                    DownstreamQueue.Priority.HIGH);
+            backlog.setPriority(RegistrationConstants.UNREGISTER_CLIENT,
+                    DownstreamQueue.Priority.HIGH);
+            backlog.setPriority(FEED_UPDATE, DownstreamQueue.Priority.LOW);
+        }
+        DownstreamPipeline pipeline = new DownstreamPipeline(
+                new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        command.run();
+                    }
+                },
+                new DuplicateFilter(),
+                new DownstreamPipeline.FrameScheduler() {
+                    @Override
+                    public void schedule(Runnable task, long delayMillis) {
+                        nextFrame.add(task);
+                    }
+                },
+                DownstreamPipeline.DEFAULT_FRAME_INTERVAL_MILLIS, backlog, maxBatchSize);
+
+        final int[] frame = new int[1];
+        final int[] statusRenderedAt = {-1, -1};
+        final int[] largestBatch = new int[1];
+        pipeline.setListener(new DownstreamPipeline.Listener() {
+            @Override
+            public void onMessages(List<DownstreamMessage> messages) {
+                largestBatch[0] = Math.max(largestBatch[0], messages.size());
+                for (int i = 0; i < messages.size(); i++) {
+                    if (messages.get(i).getStatus()
+                            != Status.UNKNOWN) {
+                        int reply = messages.get(i).getAction() == Action.REGISTER_NEW_CLIENT
+                                ? 0 : 1;
+                        statusRenderedAt[reply] = frame[0];
+                    }
+                }
+            }
+        });
+
+        int perFrame = BURST_SIZE / BURST_FRAMES;
+        int submitted = 0;
+        List<Runnable> running = new ArrayList<Runnable>();
+        while (submitted < BURST_SIZE || !nextFrame.isEmpty()) {
+            for (int i = 0; i < perFrame && submitted < BURST_SIZE; i++, submitted++) {
+                Map<String, String> data = burst.get(submitted);
+                if (!collapse) {
+                    data = new HashMap<String, String>(data);
+                    data.remove(DownstreamMessage.COLLAPSE_KEY);
+                }
+                pipeline.submit(FakeCcs.SENDER_ID, data);
+            }
+            running.addAll(nextFrame);
+            nextFrame.clear();
+            for (Runnable task : running) {
+                task.run();
+            }
+            running.clear();
+            frame[0]++;
+        }
+
+        System.out.printf("  %-20s %3d frames, largest %4d, %4d rendered, %4d collapsed, "
+                + "%4d dropped, backlog max %4d, status replies wait %s / %s frames%n",
+                name, frame[0], largestBatch[0], pipeline.getRenderedCount(),
+                backlog.getCollapsedCount(), backlog.getDroppedCount(), backlog.getMaxDepth(),
+                wait(statusRenderedAt[0], BURST_SIZE / 2, perFrame),
+                wait(statusRenderedAt[1], BURST_SIZE - 10, perFrame));
+    }
+
+    private static String wait(int renderedAtFrame, int index, int perFrame) {
+        return renderedAtFrame < 0 ? "dropped" : String.valueOf(renderedAtFrame - index / perFrame);
+    }
+
+}
@@ -0,0 +1,135 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.samples.apps.gcmplayground.benchmark;
+
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+import com.google.samples.apps.gcmplayground.downstream.DownstreamPipeline;
+import com.google.samples.apps.gcmplayground.upstream.UpstreamSender;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process stand-in for CCS and the app server.
+ *
+ * Upstream sends take a configurable round trip time and fail at a configurable rate.
+ * Registration and unregistration requests are answered like server.go does, with a status
+ * message delivered to the downstream pipeline, so the whole client loop runs offline.
+ */
+public class FakeCcs implements UpstreamSender {
+
+    public static final String SENDER_ID = "fake-sender";
+
+    private final long roundTripNanos;
+    private final double failureRate;
+    private final Random random = new Random(42);
+    private volatile DownstreamPipeline downstream;
+
+    private final AtomicLong upstreamCount = new AtomicLong();
+    private final AtomicLong upstreamPayloadCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong downstreamCount = new AtomicLong();
+
+    /**
+     * @param roundTripMicros Time each upstream send takes
+     * @param failureRate Fraction of upstream sends that fail, between 0 and 1
+     */
+    public FakeCcs(long roundTripMicros, double failureRate) {
+        this.roundTripNanos = TimeUnit.MICROSECONDS.toNanos(roundTripMicros);
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * Sets the pipeline receiving the server's status messages.
+     */
+    public void setDownstream(DownstreamPipeline downstream) {
+        this.downstream = downstream;
+    }
+
+    @Override
+    public void send(String to, String messageId, Map<String, String> data) throws IOException {
+        if (roundTripNanos > 0) {
+            LockSupport.parkNanos(roundTripNanos);
+        }
+        if (failureRate > 0 && nextDouble() < failureRate) {
+            failureCount.incrementAndGet();
+            throw new IOException("Simulated CCS failure");
+        }
+
+        upstreamCount.incrementAndGet();
+        String batchSize = data.get(RegistrationConstants.BATCH_SIZE);
+        upstreamPayloadCount.addAndGet(batchSize == null ? 1 : Integer.parseInt(batchSize));
+
+        String action = data.get(RegistrationConstants.ACTION);
+        if (RegistrationConstants.REGISTER_NEW_CLIENT.equals(action)) {
+            reply(action, RegistrationConstants.STATUS_REGISTERED, data);
+        } else if (RegistrationConstants.UNREGISTER_CLIENT.equals(action)) {
+            reply(action, RegistrationConstants.STATUS_UNREGISTERED, data);
+        }
+    }
+
+    /**
+     * Delivers a downstream message as if the app server had sent it.
+     */
+    public void deliver(Map<String, String> data) {
+        downstreamCount.incrementAndGet();
+        DownstreamPipeline pipeline = downstream;
+        if (pipeline != null) {
+            pipeline.submit(SENDER_ID, data);
+        }
+    }
+
+    /**
+     * @return Number of CCS messages accepted
+     */
+    public long getUpstreamCount() {
+        return upstreamCount.get();
+    }
+
+    /**
+     * @return Number of client payloads accepted, counting each entry of a batch
+     */
+    public long getUpstreamPayloadCount() {
+        return upstreamPayloadCount.get();
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    public long getDownstreamCount() {
+        return downstreamCount.get();
+    }
+
+    private void reply(String action, String status, Map<String, String> request) {
+        Map<String, String> reply = new HashMap<String, String>();
+        reply.put(RegistrationConstants.ACTION, action);
+        reply.put(RegistrationConstants.STATUS, status);
+        reply.put(RegistrationConstants.REGISTRATION_TOKEN,
+                request.get(RegistrationConstants.REGISTRATION_TOKEN));
+        deliver(reply);
+    }
+
+    private synchronized double nextDouble() {
+        return random.nextDouble();
+    }
+
+}
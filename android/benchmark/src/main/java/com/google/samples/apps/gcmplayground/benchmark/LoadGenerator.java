@@ -0,0 +1,518 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.samples.apps.gcmplayground.benchmark;
+
+import com.google.samples.apps.gcmplayground.constants.Action;
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+import com.google.samples.apps.gcmplayground.downstream.DownstreamHandler;
+import com.google.samples.apps.gcmplayground.downstream.DownstreamMessage;
+import com.google.samples.apps.gcmplayground.downstream.DownstreamPipeline;
+import com.google.samples.apps.gcmplayground.downstream.DownstreamRouter;
+import com.google.samples.apps.gcmplayground.downstream.DuplicateFilter;
+import com.google.samples.apps.gcmplayground.downstream.MessageHistory;
+import com.google.samples.apps.gcmplayground.metrics.LatencyHistogram;
+import com.google.samples.apps.gcmplayground.registration.RegistrationStore;
+import com.google.samples.apps.gcmplayground.tasks.TaskScheduler;
+import com.google.samples.apps.gcmplayground.upstream.InFlightWindow;
+import com.google.samples.apps.gcmplayground.upstream.UpstreamDispatcher;
+import com.google.samples.apps.gcmplayground.util.KeyValueStore;
+import com.google.samples.apps.gcmplayground.util.MessageIdGenerator;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the client's message paths against {@link FakeCcs} at a fixed rate and reports
+ * throughput, latency percentiles and allocations per message.
+ *
+ * Usage: {@code ./gradlew :benchmark:run -Pargs="--rate 2000 --seconds 10"}, optionally
+ * with {@code --trace <file>} to replay a trace pulled from a device instead of a synthetic
+ * one.
+ */
+public class LoadGenerator {
+
+    private static final String TO = FakeCcs.SENDER_ID + "@gcm.googleapis.com";
+
+    private final int rate;
+    private final int seconds;
+
+    public LoadGenerator(int rate, int seconds) {
+        this.rate = rate;
+        this.seconds = seconds;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rate = 1000;
+        int seconds = 10;
+        File trace = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if ("--rate".equals(args[i])) {
+                rate = Integer.parseInt(args[i + 1]);
+            } else if ("--seconds".equals(args[i])) {
+                seconds = Integer.parseInt(args[i + 1]);
+            } else if ("--trace".equals(args[i])) {
+                trace = new File(args[i + 1]);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        LoadGenerator generator = new LoadGenerator(rate, seconds);
+        generator.runUpstream();
+        generator.runDownstream();
+        generator.runRegistration();
+        generator.runHistory();
+        generator.runInFlight();
+        generator.runScheduler();
+        new SendSchedulerSimulation(42).run();
+        new TokenRefreshSimulation(42).run();
+        new DownstreamBurstReplay(42).run();
+        new TraceReplay(42, trace).run();
+    }
+
+    /**
+     * Upstream messages through {@link UpstreamDispatcher}; latency is enqueue to CCS ack.
+     */
+    public void runUpstream() throws InterruptedException {
+        FakeCcs ccs = new FakeCcs(2000, 0.01);
+        UpstreamDispatcher dispatcher = new UpstreamDispatcher(ccs, TO,
+                new MessageIdGenerator("load-"), 4096, UpstreamDispatcher.DEFAULT_MAX_BATCH_SIZE,
+                50);
+        int total = rate * seconds;
+        final LatencyRecorder latencies = new LatencyRecorder(total);
+        final CountDownLatch done = new CountDownLatch(total);
+        // Keyed by identity, so equal messages keep separate send timestamps.
+        final Map<Map<String, String>, Long> sentAt = Collections.synchronizedMap(
+                new IdentityHashMap<Map<String, String>, Long>());
+        UpstreamDispatcher.Callback callback = new UpstreamDispatcher.Callback() {
+            @Override
+            public void onSent(Map<String, String> data) {
+                latencies.record(System.nanoTime() - sentAt.remove(data));
+                done.countDown();
+            }
+
+            @Override
+            public void onUnconfirmed(Map<String, String> data) {
+                sentAt.remove(data);
+                done.countDown();
+            }
+
+            @Override
+            public void onFailed(Map<String, String> data, Throwable error) {
+                sentAt.remove(data);
+                done.countDown();
+            }
+        };
+
+        Run run = new Run("upstream");
+        for (int i = 0; i < total; i++) {
+            pace(run.startNanos, i);
+            Map<String, String> data = new HashMap<String, String>();
+            data.put(RegistrationConstants.ACTION, RegistrationConstants.UPSTREAM_MESSAGE);
+            data.put(RegistrationConstants.EXTRA_KEY_MESSAGE, "load " + i);
+            sentAt.put(data, System.nanoTime());
+            dispatcher.send(data, callback);
+        }
+        done.await(seconds + 30, TimeUnit.SECONDS);
+        run.finish(total - (int) done.getCount(), latencies);
+        System.out.printf("  ccs messages %d, payloads %d, failures %d, rejected %d%n",
+                ccs.getUpstreamCount(), ccs.getUpstreamPayloadCount(), ccs.getFailureCount(),
+                dispatcher.getRejectedCount());
+        dispatcher.shutdown();
+    }
+
+    /**
+     * Downstream messages through the pipeline and router, with every tenth message delivered
+     * twice; latency is delivery to handler.
+     */
+    public void runDownstream() throws InterruptedException {
+        FakeCcs ccs = new FakeCcs(0, 0);
+        ExecutorService worker = Executors.newSingleThreadExecutor();
+        final ScheduledExecutorService uiThread = Executors.newSingleThreadScheduledExecutor();
+        DownstreamPipeline pipeline = new DownstreamPipeline(worker, new DuplicateFilter(),
+                new DownstreamPipeline.FrameScheduler() {
+                    @Override
+                    public void schedule(Runnable task, long delayMillis) {
+                        uiThread.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+                    }
+                }, DownstreamPipeline.DEFAULT_FRAME_INTERVAL_MILLIS);
+        DownstreamRouter router = new DownstreamRouter();
+        pipeline.setListener(router);
+        ccs.setDownstream(pipeline);
+
+        int total = rate * seconds;
+        final LatencyRecorder latencies = new LatencyRecorder(total);
+        final CountDownLatch done = new CountDownLatch(total);
+        router.setDefaultHandler(new DownstreamHandler() {
+            @Override
+            public void onMessage(DownstreamMessage message) {
+                latencies.record(System.nanoTime() - message.getReceivedAtNanos());
+                done.countDown();
+            }
+        });
+
+        Run run = new Run("downstream");
+        for (int i = 0; i < total; i++) {
+            pace(run.startNanos, i);
+            Map<String, String> data = new HashMap<String, String>();
+            data.put(DuplicateFilter.MESSAGE_ID, "0:" + i);
+            data.put(RegistrationConstants.EXTRA_KEY_MESSAGE, "load " + i);
+            ccs.deliver(data);
+            if (i % 10 == 0) {
+                ccs.deliver(data);
+            }
+        }
+        done.await(seconds + 30, TimeUnit.SECONDS);
+        run.finish(total - (int) done.getCount(), latencies);
+        System.out.printf("  delivered %d, duplicates %d, frames %d%n",
+                ccs.getDownstreamCount(), pipeline.getDuplicateCount(),
+                pipeline.getFrameCount());
+        worker.shutdown();
+        uiThread.shutdown();
+    }
+
+    /**
+     * Registration round trips: skip check, upstream request, and the server's status reply
+     * routed back to a handler; latency is request to reply. A quarter of the requests repeat
+     * an earlier registration and are skipped by the store.
+     */
+    public void runRegistration() throws InterruptedException {
+        FakeCcs ccs = new FakeCcs(2000, 0);
+        ExecutorService worker = Executors.newSingleThreadExecutor();
+        final ScheduledExecutorService uiThread = Executors.newSingleThreadScheduledExecutor();
+        DownstreamPipeline pipeline = new DownstreamPipeline(worker, new DuplicateFilter(),
+                new DownstreamPipeline.FrameScheduler() {
+                    @Override
+                    public void schedule(Runnable task, long delayMillis) {
+                        uiThread.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+                    }
+                }, DownstreamPipeline.DEFAULT_FRAME_INTERVAL_MILLIS);
+        DownstreamRouter router = new DownstreamRouter();
+        pipeline.setListener(router);
+        ccs.setDownstream(pipeline);
+
+        final Map<String, String> backingMap = new ConcurrentHashMap<String, String>();
+        final RegistrationStore store = new RegistrationStore(new KeyValueStore() {
+            @Override
+            public String get(String key) {
+                return backingMap.get(key);
+            }
+
+            @Override
+            public void put(String key, String value) {
+                backingMap.put(key, value);
+            }
+
+            @Override
+            public void remove(String key) {
+                backingMap.remove(key);
+            }
+        });
+        UpstreamDispatcher dispatcher = new UpstreamDispatcher(ccs, TO,
+                new MessageIdGenerator("reg-"), 4096, UpstreamDispatcher.DEFAULT_MAX_BATCH_SIZE,
+                50);
+
+        int total = rate * seconds;
+        final LatencyRecorder latencies = new LatencyRecorder(total);
+        final CountDownLatch done = new CountDownLatch(total);
+        final Map<String, Long> sentAt = new ConcurrentHashMap<String, Long>();
+        router.register(Action.REGISTER_NEW_CLIENT, new DownstreamHandler() {
+            @Override
+            public void onMessage(DownstreamMessage message) {
+                String token = message.getData().get(RegistrationConstants.REGISTRATION_TOKEN);
+                store.confirm(message.getFrom(), token);
+                Long start = sentAt.remove(token);
+                if (start != null) {
+                    latencies.record(System.nanoTime() - start);
+                }
+                done.countDown();
+            }
+        });
+
+        Run run = new Run("registration");
+        for (int i = 0; i < total; i++) {
+            pace(run.startNanos, i);
+            String token = "token-" + (i % 4 == 3 ? i - 1 : i);
+            String name = "client-" + (i % 4 == 3 ? i - 1 : i);
+            if (store.isRegistered(FakeCcs.SENDER_ID, token, name)) {
+                store.onSkipped();
+                done.countDown();
+                continue;
+            }
+            Map<String, String> data = new HashMap<String, String>();
+            data.put(RegistrationConstants.ACTION, RegistrationConstants.REGISTER_NEW_CLIENT);
+            data.put(RegistrationConstants.REGISTRATION_TOKEN, token);
+            data.put(RegistrationConstants.STRING_IDENTIFIER, name);
+            sentAt.put(token, System.nanoTime());
+            store.setSent(FakeCcs.SENDER_ID, token, name);
+            dispatcher.send(data);
+        }
+        done.await(seconds + 30, TimeUnit.SECONDS);
+        run.finish(total - (int) done.getCount(), latencies);
+        System.out.printf("  performed %d, skipped %d%n",
+                store.getPerformedCount(), store.getSkippedCount());
+        dispatcher.shutdown();
+        worker.shutdown();
+        uiThread.shutdown();
+    }
+
+    /**
+     * A flood of downstream messages into {@link MessageHistory}, checking that the retained
+     * heap stays flat once the history is full.
+     */
+    public void runHistory() {
+        MessageHistory history = new MessageHistory();
+        history.setFilter(FakeCcs.SENDER_ID, RegistrationConstants.UPSTREAM_MESSAGE);
+        int total = Math.max(50000, rate * seconds);
+        long[] usedBytes = new long[5];
+        for (int i = 0; i < total; i++) {
+            Map<String, String> data = new HashMap<String, String>();
+            data.put(RegistrationConstants.ACTION, i % 2 == 0
+                    ? RegistrationConstants.UPSTREAM_MESSAGE : "action_" + (i % 64));
+            data.put(RegistrationConstants.EXTRA_KEY_MESSAGE, "flood " + i);
+            history.onMessages(Collections.singletonList(
+                    new DownstreamMessage(FakeCcs.SENDER_ID, data, System.nanoTime())));
+            if ((i + 1) % (total / usedBytes.length) == 0) {
+                usedBytes[(i + 1) / (total / usedBytes.length) - 1] = usedHeapBytes();
+            }
+        }
+        System.out.printf("history: %d messages, %d held, %d matching filter%n",
+                history.getTotalCount(), history.getCapacity(), history.size());
+        for (int i = 0; i < usedBytes.length; i++) {
+            System.out.printf("  after %d messages: %d KB heap used%n",
+                    (i + 1) * (total / usedBytes.length), usedBytes[i] / 1024);
+        }
+    }
+
+    /**
+     * Upstream messages through {@link UpstreamDispatcher} and an {@link InFlightWindow}
+     * against {@link AckingCcs}, one CCS message per payload. Some sends are nacked and some
+     * acks lost, so messages are retransmitted; latency is enqueue to ack. Fails if CCS ever
+     * holds more unanswered messages than the window allows, or a message completes other
+     * than exactly once.
+     */
+    public void runInFlight() throws InterruptedException {
+        AckingCcs ccs = new AckingCcs(5000, 0.02, 0.02);
+        InFlightWindow window = new InFlightWindow(ccs, InFlightWindow.DEFAULT_WINDOW_SIZE, 200,
+                InFlightWindow.DEFAULT_MAX_ATTEMPTS);
+        ccs.setWindow(window);
+        UpstreamDispatcher dispatcher = new UpstreamDispatcher(window, TO,
+                new MessageIdGenerator("ack-"), 4096, 1, 0);
+
+        int total = rate * seconds;
+        final LatencyRecorder latencies = new LatencyRecorder(total);
+        final CountDownLatch done = new CountDownLatch(total);
+        // Keyed by identity, so equal messages keep separate send timestamps.
+        final Map<Map<String, String>, Long> sentAt = Collections.synchronizedMap(
+                new IdentityHashMap<Map<String, String>, Long>());
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong completedTwice = new AtomicLong();
+        UpstreamDispatcher.Callback callback = new UpstreamDispatcher.Callback() {
+            @Override
+            public void onSent(Map<String, String> data) {
+                Long start = sentAt.remove(data);
+                if (start == null) {
+                    completedTwice.incrementAndGet();
+                    return;
+                }
+                latencies.record(System.nanoTime() - start);
+                done.countDown();
+            }
+
+            @Override
+            public void onUnconfirmed(Map<String, String> data) {
+                if (sentAt.remove(data) == null) {
+                    completedTwice.incrementAndGet();
+                    return;
+                }
+                done.countDown();
+            }
+
+            @Override
+            public void onFailed(Map<String, String> data, Throwable error) {
+                if (sentAt.remove(data) == null) {
+                    completedTwice.incrementAndGet();
+                    return;
+                }
+                failed.incrementAndGet();
+                done.countDown();
+            }
+        };
+
+        Run run = new Run("in-flight");
+        for (int i = 0; i < total; i++) {
+            pace(run.startNanos, i);
+            Map<String, String> data = new HashMap<String, String>();
+            data.put(RegistrationConstants.ACTION, RegistrationConstants.UPSTREAM_MESSAGE);
+            data.put(RegistrationConstants.EXTRA_KEY_MESSAGE, "load " + i);
+            sentAt.put(data, System.nanoTime());
+            dispatcher.send(data, callback);
+        }
+        done.await(seconds + 30, TimeUnit.SECONDS);
+        run.finish(total - (int) done.getCount(), latencies);
+        System.out.printf("  acked %d, unconfirmed %d, failed %d, rejected %d, retransmitted "
+                + "%d (%d nacks, %d timeouts), blocked %d, CCS max pending %d of %d%n",
+                window.getAckedCount(), window.getUnconfirmedCount(), failed.get(),
+                dispatcher.getRejectedCount(),
+                window.getRetransmitCount(), window.getNackCount(), window.getTimeoutCount(),
+                window.getBlockedCount(), ccs.getMaxPending(), window.getWindowSize());
+        if (ccs.getMaxPending() > window.getWindowSize() || completedTwice.get() > 0
+                || done.getCount() > 0) {
+            throw new IllegalStateException("In-flight window violated: max pending "
+                    + ccs.getMaxPending() + ", completed twice " + completedTwice.get()
+                    + ", incomplete " + done.getCount());
+        }
+        dispatcher.shutdown();
+        window.shutdown();
+        ccs.shutdown();
+    }
+
+    /**
+     * Mixed background work on a {@link TaskScheduler} with two threads: a steady stream of
+     * upstream work, bursts of topic syncs and the occasional registration. Reports how long
+     * tasks of each lane waited before they started.
+     */
+    public void runScheduler() throws InterruptedException {
+        TaskScheduler scheduler = new TaskScheduler(2, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        int total = Math.max(1, seconds) * 100;
+        final CountDownLatch done = new CountDownLatch(total);
+        long start = System.nanoTime();
+        for (int i = 0; i < total; i++) {
+            pace(start, i, 100);
+            TaskScheduler.Lane lane;
+            long workMillis;
+            if (i % 50 == 0) {
+                lane = TaskScheduler.Lane.REGISTRATION;
+                workMillis = 30;
+            } else if (i % 100 < 20) {
+                lane = TaskScheduler.Lane.TOPIC_SYNC;
+                workMillis = 40;
+            } else {
+                lane = TaskScheduler.Lane.UPSTREAM;
+                workMillis = 8;
+            }
+            scheduler.submit(lane, new SimulatedWork(workMillis, done));
+        }
+        done.await(seconds + 30, TimeUnit.SECONDS);
+        System.out.printf("scheduler: %d tasks on 2 threads%n", total);
+        for (TaskScheduler.Lane lane : TaskScheduler.Lane.values()) {
+            LatencyHistogram delay = scheduler.getQueueDelayHistogram(lane);
+            if (delay.getCount() > 0) {
+                System.out.printf("  %s: %d tasks, queue delay p50 %.2f ms, p99 %.2f ms%n",
+                        lane, delay.getCount(), delay.getPercentileMillis(50),
+                        delay.getPercentileMillis(99));
+            }
+        }
+        scheduler.shutdown();
+    }
+
+    private static class SimulatedWork extends TaskScheduler.Task<Void> {
+        private final long workMillis;
+        private final CountDownLatch done;
+
+        SimulatedWork(long workMillis, CountDownLatch done) {
+            this.workMillis = workMillis;
+            this.done = done;
+        }
+
+        @Override
+        protected Void run() throws InterruptedException {
+            Thread.sleep(workMillis);
+            return null;
+        }
+
+        @Override
+        protected void onDone(Void result) {
+            done.countDown();
+        }
+    }
+
+    private static long usedHeapBytes() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private void pace(long startNanos, int index) {
+        pace(startNanos, index, rate);
+    }
+
+    private static void pace(long startNanos, int index, int rate) {
+        long due = startNanos + index * 1000000000L / rate;
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    /**
+     * Wall time and allocations of one scenario. Allocations are summed over all live
+     * threads, so they include the client's worker threads.
+     */
+    private static class Run {
+        private final String name;
+        private final long startNanos;
+        private final long startBytes;
+
+        Run(String name) {
+            this.name = name;
+            this.startBytes = allocatedBytes();
+            this.startNanos = System.nanoTime();
+        }
+
+        void finish(int messages, LatencyRecorder latencies) {
+            double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+            long bytes = allocatedBytes() - startBytes;
+            System.out.printf("%s: %d messages in %.2f s (%.0f msg/s), p50 %.2f ms, "
+                    + "p99 %.2f ms, %d bytes/msg%n", name, messages, elapsedSeconds,
+                    messages / elapsedSeconds, latencies.percentileMillis(50),
+                    latencies.percentileMillis(99), messages == 0 ? 0 : bytes / messages);
+        }
+
+        private static long allocatedBytes() {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+                return 0;
+            }
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            long total = 0;
+            for (long bytes : sunBean.getThreadAllocatedBytes(bean.getAllThreadIds())) {
+                if (bytes > 0) {
+                    total += bytes;
+                }
+            }
+            return total;
+        }
+    }
+
+}
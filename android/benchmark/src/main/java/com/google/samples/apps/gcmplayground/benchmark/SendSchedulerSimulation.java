@@ -0,0 +1,182 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.samples.apps.gcmplayground.benchmark;
+
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+import com.google.samples.apps.gcmplayground.metrics.LatencyHistogram;
+import com.google.samples.apps.gcmplayground.upstream.SendScheduler;
+import com.google.samples.apps.gcmplayground.upstream.UpstreamDispatcher;
+import com.google.samples.apps.gcmplayground.upstream.UpstreamQueue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates a day of upstream traffic through {@link SendScheduler} on a simulated clock and
+ * cellular radio, and reports the energy/latency trade-off of several holding deadlines.
+ *
+ * The radio model is a simple LTE-like one: any transfer promotes the radio to its high
+ * power state, where it stays for a fixed tail after the last transfer. Other apps cause
+ * transfers of their own at random, which held messages can piggyback on. Energy is the
+ * radio-on time beyond what the other traffic causes alone, at a constant active power.
+ */
+public class SendSchedulerSimulation {
+
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final long TAIL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final double ACTIVE_WATTS = 1.0;
+    private static final long MEAN_MESSAGE_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(90);
+    private static final long MEAN_OTHER_TRAFFIC_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final long seed;
+
+    public SendSchedulerSimulation(long seed) {
+        this.seed = seed;
+    }
+
+    public void run() {
+        System.out.println("send scheduler: one simulated day, "
+                + "messages every 90 s, other traffic every 5 min on average");
+        long baselineMillis = simulate(-1);
+        System.out.printf("  other traffic alone keeps the radio on for %.0f s%n",
+                baselineMillis / 1000.0);
+        long[] delays = {0, TimeUnit.SECONDS.toMillis(30), TimeUnit.MINUTES.toMillis(2),
+                TimeUnit.MINUTES.toMillis(10)};
+        for (long delay : delays) {
+            long activeMillis = simulate(delay);
+            System.out.printf(", %6.1f J%n",
+                    (activeMillis - baselineMillis) / 1000.0 * ACTIVE_WATTS);
+        }
+    }
+
+    /**
+     * Runs the day and prints the scheduler's numbers, except energy.
+     * @param maxDelayMillis Holding deadline, or -1 to simulate without our own traffic
+     * @return Total time the radio was on
+     */
+    private long simulate(long maxDelayMillis) {
+        final SimulatedWorld world = new SimulatedWorld();
+        final RecordingQueue queue = new RecordingQueue(world);
+        final SendScheduler scheduler = new SendScheduler(queue, world, world,
+                maxDelayMillis, maxDelayMillis, SendScheduler.DEFAULT_MAX_HELD, null);
+
+        // Both event streams use their own random generator, so every policy sees the same
+        // traffic.
+        final Random messages = new Random(seed + 1);
+        final Random other = new Random(seed + 2);
+        if (maxDelayMillis >= 0) {
+            world.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    Map<String, String> data = new HashMap<String, String>();
+                    data.put(RegistrationConstants.ACTION,
+                            RegistrationConstants.UPSTREAM_MESSAGE);
+                    scheduler.send(data, false, null);
+                    world.schedule(this, exponential(messages, MEAN_MESSAGE_INTERVAL_MILLIS));
+                }
+            }, exponential(messages, MEAN_MESSAGE_INTERVAL_MILLIS));
+        }
+        world.schedule(new Runnable() {
+            @Override
+            public void run() {
+                world.transfer(false);
+                scheduler.onNetworkActive();
+                world.schedule(this, exponential(other, MEAN_OTHER_TRAFFIC_INTERVAL_MILLIS));
+            }
+        }, exponential(other, MEAN_OTHER_TRAFFIC_INTERVAL_MILLIS));
+        world.runUntil(DAY_MILLIS);
+
+        if (maxDelayMillis >= 0) {
+            LatencyHistogram hold = scheduler.getHoldDelayHistogram();
+            System.out.printf("  max delay %4d s: %4d messages, %4d radio wake-ups, "
+                    + "delay p50 %5.1f s, p99 %5.1f s",
+                    TimeUnit.MILLISECONDS.toSeconds(maxDelayMillis), queue.count,
+                    world.ownWakeups, hold.getPercentileMillis(50) / 1000,
+                    hold.getPercentileMillis(99) / 1000);
+        }
+        return world.activeMillis;
+    }
+
+    private static long exponential(Random random, long meanMillis) {
+        return (long) (-Math.log(1 - random.nextDouble()) * meanMillis);
+    }
+
+    /**
+     * Discrete event clock plus radio state.
+     */
+    private static class SimulatedWorld extends SimulatedClock
+            implements SendScheduler.Clock, SendScheduler.Connectivity {
+
+        private long activeUntil = -1;
+
+        long activeMillis;
+        long ownWakeups;
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public boolean isMetered() {
+            return true;
+        }
+
+        @Override
+        public boolean isRadioActive() {
+            return nowMillis() < activeUntil;
+        }
+
+        void transfer(boolean own) {
+            if (own && !isRadioActive()) {
+                ownWakeups++;
+            }
+            long now = nowMillis();
+            long until = now + TAIL_MILLIS;
+            activeMillis += Math.max(0, until - Math.max(now, activeUntil));
+            activeUntil = Math.max(activeUntil, until);
+        }
+    }
+
+    /**
+     * Queue that transfers on the simulated radio instead of sending. Messages handed
+     * over together go out in one transfer.
+     */
+    private static class RecordingQueue implements UpstreamQueue {
+
+        private final SimulatedWorld world;
+        private long lastTransferMillis = -1;
+        int count;
+
+        RecordingQueue(SimulatedWorld world) {
+            this.world = world;
+        }
+
+        @Override
+        public Future<Void> send(Map<String, String> data, UpstreamDispatcher.Callback callback) {
+            count++;
+            if (world.nowMillis() != lastTransferMillis) {
+                lastTransferMillis = world.nowMillis();
+                world.transfer(true);
+            }
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.benchmark;
+
+import java.util.PriorityQueue;
+
+/**
+ * Discrete event clock: scheduled tasks run in time order, and time jumps from one task to
+ * the next instead of passing.
+ */
+class SimulatedClock {
+
+    private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+    private long now;
+    private long sequence;
+
+    public long nowMillis() {
+        return now;
+    }
+
+    public void schedule(Runnable task, long delayMillis) {
+        events.add(new Event(now + delayMillis, sequence++, task));
+    }
+
+    /**
+     * Runs the scheduled tasks, including the ones they schedule, up to the given time.
+     */
+    void runUntil(long endMillis) {
+        while (!events.isEmpty() && events.peek().atMillis <= endMillis) {
+            Event event = events.poll();
+            now = event.atMillis;
+            event.task.run();
+        }
+    }
+
+    private static class Event implements Comparable<Event> {
+        final long atMillis;
+        final long sequence;
+        final Runnable task;
+
+        Event(long atMillis, long sequence, Runnable task) {
+            this.atMillis = atMillis;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (atMillis != other.atMillis) {
+                return atMillis < other.atMillis ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+}
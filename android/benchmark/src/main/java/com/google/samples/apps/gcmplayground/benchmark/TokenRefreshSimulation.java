@@ -0,0 +1,213 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.benchmark;
+
+import com.google.samples.apps.gcmplayground.metrics.LatencyHistogram;
+import com.google.samples.apps.gcmplayground.registration.RefreshCoordinator;
+import com.google.samples.apps.gcmplayground.registration.RegistrationStore;
+import com.google.samples.apps.gcmplayground.util.KeyValueStore;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates fleet-wide token rotations on a simulated clock and reports the load the app
+ * server sees with several {@link RefreshCoordinator} settings.
+ *
+ * Every device gets its refresh event within a few seconds of the rotation, plus a few
+ * duplicates soon after. The registrar stands in for the registration task: it only sends
+ * when the store does not have the registration yet. Fails if a device sends more than one
+ * registration per rotation or starts more registrations than its coordinator's counters
+ * allow.
+ */
+public class TokenRefreshSimulation {
+
+    private static final String SENDER_ID = FakeCcs.SENDER_ID;
+    private static final int DEVICES = 20000;
+    private static final int ROTATIONS = 2;
+    private static final long ROTATION_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(6);
+    private static final long FAN_OUT_MILLIS = TimeUnit.SECONDS.toMillis(2);
+    private static final long DUPLICATE_SPREAD_MILLIS = TimeUnit.SECONDS.toMillis(20);
+    private static final int MAX_DUPLICATES = 2;
+
+    private final long seed;
+
+    public TokenRefreshSimulation(long seed) {
+        this.seed = seed;
+    }
+
+    public void run() {
+        System.out.println("token refresh: " + DEVICES + " devices, " + ROTATIONS
+                + " fleet-wide rotations, up to " + MAX_DUPLICATES + " duplicate events each");
+        simulate(0, 0);
+        simulate(RefreshCoordinator.DEFAULT_SETTLE_MILLIS, 0);
+        simulate(RefreshCoordinator.DEFAULT_SETTLE_MILLIS, TimeUnit.MINUTES.toMillis(2));
+        simulate(RefreshCoordinator.DEFAULT_SETTLE_MILLIS,
+                RefreshCoordinator.DEFAULT_WINDOW_MILLIS);
+    }
+
+    private void simulate(long settleMillis, long windowMillis) {
+        final SimulatedClock clock = new SimulatedClock();
+        final Map<Long, Integer> sendsPerSecond = new HashMap<Long, Integer>();
+        final LatencyHistogram delay = new LatencyHistogram();
+        final long[] rotationAt = new long[1];
+        final String[] tokens = new String[DEVICES];
+        final int[] sends = new int[DEVICES];
+        Device[] devices = new Device[DEVICES];
+        RefreshCoordinator.Clock wallClock = new RefreshCoordinator.Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return clock.nowMillis();
+            }
+        };
+
+        for (int i = 0; i < DEVICES; i++) {
+            final int device = i;
+            final RegistrationStore store = new RegistrationStore(new MapBacking());
+            store.setLastIdentifier("device-" + i);
+            final Device simulated = new Device();
+            // The app server confirms every registration right away.
+            RefreshCoordinator.Registrar registrar = new RefreshCoordinator.Registrar() {
+                @Override
+                public void register(String stringIdentifier,
+                        RefreshCoordinator.Callback callback) {
+                    simulated.coordinator.onConfirmed();
+                    callback.onFinished(false);
+                    if (store.isRegistered(SENDER_ID, tokens[device], stringIdentifier)) {
+                        store.onSkipped();
+                        return;
+                    }
+                    store.setRegistered(SENDER_ID, tokens[device], stringIdentifier);
+                    sends[device]++;
+                    long now = clock.nowMillis();
+                    delay.record(TimeUnit.MILLISECONDS.toNanos(now - rotationAt[0]));
+                    Long second = now / 1000;
+                    Integer count = sendsPerSecond.get(second);
+                    sendsPerSecond.put(second, count == null ? 1 : count + 1);
+                }
+            };
+            // Stale wake-ups are harmless: the coordinator ignores calls that are not due.
+            RefreshCoordinator.Scheduler scheduler = new RefreshCoordinator.Scheduler() {
+                @Override
+                public void schedule(long delayMillis) {
+                    clock.schedule(simulated.due, delayMillis);
+                }
+            };
+            simulated.coordinator = new RefreshCoordinator(store, wallClock, scheduler,
+                    registrar, settleMillis, windowMillis, new Random(seed + i));
+            devices[i] = simulated;
+        }
+
+        final Random events = new Random(seed);
+        for (int r = 0; r < ROTATIONS; r++) {
+            final int rotation = r;
+            clock.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    rotationAt[0] = clock.nowMillis();
+                    for (int i = 0; i < DEVICES; i++) {
+                        tokens[i] = "token-" + i + "-" + rotation;
+                    }
+                }
+            }, r * ROTATION_INTERVAL_MILLIS);
+            for (Device device : devices) {
+                long first = r * ROTATION_INTERVAL_MILLIS + 1
+                        + (long) (events.nextDouble() * FAN_OUT_MILLIS);
+                clock.schedule(device.refresh, first);
+                int duplicates = events.nextInt(MAX_DUPLICATES + 1);
+                for (int d = 0; d < duplicates; d++) {
+                    clock.schedule(device.refresh,
+                            first + (long) (events.nextDouble() * DUPLICATE_SPREAD_MILLIS));
+                }
+            }
+        }
+        clock.runUntil(ROTATIONS * ROTATION_INTERVAL_MILLIS);
+
+        long refreshes = 0;
+        long collapsed = 0;
+        long started = 0;
+        for (int i = 0; i < DEVICES; i++) {
+            RefreshCoordinator coordinator = devices[i].coordinator;
+            refreshes += coordinator.getRefreshCount();
+            collapsed += coordinator.getCollapsedCount();
+            started += coordinator.getRegistrationCount();
+            if (sends[i] > ROTATIONS) {
+                throw new IllegalStateException("Device " + i + " sent " + sends[i]
+                        + " registrations for " + ROTATIONS + " rotations");
+            }
+            if (coordinator.getRegistrationCount()
+                    > coordinator.getRefreshCount() - coordinator.getCollapsedCount()) {
+                throw new IllegalStateException("Device " + i + " started more registrations"
+                        + " than it had distinct refreshes");
+            }
+        }
+        long sent = 0;
+        int peak = 0;
+        for (int count : sendsPerSecond.values()) {
+            sent += count;
+            peak = Math.max(peak, count);
+        }
+        System.out.printf("  settle %2d s, window %3d s: %6d events, %6d collapsed, "
+                + "%6d started, %6d sent, peak %5d/s, delay p50 %5.1f s, p99 %5.1f s%n",
+                TimeUnit.MILLISECONDS.toSeconds(settleMillis),
+                TimeUnit.MILLISECONDS.toSeconds(windowMillis), refreshes, collapsed, started,
+                sent, peak, delay.getPercentileMillis(50) / 1000,
+                delay.getPercentileMillis(99) / 1000);
+    }
+
+    private static class Device {
+        static final RefreshCoordinator.Callback IGNORE = new RefreshCoordinator.Callback() {
+            @Override
+            public void onFinished(boolean retry) {
+            }
+        };
+
+        RefreshCoordinator coordinator;
+        final Runnable refresh = new Runnable() {
+            @Override
+            public void run() {
+                coordinator.onTokenRefresh();
+            }
+        };
+        final Runnable due = new Runnable() {
+            @Override
+            public void run() {
+                coordinator.onDue(IGNORE);
+            }
+        };
+    }
+
+    private static class MapBacking implements KeyValueStore {
+        private final Map<String, String> values = new HashMap<String, String>();
+
+        @Override
+        public String get(String key) {
+            return values.get(key);
+        }
+
+        @Override
+        public void put(String key, String value) {
+            values.put(key, value);
+        }
+
+        @Override
+        public void remove(String key) {
+            values.remove(key);
+        }
+    }
+
+}
@@ -0,0 +1,361 @@
+// Copyright Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.samples.apps.gcmplayground.benchmark;
+
+import com.google.samples.apps.gcmplayground.constants.RegistrationConstants;
+import com.google.samples.apps.gcmplayground.downstream.DownstreamHandler;
+import com.google.samples.apps.gcmplayground.downstream.DownstreamMessage;
+import com.google.samples.apps.gcmplayground.downstream.DownstreamPipeline;
+import com.google.samples.apps.gcmplayground.downstream.DownstreamQueue;
+import com.google.samples.apps.gcmplayground.downstream.DownstreamRouter;
+import com.google.samples.apps.gcmplayground.downstream.DuplicateFilter;
+import com.google.samples.apps.gcmplayground.trace.TraceEvent;
+import com.google.samples.apps.gcmplayground.trace.TraceReader;
+import com.google.samples.apps.gcmplayground.trace.TraceReplayer;
+import com.google.samples.apps.gcmplayground.trace.TraceWriter;
+import com.google.samples.apps.gcmplayground.upstream.UpstreamDispatcher;
+import com.google.samples.apps.gcmplayground.util.MessageIdGenerator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays a recorded trace through the client's dispatch code: downstream messages through
+ * {@link DownstreamPipeline} into a {@link DownstreamRouter}, upstream messages through an
+ * {@link UpstreamDispatcher} to {@link FakeCcs}.
+ *
+ * The trace is replayed twice with frames stepped by the recorded timestamps, and both runs
+ * must route the same messages in the same order. Then it is replayed as fast as possible
+ * on worker and UI threads for throughput, and at real speed if it is short.
+ *
+ * Without a trace file a synthetic one is written: bursts of feed updates with repeated
+ * deliveries, status replies and upstream messages in between.
+ */
+public class TraceReplay {
+
+    private static final String TO = FakeCcs.SENDER_ID + "@gcm.googleapis.com";
+    private static final String FEED_UPDATE = "feed_update";
+    private static final long FRAME_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(DownstreamPipeline.DEFAULT_FRAME_INTERVAL_MILLIS);
+    private static final long MAX_REAL_TIME_SPAN_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final int SYNTHETIC_BURSTS = 10;
+    private static final int SYNTHETIC_BURST_SIZE = 1500;
+
+    private final long seed;
+    private final File traceFile;
+
+    /**
+     * @param seed Seed of the synthetic trace
+     * @param traceFile Recorded trace, or null for a synthetic one
+     */
+    public TraceReplay(long seed, File traceFile) {
+        this.seed = seed;
+        this.traceFile = traceFile;
+    }
+
+    public void run() throws IOException, InterruptedException {
+        File file = traceFile;
+        if (file == null) {
+            file = File.createTempFile("synthetic", ".trace");
+            file.deleteOnExit();
+            writeSyntheticTrace(file);
+        }
+
+        long[] stats = stats(file);
+        long events = stats[0];
+        long spanNanos = stats[1];
+        System.out.printf("trace replay: %d events over %.2f s, %d bytes (%.1f bytes/event)%s%n",
+                events, spanNanos / 1e9, file.length(),
+                events == 0 ? 0.0 : (double) file.length() / events,
+                traceFile == null ? ", synthetic" : "");
+
+        List<String> first = replayByFrames(file);
+        List<String> second = replayByFrames(file);
+        if (!first.equals(second)) {
+            throw new IllegalStateException("Replays of the same trace dispatched different "
+                    + "sequences");
+        }
+        System.out.printf("  deterministic: %d messages dispatched in the same order twice%n",
+                first.size());
+
+        replayOnThreads(file, TraceReplayer.AS_FAST_AS_POSSIBLE, events);
+        if (spanNanos <= MAX_REAL_TIME_SPAN_NANOS) {
+            replayOnThreads(file, TraceReplayer.REAL_TIME, events);
+        } else {
+            System.out.println("  real time: skipped, trace longer than 10 s");
+        }
+    }
+
+    /**
+     * @return Number of events and time between the first and the last
+     */
+    private static long[] stats(File file) throws IOException {
+        TraceReader reader = new TraceReader(new FileInputStream(file));
+        try {
+            long count = 0;
+            long firstNanos = -1;
+            long lastNanos = 0;
+            TraceEvent event;
+            while ((event = reader.next()) != null) {
+                if (firstNanos < 0) {
+                    firstNanos = event.getOffsetNanos();
+                }
+                lastNanos = event.getOffsetNanos();
+                count++;
+            }
+            if (reader.isTruncated()) {
+                System.out.println("  trace is truncated after " + count + " events");
+            }
+            return new long[] {count, firstNanos < 0 ? 0 : lastNanos - firstNanos};
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Replays on the calling thread, running the frames due before each event by its
+     * recorded time, so the result does not depend on the machine.
+     * @return The routed downstream messages and the dispatched upstream messages, in order
+     */
+    private static List<String> replayByFrames(File file) throws IOException {
+        final List<String> dispatched = new ArrayList<String>();
+        final List<Runnable> nextFrame = new ArrayList<Runnable>();
+        final DownstreamPipeline pipeline = new DownstreamPipeline(new InlineExecutor(),
+                new DuplicateFilter(),
+                new DownstreamPipeline.FrameScheduler() {
+                    @Override
+                    public void schedule(Runnable task, long delayMillis) {
+                        nextFrame.add(task);
+                    }
+                },
+                DownstreamPipeline.DEFAULT_FRAME_INTERVAL_MILLIS, newBacklog(),
+                DownstreamPipeline.DEFAULT_MAX_BATCH_SIZE);
+        DownstreamRouter router = new DownstreamRouter();
+        router.setDefaultHandler(new DownstreamHandler() {
+            @Override
+            public void onMessage(DownstreamMessage message) {
+                dispatched.add("down " + message.getActionName() + " "
+                        + message.getData().get(DuplicateFilter.MESSAGE_ID));
+            }
+        });
+        pipeline.setListener(router);
+
+        List<Runnable> running = new ArrayList<Runnable>();
+        long frameNanos = -1;
+        TraceReader reader = new TraceReader(new FileInputStream(file));
+        try {
+            TraceEvent event;
+            while ((event = reader.next()) != null) {
+                if (frameNanos < 0) {
+                    frameNanos = event.getOffsetNanos();
+                }
+                while (frameNanos + FRAME_NANOS <= event.getOffsetNanos()) {
+                    runFrame(nextFrame, running);
+                    frameNanos += FRAME_NANOS;
+                }
+                if (event.getKind() == TraceEvent.Kind.DOWNSTREAM) {
+                    pipeline.submit(event.getPeer(), event.getData());
+                } else {
+                    dispatched.add("up " + event.getAction());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        while (!nextFrame.isEmpty()) {
+            runFrame(nextFrame, running);
+        }
+        return dispatched;
+    }
+
+    private static void runFrame(List<Runnable> nextFrame, List<Runnable> running) {
+        running.addAll(nextFrame);
+        nextFrame.clear();
+        for (int i = 0; i < running.size(); i++) {
+            running.get(i).run();
+        }
+        running.clear();
+    }
+
+    /**
+     * Replays on the calling thread into the pipeline's worker and UI threads and the
+     * dispatcher's thread, and waits until every message was handled.
+     */
+    private static void replayOnThreads(File file, double speed, long events)
+            throws IOException, InterruptedException {
+        ExecutorService worker = Executors.newSingleThreadExecutor();
+        final ScheduledExecutorService uiThread = Executors.newSingleThreadScheduledExecutor();
+        final DownstreamQueue backlog = newBacklog();
+        final DownstreamPipeline pipeline = new DownstreamPipeline(worker, new DuplicateFilter(),
+                new DownstreamPipeline.FrameScheduler() {
+                    @Override
+                    public void schedule(Runnable task, long delayMillis) {
+                        uiThread.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+                    }
+                },
+                DownstreamPipeline.DEFAULT_FRAME_INTERVAL_MILLIS, backlog,
+                DownstreamPipeline.DEFAULT_MAX_BATCH_SIZE);
+        DownstreamRouter router = new DownstreamRouter();
+        pipeline.setListener(router);
+        final UpstreamDispatcher dispatcher = new UpstreamDispatcher(new FakeCcs(0, 0), TO,
+                new MessageIdGenerator("replay-"));
+        final AtomicLong upstreamCount = new AtomicLong();
+        final AtomicLong upstreamDone = new AtomicLong();
+        final UpstreamDispatcher.Callback callback = new UpstreamDispatcher.Callback() {
+            @Override
+            public void onSent(Map<String, String> data) {
+                upstreamDone.incrementAndGet();
+            }
+
+            @Override
+            public void onUnconfirmed(Map<String, String> data) {
+                upstreamDone.incrementAndGet();
+            }
+
+            @Override
+            public void onFailed(Map<String, String> data, Throwable error) {
+                upstreamDone.incrementAndGet();
+            }
+        };
+
+        TraceReplayer replayer = new TraceReplayer(new TraceReplayer.Target() {
+            @Override
+            public void onDownstream(String from, Map<String, String> data) {
+                pipeline.submit(from, data);
+            }
+
+            @Override
+            public void onUpstream(String to, Map<String, String> data) {
+                upstreamCount.incrementAndGet();
+                dispatcher.send(data, callback);
+            }
+        }, speed);
+
+        long startNanos = System.nanoTime();
+        TraceReader reader = new TraceReader(new FileInputStream(file));
+        try {
+            replayer.replay(reader);
+        } finally {
+            reader.close();
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (pipeline.getRenderedCount() + pipeline.getDuplicateCount()
+                + backlog.getCollapsedCount() + backlog.getDroppedCount()
+                < pipeline.getReceivedCount() || upstreamDone.get() < upstreamCount.get()) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Replayed messages were not all handled");
+            }
+            Thread.sleep(1);
+        }
+        double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+
+        System.out.printf("  %s: %d events in %.2f s (%.0f msg/s), %d rendered in %d frames, "
+                + "%d duplicates, %d collapsed, %d upstream sent%n",
+                speed == TraceReplayer.AS_FAST_AS_POSSIBLE ? "as fast as possible" : "real time",
+                events, elapsedSeconds, events / elapsedSeconds, pipeline.getRenderedCount(),
+                pipeline.getFrameCount(), pipeline.getDuplicateCount(),
+                backlog.getCollapsedCount(), dispatcher.getSentCount());
+        dispatcher.shutdown();
+        worker.shutdown();
+        uiThread.shutdown();
+    }
+
+    /**
+     * Status replies ahead of everything else and feed updates last, as in the app.
+     */
+    private static DownstreamQueue newBacklog() {
+        DownstreamQueue backlog = new DownstreamQueue();
+        backlog.setPriority(RegistrationConstants.REGISTER_NEW_CLIENT,
+                DownstreamQueue.Priority.HIGH);
+        backlog.setPriority(RegistrationConstants.UNREGISTER_CLIENT,
+                DownstreamQueue.Priority.HIGH);
+        backlog.setPriority(FEED_UPDATE, DownstreamQueue.Priority.LOW);
+        return backlog;
+    }
+
+    /**
+     * Writes bursts of feed updates 200 ms apart, one in ten delivered twice, with a chat
+     * message or status reply every so often and an upstream message between bursts.
+     */
+    private void writeSyntheticTrace(File file) throws IOException {
+        Random random = new Random(seed);
+        TraceWriter writer = new TraceWriter(new FileOutputStream(file),
+                System.currentTimeMillis(), 0);
+        try {
+            long nowNanos = 0;
+            int id = 0;
+            for (int burst = 0; burst < SYNTHETIC_BURSTS; burst++) {
+                for (int i = 0; i < SYNTHETIC_BURST_SIZE; i++) {
+                    nowNanos += random.nextInt(20000);
+                    Map<String, String> data = new HashMap<String, String>();
+                    int kind = random.nextInt(100);
+                    if (kind == 0) {
+                        data.put(RegistrationConstants.ACTION,
+                                RegistrationConstants.REGISTER_NEW_CLIENT);
+                        data.put(RegistrationConstants.STATUS,
+                                RegistrationConstants.STATUS_REGISTERED);
+                    } else if (kind == 1) {
+                        data.put(RegistrationConstants.ACTION,
+                                RegistrationConstants.UNREGISTER_CLIENT);
+                        data.put(RegistrationConstants.STATUS,
+                                RegistrationConstants.STATUS_UNREGISTERED);
+                    } else if (kind < 10) {
+                        data.put(RegistrationConstants.ACTION,
+                                RegistrationConstants.UPSTREAM_MESSAGE);
+                        data.put(RegistrationConstants.EXTRA_KEY_MESSAGE, "chat " + id);
+                    } else {
+                        data.put(RegistrationConstants.ACTION, FEED_UPDATE);
+                        data.put(DownstreamMessage.COLLAPSE_KEY, "feed-" + random.nextInt(20));
+                        data.put(RegistrationConstants.EXTRA_KEY_MESSAGE, "update " + id);
+                    }
+                    data.put(DuplicateFilter.MESSAGE_ID, "0:" + id++ + "%trace");
+                    writer.write(TraceEvent.Kind.DOWNSTREAM, nowNanos, FakeCcs.SENDER_ID, data);
+                    if (random.nextInt(10) == 0) {
+                        writer.write(TraceEvent.Kind.DOWNSTREAM, nowNanos + 1000,
+                                FakeCcs.SENDER_ID, data);
+                    }
+                }
+                Map<String, String> upstream = new HashMap<String, String>();
+                upstream.put(RegistrationConstants.ACTION, RegistrationConstants.UPSTREAM_MESSAGE);
+                upstream.put(RegistrationConstants.EXTRA_KEY_MESSAGE, "reply " + burst);
+                writer.write(TraceEvent.Kind.UPSTREAM, nowNanos, null, upstream);
+                nowNanos = (burst + 1) * TimeUnit.MILLISECONDS.toNanos(200);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static class InlineExecutor implements Executor {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    }
+
+}
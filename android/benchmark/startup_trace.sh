@@ -0,0 +1,54 @@
+# Copyright 2015 Google Inc. All Rights Reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+# startup_trace.sh [runs]
+# Cold-starts the installed app a number of times on the connected device and reports the
+# time to first frame and the time until the UI showed the registration state, as logged by
+# MyActivity under the StartupTrace tag. Times are measured from MyActivity.onCreate.
+# Install the app first, e.g. with ./gradlew :app:installDebug, or let
+# ./gradlew :app:sizeReport<Variant> -PstartupRuns=<n> install and run it.
+
+PACKAGE=com.google.samples.apps.gcmplayground
+ACTIVITY=$PACKAGE/.MyActivity
+RUNS=${1:-10}
+RESULTS=$(mktemp)
+
+for i in $(seq 1 "$RUNS"); do
+    adb shell am force-stop $PACKAGE
+    adb logcat -c
+    # TotalTime is measured by the system from process start to the first frame.
+    TOTAL=$(adb shell am start -W -n $ACTIVITY | tr -d '\r' | sed -n 's/^TotalTime: //p')
+
+    LINE=""
+    for attempt in $(seq 1 50); do
+        LINE=$(adb logcat -d -s StartupTrace:I | tr -d '\r' | grep 'first_frame=' | tail -n 1)
+        [ -n "$LINE" ] && break
+        sleep 0.1
+    done
+    if [ -z "$LINE" ]; then
+        echo "run $i: no StartupTrace line logged"
+        continue
+    fi
+    FIRST_FRAME=$(echo "$LINE" | sed -n 's/.*first_frame=\([0-9.]*\)ms.*/\1/p')
+    REGISTRATION=$(echo "$LINE" | sed -n 's/.*registration_state=\([0-9.]*\)ms.*/\1/p')
+    echo "run $i: process_total=${TOTAL}ms first_frame=${FIRST_FRAME}ms registration_state=${REGISTRATION}ms"
+    echo "$TOTAL $FIRST_FRAME $REGISTRATION" >> "$RESULTS"
+done
+
+median() {
+    cut -d' ' -f"$1" "$RESULTS" | sort -n | awk '{ v[NR] = $1 } END { if (NR > 0) print v[int((NR + 1) / 2)] }'
+}
+echo "==> Median of $(wc -l < "$RESULTS") runs"
+echo "process_total=$(median 1)ms first_frame=$(median 2)ms registration_state=$(median 3)ms"
+rm -f "$RESULTS"
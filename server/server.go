@@ -22,6 +22,7 @@ import (
 	"io/ioutil"
 	"log"
 	"net/http"
+	"strconv"
 	"strings"
 
 	"github.com/google/go-gcm"
@@ -39,10 +40,16 @@ const (
 	actionKey          = "action"
 	registerNewClient  = "register_new_client"
 	unregisterClient   = "unregister_client"
+	upstreamMessage    = "upstream_message"
+	upstreamBatch      = "upstream_batch"
+	batchSizeKey       = "batch_size"
 	token              = "registration_token"
 	stringIdentifier   = "stringIdentifier"
 	statusRegistered   = "registered"
 	statusUnregistered = "unregistered"
+
+	// Largest batch the client coalesces, UpstreamDispatcher.DEFAULT_MAX_BATCH_SIZE
+	maxBatchSize = 20
 )
 
 var (
@@ -205,8 +212,75 @@ func SendClientStatus(token string, d gcm.Data) error {
 	return nil
 }
 
+// Splits a batch of upstream messages coalesced by the client back into the single
+// messages. The keys of the n-th message carry an "n:" prefix. The batch size is
+// checked against the client's limit and the prefixed keys present before anything is
+// allocated, so a forged size cannot make the server allocate or dispatch more messages
+// than it was sent.
+func unpackBatch(d gcm.Data) ([]gcm.Data, error) {
+	size, ok := d[batchSizeKey].(string)
+	if !ok {
+		return nil, errors.New("Error decoding batch size.")
+	}
+	n, err := strconv.Atoi(size)
+	if err != nil || n < 0 || n > maxBatchSize {
+		return nil, fmt.Errorf("Invalid batch size %q.", size)
+	}
+	prefixed := 0
+	for key := range d {
+		if batchIndex(key) >= 0 {
+			prefixed++
+		}
+	}
+	if n > prefixed {
+		return nil, fmt.Errorf("Batch size %d exceeds the %d prefixed keys.", n, prefixed)
+	}
+
+	messages := make([]gcm.Data, n)
+	for i := range messages {
+		messages[i] = gcm.Data{actionKey: upstreamMessage}
+	}
+	for key, value := range d {
+		i := batchIndex(key)
+		if i < 0 || i >= n {
+			continue
+		}
+		messages[i][key[strings.Index(key, ":")+1:]] = value
+	}
+	return messages, nil
+}
+
+// Returns the index of the message a batch key belongs to, or -1 if the key has no
+// "n:" prefix.
+func batchIndex(key string) int {
+	sep := strings.Index(key, ":")
+	if sep < 0 {
+		return -1
+	}
+	i, err := strconv.Atoi(key[:sep])
+	if err != nil || i < 0 {
+		return -1
+	}
+	return i
+}
+
 // Callback for gcmd listen: check action and dispatch server method
 func onMessageReceived(cm gcm.CcsMessage) error {
+	if cm.Data[actionKey] == upstreamBatch {
+		messages, err := unpackBatch(cm.Data)
+		if err != nil {
+			return err
+		}
+		for _, d := range messages {
+			single := cm
+			single.Data = d
+			if err := onMessageReceived(single); err != nil {
+				log.Println(err)
+			}
+		}
+		return nil
+	}
+
 	log.Printf("Received Message: %+v", cm)
 
 	if socket != nil {
@@ -233,8 +307,10 @@ func onMessageReceived(cm gcm.CcsMessage) error {
 			db.Model(Client{}).Where("registration_token = ?", token).Update("string_identifier", string_identifier)
 		}
 
-		// Send the client registered status.
-		err := SendClientStatus(token, gcm.Data{actionKey: registerNewClient, "status": statusRegistered})
+		// Send the client registered status, naming the token so the client can tell
+		// which of its registrations was confirmed ("token" is shadowed here).
+		err := SendClientStatus(token, gcm.Data{actionKey: registerNewClient, "status": statusRegistered,
+			"registration_token": token})
 		if err != nil {
 			log.Println(err)
 		}